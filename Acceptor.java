@@ -0,0 +1,363 @@
+package com.kd.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+
+
+
+/*
+ * Accepts incoming connections on the listen port and hands each one to an
+ * executor, so the acceptor goes straight back to accepting.
+ *
+ * Acceptors block in ServerSocketChannel#accept() rather than polling with a
+ * timeout, so an idle acceptor uses no CPU.  Closing the acceptor closes its
+ * channels, which wakes every blocked acceptor at once.
+ *
+ * Several acceptor threads can be run to drain a burst of connections, e.g.
+ * every client reconnecting after a network partition heals.  Where the
+ * platform supports SO_REUSEPORT each acceptor gets its own channel and the
+ * kernel spreads connections across their accept queues; otherwise they share
+ * one channel.
+ *
+ * Set the accept queue length with -Dchat.accept.backlog=<n> and the number of
+ * acceptors with -Dchat.accept.threads=<n>.
+ */
+
+public class Acceptor{
+	//Connections the kernel queues before they are accepted.
+	//Set with -Dchat.accept.backlog=<n>
+	public static final int DEFAULT_BACKLOG =
+		Integer.getInteger("chat.accept.backlog", 128).intValue();
+
+	//Threads accepting connections. Set with -Dchat.accept.threads=<n>
+	public static final int DEFAULT_ACCEPTORS =
+		Integer.getInteger("chat.accept.threads", 1).intValue();
+
+	//How long to wait after a failed accept, e.g. when out of file descriptors,
+	//before trying again
+	protected static final long FAILURE_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	protected final int port;
+
+	protected final int backlog;
+
+	protected final int acceptors;
+
+	//Runs the handler for each accepted connection
+	protected final Executor executor;
+
+	protected final Consumer<Socket> handler;
+
+	//Bound channels, one per acceptor with SO_REUSEPORT, otherwise one shared
+	protected final List<ServerSocketChannel> channels = new CopyOnWriteArrayList<ServerSocketChannel>();
+
+	protected volatile boolean open = true;
+
+	protected final AtomicLong accepted = new AtomicLong();
+
+	protected final AtomicLong failures = new AtomicLong();
+
+	//Connections accepted and not yet through the handler, e.g. still handshaking
+	protected final AtomicInteger pending = new AtomicInteger();
+
+	protected final AtomicInteger peakPending = new AtomicInteger();
+
+	//Accepts counted in the current second, and in the last complete one.
+	//Guarded by this
+	protected long rateSecond = -1;
+
+	protected int rateCount = 0;
+
+	protected int lastRate = 0;
+
+	protected int peakRate = 0;
+
+	/*
+	 * Creates an acceptor with the default backlog and number of acceptors.
+	 *
+	 * @param port
+	 * 		the port to listen on
+	 * @param executor
+	 * 		runs the handler for each connection
+	 * @param handler
+	 * 		takes each accepted connection
+	 */
+
+	public Acceptor(final int port, final Executor executor, final Consumer<Socket> handler){
+		this(port, DEFAULT_BACKLOG, DEFAULT_ACCEPTORS, executor, handler);
+	}
+
+	/*
+	 * @param port
+	 * 		the port to listen on
+	 * @param backlog
+	 * 		the connections the kernel queues before they are accepted
+	 * @param acceptors
+	 * 		the threads accepting connections
+	 * @param executor
+	 * 		runs the handler for each connection
+	 * @param handler
+	 * 		takes each accepted connection
+	 */
+
+	public Acceptor(final int port, final int backlog, final int acceptors,
+			final Executor executor, final Consumer<Socket> handler){
+		if(acceptors < 1){
+			throw new IllegalArgumentException("At least one acceptor is needed.");
+		}
+		this.port = port;
+		this.backlog = backlog;
+		this.acceptors = acceptors;
+		this.executor = executor;
+		this.handler = handler;
+	}
+
+	/*
+	 * Binds the listen port.
+	 *
+	 * @throws IOException if the port can't be bound
+	 */
+
+	public void bind() throws IOException{
+		ServerSocketChannel first = ServerSocketChannel.open();
+		boolean reusePort = this.acceptors > 1
+			&& first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		try{
+			this.bind(first, reusePort);
+			for(int i = 1; reusePort && i < this.acceptors; ++i){
+				this.bind(ServerSocketChannel.open(), true);
+			}
+		}
+		catch(IOException ioe){
+			this.close();
+			throw ioe;
+		}
+		//Closed before it was bound
+		if(!this.open){
+			this.close();
+		}
+	}
+
+	protected void bind(final ServerSocketChannel channel, final boolean reusePort) throws IOException{
+		this.channels.add(channel);
+		if(reusePort){
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+		}
+		channel.bind(new InetSocketAddress(this.port), this.backlog);
+	}
+
+	/*
+	 * Accepts connections until the acceptor is closed.  The first acceptor runs
+	 * on the calling thread and any others on new threads.
+	 */
+
+	public void serve(){
+		for(int i = 1; i < this.acceptors; ++i){
+			final ServerSocketChannel channel = this.channels.get(i % this.channels.size());
+			Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					Acceptor.this.accept(channel);
+				}
+			}, "acceptor-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		this.accept(this.channels.get(0));
+	}
+
+	/*Accepts connections from the channel until it is closed*/
+
+	protected void accept(final ServerSocketChannel channel){
+		while(this.open){
+			SocketChannel connection;
+			try{
+				connection = channel.accept();
+			}
+			catch(ClosedChannelException cce){
+				return;
+			}
+			catch(IOException ioe){
+				this.failures.incrementAndGet();
+				if(!this.open){
+					return;
+				}
+				System.err.println("Unable to accept a connection: " + ioe.getMessage());
+				LockSupport.parkNanos(FAILURE_BACKOFF_NANOS);
+				continue;
+			}
+			this.accepted(connection.socket());
+		}
+	}
+
+	/*Counts the connection and hands it to the executor*/
+
+	protected void accepted(final Socket socket){
+		this.accepted.incrementAndGet();
+		this.countRate(System.nanoTime());
+		int waiting = this.pending.incrementAndGet();
+		int peak;
+		while(waiting > (peak = this.peakPending.get())
+				&& !this.peakPending.compareAndSet(peak, waiting)){
+		}
+		try{
+			this.executor.execute(new Runnable(){
+				@Override
+				public void run(){
+					try{
+						Acceptor.this.handler.accept(socket);
+					}
+					finally{
+						Acceptor.this.pending.decrementAndGet();
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException ree){
+			this.pending.decrementAndGet();
+			try{
+				socket.close();
+			}
+			catch(IOException ioe){
+			}
+		}
+	}
+
+	protected synchronized void countRate(final long nanos){
+		long second = TimeUnit.NANOSECONDS.toSeconds(nanos);
+		if(second != this.rateSecond){
+			this.lastRate = second == this.rateSecond + 1 ? this.rateCount : 0;
+			this.rateSecond = second;
+			this.rateCount = 0;
+		}
+		if(++this.rateCount > this.peakRate){
+			this.peakRate = this.rateCount;
+		}
+	}
+
+	/*
+	 * Stops accepting.  Every blocked acceptor wakes and returns.
+	 */
+
+	public void close(){
+		this.open = false;
+		for(ServerSocketChannel channel : this.channels){
+			try{
+				channel.close();
+			}
+			catch(IOException ioe){
+			}
+		}
+	}
+
+	/*
+	 * @return a snapshot of the accept counters
+	 */
+
+	public synchronized Stats getStats(){
+		//The last complete second is stale if nothing has been accepted since
+		long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+		int rate = second == this.rateSecond ? this.lastRate
+			: second == this.rateSecond + 1 ? this.rateCount : 0;
+		return new Stats(this.accepted.get(), this.failures.get(), rate, this.peakRate,
+				this.pending.get(), this.peakPending.get(), this.backlog, this.channels.size());
+	}
+
+	/*
+	 * Point-in-time counters for an Acceptor
+	 */
+
+	public static final class Stats{
+		protected final long accepted;
+
+		protected final long failures;
+
+		protected final int ratePerSecond;
+
+		protected final int peakRatePerSecond;
+
+		protected final int pending;
+
+		protected final int peakPending;
+
+		protected final int backlog;
+
+		protected final int channels;
+
+		protected Stats(final long accepted, final long failures, final int ratePerSecond,
+				final int peakRatePerSecond, final int pending, final int peakPending,
+				final int backlog, final int channels){
+			this.accepted = accepted;
+			this.failures = failures;
+			this.ratePerSecond = ratePerSecond;
+			this.peakRatePerSecond = peakRatePerSecond;
+			this.pending = pending;
+			this.peakPending = peakPending;
+			this.backlog = backlog;
+			this.channels = channels;
+		}
+
+		public long getAccepted(){
+			return this.accepted;
+		}
+
+		public long getFailures(){
+			return this.failures;
+		}
+
+		/*
+		 * @return the connections accepted in the last complete second
+		 */
+
+		public int getRatePerSecond(){
+			return this.ratePerSecond;
+		}
+
+		public int getPeakRatePerSecond(){
+			return this.peakRatePerSecond;
+		}
+
+		/*
+		 * @return the connections accepted and still being handshaked
+		 */
+
+		public int getPending(){
+			return this.pending;
+		}
+
+		public int getPeakPending(){
+			return this.peakPending;
+		}
+
+		public int getBacklog(){
+			return this.backlog;
+		}
+
+		public int getChannels(){
+			return this.channels;
+		}
+
+		@Override
+		public String toString(){
+			return "accepted=" + this.accepted + ", failures=" + this.failures +
+				", rate=" + this.ratePerSecond + "/s, peakRate=" + this.peakRatePerSecond +
+				"/s, pending=" + this.pending + ", peakPending=" + this.peakPending +
+				", backlog=" + this.backlog + ", channels=" + this.channels;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.kd.chat;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+
+/*
+ * Bounded cache of resolved host names, so that connecting to, comparing and
+ * exchanging clients does not go to the resolver every time.  Entries expire
+ * after a fixed time to live.  When the cache is full, expired entries are
+ * dropped first and then arbitrary ones.
+ *
+ * Failed lookups are not cached.
+ */
+
+public class AddressCache{
+	//Time to live of a cached address. Set with -Dchat.dns.ttlSeconds=<seconds>
+	public static final long DEFAULT_TTL_MILLIS =
+		Long.getLong("chat.dns.ttlSeconds", 60).longValue() * 1000;
+
+	//Largest number of cached addresses. Set with -Dchat.dns.maxEntries=<n>
+	public static final int DEFAULT_MAX_ENTRIES =
+		Integer.getInteger("chat.dns.maxEntries", 4096).intValue();
+
+	//Cache shared by every client in this process
+	public static final AddressCache SHARED = new AddressCache(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+
+	protected final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	protected final long ttlNanos;
+
+	protected final int maxEntries;
+
+	protected final AtomicLong hits = new AtomicLong();
+
+	protected final AtomicLong misses = new AtomicLong();
+
+	/*
+	 * @param ttlMillis
+	 * 		how long a resolved address is kept
+	 * @param maxEntries
+	 * 		the largest number of addresses kept
+	 */
+
+	public AddressCache(final long ttlMillis, final int maxEntries){
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.maxEntries = maxEntries;
+	}
+
+	/*
+	 * Returns the address for the host, from the cache if a live entry exists.
+	 *
+	 * @param host
+	 * 		a hostname or IP address literal
+	 * @return the resolved address
+	 * @throws UnknownHostException if the host cannot be resolved
+	 */
+
+	public InetAddress resolve(final String host) throws UnknownHostException{
+		long now = System.nanoTime();
+		Entry entry = this.entries.get(host);
+		if(entry != null && entry.expires - now > 0){
+			this.hits.incrementAndGet();
+			return entry.address;
+		}
+
+		this.misses.incrementAndGet();
+		InetAddress address = InetAddress.getByName(host);
+		if(entry == null && this.entries.size() >= this.maxEntries){
+			this.evict(now);
+		}
+		this.entries.put(host, new Entry(address, now + this.ttlNanos));
+		return address;
+	}
+
+	/*Drops expired entries, then arbitrary ones until there is room for one more*/
+
+	protected void evict(final long now){
+		for(Iterator<Entry> entryIter = this.entries.values().iterator(); entryIter.hasNext();){
+			if(entryIter.next().expires - now <= 0){
+				entryIter.remove();
+			}
+		}
+		for(Iterator<String> hostIter = this.entries.keySet().iterator();
+			hostIter.hasNext() && this.entries.size() >= this.maxEntries;){
+			hostIter.next();
+			hostIter.remove();
+		}
+	}
+
+	/*Forgets every cached address*/
+
+	public void clear(){
+		this.entries.clear();
+	}
+
+	/*
+	 * @return the number of lookups answered from the cache
+	 */
+
+	public long getHits(){
+		return this.hits.get();
+	}
+
+	/*
+	 * @return the number of lookups that went to the resolver
+	 */
+
+	public long getMisses(){
+		return this.misses.get();
+	}
+
+	public int size(){
+		return this.entries.size();
+	}
+
+	@Override
+	public String toString(){
+		return "hits=" + this.getHits() + ", misses=" + this.getMisses() + ", entries=" + this.size();
+	}
+
+	protected static final class Entry{
+		protected final InetAddress address;
+
+		//System.nanoTime() after which the entry is stale
+		protected final long expires;
+
+		protected Entry(final InetAddress address, final long expires){
+			this.address = address;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.kd.chat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+
+/*
+ * Counts how many frames were written per socket write.  Batch sizes are
+ * grouped in power-of-two buckets: 1, 2, 3-4, 5-8, ... up to 65 and above.
+ */
+
+public class BatchSizeHistogram{
+	//Number of buckets, the last one holds every batch larger than 64 frames
+	public static final int BUCKETS = 8;
+
+	protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/*
+	 * Records one write of the given number of frames.
+	 *
+	 * @param frames
+	 * 		the number of frames written together, at least 1
+	 */
+
+	public void record(final int frames){
+		this.counts.incrementAndGet(bucketOf(frames));
+	}
+
+	/*
+	 * Adds this histogram's counts to the array, which must have BUCKETS entries.
+	 *
+	 * @param totals
+	 * 		the running totals to add to
+	 */
+
+	public void addTo(final long[] totals){
+		for(int i = 0; i < BUCKETS; ++i){
+			totals[i] += this.counts.get(i);
+		}
+	}
+
+	/*
+	 * @return the current count for each bucket
+	 */
+
+	public long[] getCounts(){
+		long[] snapshot = new long[BUCKETS];
+		this.addTo(snapshot);
+		return snapshot;
+	}
+
+	/*
+	 * @param frames
+	 * 		a batch size
+	 * @return the index of the bucket that holds it
+	 */
+
+	public static int bucketOf(final int frames){
+		if(frames <= 1){
+			return 0;
+		}
+		int bucket = 32 - Integer.numberOfLeadingZeros(frames - 1);
+		return bucket < BUCKETS ? bucket : BUCKETS - 1;
+	}
+
+	/*
+	 * @param bucket
+	 * 		a bucket index
+	 * @return a label for the range of batch sizes in the bucket, e.g. "5-8"
+	 */
+
+	public static String labelOf(final int bucket){
+		if(bucket == 0){
+			return "1";
+		}
+		if(bucket == 1){
+			return "2";
+		}
+		int low = (1 << (bucket - 1)) + 1;
+		if(bucket == BUCKETS - 1){
+			return low + "+";
+		}
+		return low + "-" + (1 << bucket);
+	}
+
+	/*
+	 * Formats a set of bucket counts, e.g. "1:120 2:4 3-4:1 ..."
+	 */
+
+	public static String format(final long[] counts){
+		StringBuffer sb = new StringBuffer();
+		for(int i = 0; i < counts.length; ++i){
+			if(i > 0){
+				sb.append(' ');
+			}
+			sb.append(labelOf(i)).append(':').append(counts[i]);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString(){
+		return format(this.getCounts());
+	}
+}
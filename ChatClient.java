@@ -1,25 +1,53 @@
 package com.kd.chat;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.kd.chat.messaging.AbstractMessage;
+import com.kd.chat.messaging.ChatFrame;
+import com.kd.chat.messaging.ChatFrameListener;
 import com.kd.chat.messaging.ChatMessage;
 import com.kd.chat.messaging.ClientExchangeMessage;
-import com.kd.chat.messaging.MessageListener;
+import com.kd.chat.messaging.EncodedFrame;
+import com.kd.chat.messaging.FrameSet;
+import com.kd.chat.messaging.GossipIdsMessage;
+import com.kd.chat.messaging.GossipListener;
+import com.kd.chat.messaging.GossipMessage;
+import com.kd.chat.messaging.PeerDigestMessage;
+import com.kd.chat.messaging.PeerListListener;
+import com.kd.chat.messaging.PeerListMessage;
+import com.kd.chat.messaging.SyncAckMessage;
+import com.kd.chat.messaging.SyncListener;
+import com.kd.chat.messaging.SyncRequestMessage;
 import com.kd.chat.ui.ConsoleUI;
 import com.kd.chat.ui.UserInputListener;
 
 
 
 
-public class ChatClient extends Thread implements MessageListener, UserInputListener{
+public class ChatClient extends Thread implements ChatFrameListener, PeerListListener,
+		GossipListener, SyncListener, UserInputListener{
 
 	//port number for incoming connections
 	protected final int listenPort;
@@ -27,20 +55,108 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 	//Local Username
 	protected final String username;
 
-	//Socet for accepting incoming connections
-	protected ServerSocket listenSocket;
+	//Accepts incoming connections on the listen port
+	protected final Acceptor acceptor;
 
 	//Flag to keep running the client
-	protected boolean keepRunning = true;
+	protected volatile boolean keepRunning = true;
+
+	//Currently-connected clients, indexed by address and username
+	protected final PeerRegistry clients = new PeerRegistry();
 
-	//List of currently-connected clients
-	protected final Collection<Client> clients = new ConcurrentLinkedQueue<Client>();
+	//Listen addresses currently being dialed, so two exchanges naming the same
+	//client don't both connect to it
+	protected final Set<InetSocketAddress> dialing =
+		ConcurrentHashMap.<InetSocketAddress>newKeySet();
+
+	//Run client readers, the user interface and worker tasks on virtual threads.
+	//Set with -Dchat.virtualThreads=true
+	protected final boolean virtualThreads = Boolean.getBoolean("chat.virtualThreads")
+			&& VirtualThreads.isSupported();
 
 	//Thread pool for handling incoming connections and new client info
-	protected final ExecutorService workers = Executors.newCachedThreadPool();
+	protected final ExecutorService workers = this.virtualThreads ?
+			VirtualThreads.newThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+
+	//Handles each client's messages in order on a bounded pool, clients in parallel
+	protected final SerialDispatcher dispatcher = new SerialDispatcher();
+
+	//Preallocated ring that client readers publish messages into instead of the
+	//dispatcher, or null. Enabled with -Dchat.ring.size=<n>
+	protected final EventRing events = EventRing.DEFAULT_SIZE > 0 ?
+			new EventRing(EventRing.DEFAULT_SIZE, SerialDispatcher.DEFAULT_THREADS,
+					new EventRing.Handler(){
+						@Override
+						public void onEvent(final EventRing.Event event, final boolean endOfBatch){
+							if(event.getTask() != null){
+								event.getTask().run();
+							}
+							else{
+								ChatClient.this.showChatMessage(event.getClient(), event.getFrom(),
+										event.getTimestamp(), event.getText(), event.getAuthor());
+							}
+						}
+					}) : null;
+
+	//Chat frames of the read in progress on each reading thread, see
+	//chatFramesRead.  A client is read by one thread at a time, and each read
+	//ends before that thread reads another client
+	protected final ThreadLocal<Burst> bursts = new ThreadLocal<Burst>(){
+		@Override
+		protected Burst initialValue(){
+			return new Burst();
+		}
+	};
+
+	//Dials and handshakes remote clients with deadlines and a limit on dials in flight
+	protected final Connector connector = new Connector(this.workers);
+
+	//IDs of chat messages already dispatched by any client, so a message that
+	//arrives more than once is only shown once
+	protected final DedupeCache dedupe = new DedupeCache();
+
+	//Bounded-view overlay that relays chat messages, or null for a full mesh.
+	//Enabled with -Dchat.overlay.fanout=<n>
+	protected final GossipOverlay overlay = GossipOverlay.isEnabled() ? new GossipOverlay(this) : null;
+
+	//Keeps every chat message sent or received, or null.
+	//Enabled with -Dchat.history.dir=<directory>
+	protected HistoryLog history;
+
+	//Full-text index of the messages seen, or null unless enabled with
+	//-Dchat.search=true
+	protected SearchIndex search;
+
+	//Most recent messages, in direct memory, or null if disabled with
+	//-Dchat.scrollback.bytes=0
+	protected final Scrollback scrollback = Scrollback.DEFAULT_BYTES > 0 ?
+		new Scrollback(Scrollback.DEFAULT_BYTES) : null;
+
+	//Catches clients up from the history after they connect, or null if
+	//disabled with -Dchat.sync.windowMillis=0
+	protected HistorySync sync;
+
+	//Sends heartbeats on idle links and disconnects silent clients, or null if
+	//disabled with -Dchat.heartbeat.intervalMillis=0
+	protected final HeartbeatMonitor heartbeats = HeartbeatMonitor.isEnabled() ?
+			new HeartbeatMonitor(this) : null;
+
+	//A connected client that has sent nothing for this long is replaced by a new
+	//connection to the same address, see testClient.  Heartbeats keep live links
+	//from going this quiet. Set with -Dchat.liveness.windowMillis=<ms>
+	protected final long livenessWindowNanos = TimeUnit.MILLISECONDS.toNanos(
+			Long.getLong("chat.liveness.windowMillis",
+					2 * Math.max(HeartbeatMonitor.DEFAULT_INTERVAL_MILLIS, 5000)).longValue());
 
 	//Basic console-based user interface
-	protected ConsoleUI userInterface = new ConsoleUI();	
+	protected ConsoleUI userInterface = new ConsoleUI(this.clients);	
+
+	//Number of selector threads to multiplex clients over, or 0 to give each
+	//client its own reader thread. Set with -Dchat.ioThreads=<n>
+	protected final int ioThreads = Integer.getInteger("chat.ioThreads", 0).intValue();
+
+	//Selector threads serving every client, or null for thread-per-client
+	protected EventLoopGroup eventLoops;
 
 	/*Parse command-line arguments and start a single instance of the ChatClient class
 	 * @param args 
@@ -107,15 +223,77 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 	public ChatClient(final int listenPort, final String username){
 			this.listenPort = listenPort;
 			this.username = username;
+			//Pass the actual work of adding the client to a worker, freeing the
+			//acceptor to accept new clients
+			this.acceptor = new Acceptor(listenPort, this.workers, new Consumer<Socket>(){
+				@Override
+				public void accept(final Socket socket){
+					addClient(socket);
+				}
+			});
+
+			if(this.ioThreads > 0){
+				try{
+					this.eventLoops = new EventLoopGroup(this.ioThreads);
+				}
+				catch(IOException ioe){
+					System.err.println("Unable to open selectors, using a thread per client: "
+							+ ioe.getMessage());
+				}
+			}
+
+			if(HistoryLog.DEFAULT_DIR != null){
+				//One log per listen port, so several clients can share the directory
+				File directory = new File(HistoryLog.DEFAULT_DIR, String.valueOf(listenPort));
+				try{
+					this.history = new HistoryLog(directory);
+				}
+				catch(IOException ioe){
+					System.err.println("Unable to open chat history in " + directory +
+							", keeping none: " + ioe.getMessage());
+				}
+			}
+
+			if(SearchIndex.ENABLED){
+				this.search = new SearchIndex(this.history);
+			}
+
+			if(HistorySync.isEnabled()){
+				this.sync = new HistorySync(this, this.history, this.scrollback, this.workers);
+			}
+
+			if(GossipOverlay.DEFAULT_FANOUT > 0 && this.overlay == null){
+				System.err.println("The overlay needs protocol version 2, using a full mesh.");
+			}
+
+			if(Boolean.getBoolean("chat.virtualThreads") && !this.virtualThreads){
+				System.err.println("Virtual threads are not supported by this JVM, using platform threads.");
+			}
 
 			this.userInterface.addUserInputListener(this);
-			this.userInterface.start();
+			this.userInterface.setScrollback(this.scrollback);
+			this.userInterface.setSearchIndex(this.search);
+			this.startThread(this.userInterface);
+	}
+
+	/*Starts the thread, or runs it on a new virtual thread when virtual threads are enabled
+	 *
+	 * @param thread
+	 * 		the unstarted thread to run
+	 */
+
+	protected void startThread(Thread thread){
+		if(this.virtualThreads){
+			VirtualThreads.newThread(thread).start();
+		}
+		else{
+			thread.start();
+		}
 	}
 
 	/*Called when remote clients exchange information about other clients with
-	 * this client.  Will check for a duplicate connecction first, test it with a 
-	 * keep-alive, and ignore this client if the connection is viable.  If the client
-	 * is not matched or the old connection is closed, then it will connect to the client
+	 * this client.  Starts connecting to the client in the background, see
+	 * {@link #connectClient(String, int, String)}.
 	 *
 	 *@param remoteHost
 	 *		the hostname/IP address of the new client
@@ -125,14 +303,40 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 	 *		the username expected from the remote client
 	 */
 
-	protected synchronized void addClient(final String remoteHost, final int port, @SuppressWarnings("hiding") final String username){
+	protected void addClient(final String remoteHost, final int port, @SuppressWarnings("hiding") final String username){
+		this.connectClient(remoteHost, port, username);
+	}
+
+	/*Connects to a client unless it is already connected.  Will check for a
+	 * duplicate connecction first, test it with testClient, and use the old
+	 * connection if it is still viable.  Otherwise the client is dialed and
+	 * handshaked by the connector, without blocking the caller, and admitted.
+	 *
+	 * Any number of clients can be dialed at once, up to the connector's limit.
+	 * A client that is already being dialed is skipped, and the final duplicate
+	 * check is made atomically by admitClient.
+	 *
+	 *@param remoteHost
+	 *		the hostname/IP address of the new client
+	 *@param port
+	 *		the listen port number for the new client
+	 *@param username
+	 *		the username expected from the remote client
+	 *@return a future completed with the connected client, either the new one or
+	 *		the live client already connected at that address.  Completes with null
+	 *		if the client could not be created or is already being dialed, and
+	 *		exceptionally if the dial failed.  Cancelling it abandons the dial
+	 */
+
+	public CompletableFuture<Client> connectClient(final String remoteHost, final int port,
+			@SuppressWarnings("hiding") final String username){
 		//build a new client object
-		Client newClient = this.makeClient(remoteHost, port, username);
+		final Client newClient = this.makeClient(remoteHost, port, username);
 
 		//if null, then an exception was thrown, probably couldn't resolve the hostname
 
 		if(newClient == null){
-			return ;
+			return CompletableFuture.completedFuture(null);
 		}
 
 		//Check to see if this client is already known
@@ -143,25 +347,248 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 
 		if(oldClient != null){
 			if(this.testClient(oldClient)){
-				return;
+				newClient.disconnect();
+				return CompletableFuture.completedFuture(oldClient);
 			}
 		}
 
-		//connect the socket to the remote client, discard the client on errors
-		try{
-			newClient.connect();
+		//Only one dial per address at a time, whoever gets there second gives up
+		final InetSocketAddress peerAddress = newClient.getPeerAddress();
+		if(!this.dialing.add(peerAddress)){
+			newClient.disconnect();
+			return CompletableFuture.completedFuture(null);
 		}
-		catch(IOException ioe){
-			System.err.println("unable to connect to " + newClient +
-					": " + ioe.getMessage());
-			return;
+
+		final CompletableFuture<Client> dial = this.connector.connect(newClient);
+		final CompletableFuture<Client> admitted = new CompletableFuture<Client>();
+		//Runs however the dial ends, even once the caller has given up on it
+		dial.whenComplete(new BiConsumer<Client, Throwable>(){
+			@Override
+			public void accept(final Client client, final Throwable failure){
+				ChatClient.this.dialing.remove(peerAddress);
+				if(failure != null){
+					System.err.println("unable to connect to " + newClient +
+							": " + Connector.describe(failure));
+					admitted.completeExceptionally(failure);
+				}
+				else if(admitted.isCancelled()){
+					client.disconnect();
+				}
+				else{
+					try{
+						admitted.complete(ChatClient.this.admitClient(client, false) ?
+								client : ChatClient.this.findDuplicate(client));
+					}
+					catch(RuntimeException re){
+						admitted.completeExceptionally(re);
+					}
+				}
+			}
+		});
+		//Cancelling the caller's future abandons the dial, which closes its socket
+		admitted.whenComplete(new BiConsumer<Client, Throwable>(){
+			@Override
+			public void accept(final Client client, final Throwable failure){
+				if(admitted.isCancelled()){
+					dial.cancel(false);
+				}
+			}
+		});
+		return admitted;
+	}
+
+	/*Connects to every client in the exchange messages at once, subject to the
+	 * connector's limit on dials in flight.  With the overlay enabled, only as many
+	 * are dialed as fit in the active view and the rest are kept for later.
+	 *
+	 * @param targets
+	 * 		the clients to connect to
+	 * @return a future completed once every dial has finished, successfully or not
+	 */
+
+	public CompletableFuture<Void> connectAll(final Collection<ClientExchangeMessage> targets){
+		Collection<ClientExchangeMessage> selected = this.overlay == null ?
+			targets : this.overlay.selectDials(targets);
+		List<CompletableFuture<Client>> dials = new ArrayList<CompletableFuture<Client>>(selected.size());
+		for(ClientExchangeMessage target : selected){
+			dials.add(this.connectClient(target.getIpAddress(), target.getPort(),
+					target.getUsername()).exceptionally(new Function<Throwable, Client>(){
+				@Override
+				public Client apply(final Throwable failure){
+					return null;
+				}
+			}));
 		}
-		//Try to handshake, if it succeeds then notify the UI
-		if(newClient.performHandshake()){
+		return CompletableFuture.allOf(dials.toArray(new CompletableFuture<?>[dials.size()]));
+	}
+
+		/*Atomically adds a handshaked client to the registry and registers it.  If a
+		 * client with the same address is already registered and still alive, see
+		 * testClient, the new client is disconnected instead.  This is the only step
+		 * of admitting a client that concurrent admissions are serialized on.
+		 *
+		 * A client that speaks protocol version 2 is sent a digest of the known
+		 * clients, and does the same, so each side learns the clients it is
+		 * missing in a single peer list and dials them itself.  Older clients
+		 * still get the per-client exchange messages.
+		 *
+		 * With the overlay enabled, a client that connected to this one is turned
+		 * away once there is no room for it, see GossipOverlay#hasRoom().
+		 *
+		 * @param newClient
+		 * 		the client to admit
+		 * @param notify
+		 * 		true if the client connected to this one; tells the other clients
+		 * 		about it if it is an older client
+		 * @return true if the client was admitted
+		 */
+
+		protected boolean admitClient(Client newClient, boolean notify){
+			if(notify && this.overlay != null && !this.overlay.hasRoom()){
+				this.turnAway(newClient);
+				return false;
+			}
+			Client oldClient;
+			while((oldClient = this.clients.registerIfAbsent(newClient)) != null){
+				if(oldClient == newClient){
+					return true;
+				}
+				if(this.testClient(oldClient)){
+					newClient.disconnect();
+					return false;
+				}
+			}
 			this.registerClient(newClient);
-			this.clients.add(newClient);
+			if(newClient.getProtocolVersion() >= AbstractMessage.PROTOCOL_V2){
+				this.sendPeerDigest(newClient);
+				if(this.sync != null){
+					this.sync.request(newClient);
+				}
+			}
+			else if(notify){
+				this.notifyClients(newClient);
+			}
+			return true;
+		}
+
+		/*Sends a handshaked but unregistered client the list of connected clients,
+		 * if it can read one, then disconnects it.
+		 *
+		 * @param client
+		 * 		the client to turn away
+		 */
+
+		protected void turnAway(Client client){
+			try{
+				if(client.getProtocolVersion() >= AbstractMessage.PROTOCOL_V2){
+					List<ClientExchangeMessage> peers = new ArrayList<ClientExchangeMessage>();
+					for(Client other : this.clients){
+						peers.add(new ClientExchangeMessage(other.getInetAddress(),
+								other.getPort(), other.getUsername()));
+					}
+					client.writeDirect(EncodedFrame.encode(new PeerListMessage(this.clients.getVersion(),
+							this.clients.getDigest(), peers), client.getProtocolVersion()));
+				}
+				client.writeDirect(EncodedFrame.encode(AbstractMessage.DISCONNECT_MESSAGE,
+						client.getProtocolVersion()));
+			}
+			catch(IOException e){
+				System.err.println("Unable to turn away " + client + ": " + e.getMessage());
+			}
+			client.disconnect();
+		}
+
+		/*Queues the frame for the client.  If it can't be sent, the client is
+		 * disconnected, removed from the list of clients, and the UI is notified.
+		 *
+		 * @param client
+		 * 		the client to send to
+		 * @param frame
+		 * 		a frame in the client's protocol version
+		 * @param reason
+		 * 		what to tell the UI if the send fails
+		 * @return true if the frame was queued
+		 */
+
+		protected boolean sendOrDrop(Client client, EncodedFrame frame, String reason){
+			try{
+				client.sendFrame(frame);
+				return true;
+			}
+			catch(IOException e){
+				this.dropClient(client, reason + "/" + e.getMessage());
+				return false;
+			}
+		}
+
+		/*Queues a message being sent to several clients, see sendOrDrop(Client,
+		 * EncodedFrame, String).
+		 *
+		 * @param frames
+		 * 		the shared encodings of the message
+		 */
+
+		protected boolean sendOrDrop(Client client, FrameSet frames, String reason){
+			try{
+				client.sendFrame(frames);
+				return true;
+			}
+			catch(IOException e){
+				this.dropClient(client, reason + "/" + e.getMessage());
+				return false;
+			}
+		}
+
+		/*Disconnects a client that has failed, removes it from the list of clients,
+		 * and notifies the UI.
+		 *
+		 * @param client
+		 * 		the client to drop
+		 * @param reason
+		 * 		what to tell the UI
+		 */
+
+		protected void dropClient(Client client, String reason){
+			this.clients.remove(client);
+			client.removeMessageListener(this);
+			client.disconnect();
+			this.userInterface.clientDisconnected(client, reason);
+			this.dispatcher.release(client);
+			if(this.overlay != null){
+				this.overlay.refill();
+			}
+		}
+
+		/*Sends the client a digest of every other connected client.
+		 *
+		 * @param client
+		 * 		a client speaking protocol version 2
+		 */
+
+		protected void sendPeerDigest(Client client){
+			long version = this.clients.getVersion();
+			long[] hashes = new long[this.clients.size()];
+			int count = 0;
+			long digest = 0;
+			for(Client other : this.clients){
+				if(other == client){
+					continue;
+				}
+				if(count == hashes.length){
+					hashes = Arrays.copyOf(hashes, count * 2 + 1);
+				}
+				hashes[count] = PeerRegistry.hashOf(other.getPeerAddress());
+				digest ^= hashes[count++];
+			}
+			try{
+				this.sendOrDrop(client, EncodedFrame.encode(new PeerDigestMessage(version, digest,
+						Arrays.copyOf(hashes, count)), client.getProtocolVersion()),
+						"Failed to send peer digest");
+			}
+			catch(IOException e){
+				System.err.println("Unable to encode peer digest: " + e.getMessage());
+			}
 		}
-	}
 
 		/*Registers a new client with the local client. Notifies the UI.
 		 *
@@ -171,14 +598,28 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 		 */
 
 		protected void registerClient(Client client){
+			client.setDedupeCache(this.dedupe);
 			client.addMessageListener(this);
-			client.start();
+			if(this.eventLoops != null){
+				this.eventLoops.register(client);
+			}
+			else{
+				this.startThread(client);
+				this.startThread(client.newWriter());
+			}
+			if(this.heartbeats != null){
+				this.heartbeats.watch(client);
+			}
 			this.userInterface.clientConnected(client);
 		}
 
-		/*Tests a client for liveness by sending a Keep-Alive message.  If
-		 * the send fails, then the client is disconnected, removed from the list
-		 * of clients, and the UI is notified.
+		/*Tests whether an already-connected client is still alive, before a new
+		 * connection to the same address is turned away in its favour.  Queueing a
+		 * Keep-Alive message only proves the socket is open, so the client must also
+		 * have sent something within the liveness window; one that has been idle
+		 * longer is taken to be dead and is replaced.  If either check fails, the
+		 * client is disconnected, removed from the list of clients, and the UI is
+		 * notified.
 		 *
 		 * @param client
 		 * 		the client to test
@@ -186,16 +627,22 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 		 */
 
 		protected boolean testClient(Client client){
-			try{
-				client.sendKeepAliveMessage();
-				return true;
+			String reason;
+			long idleNanos = System.nanoTime() - client.getLastReadNanos();
+			if(idleNanos <= this.livenessWindowNanos){
+				try{
+					client.sendKeepAliveMessage();
+					return true;
+				}
+				catch(IOException ioe){
+					reason = ioe.getMessage();
+				}
 			}
-			catch(IOException ioe){
-				this.clients.remove(client);
-				client.removeMessageListener(this);
-				client.disconnect();
-				this.userInterface.clientDisconnected(client, ioe.getMessage());
+			else{
+				reason = "Nothing received for " + TimeUnit.NANOSECONDS.toMillis(idleNanos) +
+					"ms, replaced by a new connection";
 			}
+			this.dropClient(client, reason);
 			return false;
 		}
 
@@ -212,8 +659,20 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 		 */
 
 		protected Client makeClient(String remoteHost, int port, @SuppressWarnings("hiding") String username){
-			Client newClient = new Client(remoteHost, port, username, this.username, this.listenPort);
-			return newClient;
+			try{
+				Client newClient = this.eventLoops == null ?
+					new Client(remoteHost, port, username, this.username, this.listenPort) :
+					new Client(SocketChannel.open().socket(), remoteHost, port,
+						username, this.username, this.listenPort);
+				//Resolve once, the client keeps the address from here on
+				newClient.getInetAddress();
+				return newClient;
+			}
+			catch(IOException ioe){
+				System.err.println("Unable to create client for " + remoteHost + ":" + port +
+						": " + ioe.getMessage());
+				return null;
+			}
 		}
 
 		/*
@@ -221,39 +680,27 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 		 * Will check for duplicates (just in case the remote peer made a mistake),
 		 * test it with a keep-alive, and close the new connection if the old one 
 		 * is still viable.  If the new client is not matched or the old connection is 
-		 * closed, then it will register the new client.
+		 * closed, then it will register the new client.  Like the outgoing case, the
+		 * handshake runs without holding any lock and has a deadline.
 		 *
 		 * @param socket
 		 * 		the socket of the newly-connected client
 		 */
 
-		protected synchronized void addClient(final Socket socket){
+		protected void addClient(final Socket socket){
 			Client newClient = new Client(socket, this.username, this.listenPort);
 
 			//Need to handshake first since we need to get the remote port info
-			//before checking for duplicates
+			//before checking for duplicates.  A client that never completes it is
+			//disconnected once the handshake deadline passes
 
-			if(!newClient.performHandshake()){
-					newClient.disconnect();
+			if(!this.connector.handshake(newClient)){
 					return;
 			}
 
-			//Try to find an old version of this client (same IP/port)
-			Client oldClient = findDuplicate(newClient);
-
-			//If we already have this client in our list, then check to make sure its 
+			//Register unless an old version of this client (same IP/port) is
 			//still live
-
-			if(oldClient != null){
-				if(this.testClient(oldClient)){
-					return;
-				}
-			}
-
-			this.registerClient(newClient);
-			this.notifyClients(newClient);
-			this.clients.add(newClient);
-
+			this.admitClient(newClient, true);
 			}
 
 		/*Sends client exchange messages to currently-connected clients.
@@ -264,24 +711,30 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 		 */
 
 		protected void notifyClients(Client newClient){
+			//Encode the client information once for every remote client
+			FrameSet frames = null;
+			boolean ipv4 = false;
+			try{
+				InetAddress address = newClient.getInetAddress();
+				frames = new FrameSet(new ClientExchangeMessage(address,
+						newClient.getPort(), newClient.getUsername()));
+				//Version 1 clients can only be told about IPv4 addresses
+				ipv4 = address instanceof Inet4Address;
+			}
+			catch(IOException e){
+				System.err.println("Unable to encode client exchange for " + newClient +
+						": " + e.getMessage());
+				return;
+			}
+
 			//Go through each remote client and send a ClientMessage
-			for(Iterator<Client> clientIter = this.clients.iterator();
-				clientIter.hasNext();){
-					Client client = clientIter.next();
-					try {
-						// Exchange the client information
-						client.sendClient(newClient);
-					}
-					catch(IOException e){
-						//Exchange the client information
-						clientIter.remove();
-						//stop listening to messages from the client
-						client.removeMessageListener(this);
-						//Disconnect the client
-						client.disconnect();
-						//Notify the UI of the disconnect
-						this.userInterface.clientDisconnected(client, e.getMessage());
+			for(Client client : this.clients){
+					if(client == newClient || (!ipv4
+							&& client.getProtocolVersion() < AbstractMessage.PROTOCOL_V2)){
+						continue;
 					}
+					// Exchange the client information
+					this.sendOrDrop(client, frames, "Failed to send client exchange");
 				}
 		}
 
@@ -295,12 +748,115 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 		 */
 
 		protected Client findDuplicate(Client client){
-			for(Client otherClient : this.clients){
-				if(client.equals(otherClient)){
-					return otherClient;
-				}
+			return this.clients.findDuplicate(client);
+		}
+
+
+		/*Returns the current state of every connected client's outbound queue,
+		 * keyed by the client's description.
+		 *
+		 * @return a snapshot of each outbound queue
+		 */
+
+		public Map<String, OutboundQueue.Stats> getOutboundStats(){
+			Map<String, OutboundQueue.Stats> stats = new LinkedHashMap<String, OutboundQueue.Stats>();
+			for(Client client : this.clients){
+				stats.put(client.toString(), client.getOutboundQueue().getStats());
 			}
-			return null;
+			return stats;
+		}
+
+
+		/*Returns the accept rate and the number of accepted clients still being
+		 * handshaked.
+		 *
+		 * @return a snapshot of the acceptor's counters
+		 */
+
+		public Acceptor.Stats getAcceptStats(){
+			return this.acceptor.getStats();
+		}
+
+
+		/*Returns the inbound event ring, whose latency and batch size histograms
+		 * show how quickly messages are handled.
+		 *
+		 * @return the ring, or null if messages are dispatched without one
+		 */
+
+		public EventRing getEventRing(){
+			return this.events;
+		}
+
+		/*Returns the log of chat messages sent and received.
+		 *
+		 * @return the log, or null if no history is kept
+		 */
+
+		public HistoryLog getHistory(){
+			return this.history;
+		}
+
+		/*Returns the full-text index of the messages seen.
+		 *
+		 * @return the index, or null if it is disabled
+		 */
+
+		public SearchIndex getSearchIndex(){
+			return this.search;
+		}
+
+		/*Returns the scrollback of recent messages.
+		 *
+		 * @return the scrollback, or null if it is disabled
+		 */
+
+		public Scrollback getScrollback(){
+			return this.scrollback;
+		}
+
+		/*Returns the history sync, which counts the messages sent to catch clients up.
+		 *
+		 * @return the sync, or null if it is disabled
+		 */
+
+		public HistorySync getSync(){
+			return this.sync;
+		}
+
+
+		/*Returns the hit and miss counts of the hostname cache shared by every client.
+		 *
+		 * @return the shared address cache
+		 */
+
+		public AddressCache getAddressCache(){
+			return AddressCache.SHARED;
+		}
+
+
+		/*Returns the duplicate and overflow counts of the chat message ID cache.
+		 *
+		 * @return the ID cache shared by every client
+		 */
+
+		public DedupeCache getDedupeCache(){
+			return this.dedupe;
+		}
+
+
+		/*Returns the number of frames per socket write across every connected
+		 * client, in BatchSizeHistogram buckets.
+		 *
+		 * @return the count for each batch-size bucket
+		 */
+
+		public long[] getWriteBatchSizes(){
+			long[] totals = new long[BatchSizeHistogram.BUCKETS];
+			for(Client client : this.clients){
+				client.getWriteBatchSizes().addTo(totals);
+			}
+			return totals;
 		}
 
 
@@ -308,61 +864,503 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 		protected static final void printUsage(){
 			StringBuffer usageString = new StringBuffer();
 			usageString.append("Usage: <Listen Port><Username>[<Remote IP><Remote Port>]");
+			usageString.append("\nOptions: -Dchat.ioThreads=<n> serve all clients from n selector threads");
+			usageString.append("\n         -Dchat.virtualThreads=true run readers and workers on virtual threads");
+			usageString.append("\n         -Dchat.dispatch.threads=<n> -Dchat.dispatch.maxBacklog=<n> inbound message handling");
+			usageString.append("\n         -Dchat.ring.size=<n> -Dchat.ring.waitStrategy=busy_spin|yield|park");
+			usageString.append("\n                                    dispatch inbound messages through a preallocated ring");
+			usageString.append("\n         -Dchat.ring.publishTimeoutMillis=<ms> longest wait for room in a full ring");
+			usageString.append("\n         -Dchat.outbound.highWatermark=<bytes> -Dchat.outbound.lowWatermark=<bytes>");
+			usageString.append("\n         -Dchat.outbound.policy=drop_oldest|block|disconnect per-client send queue limits, default disconnect");
+			usageString.append("\n         -Dchat.coalesce.windowMicros=<micros> -Dchat.coalesce.maxBytes=<bytes> batch busy writes");
+			usageString.append("\n         -Dchat.protocolVersion=1 never offer the compact wire format");
+			usageString.append("\n         -Dchat.compression=true offer DEFLATE compression of compact frames");
+			usageString.append("\n         -Dchat.compression.minBytes=<bytes> -Dchat.compression.level=<0-9> compression tuning");
+			usageString.append("\n         -Dchat.accept.backlog=<n> -Dchat.accept.threads=<n> accept queue length and acceptors");
+			usageString.append("\n         -Dchat.connect.timeoutMillis=<ms> -Dchat.handshake.timeoutMillis=<ms> dial deadlines");
+			usageString.append("\n         -Dchat.connect.maxInFlight=<n> most clients dialed at once");
+			usageString.append("\n         -Dchat.overlay.fanout=<n> relay chat over a bounded overlay instead of a full mesh");
+			usageString.append("\n         -Dchat.overlay.activeView=<n> -Dchat.overlay.passiveView=<n> overlay view sizes");
+			usageString.append("\n         -Dchat.overlay.lazyDelayMillis=<ms> -Dchat.overlay.cacheSize=<n> lazy push tuning");
+			usageString.append("\n         -Dchat.dedupe.windowMillis=<ms> -Dchat.dedupe.buckets=<n> -Dchat.dedupe.bucketCapacity=<n>");
+			usageString.append("\n                                    duplicate chat message ID cache");
+			usageString.append("\n         -Dchat.heartbeat.intervalMillis=<ms> heartbeat idle links, 0 to disable");
+			usageString.append("\n         -Dchat.heartbeat.idleTimeoutMillis=<ms> disconnect clients silent this long");
+			usageString.append("\n         -Dchat.liveness.windowMillis=<ms> replace a connection silent this long when the client reconnects");
+			usageString.append("\n         -Dchat.history.dir=<directory> keep chat history in memory-mapped segments");
+			usageString.append("\n         -Dchat.history.segmentBytes=<n> -Dchat.history.segmentMillis=<ms> segment roll limits");
+			usageString.append("\n         -Dchat.history.maxBacklog=<n> most messages waiting to be written");
+			usageString.append("\n         -Dchat.history.maxSegments=<n> -Dchat.history.retentionMillis=<ms> delete older segments, 0 for no limit");
+			usageString.append("\n         -Dchat.search=true index messages for /search, -Dchat.search.maxBacklog=<n> most waiting");
+			usageString.append("\n         -Dchat.search.maxDocuments=<n> most messages kept searchable, 0 for no limit");
+			usageString.append("\n         -Dchat.scrollback.bytes=<n> direct memory for recent messages, 0 to keep none");
+			usageString.append("\n         -Dchat.sync.windowMillis=<ms> catch connecting clients up on this much history, 0 to disable");
+			usageString.append("\n         -Dchat.sync.batchMessages=<n> -Dchat.sync.batchesInFlight=<n> history stream batching and flow control");
+			usageString.append("\n         -Dchat.dns.ttlSeconds=<seconds> -Dchat.dns.maxEntries=<n> hostname cache limits");
 			System.err.println(usageString.toString());
 		}
 
-		/*Passes the recieved chat message to the user interface */
+		/*Passes the recieved chat message to the user interface.  A message relayed
+		 * through the overlay is shown as coming from its author if the author is
+		 * connected, otherwise from the client that relayed it.
+		 */
 
 		@Override
 			public void chatMessageArrived(final Client client, final ChatMessage message){
+				this.remember(message);
+				final Client from = this.authorOf(client, message.getUsername());
+				if(this.events != null){
+					this.published(client, this.events.publishChat(client, from,
+							message.getTimestamp(), message.getMessage(), null));
+					return;
+				}
+				this.dispatch(client, new Runnable(){
+					public void run(){
+						ChatClient.this.showChatMessage(client, from,
+							message.getTimestamp(), message.getMessage(), null);
+					}
+				});
+			}
+
+		/*The client to show a message from: its author if the author is connected
+		 * and isn't the client it arrived from, otherwise that client.
+		 *
+		 * @param client
+		 * 		the client the message arrived from
+		 * @param username
+		 * 		the author of the message
+		 */
+
+		protected Client authorOf(Client client, String username){
+			if(username != null && !username.equals(client.getUsername())){
+				Client named = this.clients.getByUsername(username);
+				if(named != null){
+					return named;
+				}
+			}
+			return client;
+		}
+
+		/*Keeps a chat message sent or received in the history and scrollback, queues
+		 * it for the search index, and raises the high-water mark of its sender for
+		 * history sync.  Private messages carry no ID, so they are kept for /recent
+		 * and /search here but never synced to another client.
+		 *
+		 * @param message
+		 * 		the message
+		 */
+
+		protected void remember(ChatMessage message){
+			if(this.history != null){
+				this.history.append(message);
+			}
+			if(this.scrollback != null){
+				this.scrollback.append(message);
+			}
+			if(this.search != null){
+				this.search.add(message);
+			}
+			if(this.sync != null){
+				this.sync.record(message);
+			}
+		}
+
+		/*remember(ChatMessage) for a chat frame as it was read.  The scrollback and
+		 * sync take the frame as it is; a ChatMessage is only built if the history
+		 * or search index is kept.
+		 *
+		 * @param frame
+		 * 		a view of the frame, only read during this call
+		 */
+
+		protected void remember(ChatFrame frame){
+			if(this.history != null || this.search != null){
+				try{
+					ChatMessage message = frame.toChatMessage();
+					if(this.history != null){
+						this.history.append(message);
+					}
+					if(this.search != null){
+						this.search.add(message);
+					}
+				}
+				catch(IOException e){
+					System.err.println("Unable to decode chat message: " + e.getMessage());
+				}
+			}
+			if(this.scrollback != null){
+				this.scrollback.append(frame);
+			}
+			if(this.sync != null){
+				this.sync.record(frame);
+			}
+		}
+
+		/*Answers a client's request for the chat messages it missed from the
+		 * history, see HistorySync.
+		 */
+
+		@Override
+			public void syncRequestArrived(final Client client, final SyncRequestMessage message){
+				if(this.sync != null){
+					this.sync.serve(client, message);
+				}
+			}
+
+		/*Lets the history sync to a client send more, see HistorySync.*/
+
+		@Override
+			public void syncAckArrived(final Client client, final SyncAckMessage message){
+				if(this.sync != null){
+					this.sync.acknowledged(client);
+				}
+			}
+
+		/*Passes a chat message to the user interface, and relays it into the
+		 * overlay for a client that can't relay its own messages.  The relay is left
+		 * to a worker, as for gossipArrived, so a client with a full queue doesn't
+		 * hold up the dispatcher or ring this runs on.
+		 *
+		 * @param client
+		 * 		the client the message arrived from
+		 * @param from
+		 * 		the client to show as the sender
+		 * @param timestamp
+		 * 		when the message was sent
+		 * @param message
+		 * 		the message text
+		 * @param author
+		 * 		the username to relay the message from, or null not to relay it
+		 */
+
+		protected void showChatMessage(final Client client, Client from, final long timestamp,
+				final String message, final String author){
+			this.userInterface.chatMessageRecieved(from, timestamp, message);
+			if(author != null){
+				this.workers.execute(new Runnable(){
+					public void run(){
+						ChatClient.this.overlay.inject(client, timestamp, author, message);
+					}
+				});
+			}
+		}
+
+		/*Queues a task handling a message from the client after the tasks for its
+		 * earlier messages, see SerialDispatcher and EventRing.  A client whose messages can't be
+		 * handled as fast as they arrive is disconnected.
+		 *
+		 * @param client
+		 * 		the client the message came from
+		 * @param task
+		 * 		handles the message
+		 */
+
+		protected void dispatch(Client client, Runnable task){
+			this.published(client, this.events != null ?
+					this.events.publishTask(client, task) : this.dispatcher.execute(client, task));
+		}
+
+		/*Disconnects a client whose message couldn't be queued
+		 *
+		 * @param client
+		 * 		the client the message came from
+		 * @param queued
+		 * 		whether the message was queued
+		 */
+
+		protected void published(Client client, boolean queued){
+			if(!queued && this.keepRunning){
+				this.dropClient(client, "Too many messages waiting to be handled");
+			}
+		}
+
+		/*Keeps a chat frame and adds it to the burst of frames read from the client,
+		 * which is passed to the user interface once the read ends, see
+		 * chatFramesRead.  The frame is only valid during this call, so only the
+		 * text and timestamp are kept, and nothing else is allocated for it unless
+		 * the history or search index is kept or the burst holds more than one frame.
+		 */
+
+		@Override
+			public void chatFrameArrived(final Client client, final ChatFrame frame){
+				final long timestamp = frame.getTimestamp();
+				final String message = frame.getMessage();
+				//Older clients can't relay, so their messages are relayed for them, once
+				//however many clients in the overlay they were sent to
+				final boolean relay = this.overlay != null
+					&& client.getProtocolVersion() < AbstractMessage.PROTOCOL_V2;
+				if(relay && !this.overlay.claim(frame.getUsername(), timestamp, message)){
+					return;
+				}
+				//Kept only once it can be shown, so history never holds a message the
+				//user didn't see
+				try{
+					this.bursts.get().add(frame, timestamp, message, relay);
+				}
+				catch(IOException e){
+					System.err.println("Unable to decode chat message: " + e.getMessage());
+					return;
+				}
+				this.remember(frame);
+			}
+
+		/*Passes the chat frames of one read from the client to the user interface.
+		 * A single frame is handled as before, with one task or ring event; several
+		 * are handed to the user interface in one task and one call, see
+		 * UIAdapter#chatMessagesRecieved.
+		 */
+
+		@Override
+			public void chatFramesRead(final Client client){
+				Burst burst = this.bursts.get();
+				try{
+					if(burst.count == 0){
+						return;
+					}
+					final String author = burst.relay ? burst.username : null;
+					if(burst.count == 1){
+						final Client from = this.authorOf(client, burst.username);
+						final long timestamp = burst.timestamp;
+						final String message = burst.message;
+						if(this.events != null){
+							this.published(client, this.events.publishChat(client, from,
+									timestamp, message, author));
+							return;
+						}
+						this.dispatch(client, new Runnable(){
+							public void run(){
+								ChatClient.this.showChatMessage(client, from, timestamp, message, author);
+							}
+						});
+						return;
+					}
+					final List<ChatMessage> batch = burst.messages;
+					final boolean relay = burst.relay;
+					burst.messages = new ArrayList<ChatMessage>();
+					this.dispatch(client, new Runnable(){
+						public void run(){
+							ChatClient.this.userInterface.chatMessagesRecieved(client, batch);
+							if(relay){
+								ChatClient.this.workers.execute(new Runnable(){
+									public void run(){
+										for(ChatMessage message : batch){
+											ChatClient.this.overlay.inject(client, message.getTimestamp(),
+													message.getUsername(), message.getMessage());
+										}
+									}
+								});
+							}
+						}
+					});
+				}
+				finally{
+					burst.clear();
+				}
+			}
+
+		/*The chat frames read so far in one read of a client, see chatFramesRead.
+		 * The first frame is kept as its fields, so a read of a single frame builds
+		 * no ChatMessage; once a second arrives every frame is kept as a ChatMessage
+		 * for the user interface.
+		 */
+
+		protected static class Burst{
+			protected int count = 0;
+
+			//Whether the messages are to be relayed into the overlay
+			protected boolean relay;
+
+			//The first frame
+			protected long origin;
+
+			protected long sequence;
+
+			protected long timestamp;
+
+			protected String username;
+
+			protected String message;
+
+			//Every frame once there is more than one
+			protected List<ChatMessage> messages = new ArrayList<ChatMessage>();
+
+			/*Adds a frame, or leaves the burst as it was if the frame can't be
+			 * decoded*/
+
+			protected void add(ChatFrame frame, long frameTimestamp, String text,
+					boolean relayed) throws IOException{
+				if(this.count == 0){
+					this.relay = relayed;
+					this.origin = frame.getOrigin();
+					this.sequence = frame.getSequence();
+					this.timestamp = frameTimestamp;
+					this.username = frame.getUsername();
+					this.message = text;
+				}
+				else{
+					ChatMessage decoded = frame.toChatMessage();
+					if(this.count == 1){
+						this.messages.add(new ChatMessage(this.origin, this.sequence,
+								this.timestamp, this.username, this.message));
+					}
+					this.messages.add(decoded);
+				}
+				++this.count;
+			}
+
+			protected void clear(){
+				this.count = 0;
+				this.username = null;
+				this.message = null;
+				this.messages.clear();
+			}
+		}
+
+		/*Drops a relayed chat message seen before.  Otherwise passes it to every
+		 * listener of the client as a chat message, then relays it on.
+		 */
+
+		@Override
+			public void gossipArrived(final Client client, final GossipMessage message){
+				if(this.overlay == null){
+					return;
+				}
+				final GossipMessage next = this.overlay.receive(client, message);
+				if(next == null){
+					return;
+				}
+				client.dispatchChatMessage(message.toChatMessage());
 				this.workers.execute(new Runnable(){
 					public void run(){
-						ChatClient.this.userInterface.chatMessageRecieved(client,
-							message.getTimestamp(), message.getMessage());
+						ChatClient.this.overlay.relay(next, client);
 					}
 				});
 			}
 
+		/*Answers an IWant, or asks for announced messages that don't arrive.  An
+		 * IWant is answered by a worker, like a relay, since sending the messages
+		 * may wait for room in the client's queue, which on an event loop only the
+		 * reader's own thread can make.
+		 */
+
+		@Override
+			public void gossipIdsArrived(final Client client, final GossipIdsMessage message){
+				if(this.overlay == null){
+					return;
+				}
+				if(message.getType() == AbstractMessage.TYPE_IWANT_MESSAGE){
+					this.workers.execute(new Runnable(){
+						public void run(){
+							ChatClient.this.overlay.receiveIds(client, message);
+						}
+					});
+					return;
+				}
+				this.overlay.receiveIds(client, message);
+			}
+
 		/*Adds the exchange chat client if it is not already connected to the local client*/
 
 		@Override
 			public void clientMessageArrived(final Client client, final ClientExchangeMessage message){
-				this.workers.execute(new Runnable(){
+				this.dispatch(client, new Runnable(){
 					public void run(){
-						ChatClient.this.addClient(message.getIpAddress(),
-							message.getPort(), message.getUsername());
+						ChatClient.this.connectAll(Collections.singletonList(message));
 					}
 				});
 			}
 			
 
+		/*Replies with the connected clients missing from the digest, unless the
+		 * digest shows both sides already know the same clients.
+		 */
+
+		@Override
+			public void peerDigestArrived(final Client client, final PeerDigestMessage message){
+				this.dispatch(client, new Runnable(){
+					public void run(){
+						long[] known = message.getHashes().clone();
+						Arrays.sort(known);
+						long version = ChatClient.this.clients.getVersion();
+						long digest = 0;
+						List<ClientExchangeMessage> missing = new ArrayList<ClientExchangeMessage>();
+						for(Client other : ChatClient.this.clients){
+							if(other == client){
+								continue;
+							}
+							long hash = PeerRegistry.hashOf(other.getPeerAddress());
+							digest ^= hash;
+							if(Arrays.binarySearch(known, hash) >= 0){
+								continue;
+							}
+							try{
+								missing.add(new ClientExchangeMessage(other.getInetAddress(),
+										other.getPort(), other.getUsername()));
+							}
+							catch(IOException e){
+								System.err.println("Unable to describe " + other + ": " + e.getMessage());
+							}
+						}
+						if(digest == message.getDigest() || missing.isEmpty()){
+							return;
+						}
+						try{
+							ChatClient.this.sendOrDrop(client, EncodedFrame.encode(new PeerListMessage(version,
+									digest, missing), client.getProtocolVersion()),
+									"Failed to send peer list");
+						}
+						catch(IOException e){
+							System.err.println("Unable to encode peer list: " + e.getMessage());
+						}
+					}
+				});
+			}
+
+		/*Connects to every client in the list that isn't already connected*/
+
+		@Override
+			public void peerListArrived(final Client client, final PeerListMessage message){
+				this.dispatch(client, new Runnable(){
+					public void run(){
+						List<ClientExchangeMessage> targets = new ArrayList<ClientExchangeMessage>();
+						for(ClientExchangeMessage peer : message.getPeers()){
+							try{
+								if(ChatClient.this.clients.get(new InetSocketAddress(
+										peer.getInetAddress(), peer.getPort())) == null){
+									targets.add(peer);
+								}
+							}
+							catch(IOException e){
+								System.err.println("Unable to resolve " + peer + ": " + e.getMessage());
+							}
+						}
+						ChatClient.this.connectAll(targets);
+					}
+				});
+			}
+
 		/*Deregisters the client from the local client, disconnects it,
 		 * and notifies the user interface.
 		 */
 
 		@Override
 			public void disconnectMessageArrived(final Client client){
-				this.workers.execute(new Runnable(){
+				this.dispatch(client, new Runnable(){
 					public void run(){
-						client.removeMessageListener(ChatClient.this);
-						client.disconnect();
-						ChatClient.this.clients.remove(client);
-						ChatClient.this.userInterface.clientDisconnected(client, "User quit.");
+						ChatClient.this.dropClient(client, "User quit.");
 					}
 				});
 			}
 
-			/*Listens for incoming connections, checking every 250ms 
-			 * for user request to exit the chat client. 
-			 * Incoming connections are handled by worker threads
+			/*Listens for incoming connections until the user exits.
+			 * Incoming connections are handled by worker threads, see Acceptor.
 			 */
 
 			public void run(){
 				try{
-				//Bind to the local listen port
-				this.listenSocket = new ServerSocket(this.listenPort);
-				//wait for 250ms at a time
-				this.listenSocket.setSoTimeout(250);
+					//Accepted sockets always have a channel, so they can be served
+					//by an event loop as well as by a thread
+					this.acceptor.bind();
 				}
 				catch(IOException e){
 					System.err.println(e.getMessage());
@@ -370,34 +1368,15 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 					System.exit(1);
 				}
 				System.out.println("Listening on port " + this.listenPort);
-				
-				while(this.keepRunning){
-						try{
-							//this will block for 250ms to allow checking for user exit
-							//conditions
-							final Socket clientSocket = this.listenSocket.accept();
-							/*
-							 * Pass the actual work of adding the client to another thread,
-							 * freeing this thread to accept new clients
-							 */
-							this.workers.execute(new Runnable(){
-								@Override
-								public void run(){
-									addClient(clientSocket);
-								}
-							});
-						}
-						catch(SocketTimeoutException ste){
-							//ignored
-						}
-						catch(IOException e){
-							e.printStackTrace();
-						}
+
+				//Returns once the user exits and the acceptor is closed
+				if(this.keepRunning){
+					this.acceptor.serve();
 				}
 				this.doShutdown();
 			}
-			
-			
+
+
 			/**
 			 * Disconnects all currently-connected clients, shuts down thread pools, and
 			 * exits the application.
@@ -412,14 +1391,37 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 					}
 					client.disconnect();
 				}
-				// Shut down the threadpool
+				// Stop dialing, then shut down the threadpool
+				this.connector.shutdown();
+				if (this.overlay != null) {
+					this.overlay.shutdown();
+				}
+				if (this.heartbeats != null) {
+					this.heartbeats.shutdown();
+				}
+				this.dispatcher.shutdown();
+				if (this.events != null) {
+					this.events.shutdown();
+				}
 				this.workers.shutdown();
+				if (this.eventLoops != null) {
+					this.eventLoops.shutdown();
+				}
+				if (this.history != null) {
+					this.history.shutdown(1000);
+				}
+				if (this.search != null) {
+					this.search.shutdown(1000);
+				}
 			}
 
 			/*Sends the specified message to all currently-connected clients.
+			 * The message is encoded once and the same frame is written to every client.
 			 * If any exception is thrown while sending the message, then that client
 			 * is disconnected. Actual work is handled by the worker thread.
-			 * Will notify the UI after all the clients have been sent the message
+			 * Will notify the UI after all the clients have been sent the message.
+			 * With the overlay enabled the message is relayed instead, see
+			 * GossipOverlay#broadcast(String, String).
 			 *
 			 * @see UIAdapter#chatMessageSent(long, String)
 			 */
@@ -428,22 +1430,31 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 			public void broadcastChatMessage(final String input) {
 				this.workers.execute(new Runnable() {
 					public void run() {
-						for (Iterator<Client> clientIter = ChatClient.this.clients
-								.iterator(); clientIter.hasNext();) {
-							Client client = clientIter.next();
-							try {
-								client.sendMessage(input);
-							} catch (IOException e) {
-								// Remove the client from the list of clients
-								clientIter.remove();
-								// Disconnect the client
-								client.disconnect();
-								// Notify the UI of the disconnect
-								ChatClient.this.userInterface.clientDisconnected(
-										client,
-										"Failed to send broadcast chat message/"
-												+ e.getMessage());
-							}
+						if (ChatClient.this.overlay != null) {
+							GossipMessage sent = ChatClient.this.overlay.broadcast(
+									ChatClient.this.username, input);
+							ChatClient.this.remember(sent.toChatMessage());
+							ChatClient.this.userInterface.chatMessageSent(System
+									.currentTimeMillis(), input);
+							return;
+						}
+
+						ChatMessage message = null;
+						FrameSet frames = null;
+						try {
+							message = new ChatMessage(System.currentTimeMillis(),
+									ChatClient.this.username, input);
+							frames = new FrameSet(message);
+						} catch (IOException e) {
+							System.err.println("Unable to encode chat message: "
+									+ e.getMessage());
+							return;
+						}
+						ChatClient.this.remember(message);
+
+						for (Client client : ChatClient.this.clients) {
+							ChatClient.this.sendOrDrop(client, frames,
+									"Failed to send broadcast chat message");
 						}
 						ChatClient.this.userInterface.chatMessageSent(System
 								.currentTimeMillis(), input);
@@ -466,10 +1477,7 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 							client.sendMessage(message);
 						}
 						catch(IOException e){
-							ChatClient.this.clients.remove(client);
-							client.removeMessageListener(ChatClient.this);
-							client.disconnect();
-							ChatClient.this.userInterface.clientDisconnected(client,
+							ChatClient.this.dropClient(client,
 								"Failed to send private chat message/" +
 								e.getMessage());
 						}
@@ -478,12 +1486,14 @@ public class ChatClient extends Thread implements MessageListener, UserInputList
 			}
 
 	/*
-	 * Sets the run flag to false, which should occur within 250ms.
+	 * Sets the run flag to false and closes the acceptor, which wakes the
+	 * listening thread at once.
 	 * @see ChatClient#run()
 	 */
 
 	@Override
 	public void userRequestedShutdown(){
 		this.keepRunning = false;
+		this.acceptor.close();
 	}
 }
@@ -1,19 +1,51 @@
 package com.kd.chat;
 
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import com.kd.chat.messaging.AbstractMessage;
+import com.kd.chat.messaging.BatchMessageListener;
+import com.kd.chat.messaging.ChatFrame;
+import com.kd.chat.messaging.ChatFrameListener;
 import com.kd.chat.messaging.ChatMessage;
 import com.kd.chat.messaging.ClientExchangeMessage;
+import com.kd.chat.messaging.CompactCodec;
+import com.kd.chat.messaging.EncodedFrame;
+import com.kd.chat.messaging.FrameCompressor;
+import com.kd.chat.messaging.FrameSet;
+import com.kd.chat.messaging.GossipIdsMessage;
+import com.kd.chat.messaging.GossipListener;
+import com.kd.chat.messaging.GossipMessage;
 import com.kd.chat.messaging.HandshakeMessage;
+import com.kd.chat.messaging.HeartbeatMessage;
+import com.kd.chat.messaging.MessageIds;
 import com.kd.chat.messaging.MessageListener;
+import com.kd.chat.messaging.PeerDigestMessage;
+import com.kd.chat.messaging.PeerListListener;
+import com.kd.chat.messaging.PeerListMessage;
+import com.kd.chat.messaging.SessionMessage;
+import com.kd.chat.messaging.SyncAckMessage;
+import com.kd.chat.messaging.SyncBatchMessage;
+import com.kd.chat.messaging.SyncListener;
+import com.kd.chat.messaging.SyncRequestMessage;
 
 
 
@@ -45,7 +77,113 @@ public class Client extends Thread{
 	//recieved messages
 	protected final Collection<MessageListener> listeners = new ConcurrentLinkedQueue<MessageListener>();
 
-	protected boolean keepRunning = true;
+	protected volatile boolean keepRunning = true;
+
+	//Event loop reading from this client, or null if this client reads on its
+	//own thread
+	protected volatile EventLoop eventLoop;
+
+	//IDs of chat messages already dispatched, shared by every client of a
+	//ChatClient so a message that arrives twice is only dispatched once.
+	//Null to dispatch every message
+	protected volatile DedupeCache dedupe;
+
+	//Highest protocol version offered in the handshake.
+	//Set with -Dchat.protocolVersion=1 to only speak the original format
+	protected static final int MAX_PROTOCOL_VERSION =
+		Integer.getInteger("chat.protocolVersion", AbstractMessage.PROTOCOL_V2).intValue();
+
+	//Wire format agreed with the remote client during the handshake
+	protected volatile int protocolVersion = AbstractMessage.PROTOCOL_V1;
+
+	//Epoch the remote client's chat timestamps are relative to in protocol version 2
+	protected volatile long remoteEpoch = 0;
+
+	//Whether to offer compression after a protocol version 2 handshake.
+	//Set with -Dchat.compression=true
+	protected static final boolean COMPRESSION = Boolean.getBoolean("chat.compression");
+
+	//Compression streams of this connection, or null unless this client offered
+	//compression.  Inflates whatever the remote client compresses
+	protected volatile FrameCompressor compressor;
+
+	//Set once the remote client has offered compression too, from then on the
+	//frames sent to it are compressed
+	protected volatile boolean compressing = false;
+
+	//Initial size of the read buffer, grown for larger frames
+	protected static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	//Largest frame accepted from the remote client.  The read buffer grows to hold
+	//a whole frame, so the length prefix of a larger one is refused rather than trusted
+	protected static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	//Buffer that incoming frames are read into and decoded from in place
+	protected ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	//Reused view of the chat frame being dispatched
+	protected final ChatFrame chatFrame = new ChatFrame();
+
+	//Chat messages read in the current read, for any BatchMessageListener
+	protected final List<ChatMessage> chatBatch = new ArrayList<ChatMessage>();
+
+	protected final List<ChatMessage> chatBatchView = Collections.unmodifiableList(this.chatBatch);
+
+	//Whether chat frames have been passed to a ChatFrameListener in the current
+	//read, which is told when the read ends
+	protected boolean chatFramesPending = false;
+
+	//Resolved address of this client, see getInetAddress()
+	protected volatile InetAddress address;
+
+	//Resolved listen address, see getPeerAddress()
+	protected volatile InetSocketAddress peerAddress;
+
+	//Frames waiting to be written by this client's writer or event loop
+	protected final OutboundQueue outbound = new OutboundQueue();
+
+	//System.nanoTime() when a frame was last read from or queued for this client,
+	//see HeartbeatMonitor
+	protected volatile long lastReadNanos = System.nanoTime();
+
+	protected volatile long lastWriteNanos = System.nanoTime();
+
+	//Whether the remote client has sent a ping or pong, so is known to send
+	//heartbeats and can be judged by how long it has been silent
+	protected volatile boolean heartbeats = false;
+
+	//Round trip time of the last answered ping and its smoothed average,
+	//0 until a pong arrives
+	protected volatile long lastRttNanos = 0;
+
+	protected volatile long smoothedRttNanos = 0;
+
+	//Longest time to wait for queued frames to be written before disconnecting
+	protected static final long DISCONNECT_DRAIN_MILLIS = 1000;
+
+	//How long the writer waits for more frames before writing a batch when the
+	//link is busy, 0 to write every frame on its own.
+	//Set with -Dchat.coalesce.windowMicros=<micros>
+	protected static final long COALESCE_WINDOW_NANOS =
+		Long.getLong("chat.coalesce.windowMicros", 0).longValue() * 1000;
+
+	//Largest number of bytes written in one coalesced batch.
+	//Set with -Dchat.coalesce.maxBytes=<bytes>
+	protected static final int COALESCE_MAX_BYTES = COALESCE_WINDOW_NANOS > 0 ?
+		Integer.getInteger("chat.coalesce.maxBytes", 16 * 1024).intValue() : 0;
+
+	//Largest number of frames written in one batch
+	protected static final int MAX_BATCH_FRAMES = 64;
+
+	//Size of the buffer that each outgoing frame is assembled in
+	protected static final int WRITE_BUFFER_SIZE = Math.max(8 * 1024, COALESCE_MAX_BYTES);
+
+	//Number of frames in each write to the socket
+	protected final BatchSizeHistogram writeBatches = new BatchSizeHistogram();
+
+	//Buffered stream over the socket, created on first use.  Every frame is
+	//assembled here and written with a single flush
+	protected DataOutputStream out;
 
 	/*
 	 * Creates a new Client with the specified parameters.  Does not connect to the remote
@@ -66,12 +204,28 @@ public class Client extends Thread{
 	public Client(final String ipAddress, final int port,
 					final String username, final String localUsername,
 					final int localPort){
+		this(new Socket(), ipAddress, port, username, localUsername, localPort);
+	}
+
+	/*
+	 * Creates a new Client that will connect the supplied, unconnected socket.
+	 * Used to provide a socket backed by a SocketChannel when the client is to
+	 * be read by an {@link EventLoop}.
+	 *
+	 * @param socket
+	 * 		the unconnected socket to use
+	 * @see #Client(String, int, String, String, int)
+	 */
+
+	public Client(final Socket socket, final String ipAddress, final int port,
+					final String username, final String localUsername,
+					final int localPort){
 		this.ipAddress = ipAddress;
 		this.port = port;
 		this.username = username;
 		this.localUsername = localUsername;
 		this.localPort = localPort;
-		this.socket = new Socket();
+		this.socket = socket;
 	}
 
 	public Client(final Socket socket, final String localUsername,
@@ -80,20 +234,52 @@ public class Client extends Thread{
 		this.localUsername = localUsername;
 		this.localPort = localPort;
 		//Grab the actual address in case a hostname was provided
-		this.ipAddress = this.socket.getInetAddress().getHostAddress();
+		this.address = this.socket.getInetAddress();
+		this.ipAddress = this.address.getHostAddress();
 	}
 
 	public void connect() throws IOException{
+		this.connect(0);
+	}
+
+	/*
+	 * Connects the socket to the remote client, giving up after the timeout.
+	 *
+	 * @param timeoutMillis
+	 * 		the longest time to wait for the connection, 0 to wait forever
+	 * @throws SocketTimeoutException if the timeout expires first
+	 */
+
+	public void connect(final int timeoutMillis) throws IOException{
 		if(this.socket != null && !this.socket.isConnected()){
-			this.socket.connect(new InetSocketAddress(this.ipAddress, this.port));
+			this.socket.connect(new InetSocketAddress(this.getInetAddress(), this.port),
+					timeoutMillis);
 		}
 	}
 
+	/*
+	 * Returns the resolved address of this client.  The hostname is resolved
+	 * through the shared AddressCache the first time and the result is kept.
+	 *
+	 * @return the client's address
+	 * @throws UnknownHostException if the hostname cannot be resolved
+	 */
+
+	public InetAddress getInetAddress() throws UnknownHostException{
+		InetAddress resolved = this.address;
+		if(resolved == null){
+			resolved = AddressCache.SHARED.resolve(this.ipAddress);
+			this.address = resolved;
+		}
+		return resolved;
+	}
+
 	public synchronized boolean performHandshake(){
 		HandshakeMessage sentMessage = null;
 
 		try{
-			sentMessage = new HandshakeMessage(this.localUsername, this.localPort);
+			sentMessage = new HandshakeMessage(this.localUsername, this.localPort,
+					MAX_PROTOCOL_VERSION);
 		}catch(UnsupportedEncodingException uee){
 			System.err.println("Unable to encode handshake");
 			System.err.println(uee.getMessage());
@@ -101,6 +287,15 @@ public class Client extends Thread{
 			return false;
 		}
 
+		try{
+			AbstractMessage.encodeMessage(sentMessage, this.getOutputStream());
+		}catch(IOException e){
+			System.err.println("Unable to send handshake to remote client");
+			System.err.println(e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+
 		AbstractMessage recievedMessage = null;
 
 		//keep reading messages until a HandshakeMessage is recieved
@@ -145,11 +340,114 @@ public class Client extends Thread{
 					"<->" + ((HandshakeMessage) recievedMessage).getListenPort());
 			return false;
 		}
+
+		//Switch to the compact format only if both sides offered it
+		int agreedVersion = Math.min(MAX_PROTOCOL_VERSION,
+				((HandshakeMessage) recievedMessage).getProtocolVersion());
+		if(agreedVersion >= AbstractMessage.PROTOCOL_V2){
+			return this.exchangeSessions();
+		}
 		return true;
 	}
 
+	/*
+	 * Completes a protocol version 2 handshake by sending this client's session
+	 * epoch, and an offer of compression if enabled, and reading the remote
+	 * client's session.  An offer from the remote client is read later, like
+	 * any other frame, see FrameCompressor.
+	 *
+	 * @return true if the remote session was received
+	 */
+
+	protected boolean exchangeSessions(){
+		try{
+			CompactCodec.encodeMessage(new SessionMessage(CompactCodec.LOCAL_EPOCH),
+					this.getOutputStream());
+			if(COMPRESSION){
+				//Ready to inflate before the remote client can see the offer
+				this.compressor = new FrameCompressor();
+				FrameCompressor.writeOffer(this.getOutputStream());
+			}
+			AbstractMessage recievedMessage;
+			do{
+				recievedMessage = CompactCodec.decodeMessage(this.socket.getInputStream(), 0);
+			}
+			while(recievedMessage == null);
+
+			if(recievedMessage.getType() != AbstractMessage.TYPE_SESSION_MESSAGE){
+				System.err.println("Expected session after handshake, recieved " + recievedMessage);
+				return false;
+			}
+			this.remoteEpoch = ((SessionMessage) recievedMessage).getEpoch();
+			this.protocolVersion = AbstractMessage.PROTOCOL_V2;
+			return true;
+		}catch(IOException e){
+			System.err.println("Unable to exchange sessions with remote client");
+			System.err.println(e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Reads one message from the stream in the agreed wire format.
+	 *
+	 * @param in
+	 * 		the socket stream, or a single buffered frame
+	 * @return the message, or null if it was of an unknown type
+	 */
+
+	protected AbstractMessage readMessage(final InputStream in) throws IOException{
+		if(this.protocolVersion >= AbstractMessage.PROTOCOL_V2){
+			return CompactCodec.decodeMessage(in, this.remoteEpoch);
+		}
+		return AbstractMessage.decodeMessage(in);
+	}
+
+	/*
+	 * @return the wire format agreed with the remote client
+	 */
+
+	public int getProtocolVersion(){
+		return this.protocolVersion;
+	}
+
+	/*
+	 * @return the compression streams of this connection, or null if this client
+	 * 		doesn't offer compression
+	 */
+
+	public FrameCompressor getCompressor(){
+		return this.compressor;
+	}
+
+	/*
+	 * Turns a frame taken from the outbound queue into the bytes written to the
+	 * socket, compressing it once both sides have offered compression.  Must be
+	 * called by whichever writer is serving this client, in the order frames are
+	 * written.
+	 *
+	 * @param frame
+	 * 		the queued frame
+	 * @return the frame to write
+	 */
+
+	protected EncodedFrame wireFrame(final EncodedFrame frame) throws IOException{
+		FrameCompressor deflate = this.compressor;
+		return deflate == null || !this.compressing ? frame : deflate.compress(frame);
+	}
+
+	/*
+	 * Closes the connection and releases the compression streams, if any.
+	 */
+
 	public void disconnect(){
 		this.keepRunning = false;
+		this.outbound.close();
+		FrameCompressor deflate = this.compressor;
+		if(deflate != null){
+			deflate.end();
+		}
 
 		if(this.socket != null && !this.socket.isClosed()){
 			try{
@@ -163,25 +461,161 @@ public class Client extends Thread{
 		}
 	}
 
-	public synchronized void sendMessage(final String message) throws IOException{
-		ChatMessage cMessage = new ChatMessage(System.currentTimeMillis(), 
-			this.localUsername, message);
-		AbstractMessage.encodeMessage(cMessage, this.socket.getOutputStream());
+	/*
+	 * Sends a private chat message to the remote client alone.  It is sent
+	 * without an ID, which marks it as private: a message without one is never
+	 * relayed, and HistorySync never passes it on to another client.
+	 */
+
+	public void sendMessage(final String message) throws IOException{
+		ChatMessage cMessage = new ChatMessage(MessageIds.NO_ORIGIN, 0,
+			System.currentTimeMillis(), this.localUsername, message);
+		this.writeMessage(cMessage);
 	}
 	
-	public synchronized void sendClient(final Client otherClient) throws IOException{
+	public void sendClient(final Client otherClient) throws IOException{
 		ClientExchangeMessage cMessage = new ClientExchangeMessage(otherClient.getIpAddress(), otherClient.getPort(), otherClient.getUsername());
-		AbstractMessage.encodeMessage(cMessage, this.socket.getOutputStream());
+		this.writeMessage(cMessage);
 	}
 	
-	public synchronized void sendDisconnectMessage() throws IOException {
-		AbstractMessage.encodeMessage(AbstractMessage.DISCONNECT_MESSAGE,
-				this.socket.getOutputStream());
+	/*
+	 * Queues an already-encoded frame for the remote client.  The same frame may be
+	 * sent to any number of clients.  Returns once the frame is queued; it is
+	 * written by this client's writer thread or event loop.
+	 *
+	 * @param frame
+	 * 		the frame to send
+	 * @throws IOException if this client is disconnected or its outbound queue refused the frame
+	 * @see OutboundQueue#offer(EncodedFrame)
+	 */
+
+	public void sendFrame(final EncodedFrame frame) throws IOException{
+		if(frame.getProtocolVersion() != this.protocolVersion){
+			throw new IOException(frame + " is not in protocol version " + this.protocolVersion);
+		}
+		this.outbound.offer(frame);
+		this.lastWriteNanos = System.nanoTime();
+		EventLoop loop = this.eventLoop;
+		if(loop != null){
+			loop.flush(this);
+		}
 	}
 
-	public synchronized void sendKeepAliveMessage() throws IOException{
-		AbstractMessage.encodeMessage(AbstractMessage.KEEPALIVE_MESSAGE,
-			this.socket.getOutputStream());
+	/*
+	 * Queues a message that is being sent to several clients, in whichever wire
+	 * format this client speaks.
+	 *
+	 * @param frames
+	 * 		the shared encodings of the message
+	 */
+
+	public void sendFrame(final FrameSet frames) throws IOException{
+		this.sendFrame(frames.get(this.protocolVersion));
+	}
+
+	/*
+	 * Queues a disconnect message and waits briefly for it, and anything queued
+	 * before it, to be written.
+	 */
+
+	public void sendDisconnectMessage() throws IOException {
+		this.writeMessage(AbstractMessage.DISCONNECT_MESSAGE);
+		try{
+			this.outbound.awaitDrained(DISCONNECT_DRAIN_MILLIS);
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void sendKeepAliveMessage() throws IOException{
+		this.writeMessage(AbstractMessage.KEEPALIVE_MESSAGE);
+	}
+
+	/*
+	 * Queues a ping, answered with a pong that updates the round trip time.
+	 * Protocol version 1 has no ping, so a keep-alive is sent instead.
+	 */
+
+	public void sendHeartbeat() throws IOException{
+		if(this.protocolVersion >= AbstractMessage.PROTOCOL_V2){
+			this.writeMessage(new HeartbeatMessage(AbstractMessage.TYPE_PING_MESSAGE,
+					System.nanoTime()));
+		}
+		else{
+			this.sendKeepAliveMessage();
+		}
+	}
+
+	/*
+	 * Writes a frame straight to the socket and flushes it, bypassing the outbound
+	 * queue.  Only for use before the client is registered, while nothing else is
+	 * writing to it, e.g. to turn away a client after its handshake.
+	 *
+	 * @param frame
+	 * 		the frame to write
+	 */
+
+	public void writeDirect(final EncodedFrame frame) throws IOException{
+		DataOutputStream stream = this.getOutputStream();
+		frame.writeTo(stream);
+		stream.flush();
+	}
+
+	/*Encodes the message and queues it for the remote client*/
+
+	protected void writeMessage(final AbstractMessage message) throws IOException{
+		this.sendFrame(EncodedFrame.encode(message, this.protocolVersion));
+	}
+
+	/*
+	 * Encodes a small control message and queues it without ever waiting for
+	 * room, for the reader to answer the remote client.  Under the BLOCK policy
+	 * a reader that waited could wait forever, since on an event loop it is the
+	 * same thread that drains the queue.
+	 */
+
+	protected void writeControlMessage(final AbstractMessage message) throws IOException{
+		if(!this.outbound.offerNow(EncodedFrame.encode(message, this.protocolVersion))){
+			throw new SocketException("Socket is closed.");
+		}
+		this.lastWriteNanos = System.nanoTime();
+		EventLoop loop = this.eventLoop;
+		if(loop != null){
+			loop.flush(this);
+		}
+	}
+
+	/*
+	 * @return the queue of frames waiting to be written to this client
+	 */
+
+	public OutboundQueue getOutboundQueue(){
+		return this.outbound;
+	}
+
+	/*
+	 * Creates the thread that writes this client's outbound queue to its socket.
+	 * Not needed when the client is served by an EventLoop.
+	 *
+	 * @return the unstarted writer thread
+	 */
+
+	public Thread newWriter(){
+		return new Writer();
+	}
+
+	/*
+	 * Returns the buffered stream that frames are written to, creating it on first
+	 * use.  Only used when this client is not served by an event loop.
+	 */
+
+	protected synchronized DataOutputStream getOutputStream() throws IOException{
+		if(this.out == null){
+			this.out = new DataOutputStream(new BufferedOutputStream(
+					this.socket.getOutputStream(), WRITE_BUFFER_SIZE));
+		}
+		return this.out;
 	}
 
 	public void addMessageListener(final MessageListener listener){
@@ -192,49 +626,502 @@ public class Client extends Thread{
 		this.listeners.remove(listener);
 	}
 
+	/*
+	 * Reads from the socket into this client's read buffer and dispatches every
+	 * complete frame, until the client is disconnected.
+	 */
+
 	@Override
 	public void run(){
 		while(this.keepRunning){
 			try{
-			final AbstractMessage message = AbstractMessage.decodeMessage(this.socket.getInputStream());
-			if(message == null){
-				try{
-					Thread.sleep(5);
-				}
-				catch(InterruptedException ie){
+			InputStream in = this.socket.getInputStream();
+			ByteBuffer buffer = this.readBuffer;
+			int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					buffer.remaining());
+			if(read < 0){
+				throw new EOFException("Connection closed by remote client.");
+			}
+			buffer.position(buffer.position() + read);
+			this.processReadBuffer();
+			}
+			catch(Exception e){
+				this.keepRunning = false;
+				this.dispatchDisconnect(e);
+			}
+		}
+	}
+
+	/*
+	 * Dispatches every complete frame in the read buffer, which must be in write
+	 * mode (just filled).  Chat frames are parsed in place; a partial frame is
+	 * kept at the start of the buffer until the rest of it arrives, and the buffer
+	 * is grown if the frame is larger than it.  The chat messages read are passed
+	 * to any BatchMessageListener together, and any ChatFrameListener is told
+	 * when the frames end, see flushChatBatch().  Called from
+	 * this client's own thread or from the EventLoop serving it.
+	 */
+
+	protected void processReadBuffer() throws IOException{
+		ByteBuffer buffer = this.readBuffer;
+		buffer.flip();
+		if(buffer.hasRemaining()){
+			this.lastReadNanos = System.nanoTime();
+		}
+		int frameSize;
+		try{
+			while((frameSize = this.frameSize(buffer)) > 0
+					&& buffer.remaining() >= frameSize){
+				int start = buffer.position();
+				this.processFrame(buffer, start, frameSize, true);
+				buffer.position(start + frameSize);
+			}
+		}
+		finally{
+			this.flushChatBatch();
+		}
+
+		//Make room for a frame larger than the buffer
+		if(frameSize > buffer.capacity()){
+			ByteBuffer larger = ByteBuffer.allocate(frameSize);
+			larger.put(buffer);
+			this.readBuffer = larger;
+		}
+		//Go back to the initial size once the large frames are done
+		else if(buffer.capacity() > READ_BUFFER_SIZE && frameSize <= READ_BUFFER_SIZE
+				&& buffer.remaining() <= READ_BUFFER_SIZE){
+			ByteBuffer initial = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			initial.put(buffer);
+			this.readBuffer = initial;
+		}
+		else{
+			buffer.compact();
+		}
+	}
+
+	/*
+	 * Dispatches one complete frame.  May move the buffer's position.
+	 *
+	 * @param buffer
+	 * 		the buffer holding the whole frame
+	 * @param start
+	 * 		the index of the frame's length prefix
+	 * @param frameSize
+	 * 		the size of the frame including its length prefix
+	 * @param outer
+	 * 		whether the frame was read from the socket rather than inflated from
+	 * 		a compressed frame, which can't hold another
+	 */
+
+	protected void processFrame(final ByteBuffer buffer, final int start, final int frameSize,
+			final boolean outer) throws IOException{
+		byte type = this.chatFrame.wrap(buffer, start, frameSize,
+				this.protocolVersion, this.remoteEpoch);
+		if(type == AbstractMessage.TYPE_CHAT_MESSAGE){
+			this.dispatchChatFrame(this.chatFrame);
+		}
+		else if(type == AbstractMessage.TYPE_COMPRESSED_MESSAGE && outer
+				&& FrameCompressor.isOffer(frameSize)){
+			//Only compress for a client that can inflate, if this one offered too
+			this.compressing = this.compressor != null;
+		}
+		else if(type == AbstractMessage.TYPE_COMPRESSED_MESSAGE && outer && this.compressor != null){
+			ByteBuffer inflated = this.compressor.inflate(buffer, start, frameSize);
+			this.processFrame(inflated, inflated.position(), inflated.remaining(), false);
+		}
+		else{
+			//Control messages are rare, so decode them from a copy
+			byte[] frame = new byte[frameSize];
+			buffer.position(start);
+			buffer.get(frame);
+			AbstractMessage message = this.readMessage(new ByteArrayInputStream(frame));
+			if(message instanceof HeartbeatMessage){
+				this.heartbeatArrived((HeartbeatMessage) message);
+			}
+			else if(message instanceof SyncBatchMessage){
+				List<ChatMessage> synced = ((SyncBatchMessage) message).getMessages();
+				for(ChatMessage chat : synced){
+					this.dispatchSyncedMessage(chat);
 				}
-				continue;
+				//The sender waits for this before sending more, so history never
+				//piles up in the socket buffers ahead of live messages
+				this.flushChatBatch();
+				this.writeControlMessage(new SyncAckMessage(synced.size()));
+			}
+			else if(message != null){
+				//Keep batched chat messages ahead of what was read after them
+				this.flushChatBatch();
+				this.dispatchMessage(message);
 			}
-			if(message.getType() == AbstractMessage.TYPE_CHAT_MESSAGE){
-				for(MessageListener listener: Client.this.listeners){
-					listener.chatMessageArrived(Client.this,
-							(ChatMessage) message);
+		}
+	}
+
+	/*
+	 * Reads the size of the frame at the buffer's position, in the agreed wire
+	 * format, without moving the position.
+	 *
+	 * @return the total size of the frame including its length prefix, or -1 if
+	 * 		the length prefix hasn't fully arrived
+	 * @throws IOException if the frame is larger than MAX_FRAME_SIZE, which
+	 * 		disconnects the client
+	 */
+
+	protected int frameSize(final ByteBuffer buffer) throws IOException{
+		int frameSize;
+		if(this.protocolVersion >= AbstractMessage.PROTOCOL_V2){
+			frameSize = CompactCodec.peekFrameSize(buffer);
+		}
+		else{
+			if(buffer.remaining() < 4){
+				return -1;
+			}
+			int frameLength = buffer.getInt(buffer.position());
+			if(frameLength < 1 || frameLength > Integer.MAX_VALUE - 4){
+				throw new IOException("Invalid frame length: " + frameLength);
+			}
+			frameSize = 4 + frameLength;
+		}
+		if(frameSize > MAX_FRAME_SIZE){
+			throw new IOException("Frame of " + frameSize + " bytes is larger than the limit of "
+					+ MAX_FRAME_SIZE);
+		}
+		return frameSize;
+	}
+
+	/*Answers a ping, or records the round trip time of an answered one*/
+
+	protected void heartbeatArrived(final HeartbeatMessage message) throws IOException{
+		this.heartbeats = true;
+		if(message.getType() == AbstractMessage.TYPE_PING_MESSAGE){
+			//Always answered, however busy the queue, or the remote client would
+			//time this one out.  Queued without waiting so the reader never blocks
+			this.writeControlMessage(new HeartbeatMessage(AbstractMessage.TYPE_PONG_MESSAGE,
+					message.getToken()));
+			return;
+		}
+		long rtt = System.nanoTime() - message.getToken();
+		if(rtt < 0){
+			return;
+		}
+		this.lastRttNanos = rtt;
+		long smoothed = this.smoothedRttNanos;
+		//Same weighting as TCP's smoothed RTT
+		this.smoothedRttNanos = smoothed == 0 ? rtt : smoothed + (rtt - smoothed) / 8;
+	}
+
+	/*
+	 * @return System.nanoTime() when data last arrived from the remote client
+	 */
+
+	public long getLastReadNanos(){
+		return this.lastReadNanos;
+	}
+
+	/*
+	 * @return System.nanoTime() when a frame was last queued for the remote client
+	 */
+
+	public long getLastWriteNanos(){
+		return this.lastWriteNanos;
+	}
+
+	/*
+	 * @return whether the remote client sends heartbeats, so its silence means
+	 * 		the link is dead
+	 */
+
+	public boolean sendsHeartbeats(){
+		return this.heartbeats;
+	}
+
+	/*
+	 * @return the round trip time of the last answered ping in nanoseconds, or 0
+	 */
+
+	public long getLastRttNanos(){
+		return this.lastRttNanos;
+	}
+
+	/*
+	 * @return the smoothed round trip time in nanoseconds, or 0 if no ping has
+	 * 		been answered
+	 */
+
+	public long getSmoothedRttNanos(){
+		return this.smoothedRttNanos;
+	}
+
+	/*
+	 * Passes a chat frame to every listener, as the frame itself to any
+	 * ChatFrameListener and as a ChatMessage, built at most once, to the rest.
+	 * BatchMessageListeners get the message later with the rest of the batch.
+	 */
+
+	protected void dispatchChatFrame(final ChatFrame frame) throws IOException{
+		DedupeCache seen = this.dedupe;
+		if(seen != null && frame.hasId() && !seen.add(frame.getId())){
+			return;
+		}
+		ChatMessage message = null;
+		boolean batched = false;
+		for(MessageListener listener : this.listeners){
+			if(listener instanceof BatchMessageListener){
+				batched = true;
+			}
+			else if(listener instanceof ChatFrameListener){
+				((ChatFrameListener) listener).chatFrameArrived(this, frame);
+				this.chatFramesPending = true;
+			}
+			else{
+				if(message == null){
+					message = frame.toChatMessage();
 				}
+				listener.chatMessageArrived(this, message);
+			}
+		}
+		if(batched){
+			this.chatBatch.add(message == null ? frame.toChatMessage() : message);
+		}
+	}
+
+	/*
+	 * Passes a chat message sent from the remote client's history to every
+	 * listener, like a chat frame, unless it was already dispatched.
+	 */
+
+	protected void dispatchSyncedMessage(final ChatMessage message){
+		DedupeCache seen = this.dedupe;
+		if(seen != null && message.getOrigin() != MessageIds.NO_ORIGIN
+				&& !seen.add(MessageIds.idOf(message.getOrigin(), message.getSequence()))){
+			return;
+		}
+		boolean batched = false;
+		for(MessageListener listener : this.listeners){
+			if(listener instanceof BatchMessageListener){
+				batched = true;
 			}
-			else if(message.getType() == AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE){
-				for(MessageListener listener : Client.this.listeners){
-					listener.clientMessageArrived(Client.this,
-							(ClientExchangeMessage) message);
+			else{
+				listener.chatMessageArrived(this, message);
+			}
+		}
+		if(batched){
+			this.chatBatch.add(message);
+		}
+	}
+
+	/*
+	 * Passes the chat messages batched so far to every BatchMessageListener, and
+	 * tells every ChatFrameListener that the frames passed to it so far have ended.
+	 */
+
+	protected void flushChatBatch(){
+		if(this.chatFramesPending){
+			this.chatFramesPending = false;
+			for(MessageListener listener : this.listeners){
+				if(listener instanceof ChatFrameListener && !(listener instanceof BatchMessageListener)){
+					((ChatFrameListener) listener).chatFramesRead(this);
 				}
 			}
-			else if(message.getType() == AbstractMessage.TYPE_DISCONNECT_MESSAGE){
-				for(MessageListener listener: Client.this.listeners){
-					listener.disconnectMessageArrived(Client.this);
+		}
+		if(this.chatBatch.isEmpty()){
+			return;
+		}
+		try{
+			for(MessageListener listener : this.listeners){
+				if(listener instanceof BatchMessageListener){
+					((BatchMessageListener) listener).chatMessagesArrived(this, this.chatBatchView);
 				}
 			}
+		}
+		finally{
+			this.chatBatch.clear();
+		}
+	}
 
+	/*
+	 * Passes a chat message that reached this client some other way than a chat
+	 * frame, e.g. relayed through the overlay, to every listener.  The message
+	 * is not checked against the DedupeCache; the caller has already done so.
+	 *
+	 * @param message
+	 * 		the chat message
+	 */
+
+	public void dispatchChatMessage(final ChatMessage message){
+		for(MessageListener listener: this.listeners){
+			listener.chatMessageArrived(this, message);
+		}
+	}
+
+	/*
+	 * Passes a decoded message to every registered MessageListener. Called from
+	 * this client's own thread or from the EventLoop serving it.
+	 */
+
+	protected void dispatchMessage(final AbstractMessage message){
+		if(message.getType() == AbstractMessage.TYPE_CHAT_MESSAGE){
+			for(MessageListener listener: Client.this.listeners){
+				listener.chatMessageArrived(Client.this,
+						(ChatMessage) message);
 			}
-			catch(Exception e){
-				this.keepRunning = false;
-				System.err.println(this + ": Caught exception while reading from client.");
-				System.err.println(e.getMessage());
-				e.printStackTrace(System.err);
+		}
+		else if(message.getType() == AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE){
+			for(MessageListener listener : Client.this.listeners){
+				listener.clientMessageArrived(Client.this,
+						(ClientExchangeMessage) message);
+			}
+		}
+		else if(message.getType() == AbstractMessage.TYPE_DISCONNECT_MESSAGE){
+			for(MessageListener listener: Client.this.listeners){
+				listener.disconnectMessageArrived(Client.this);
+			}
+		}
+		else if(message.getType() == AbstractMessage.TYPE_PEER_DIGEST_MESSAGE){
+			for(MessageListener listener: Client.this.listeners){
+				if(listener instanceof PeerListListener){
+					((PeerListListener) listener).peerDigestArrived(Client.this,
+							(PeerDigestMessage) message);
+				}
+			}
+		}
+		else if(message.getType() == AbstractMessage.TYPE_PEER_LIST_MESSAGE){
+			for(MessageListener listener: Client.this.listeners){
+				if(listener instanceof PeerListListener){
+					((PeerListListener) listener).peerListArrived(Client.this,
+							(PeerListMessage) message);
+				}
+			}
+		}
+		else if(message.getType() == AbstractMessage.TYPE_GOSSIP_MESSAGE){
+			for(MessageListener listener: Client.this.listeners){
+				if(listener instanceof GossipListener){
+					((GossipListener) listener).gossipArrived(Client.this,
+							(GossipMessage) message);
+				}
+			}
+		}
+		else if(message.getType() == AbstractMessage.TYPE_IHAVE_MESSAGE
+				|| message.getType() == AbstractMessage.TYPE_IWANT_MESSAGE){
+			for(MessageListener listener: Client.this.listeners){
+				if(listener instanceof GossipListener){
+					((GossipListener) listener).gossipIdsArrived(Client.this,
+							(GossipIdsMessage) message);
+				}
+			}
+		}
+		else if(message.getType() == AbstractMessage.TYPE_SYNC_REQUEST_MESSAGE){
+			for(MessageListener listener: Client.this.listeners){
+				if(listener instanceof SyncListener){
+					((SyncListener) listener).syncRequestArrived(Client.this,
+							(SyncRequestMessage) message);
+				}
+			}
+		}
+		else if(message.getType() == AbstractMessage.TYPE_SYNC_ACK_MESSAGE){
+			for(MessageListener listener: Client.this.listeners){
+				if(listener instanceof SyncListener){
+					((SyncListener) listener).syncAckArrived(Client.this,
+							(SyncAckMessage) message);
+				}
+			}
+		}
+	}
+
+	/*Reports a read failure and notifies every listener that this client is gone*/
+
+	protected void dispatchDisconnect(final Exception e){
+		System.err.println(this + ": Caught exception while reading from client.");
+		System.err.println(e.getMessage());
+		e.printStackTrace(System.err);
 
-				for(MessageListener listener: Client.this.listeners){
-					listener.disconnectMessageArrived(this);
+		for(MessageListener listener: Client.this.listeners){
+			listener.disconnectMessageArrived(this);
+		}
+	}
+
+	/*
+	 * Writes frames from the outbound queue to the socket until the client is
+	 * disconnected.  A write failure closes the socket, which the read thread
+	 * reports to the listeners.
+	 *
+	 * When coalescing is enabled every frame already queued, up to the byte limit,
+	 * goes out with a single flush.  If the previous batch held more than one
+	 * frame the link is considered busy and the writer also waits out the
+	 * coalescing window for more, so light traffic is never delayed.
+	 */
+
+	protected class Writer extends Thread{
+		@Override
+		public void run(){
+			EncodedFrame[] batch = new EncodedFrame[MAX_BATCH_FRAMES];
+			boolean busy = false;
+			try{
+				DataOutputStream stream = Client.this.getOutputStream();
+				while((batch[0] = Client.this.outbound.take()) != null){
+					int count = 1;
+					if(COALESCE_MAX_BYTES > 0){
+						count = this.fill(batch, count);
+						if(busy && count < batch.length){
+							LockSupport.parkNanos(COALESCE_WINDOW_NANOS);
+							count = this.fill(batch, count);
+						}
+						busy = count > 1;
+					}
+					try{
+						for(int i = 0; i < count; ++i){
+							Client.this.wireFrame(batch[i]).writeTo(stream);
+						}
+						stream.flush();
+						Client.this.writeBatches.record(count);
+					}
+					finally{
+						for(int i = 0; i < count; ++i){
+							Client.this.outbound.completed(batch[i]);
+							batch[i] = null;
+						}
+					}
+				}
+			}
+			catch(InterruptedException ie){
+				//Exit quietly
+			}
+			catch(IOException e){
+				if(Client.this.keepRunning){
+					System.err.println(Client.this + ": Caught exception while writing to client.");
+					System.err.println(e.getMessage());
+					Client.this.disconnect();
 				}
 			}
 		}
+
+		/*Adds whatever queued frames still fit under the coalescing byte limit*/
+
+		protected int fill(final EncodedFrame[] batch, final int count){
+			int bytes = 0;
+			for(int i = 0; i < count; ++i){
+				bytes += batch[i].getLength();
+			}
+			return count + Client.this.outbound.drainTo(batch, count, COALESCE_MAX_BYTES - bytes);
+		}
+	}
+
+	/*
+	 * Sets the cache used to drop chat messages already dispatched.
+	 *
+	 * @param dedupe
+	 * 		the shared cache, or null to dispatch every message
+	 */
+
+	public void setDedupeCache(final DedupeCache dedupe){
+		this.dedupe = dedupe;
+	}
+
+	/*
+	 * @return the distribution of frames per socket write for this client
+	 */
+
+	public BatchSizeHistogram getWriteBatchSizes(){
+		return this.writeBatches;
 	}
 
 	public String getUsername(){
@@ -253,32 +1140,49 @@ public class Client extends Thread{
 		return this.port;
 	}
 
-	@Override
-	public boolean equals(Object o){
-		if(o instanceof Client){
-			return this.equals((Client) o);
-		}
-			return super.equals(o);
-	}
+	/*
+	 * Returns the resolved address this client listens on.
+	 *
+	 * @return the listen address, or null if the listen port is not yet known.  If
+	 * 		the hostname cannot be resolved the address is unresolved
+	 * @see #getInetAddress()
+	 */
 
-	public boolean equals(Client client){
-		try{
-			InetAddress myAddress = InetAddress.getByName(this.ipAddress);
-			InetAddress otherAddress = InetAddress.getByName(client.ipAddress);
-			if(myAddress.equals(otherAddress) && this.port == client.port){
-				return true;
+	public InetSocketAddress getPeerAddress(){
+		InetSocketAddress peer = this.peerAddress;
+		if(peer == null || peer.getPort() != this.port){
+			if(this.port < 0){
+				return null;
 			}
+			try{
+				peer = new InetSocketAddress(this.getInetAddress(), this.port);
+			}
+			catch(UnknownHostException uhe){
+				peer = InetSocketAddress.createUnresolved(this.ipAddress, this.port);
+			}
+			this.peerAddress = peer;
 		}
-		catch(IOException ioe){
-			ioe.printStackTrace();
-		}
-		return false;
+		return peer;
 	}
 
-	@Override
-	public int hashCode(){
-		//a hacky hack to stope compiler from complaining
-		return this.socket.hashCode() ^ this.port;
+	/*
+	 * Whether two clients have the same resolved listen address, i.e. are
+	 * connections to the same remote client.  equals and hashCode are left as
+	 * identity, since the listen address isn't known until the handshake, so a
+	 * client put in a hash-based collection before then would be lost after.
+	 *
+	 * @param client
+	 * 		the client to compare with
+	 * @return true if both listen at the same address
+	 */
+
+	public boolean sameAddress(Client client){
+		InetSocketAddress myAddress = this.getPeerAddress();
+		InetSocketAddress otherAddress = client.getPeerAddress();
+		if(myAddress == null || otherAddress == null){
+			return myAddress == otherAddress && this.ipAddress.equals(client.ipAddress);
+		}
+		return myAddress.equals(otherAddress);
 	}
 
 	@Override
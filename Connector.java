@@ -0,0 +1,325 @@
+package com.kd.chat;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+
+
+
+/*
+ * Dials and handshakes remote clients in the background.  Each dial returns a
+ * CompletableFuture that completes with the handshaked client.  If the dial
+ * fails, times out or is cancelled, the future completes exceptionally and the
+ * client's socket is closed.
+ *
+ * Connecting and handshaking each have a deadline.  Only a limited number of
+ * dials run at once; the rest wait in a queue and start as earlier dials finish.
+ * Cancelling a dial's future closes its socket, which wakes the thread blocked
+ * on it.  Clients that connect to this one are handshaked with the same
+ * deadline, see handshake(Client).
+ */
+
+public class Connector{
+	//Longest time to wait for a TCP connection. Set with -Dchat.connect.timeoutMillis=<ms>
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS =
+		Integer.getInteger("chat.connect.timeoutMillis", 5000).intValue();
+
+	//Longest time to wait for the handshake once connected.
+	//Set with -Dchat.handshake.timeoutMillis=<ms>
+	public static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS =
+		Long.getLong("chat.handshake.timeoutMillis", 5000).longValue();
+
+	//Most dials in progress at once. Set with -Dchat.connect.maxInFlight=<n>
+	public static final int DEFAULT_MAX_IN_FLIGHT =
+		Integer.getInteger("chat.connect.maxInFlight", 32).intValue();
+
+	//Runs the blocking connect and handshake of each dial
+	protected final Executor executor;
+
+	//Closes clients whose handshake deadline has passed
+	protected final ScheduledExecutorService timer =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(final Runnable task){
+				Thread thread = new Thread(task, "connector-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	protected final int connectTimeoutMillis;
+
+	protected final long handshakeTimeoutMillis;
+
+	protected final int maxInFlight;
+
+	//Dials waiting for a free slot
+	protected final Queue<Dial> pending = new ConcurrentLinkedQueue<Dial>();
+
+	//Number of dials started and not yet finished
+	protected final AtomicInteger inFlight = new AtomicInteger();
+
+	/*
+	 * Creates a connector with the default deadlines and limit.
+	 *
+	 * @param executor
+	 * 		runs each dial, one task per dial
+	 */
+
+	public Connector(final Executor executor){
+		this(executor, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_HANDSHAKE_TIMEOUT_MILLIS,
+				DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/*
+	 * @param executor
+	 * 		runs each dial, one task per dial
+	 * @param connectTimeoutMillis
+	 * 		the longest time to wait for a connection, 0 to wait forever
+	 * @param handshakeTimeoutMillis
+	 * 		the longest time to wait for the handshake, 0 to wait forever
+	 * @param maxInFlight
+	 * 		the most dials to run at once
+	 */
+
+	public Connector(final Executor executor, final int connectTimeoutMillis,
+			final long handshakeTimeoutMillis, final int maxInFlight){
+		if(maxInFlight < 1){
+			throw new IllegalArgumentException("At least one dial must be allowed in flight.");
+		}
+		this.executor = executor;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/*
+	 * Queues the client to be connected and handshaked.
+	 *
+	 * @param client
+	 * 		an unconnected client
+	 * @return a future completed with the client once the handshake succeeds
+	 */
+
+	public CompletableFuture<Client> connect(final Client client){
+		final Dial dial = new Dial(client);
+		dial.future.whenComplete(new BiConsumer<Client, Throwable>(){
+			@Override
+			public void accept(final Client result, final Throwable failure){
+				if(failure != null){
+					dial.abandon();
+				}
+			}
+		});
+		this.pending.add(dial);
+		this.startPending();
+		return dial.future;
+	}
+
+	/*
+	 * Handshakes a client that connected to this one, on the calling thread, with
+	 * the same deadline as a dial's handshake.  If the deadline passes first the
+	 * client's socket is closed, which wakes the handshake.  Unlike a dial this
+	 * takes no slot, since the acceptor already limits what it hands over.
+	 *
+	 * @param client
+	 * 		an accepted client
+	 * @return true if the handshake succeeded in time, otherwise the client is
+	 * 		disconnected
+	 */
+
+	public boolean handshake(final Client client){
+		final AtomicBoolean expired = new AtomicBoolean();
+		ScheduledFuture<?> deadline = null;
+		if(this.handshakeTimeoutMillis > 0){
+			try{
+				deadline = this.timer.schedule(new Runnable(){
+					@Override
+					public void run(){
+						expired.set(true);
+						client.disconnect();
+					}
+				}, this.handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			catch(RejectedExecutionException ree){
+				//Shutting down
+				client.disconnect();
+				return false;
+			}
+		}
+
+		boolean handshaked = client.performHandshake();
+		if(deadline != null){
+			deadline.cancel(false);
+		}
+
+		if(expired.get()){
+			System.err.println("No handshake from " + client + " within "
+					+ this.handshakeTimeoutMillis + "ms");
+			return false;
+		}
+		if(!handshaked){
+			client.disconnect();
+		}
+		return handshaked;
+	}
+
+	/*Starts queued dials while there are free slots*/
+
+	protected void startPending(){
+		while(!this.pending.isEmpty()){
+			int running = this.inFlight.get();
+			if(running >= this.maxInFlight){
+				return;
+			}
+			if(!this.inFlight.compareAndSet(running, running + 1)){
+				continue;
+			}
+			Dial dial = this.pending.poll();
+			if(dial == null){
+				this.inFlight.decrementAndGet();
+				continue;
+			}
+			try{
+				this.executor.execute(dial);
+			}
+			catch(RejectedExecutionException ree){
+				dial.future.completeExceptionally(ree);
+				this.finished();
+			}
+		}
+	}
+
+	/*Frees the slot of a finished dial and starts the next one*/
+
+	protected void finished(){
+		this.inFlight.decrementAndGet();
+		this.startPending();
+	}
+
+	/*
+	 * @return the number of dials currently connecting or handshaking
+	 */
+
+	public int getInFlight(){
+		return this.inFlight.get();
+	}
+
+	/*
+	 * @return the number of dials waiting for a free slot
+	 */
+
+	public int getPending(){
+		return this.pending.size();
+	}
+
+	/*Stops the deadline timer.  Queued dials are cancelled.*/
+
+	public void shutdown(){
+		Dial dial;
+		while((dial = this.pending.poll()) != null){
+			dial.future.cancel(false);
+		}
+		this.timer.shutdownNow();
+	}
+
+	/*A single connect-and-handshake attempt*/
+
+	protected class Dial implements Runnable{
+		protected final Client client;
+
+		protected final CompletableFuture<Client> future = new CompletableFuture<Client>();
+
+		protected Dial(final Client client){
+			this.client = client;
+		}
+
+		@Override
+		public void run(){
+			try{
+				//Cancelled or shut down while waiting for a slot
+				if(this.future.isDone()){
+					return;
+				}
+				try{
+					this.client.connect(Connector.this.connectTimeoutMillis);
+				}
+				catch(IOException ioe){
+					this.future.completeExceptionally(ioe);
+					return;
+				}
+
+				ScheduledFuture<?> deadline = null;
+				if(Connector.this.handshakeTimeoutMillis > 0){
+					deadline = Connector.this.timer.schedule(new Runnable(){
+						@Override
+						public void run(){
+							Dial.this.future.completeExceptionally(new TimeoutException(
+									"No handshake from " + Dial.this.client + " within "
+									+ Connector.this.handshakeTimeoutMillis + "ms"));
+						}
+					}, Connector.this.handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+				}
+
+				boolean handshaked = !this.future.isDone() && this.client.performHandshake();
+				if(deadline != null){
+					deadline.cancel(false);
+				}
+
+				if(!handshaked){
+					this.future.completeExceptionally(
+							new IOException("Handshake with " + this.client + " failed"));
+				}
+				//Lost the race with the deadline or a cancel, which close the client
+				else if(!this.future.complete(this.client)){
+					this.abandon();
+				}
+			}
+			catch(RuntimeException re){
+				this.future.completeExceptionally(re);
+			}
+			finally{
+				Connector.this.finished();
+			}
+		}
+
+		/*Closes the client's socket, waking the dial if it is blocked on it*/
+
+		protected void abandon(){
+			if(this.client.getSocket() != null && !this.client.getSocket().isClosed()){
+				this.client.disconnect();
+			}
+		}
+	}
+
+	/*
+	 * @param failure
+	 * 		the exception a dial's future completed with
+	 * @return a short description of why the dial failed
+	 */
+
+	public static String describe(Throwable failure){
+		if(failure instanceof CompletionException && failure.getCause() != null){
+			failure = failure.getCause();
+		}
+		if(failure instanceof CancellationException){
+			return "cancelled";
+		}
+		return failure.getMessage() == null ? failure.toString() : failure.getMessage();
+	}
+}
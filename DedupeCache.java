@@ -0,0 +1,267 @@
+package com.kd.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+
+/*
+ * Lock-free, fixed-size set of recently seen message IDs, used to drop messages
+ * that arrive more than once.
+ *
+ * IDs are kept in a ring of buckets, each an open-addressed table of longs.
+ * Each bucket covers a slice of time, and an ID is added to the bucket for the
+ * current slice.  When the ring comes round to a bucket again, the bucket is
+ * cleared and reused.  So every ID is remembered for at least the window and
+ * the memory used never grows.  If a bucket fills up before its slice ends, the
+ * extra IDs are not remembered and counted as overflows.  Size the buckets for
+ * the expected message rate.
+ *
+ * Two threads adding the same ID at once both insert into the current bucket,
+ * and the compare-and-set on the slot lets only one of them succeed.  If the
+ * slice ends between a thread's insert and its check of the slice, the thread
+ * inserts again into the new bucket, so the ID still has exactly one winner.
+ */
+
+public class DedupeCache{
+	//Shortest time an ID is remembered. Set with -Dchat.dedupe.windowMillis=<ms>
+	public static final long DEFAULT_WINDOW_MILLIS =
+		Long.getLong("chat.dedupe.windowMillis", 2000).longValue();
+
+	//Number of buckets in the ring. Set with -Dchat.dedupe.buckets=<n>
+	public static final int DEFAULT_BUCKETS =
+		Integer.getInteger("chat.dedupe.buckets", 5).intValue();
+
+	//IDs each bucket can hold, rounded up to a power of two.
+	//Set with -Dchat.dedupe.bucketCapacity=<n>
+	public static final int DEFAULT_BUCKET_CAPACITY =
+		Integer.getInteger("chat.dedupe.bucketCapacity", 131072).intValue();
+
+	//Slots tried before a bucket is considered full
+	protected static final int MAX_PROBES = 64;
+
+	//Marks an empty slot, so an ID of 0 is stored as ZERO_ID instead
+	protected static final long EMPTY = 0;
+
+	protected static final long ZERO_ID = 0x9e3779b97f4a7c15L;
+
+	//Generation of a bucket while it is being cleared
+	protected static final long CLEARING = Long.MIN_VALUE;
+
+	protected static final int FOUND = 0;
+
+	protected static final int INSERTED = 1;
+
+	protected static final int FULL = 2;
+
+	//The buckets' slots
+	protected final AtomicLongArray[] buckets;
+
+	//Time slice each bucket currently holds
+	protected final AtomicLongArray generations;
+
+	protected final int mask;
+
+	protected final long sliceNanos;
+
+	protected final long startNanos = System.nanoTime();
+
+	protected final AtomicLong duplicates = new AtomicLong();
+
+	protected final AtomicLong overflows = new AtomicLong();
+
+	/*Creates a cache with the default window and size*/
+
+	public DedupeCache(){
+		this(DEFAULT_WINDOW_MILLIS, DEFAULT_BUCKETS, DEFAULT_BUCKET_CAPACITY);
+	}
+
+	/*
+	 * @param windowMillis
+	 * 		the shortest time an ID is remembered
+	 * @param buckets
+	 * 		the number of buckets, at least 2.  The window is split over all but one
+	 * @param bucketCapacity
+	 * 		the IDs each bucket can hold, rounded up to a power of two
+	 */
+
+	public DedupeCache(final long windowMillis, final int buckets, final int bucketCapacity){
+		if(buckets < 2 || windowMillis < 1 || bucketCapacity < 1){
+			throw new IllegalArgumentException("Need at least 2 buckets and a positive window and capacity.");
+		}
+		int capacity = Integer.highestOneBit(Math.max(bucketCapacity, 2) - 1) << 1;
+		this.buckets = new AtomicLongArray[buckets];
+		for(int i = 0; i < buckets; ++i){
+			this.buckets[i] = new AtomicLongArray(capacity);
+		}
+		this.generations = new AtomicLongArray(buckets);
+		for(int i = 0; i < buckets; ++i){
+			//Older than any live slice
+			this.generations.set(i, -buckets - 1);
+		}
+		this.mask = capacity - 1;
+		this.sliceNanos = Math.max(1, windowMillis * 1000000L / (buckets - 1));
+	}
+
+	/*
+	 * Adds the ID unless it has been seen within the window.
+	 *
+	 * @param id
+	 * 		a message ID, see MessageIds#idOf
+	 * @return true if the ID is new, false if it is a duplicate
+	 */
+
+	public boolean add(long id){
+		if(id == EMPTY){
+			id = ZERO_ID;
+		}
+		long generation = this.currentGeneration();
+		if(this.containsLive(id, generation)){
+			this.duplicates.incrementAndGet();
+			return false;
+		}
+		for(;;){
+			int result = this.insert(this.bucketFor(generation), id);
+			if(result == FOUND){
+				this.duplicates.incrementAndGet();
+				return false;
+			}
+			if(result == FULL){
+				this.overflows.incrementAndGet();
+				return true;
+			}
+			long now = this.currentGeneration();
+			if(now == generation){
+				return true;
+			}
+			generation = now;
+		}
+	}
+
+	/*
+	 * @param id
+	 * 		a message ID
+	 * @return true if the ID has been seen within the window
+	 */
+
+	public boolean contains(long id){
+		if(id == EMPTY){
+			id = ZERO_ID;
+		}
+		return this.containsLive(id, this.currentGeneration());
+	}
+
+	protected long currentGeneration(){
+		return (System.nanoTime() - this.startNanos) / this.sliceNanos;
+	}
+
+	/*Looks for the ID in every bucket still inside the window*/
+
+	protected boolean containsLive(final long id, final long generation){
+		for(int i = 0; i < this.buckets.length; ++i){
+			long bucketGeneration = this.generations.get(i);
+			if(bucketGeneration != CLEARING && bucketGeneration > generation - this.buckets.length
+					&& this.lookup(this.buckets[i], id)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Returns the bucket for the time slice, clearing it first if it still holds
+	 * an older slice.  Only one thread clears; the others wait for it.
+	 */
+
+	protected int bucketFor(final long generation){
+		int index = (int) (generation % this.buckets.length);
+		for(;;){
+			long current = this.generations.get(index);
+			if(current >= generation){
+				//A thread that stalled past the slice adds to the newer one, which is harmless
+				return index;
+			}
+			if(current == CLEARING){
+				Thread.yield();
+				continue;
+			}
+			if(this.generations.compareAndSet(index, current, CLEARING)){
+				AtomicLongArray bucket = this.buckets[index];
+				for(int i = 0; i <= this.mask; ++i){
+					bucket.lazySet(i, EMPTY);
+				}
+				this.generations.set(index, generation);
+				return index;
+			}
+		}
+	}
+
+	protected boolean lookup(final AtomicLongArray bucket, final long id){
+		int slot = spread(id) & this.mask;
+		for(int probe = 0; probe < MAX_PROBES; ++probe){
+			long value = bucket.get(slot);
+			if(value == id){
+				return true;
+			}
+			if(value == EMPTY){
+				return false;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return false;
+	}
+
+	protected int insert(final int index, final long id){
+		AtomicLongArray bucket = this.buckets[index];
+		int slot = spread(id) & this.mask;
+		for(int probe = 0; probe < MAX_PROBES; ++probe){
+			long value = bucket.get(slot);
+			if(value == EMPTY){
+				if(bucket.compareAndSet(slot, EMPTY, id)){
+					return INSERTED;
+				}
+				value = bucket.get(slot);
+			}
+			if(value == id){
+				return FOUND;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return FULL;
+	}
+
+	protected static int spread(final long id){
+		return (int) (id ^ (id >>> 32));
+	}
+
+	/*
+	 * @return the number of duplicate IDs dropped
+	 */
+
+	public long getDuplicates(){
+		return this.duplicates.get();
+	}
+
+	/*
+	 * @return the number of IDs that didn't fit in their bucket and weren't remembered
+	 */
+
+	public long getOverflows(){
+		return this.overflows.get();
+	}
+
+	/*
+	 * @return the bytes taken by the buckets, which never changes
+	 */
+
+	public long getMemoryBytes(){
+		return (long) this.buckets.length * (this.mask + 1) * 8;
+	}
+
+	@Override
+	public String toString(){
+		return "duplicates=" + this.getDuplicates() + ", overflows=" + this.getOverflows()
+			+ ", bytes=" + this.getMemoryBytes();
+	}
+}
@@ -0,0 +1,268 @@
+package com.kd.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.kd.chat.messaging.EncodedFrame;
+
+
+
+
+/*
+ * A single selector thread that multiplexes reads and writes for any number of
+ * non-blocking Client connections.  Decoded messages are passed to the Client's
+ * registered MessageListener interfaces exactly as the Client's own read thread
+ * would, so listeners cannot tell the two transports apart.
+ *
+ * A Client must have completed its handshake in blocking mode before it is
+ * registered, after which all reads and writes for it happen on this thread.
+ */
+
+public class EventLoop extends Thread{
+	//Selector shared by every connection on this loop
+	protected final Selector selector;
+
+	//Clients waiting to be registered with the selector
+	protected final Queue<Client> registrations = new ConcurrentLinkedQueue<Client>();
+
+	//Clients that have frames waiting in their outbound queue
+	protected final Queue<Client> flushes = new ConcurrentLinkedQueue<Client>();
+
+	//Flag to keep running the loop
+	protected volatile boolean keepRunning = true;
+
+	/*
+	 * Creates a new event loop with its own selector.  Does not start selecting
+	 * until {@link #start()} is called.
+	 *
+	 * @param name
+	 * 		the name of the loop thread
+	 */
+
+	public EventLoop(final String name) throws IOException{
+		super(name);
+		this.selector = Selector.open();
+		this.setDaemon(true);
+	}
+
+	/*
+	 * Hands a connected, handshaked client to this loop.  The channel is switched
+	 * to non-blocking mode and registered on the loop thread.
+	 *
+	 * @param client
+	 * 		the client to start reading from
+	 */
+
+	public void register(final Client client){
+		client.eventLoop = this;
+		this.registrations.add(client);
+		this.selector.wakeup();
+	}
+
+	/*
+	 * Asks the loop to write whatever is waiting in the client's outbound queue.
+	 *
+	 * @param client
+	 * 		the client with frames to write
+	 */
+
+	protected void flush(final Client client){
+		this.flushes.add(client);
+		this.selector.wakeup();
+	}
+
+	/*Stops the loop and closes the selector.  Connections are left to their clients*/
+
+	public void shutdown(){
+		this.keepRunning = false;
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run(){
+		while(this.keepRunning){
+			try{
+				this.selector.select();
+			}
+			catch(IOException e){
+				System.err.println(this.getName() + ": Caught exception while selecting.");
+				e.printStackTrace(System.err);
+				break;
+			}
+
+			this.processRegistrations();
+			this.processFlushes();
+
+			for(Iterator<SelectionKey> keyIter = this.selector.selectedKeys().iterator();
+				keyIter.hasNext();){
+				SelectionKey key = keyIter.next();
+				keyIter.remove();
+
+				Connection connection = (Connection) key.attachment();
+				try{
+					if(key.isReadable()){
+						this.read(key, connection);
+					}
+					if(key.isValid() && key.isWritable()){
+						this.write(key, connection);
+					}
+				}
+				catch(CancelledKeyException cke){
+					//Client was disconnected while its key was selected
+				}
+				catch(IOException e){
+					this.close(key, connection.client, e);
+				}
+				catch(RuntimeException e){
+					//A listener or a malformed frame must only cost this connection,
+					//not the thread every other client on the loop relies on
+					this.close(key, connection.client, e);
+				}
+			}
+		}
+
+		try{
+			this.selector.close();
+		}
+		catch(IOException e){
+		}
+	}
+
+	/*Switches newly-handed-over clients to non-blocking mode and registers them for reads*/
+
+	protected void processRegistrations(){
+		Client client;
+		while((client = this.registrations.poll()) != null){
+			SocketChannel channel = client.getSocket().getChannel();
+			try{
+				channel.configureBlocking(false);
+				channel.register(this.selector, SelectionKey.OP_READ, new Connection(client));
+			}
+			catch(IOException e){
+				client.dispatchDisconnect(e);
+				continue;
+			}
+			//Frames may have been queued before the key existed
+			if(!client.outbound.isEmpty()){
+				this.flushes.add(client);
+			}
+		}
+	}
+
+	/*Writes whatever is pending for each client that asked to be flushed*/
+
+	protected void processFlushes(){
+		Client client;
+		while((client = this.flushes.poll()) != null){
+			SelectionKey key = client.getSocket().getChannel().keyFor(this.selector);
+			if(key == null || !key.isValid()){
+				continue;
+			}
+			try{
+				this.write(key, (Connection) key.attachment());
+			}
+			catch(CancelledKeyException cke){
+				//Client was disconnected since the key was checked
+			}
+			catch(IOException e){
+				this.close(key, client, e);
+			}
+			catch(RuntimeException e){
+				this.close(key, client, e);
+			}
+		}
+	}
+
+	/*
+	 * Writes queued frames until the queue is empty or the socket buffer is full.
+	 * Frames are taken from the queue in batches, up to the coalescing byte limit,
+	 * and each batch is sent with a gathering write.  Write interest is only kept
+	 * while there is something left to send.
+	 */
+
+	protected void write(final SelectionKey key, final Connection connection) throws IOException{
+		SocketChannel channel = (SocketChannel) key.channel();
+		OutboundQueue outbound = connection.client.outbound;
+		while(true){
+			if(connection.batchStart == connection.batchEnd){
+				connection.batchStart = 0;
+				connection.batchEnd = outbound.drainTo(connection.batchFrames, 0,
+						Client.COALESCE_MAX_BYTES);
+				if(connection.batchEnd == 0){
+					break;
+				}
+				for(int i = 0; i < connection.batchEnd; ++i){
+					connection.batchBuffers[i] = connection.client.wireFrame(
+							connection.batchFrames[i]).asByteBuffer();
+				}
+				connection.client.writeBatches.record(connection.batchEnd);
+			}
+
+			channel.write(connection.batchBuffers, connection.batchStart,
+					connection.batchEnd - connection.batchStart);
+			while(connection.batchStart < connection.batchEnd
+					&& !connection.batchBuffers[connection.batchStart].hasRemaining()){
+				outbound.completed(connection.batchFrames[connection.batchStart]);
+				connection.batchFrames[connection.batchStart] = null;
+				connection.batchBuffers[connection.batchStart] = null;
+				++connection.batchStart;
+			}
+			if(connection.batchStart < connection.batchEnd){
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	/*
+	 * Reads whatever is available into the client's read buffer and dispatches
+	 * every complete frame.
+	 */
+
+	protected void read(final SelectionKey key, final Connection connection) throws IOException{
+		SocketChannel channel = (SocketChannel) key.channel();
+		if(channel.read(connection.client.readBuffer) < 0){
+			throw new IOException("Connection closed by remote client.");
+		}
+		connection.client.processReadBuffer();
+	}
+
+	/*Cancels the key and notifies the client's listeners if it was not disconnected locally*/
+
+	protected void close(final SelectionKey key, final Client client, final Exception cause){
+		key.cancel();
+		if(client.keepRunning){
+			client.dispatchDisconnect(cause);
+		}
+	}
+
+	/*
+	 * Per-connection write state, attached to the connection's SelectionKey
+	 */
+
+	protected static final class Connection{
+		protected final Client client;
+
+		//Batch of frames currently being written, and the views tracking how much
+		//of each is left. Entries from batchStart up to batchEnd are unwritten
+		protected final EncodedFrame[] batchFrames = new EncodedFrame[Client.MAX_BATCH_FRAMES];
+
+		protected final ByteBuffer[] batchBuffers = new ByteBuffer[Client.MAX_BATCH_FRAMES];
+
+		protected int batchStart = 0;
+
+		protected int batchEnd = 0;
+
+		protected Connection(final Client client){
+			this.client = client;
+		}
+	}
+}
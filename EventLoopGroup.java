@@ -0,0 +1,58 @@
+package com.kd.chat;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+
+/*
+ * A small fixed set of EventLoop threads.  Clients are spread across the loops
+ * round-robin, so any number of remote clients is served by the same number
+ * of I/O threads.
+ */
+
+public class EventLoopGroup{
+	//The selector threads
+	protected final EventLoop[] loops;
+
+	//Index of the loop to hand the next client to
+	protected final AtomicInteger nextLoop = new AtomicInteger();
+
+	/*
+	 * Creates and starts the specified number of event loops.
+	 *
+	 * @param threads
+	 * 		the number of selector threads, must be at least 1
+	 */
+
+	public EventLoopGroup(final int threads) throws IOException{
+		this.loops = new EventLoop[threads];
+		for(int i = 0; i < threads; ++i){
+			this.loops[i] = new EventLoop("EventLoop-" + i);
+		}
+		for(EventLoop loop : this.loops){
+			loop.start();
+		}
+	}
+
+	/*
+	 * Assigns the client to one of the loops, which takes over reading from it.
+	 *
+	 * @param client
+	 * 		a connected client that has completed its handshake
+	 */
+
+	public void register(final Client client){
+		int index = (this.nextLoop.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length;
+		this.loops[index].register(client);
+	}
+
+	/*Stops every loop*/
+
+	public void shutdown(){
+		for(EventLoop loop : this.loops){
+			loop.shutdown();
+		}
+	}
+}
@@ -0,0 +1,485 @@
+package com.kd.chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+
+/*
+ * Preallocated ring of inbound events between the client readers that publish
+ * them and a fixed set of consumer threads that handle them.  Publishing a chat
+ * message fills in a slot that already exists, so steady chat traffic is
+ * dispatched without allocating anything.
+ *
+ * Any reader may publish: a publisher claims the next sequence number with a
+ * compare-and-set, fills in that slot and marks it published.  Every consumer
+ * reads every slot in order, in batches of whatever has been published, and
+ * handles only the events of its own share of the clients.  Each client's
+ * events are therefore handled in the order they were published, and different
+ * clients in parallel.  A slot is only reused once every consumer has passed
+ * it; a publisher that finds the ring full waits, and gives up after the
+ * publish timeout so a stuck consumer can't stall a reader forever.
+ *
+ * Idle consumers wait according to the WaitStrategy: busy spinning gives the
+ * lowest latency at the cost of a CPU per consumer, parking uses no CPU when
+ * idle but takes longer to wake.  The time from publishing to handling each
+ * event is recorded, see getLatency().
+ *
+ * Enabled with -Dchat.ring.size=<n>, see ChatClient.
+ */
+
+public class EventRing{
+	//Slots in the ring, rounded up to a power of two, or 0 to dispatch through a
+	//SerialDispatcher instead. Set with -Dchat.ring.size=<n>
+	public static final int DEFAULT_SIZE = Integer.getInteger("chat.ring.size", 0).intValue();
+
+	//How idle consumers wait. Set with -Dchat.ring.waitStrategy=busy_spin|yield|park
+	public static final WaitStrategy DEFAULT_WAIT_STRATEGY = WaitStrategy.valueOf(
+			System.getProperty("chat.ring.waitStrategy", "park").toUpperCase());
+
+	//Longest time a publisher waits for room in a full ring.
+	//Set with -Dchat.ring.publishTimeoutMillis=<ms>
+	public static final long DEFAULT_PUBLISH_TIMEOUT_MILLIS =
+		Long.getLong("chat.ring.publishTimeoutMillis", 1000).longValue();
+
+	//Spins before a yielding or parking wait starts yielding
+	protected static final int SPIN_TRIES = 100;
+
+	//Yields before a parking wait starts parking
+	protected static final int YIELD_TRIES = 100;
+
+	//Longest park, in case a wakeup is missed
+	protected static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/*How an idle consumer waits for events*/
+
+	public enum WaitStrategy{
+		//Spin on the CPU, lowest latency
+		BUSY_SPIN,
+		//Spin briefly, then yield the CPU between checks
+		YIELD,
+		//Spin and yield briefly, then sleep until woken
+		PARK;
+
+		/*
+		 * Waits once.
+		 *
+		 * @param tries
+		 * 		the number of times the caller has already waited
+		 * @return true if the caller may park
+		 */
+
+		protected boolean idle(final int tries){
+			if(this == BUSY_SPIN || tries < SPIN_TRIES){
+				Thread.onSpinWait();
+				return false;
+			}
+			if(this == YIELD || tries < SPIN_TRIES + YIELD_TRIES){
+				Thread.yield();
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/*Handles the events of a consumer's share of the clients*/
+
+	public interface Handler{
+		/*
+		 * Handles one event.  The event is only valid during this call.
+		 *
+		 * @param event
+		 * 		the event
+		 * @param endOfBatch
+		 * 		true if no more events are available right now
+		 */
+
+		public void onEvent(Event event, boolean endOfBatch);
+	}
+
+	/*
+	 * One slot of the ring.  Chat messages fill in the client, sender, timestamp,
+	 * text and author; anything else carries a task to run.
+	 */
+
+	public static final class Event{
+		protected Client client;
+
+		protected Client from;
+
+		protected long timestamp;
+
+		protected String text;
+
+		protected String author;
+
+		protected Runnable task;
+
+		protected long publishNanos;
+
+		/*
+		 * @return the client the event arrived from, which decides its consumer
+		 */
+
+		public Client getClient(){
+			return this.client;
+		}
+
+		/*
+		 * @return the client to show as the sender of a chat message
+		 */
+
+		public Client getFrom(){
+			return this.from;
+		}
+
+		public long getTimestamp(){
+			return this.timestamp;
+		}
+
+		public String getText(){
+			return this.text;
+		}
+
+		/*
+		 * @return the author to relay a chat message from, or null
+		 */
+
+		public String getAuthor(){
+			return this.author;
+		}
+
+		/*
+		 * @return the task to run, or null for a chat message
+		 */
+
+		public Runnable getTask(){
+			return this.task;
+		}
+	}
+
+	protected final Event[] slots;
+
+	protected final int mask;
+
+	//Sequence number of each slot's latest published event, -1 until first used
+	protected final AtomicLongArray published;
+
+	//Highest sequence number claimed by a publisher
+	protected final AtomicLong cursor = new AtomicLong(-1);
+
+	//Lowest consumer sequence last seen by a publisher, so the consumers are
+	//only checked when the ring looks full
+	protected volatile long gatingCache = -1;
+
+	protected final Consumer[] consumers;
+
+	protected final WaitStrategy waitStrategy;
+
+	protected final long publishTimeoutNanos;
+
+	protected final LatencyHistogram latency = new LatencyHistogram();
+
+	protected final BatchSizeHistogram batchSizes = new BatchSizeHistogram();
+
+	protected volatile boolean running = true;
+
+	/*
+	 * Creates a ring with the default wait strategy and publish timeout, and
+	 * starts its consumers.
+	 *
+	 * @param size
+	 * 		the number of slots, rounded up to a power of two
+	 * @param consumers
+	 * 		the number of consumer threads
+	 * @param handler
+	 * 		handles each event
+	 */
+
+	public EventRing(final int size, final int consumers, final Handler handler){
+		this(size, consumers, handler, DEFAULT_WAIT_STRATEGY, DEFAULT_PUBLISH_TIMEOUT_MILLIS);
+	}
+
+	/*
+	 * Creates a ring and starts its consumers.
+	 *
+	 * @param size
+	 * 		the number of slots, rounded up to a power of two
+	 * @param consumers
+	 * 		the number of consumer threads
+	 * @param handler
+	 * 		handles each event
+	 * @param waitStrategy
+	 * 		how idle consumers wait
+	 * @param publishTimeoutMillis
+	 * 		the longest time to wait for room in a full ring
+	 */
+
+	public EventRing(final int size, final int consumers, final Handler handler,
+			final WaitStrategy waitStrategy, final long publishTimeoutMillis){
+		if(size < 2 || consumers < 1){
+			throw new IllegalArgumentException("The ring needs at least 2 slots and a consumer.");
+		}
+		int slotCount = Integer.highestOneBit(size - 1) << 1;
+		this.slots = new Event[slotCount];
+		this.published = new AtomicLongArray(slotCount);
+		for(int i = 0; i < slotCount; ++i){
+			this.slots[i] = new Event();
+			this.published.set(i, -1);
+		}
+		this.mask = slotCount - 1;
+		this.waitStrategy = waitStrategy;
+		this.publishTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(publishTimeoutMillis);
+		this.consumers = new Consumer[consumers];
+		for(int i = 0; i < consumers; ++i){
+			this.consumers[i] = new Consumer(i, handler);
+		}
+		for(Consumer consumer : this.consumers){
+			consumer.start();
+		}
+	}
+
+	/*
+	 * Publishes a chat message.
+	 *
+	 * @param client
+	 * 		the client the message arrived from
+	 * @param from
+	 * 		the client to show as its sender
+	 * @param timestamp
+	 * 		when the message was sent
+	 * @param text
+	 * 		the message text
+	 * @param author
+	 * 		the author to relay the message from, or null
+	 * @return false if the ring stayed full for the publish timeout or is stopped
+	 */
+
+	public boolean publishChat(final Client client, final Client from, final long timestamp,
+			final String text, final String author){
+		long sequence = this.claim();
+		if(sequence < 0){
+			return false;
+		}
+		Event event = this.slots[(int) sequence & this.mask];
+		event.client = client;
+		event.from = from;
+		event.timestamp = timestamp;
+		event.text = text;
+		event.author = author;
+		event.task = null;
+		this.publish(event, sequence);
+		return true;
+	}
+
+	/*
+	 * Publishes a task to run after every earlier event from the client.
+	 *
+	 * @param client
+	 * 		the client the task belongs to
+	 * @param task
+	 * 		the task to run
+	 * @return false if the ring stayed full for the publish timeout or is stopped
+	 */
+
+	public boolean publishTask(final Client client, final Runnable task){
+		long sequence = this.claim();
+		if(sequence < 0){
+			return false;
+		}
+		Event event = this.slots[(int) sequence & this.mask];
+		event.client = client;
+		event.from = client;
+		event.timestamp = 0;
+		event.text = null;
+		event.author = null;
+		event.task = task;
+		this.publish(event, sequence);
+		return true;
+	}
+
+	/*
+	 * Claims the next sequence number, waiting while its slot is still in use.
+	 *
+	 * @return the sequence number, or -1 on timeout or once stopped
+	 */
+
+	protected long claim(){
+		long deadline = 0;
+		int tries = 0;
+		while(this.running){
+			long current = this.cursor.get();
+			long next = current + 1;
+			long wrapPoint = next - this.slots.length;
+			if(wrapPoint > this.gatingCache){
+				long gating = this.minimumSequence();
+				this.gatingCache = gating;
+				if(wrapPoint > gating){
+					long now = System.nanoTime();
+					if(deadline == 0){
+						deadline = now + this.publishTimeoutNanos;
+					}
+					else if(now - deadline > 0){
+						return -1;
+					}
+					//Publishers always back off, since a spinning publisher can keep
+					//the consumer it is waiting for off the CPU
+					if(WaitStrategy.PARK.idle(tries++)){
+						LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(50));
+					}
+					continue;
+				}
+			}
+			if(this.cursor.compareAndSet(current, next)){
+				return next;
+			}
+		}
+		return -1;
+	}
+
+	protected void publish(final Event event, final long sequence){
+		event.publishNanos = System.nanoTime();
+		this.published.set((int) sequence & this.mask, sequence);
+		for(Consumer consumer : this.consumers){
+			if(consumer.parked){
+				LockSupport.unpark(consumer);
+			}
+		}
+	}
+
+	/*
+	 * @return the sequence number every consumer has finished with
+	 */
+
+	protected long minimumSequence(){
+		long minimum = Long.MAX_VALUE;
+		for(Consumer consumer : this.consumers){
+			minimum = Math.min(minimum, consumer.sequence.get());
+		}
+		return minimum;
+	}
+
+	/*
+	 * @return the number of slots in the ring
+	 */
+
+	public int getSize(){
+		return this.slots.length;
+	}
+
+	/*
+	 * @return the events published and not yet handled by every consumer
+	 */
+
+	public long getBacklog(){
+		return Math.max(0, this.cursor.get() - this.minimumSequence());
+	}
+
+	/*
+	 * @return the time from publishing each event to handling it
+	 */
+
+	public LatencyHistogram getLatency(){
+		return this.latency;
+	}
+
+	/*
+	 * @return the number of events each consumer found available at once
+	 */
+
+	public BatchSizeHistogram getBatchSizes(){
+		return this.batchSizes;
+	}
+
+	/*Stops the consumers.  Events not yet handled are abandoned.*/
+
+	public void shutdown(){
+		this.running = false;
+		for(Consumer consumer : this.consumers){
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/*A consumer thread, handling the events of every client whose hash maps to it*/
+
+	protected class Consumer extends Thread{
+		protected final int index;
+
+		protected final Handler handler;
+
+		//Highest sequence number this consumer has finished with
+		protected final AtomicLong sequence = new AtomicLong(-1);
+
+		//Set while parked, so publishers know to wake it
+		protected volatile boolean parked = false;
+
+		protected Consumer(final int index, final Handler handler){
+			super("ring-consumer-" + index);
+			this.index = index;
+			this.handler = handler;
+			this.setDaemon(true);
+		}
+
+		@Override
+		public void run(){
+			Event[] slots = EventRing.this.slots;
+			int consumerCount = EventRing.this.consumers.length;
+			long next = this.sequence.get() + 1;
+			int tries = 0;
+			while(EventRing.this.running){
+				long available = this.highestPublished(next);
+				if(available < next){
+					if(EventRing.this.waitStrategy.idle(tries++)){
+						this.parked = true;
+						//Recheck after announcing the park, so a publish in between
+						//isn't missed
+						if(this.highestPublished(next) < next && EventRing.this.running){
+							LockSupport.parkNanos(this, PARK_NANOS);
+						}
+						this.parked = false;
+					}
+					continue;
+				}
+				tries = 0;
+				if(this.index == 0){
+					EventRing.this.batchSizes.record((int) Math.min(Integer.MAX_VALUE, available - next + 1));
+				}
+				for(long sequence = next; sequence <= available; ++sequence){
+					Event event = slots[(int) sequence & EventRing.this.mask];
+					if(consumerCount > 1
+							&& (event.client.hashCode() & Integer.MAX_VALUE) % consumerCount != this.index){
+						continue;
+					}
+					EventRing.this.latency.record(System.nanoTime() - event.publishNanos);
+					try{
+						this.handler.onEvent(event, sequence == available);
+					}
+					catch(RuntimeException re){
+						System.err.println("Event handler failed: " + re.getMessage());
+						re.printStackTrace(System.err);
+					}
+				}
+				this.sequence.set(available);
+				next = available + 1;
+			}
+		}
+
+		/*
+		 * @return the highest sequence number from next on that has been published
+		 * 		without gaps, or next - 1 if next hasn't been published
+		 */
+
+		protected long highestPublished(final long next){
+			long sequence = next;
+			long limit = next + EventRing.this.slots.length;
+			while(sequence < limit
+					&& EventRing.this.published.get((int) sequence & EventRing.this.mask) == sequence){
+				++sequence;
+			}
+			return sequence - 1;
+		}
+	}
+}
@@ -0,0 +1,480 @@
+package com.kd.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.kd.chat.messaging.AbstractMessage;
+import com.kd.chat.messaging.ClientExchangeMessage;
+import com.kd.chat.messaging.EncodedFrame;
+import com.kd.chat.messaging.GossipIdsMessage;
+import com.kd.chat.messaging.GossipMessage;
+import com.kd.chat.messaging.MessageIds;
+
+
+
+
+/*
+ * Optional overlay that replaces the full mesh for large groups of clients.
+ *
+ * Each client keeps a bounded active view of connected clients instead of
+ * connecting to every client it hears about.  Clients it hears about beyond
+ * that go into a bounded passive view and are dialed when an active client
+ * goes away.  A client whose active view is full turns new clients away with
+ * a list of its own clients to try instead.
+ *
+ * Chat messages are relayed with eager/lazy push.  Every message carries its
+ * ID, see MessageIds.  A client that sees a message for the first time pushes
+ * it to a few randomly chosen clients (the fanout) and sends only the message
+ * ID, as an IHave, to the rest of its active view.  A client that is sent an
+ * IHave for a message that then doesn't arrive by push asks for it with an
+ * IWant.  Messages already in the owner's DedupeCache are dropped, so every
+ * client receives every message once as long as the overlay stays connected.
+ *
+ * Only clients that speak protocol version 2 take part.  Older clients are
+ * treated as leaves: they are pushed every message as a plain chat message, and
+ * their chat messages are relayed into the overlay by the client they are
+ * connected to.  A leaf sends its messages to every client it is connected to,
+ * so each of them gives a leaf's message the same ID, derived from the leaf's
+ * username and the message, see MessageIds#leafOrigin.  Only the first copy is
+ * relayed and the rest are dropped as duplicates, and no leaf is pushed its own
+ * messages back.
+ *
+ * Enabled with -Dchat.overlay.fanout=<n>.
+ */
+
+public class GossipOverlay{
+	//Clients each message is pushed to, 0 for a full mesh. Set with -Dchat.overlay.fanout=<n>
+	public static final int DEFAULT_FANOUT = Integer.getInteger("chat.overlay.fanout", 0).intValue();
+
+	//Clients this client connects to itself. Set with -Dchat.overlay.activeView=<n>
+	public static final int DEFAULT_ACTIVE_VIEW =
+		Integer.getInteger("chat.overlay.activeView", Math.max(4, 2 * DEFAULT_FANOUT)).intValue();
+
+	//Clients remembered for when an active client goes away.
+	//Set with -Dchat.overlay.passiveView=<n>
+	public static final int DEFAULT_PASSIVE_VIEW =
+		Integer.getInteger("chat.overlay.passiveView", 64).intValue();
+
+	//How long to wait for a pushed copy of an announced message before asking for
+	//it. Set with -Dchat.overlay.lazyDelayMillis=<ms>
+	public static final long DEFAULT_LAZY_DELAY_MILLIS =
+		Long.getLong("chat.overlay.lazyDelayMillis", 100).longValue();
+
+	//Recent messages kept to answer IWants. Set with -Dchat.overlay.cacheSize=<n>
+	public static final int DEFAULT_CACHE_SIZE =
+		Integer.getInteger("chat.overlay.cacheSize", 1024).intValue();
+
+	//Messages are not relayed further than this
+	protected static final int MAX_HOPS = 32;
+
+	protected final ChatClient owner;
+
+	protected final PeerRegistry clients;
+
+	protected final int fanout;
+
+	protected final int activeView;
+
+	protected final int passiveView;
+
+	protected final long lazyDelayMillis;
+
+	//IDs of messages already seen, shared with the owner's clients
+	protected final DedupeCache seen;
+
+	//Recently seen messages, as they are relayed, by ID
+	protected final Map<Long, GossipMessage> recent;
+
+	//Announced messages that haven't arrived yet, and who announced them
+	protected final ConcurrentMap<Long, Client> missing = new ConcurrentHashMap<Long, Client>();
+
+	//Clients heard about but not connected to, by listen address
+	protected final Map<InetSocketAddress, ClientExchangeMessage> passive =
+		new LinkedHashMap<InetSocketAddress, ClientExchangeMessage>();
+
+	//Sends IWants for announced messages that didn't arrive in time
+	protected final ScheduledExecutorService timer =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(final Runnable task){
+				Thread thread = new Thread(task, "gossip-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/*
+	 * Creates an overlay with the default settings.
+	 *
+	 * @param owner
+	 * 		the chat client the overlay belongs to
+	 */
+
+	public GossipOverlay(final ChatClient owner){
+		this(owner, DEFAULT_FANOUT, DEFAULT_ACTIVE_VIEW, DEFAULT_PASSIVE_VIEW,
+				DEFAULT_LAZY_DELAY_MILLIS, DEFAULT_CACHE_SIZE);
+	}
+
+	/*
+	 * @param owner
+	 * 		the chat client the overlay belongs to
+	 * @param fanout
+	 * 		the clients each message is pushed to
+	 * @param activeView
+	 * 		the clients to connect to
+	 * @param passiveView
+	 * 		the clients to remember as replacements
+	 * @param lazyDelayMillis
+	 * 		how long to wait for an announced message before asking for it
+	 * @param cacheSize
+	 * 		the recent messages kept to answer requests for them
+	 */
+
+	public GossipOverlay(final ChatClient owner, final int fanout, final int activeView,
+			final int passiveView, final long lazyDelayMillis, final int cacheSize){
+		if(fanout < 1 || activeView < 1){
+			throw new IllegalArgumentException("The fanout and active view must be at least 1.");
+		}
+		this.owner = owner;
+		this.clients = owner.clients;
+		this.fanout = fanout;
+		this.activeView = activeView;
+		this.passiveView = passiveView;
+		this.lazyDelayMillis = lazyDelayMillis;
+		this.seen = owner.dedupe;
+		this.recent = Collections.synchronizedMap(new LinkedHashMap<Long, GossipMessage>(){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Long, GossipMessage> eldest){
+				return this.size() > cacheSize;
+			}
+		});
+	}
+
+	/*
+	 * @return true if the overlay is turned on for this process.  It needs
+	 * 		protocol version 2, since plain chat messages can't be told apart
+	 * 		when relayed
+	 */
+
+	public static boolean isEnabled(){
+		return DEFAULT_FANOUT > 0 && Client.MAX_PROTOCOL_VERSION >= AbstractMessage.PROTOCOL_V2;
+	}
+
+	/*
+	 * Originates a chat message and relays it to the active view.
+	 *
+	 * @param username
+	 * 		the local username
+	 * @param text
+	 * 		the chat text
+	 * @return the message as relayed
+	 */
+
+	public GossipMessage broadcast(final String username, final String text){
+		return this.originate(new GossipMessage(MessageIds.LOCAL_ORIGIN, MessageIds.nextSequence(),
+				0, System.currentTimeMillis(), username, text), null);
+	}
+
+	/*
+	 * Records a chat message from a leaf client as seen, before it is shown and
+	 * injected.
+	 *
+	 * @param username
+	 * 		the username of the leaf
+	 * @param timestamp
+	 * 		when the message was written
+	 * @param text
+	 * 		the chat text
+	 * @return false if the message was seen before, through the overlay or
+	 * 		another client the leaf sent it to
+	 */
+
+	public boolean claim(final String username, final long timestamp, final String text){
+		return this.seen.add(MessageIds.idOf(MessageIds.leafOrigin(username),
+				MessageIds.leafSequence(timestamp, text)));
+	}
+
+	/*
+	 * Relays a chat message from a leaf client into the overlay, under the ID
+	 * every client the leaf sent it to gives it.  Call claim first.
+	 *
+	 * @param leaf
+	 * 		the protocol version 1 client that sent the message
+	 * @param timestamp
+	 * 		when the message was written
+	 * @param username
+	 * 		the username of the leaf
+	 * @param text
+	 * 		the chat text
+	 */
+
+	public void inject(final Client leaf, final long timestamp, final String username,
+			final String text){
+		this.originate(new GossipMessage(MessageIds.leafOrigin(username),
+				MessageIds.leafSequence(timestamp, text), 0, timestamp, username, text), leaf);
+	}
+
+	protected GossipMessage originate(final GossipMessage message, final Client from){
+		this.seen.add(message.getId());
+		this.recent.put(Long.valueOf(message.getId()), message);
+		this.relay(message, from);
+		return message;
+	}
+
+	/*
+	 * Records a message pushed by another client.
+	 *
+	 * @param from
+	 * 		the client that pushed the message
+	 * @param message
+	 * 		the pushed message
+	 * @return the message as it should be relayed, or null if it was seen before
+	 */
+
+	public GossipMessage receive(final Client from, final GossipMessage message){
+		Long id = Long.valueOf(message.getId());
+		if(!this.seen.add(message.getId())){
+			return null;
+		}
+		this.missing.remove(id);
+		GossipMessage next = message.nextHop();
+		this.recent.put(id, next);
+		return next;
+	}
+
+	/*
+	 * Pushes the message to the fanout and announces it to the rest of the active
+	 * view.  Leaves are pushed a plain chat message, except the leaf that wrote it.
+	 *
+	 * @param message
+	 * 		the message as it should be relayed
+	 * @param from
+	 * 		the client the message came from, which is skipped, or null
+	 */
+
+	public void relay(final GossipMessage message, final Client from){
+		if(message.getHops() > MAX_HOPS){
+			return;
+		}
+		List<Client> peers = new ArrayList<Client>();
+		List<Client> leaves = new ArrayList<Client>();
+		for(Client client : this.clients){
+			if(client == from){
+				continue;
+			}
+			if(client.getProtocolVersion() >= AbstractMessage.PROTOCOL_V2){
+				peers.add(client);
+			}
+			else if(MessageIds.leafOrigin(client.getUsername()) != message.getOrigin()){
+				leaves.add(client);
+			}
+		}
+		Collections.shuffle(peers, ThreadLocalRandom.current());
+
+		EncodedFrame push = null;
+		EncodedFrame announce = null;
+		EncodedFrame plain = null;
+		try{
+			for(int i = 0; i < peers.size(); ++i){
+				if(i < this.fanout){
+					if(push == null){
+						push = EncodedFrame.encode(message, AbstractMessage.PROTOCOL_V2);
+					}
+					this.owner.sendOrDrop(peers.get(i), push, "Failed to relay chat message");
+				}
+				else{
+					if(announce == null){
+						announce = EncodedFrame.encode(new GossipIdsMessage(AbstractMessage.TYPE_IHAVE_MESSAGE,
+								new long[]{ message.getId() }), AbstractMessage.PROTOCOL_V2);
+					}
+					this.owner.sendOrDrop(peers.get(i), announce, "Failed to announce chat message");
+				}
+			}
+			for(Client leaf : leaves){
+				if(plain == null){
+					plain = EncodedFrame.encode(message.toChatMessage(), AbstractMessage.PROTOCOL_V1);
+				}
+				this.owner.sendOrDrop(leaf, plain, "Failed to relay chat message");
+			}
+		}
+		catch(IOException e){
+			System.err.println("Unable to encode " + message + ": " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Handles an IHave or IWant.  Messages announced by an IHave that don't arrive
+	 * within the lazy delay are asked for; messages asked for by an IWant are sent
+	 * if they are still cached.  An IWant must not be handled on the sender's
+	 * reader, since answering it may wait for room in the sender's queue.
+	 *
+	 * @param from
+	 * 		the client that sent the list
+	 * @param message
+	 * 		the IHave or IWant
+	 */
+
+	public void receiveIds(final Client from, final GossipIdsMessage message){
+		long[] ids = message.getIds();
+		if(message.getType() == AbstractMessage.TYPE_IWANT_MESSAGE){
+			for(int i = 0; i < ids.length; ++i){
+				GossipMessage wanted = this.recent.get(Long.valueOf(ids[i]));
+				if(wanted == null){
+					continue;
+				}
+				try{
+					this.owner.sendOrDrop(from, EncodedFrame.encode(wanted, AbstractMessage.PROTOCOL_V2),
+							"Failed to send requested chat message");
+				}
+				catch(IOException e){
+					System.err.println("Unable to encode " + wanted + ": " + e.getMessage());
+				}
+			}
+			return;
+		}
+
+		final List<Long> announced = new ArrayList<Long>();
+		for(int i = 0; i < ids.length; ++i){
+			Long id = Long.valueOf(ids[i]);
+			if(!this.seen.contains(id.longValue()) && this.missing.putIfAbsent(id, from) == null){
+				announced.add(id);
+			}
+		}
+		if(announced.isEmpty()){
+			return;
+		}
+		this.timer.schedule(new Runnable(){
+			@Override
+			public void run(){
+				GossipOverlay.this.requestMissing(from, announced);
+			}
+		}, this.lazyDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/*Asks the announcing client for the announced messages that still haven't arrived*/
+
+	protected void requestMissing(final Client from, final List<Long> announced){
+		long[] wanted = new long[announced.size()];
+		int count = 0;
+		for(Long id : announced){
+			//Drop the entry either way, so a later IHave can ask someone else
+			if(this.missing.remove(id, from) && !this.seen.contains(id.longValue())){
+				wanted[count++] = id.longValue();
+			}
+		}
+		if(count == 0 || !this.clients.contains(from)){
+			return;
+		}
+		long[] ids = new long[count];
+		System.arraycopy(wanted, 0, ids, 0, count);
+		try{
+			this.owner.sendOrDrop(from, EncodedFrame.encode(new GossipIdsMessage(
+					AbstractMessage.TYPE_IWANT_MESSAGE, ids), AbstractMessage.PROTOCOL_V2),
+					"Failed to request chat messages");
+		}
+		catch(IOException e){
+			System.err.println("Unable to encode message request: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Picks which of the clients to dial so the active view isn't exceeded.  The
+	 * rest are remembered in the passive view.
+	 *
+	 * @param targets
+	 * 		clients heard about
+	 * @return the clients to dial now
+	 */
+
+	public List<ClientExchangeMessage> selectDials(final Collection<ClientExchangeMessage> targets){
+		List<ClientExchangeMessage> shuffled = new ArrayList<ClientExchangeMessage>(targets);
+		Collections.shuffle(shuffled, ThreadLocalRandom.current());
+		int room = Math.max(0, this.activeView - this.clients.size());
+		if(room >= shuffled.size()){
+			return shuffled;
+		}
+		synchronized(this.passive){
+			for(ClientExchangeMessage extra : shuffled.subList(room, shuffled.size())){
+				try{
+					this.passive.put(new InetSocketAddress(extra.getInetAddress(), extra.getPort()), extra);
+				}
+				catch(IOException e){
+					continue;
+				}
+				if(this.passive.size() > this.passiveView){
+					Iterator<ClientExchangeMessage> oldest = this.passive.values().iterator();
+					oldest.next();
+					oldest.remove();
+				}
+			}
+		}
+		return shuffled.subList(0, room);
+	}
+
+	/*Dials clients from the passive view until the active view is full again*/
+
+	public void refill(){
+		List<ClientExchangeMessage> replacements = new ArrayList<ClientExchangeMessage>();
+		synchronized(this.passive){
+			Iterator<Map.Entry<InetSocketAddress, ClientExchangeMessage>> entryIter =
+				this.passive.entrySet().iterator();
+			int room = this.activeView - this.clients.size();
+			while(replacements.size() < room && entryIter.hasNext()){
+				Map.Entry<InetSocketAddress, ClientExchangeMessage> entry = entryIter.next();
+				entryIter.remove();
+				if(this.clients.get(entry.getKey()) == null){
+					replacements.add(entry.getValue());
+				}
+			}
+		}
+		for(ClientExchangeMessage replacement : replacements){
+			this.owner.connectClient(replacement.getIpAddress(), replacement.getPort(),
+					replacement.getUsername());
+		}
+	}
+
+	/*
+	 * @return true if another client may connect to this one.  Clients are let in
+	 * 		up to twice the active view, so that clients that dial this one can join
+	 */
+
+	public boolean hasRoom(){
+		return this.clients.size() < 2 * this.activeView;
+	}
+
+	public int getFanout(){
+		return this.fanout;
+	}
+
+	public int getActiveView(){
+		return this.activeView;
+	}
+
+	public int getPassiveSize(){
+		synchronized(this.passive){
+			return this.passive.size();
+		}
+	}
+
+	/*Stops the request timer*/
+
+	public void shutdown(){
+		this.timer.shutdownNow();
+	}
+}
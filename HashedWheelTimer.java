@@ -0,0 +1,215 @@
+package com.kd.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+
+/*
+ * Single-threaded hashed timer wheel.  Scheduling and cancelling are O(1) and
+ * lock-free, so one timer can drive per-connection timeouts for tens of
+ * thousands of clients.
+ *
+ * The wheel is a ring of slots, each covering one tick.  A timeout goes into
+ * the slot its deadline falls in, with the number of full turns of the wheel
+ * left before it is due.  Every tick the timer thread walks a single slot and
+ * runs the timeouts that are due.  Timeouts only fire on tick boundaries, so
+ * they can be up to one tick late.
+ *
+ * Tasks run on the timer thread and must be short; hand anything slow to an
+ * executor.
+ */
+
+public class HashedWheelTimer extends Thread{
+	protected final long tickNanos;
+
+	protected final Slot[] wheel;
+
+	protected final int mask;
+
+	//Timeouts scheduled since the last tick, moved into the wheel by the timer thread
+	protected final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+	protected final AtomicInteger pending = new AtomicInteger();
+
+	protected final long startNanos = System.nanoTime();
+
+	protected volatile boolean keepRunning = true;
+
+	/*
+	 * Creates and starts a timer.
+	 *
+	 * @param name
+	 * 		the timer thread's name
+	 * @param tickMillis
+	 * 		the length of a tick
+	 * @param slots
+	 * 		the number of slots in the wheel, rounded up to a power of two
+	 */
+
+	public HashedWheelTimer(final String name, final long tickMillis, final int slots){
+		super(name);
+		if(tickMillis < 1 || slots < 1){
+			throw new IllegalArgumentException("The tick and wheel size must be positive.");
+		}
+		int size = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.wheel = new Slot[size];
+		for(int i = 0; i < size; ++i){
+			this.wheel[i] = new Slot();
+		}
+		this.mask = size - 1;
+		this.setDaemon(true);
+		this.start();
+	}
+
+	/*
+	 * Schedules the task to run once after the delay.
+	 *
+	 * @param task
+	 * 		the task, run on the timer thread
+	 * @param delay
+	 * 		how long to wait
+	 * @param unit
+	 * 		the unit of the delay
+	 * @return the timeout, which can be cancelled
+	 */
+
+	public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit){
+		Timeout timeout = new Timeout(task, System.nanoTime() - this.startNanos
+				+ Math.max(0, unit.toNanos(delay)));
+		this.pending.incrementAndGet();
+		this.added.add(timeout);
+		return timeout;
+	}
+
+	@Override
+	public void run(){
+		long tick = 0;
+		while(this.keepRunning){
+			long deadline = (tick + 1) * this.tickNanos;
+			long sleep;
+			while((sleep = deadline - (System.nanoTime() - this.startNanos)) > 0 && this.keepRunning){
+				LockSupport.parkNanos(this, sleep);
+			}
+			this.transferAdded(tick);
+			this.expire(this.wheel[(int) (tick & this.mask)]);
+			++tick;
+		}
+	}
+
+	/*Puts newly scheduled timeouts in their slots*/
+
+	protected void transferAdded(final long tick){
+		Timeout timeout;
+		while((timeout = this.added.poll()) != null){
+			if(timeout.cancelled){
+				this.pending.decrementAndGet();
+				continue;
+			}
+			long due = timeout.deadline / this.tickNanos;
+			//Anything already overdue runs on this tick
+			long dueTick = Math.max(due, tick);
+			timeout.remainingRounds = (dueTick - tick) / this.wheel.length;
+			this.wheel[(int) (dueTick & this.mask)].add(timeout);
+		}
+	}
+
+	/*Runs the due timeouts in the slot and drops cancelled ones*/
+
+	protected void expire(final Slot slot){
+		Timeout previous = null;
+		Timeout timeout = slot.head;
+		while(timeout != null){
+			Timeout next = timeout.next;
+			boolean remove = timeout.cancelled;
+			if(!remove && timeout.remainingRounds <= 0){
+				remove = true;
+				try{
+					timeout.task.run();
+				}
+				catch(RuntimeException re){
+					System.err.println("Timer task failed: " + re.getMessage());
+					re.printStackTrace(System.err);
+				}
+			}
+			else if(!remove){
+				--timeout.remainingRounds;
+			}
+			if(remove){
+				if(previous == null){
+					slot.head = next;
+				}
+				else{
+					previous.next = next;
+				}
+				timeout.next = null;
+				this.pending.decrementAndGet();
+			}
+			else{
+				previous = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	/*
+	 * @return the number of scheduled timeouts that haven't run or been dropped
+	 */
+
+	public int getPending(){
+		return this.pending.get();
+	}
+
+	/*Stops the timer.  Timeouts that haven't run are abandoned.*/
+
+	public void shutdown(){
+		this.keepRunning = false;
+		LockSupport.unpark(this);
+	}
+
+	/*A singly-linked list of timeouts, only touched by the timer thread*/
+
+	protected static final class Slot{
+		protected Timeout head;
+
+		protected void add(final Timeout timeout){
+			timeout.next = this.head;
+			this.head = timeout;
+		}
+	}
+
+	/*A scheduled task*/
+
+	public static final class Timeout{
+		protected final Runnable task;
+
+		//Nanoseconds after the timer started
+		protected final long deadline;
+
+		protected long remainingRounds;
+
+		protected Timeout next;
+
+		protected volatile boolean cancelled;
+
+		protected Timeout(final Runnable task, final long deadline){
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/*Stops the task from running, if it hasn't already*/
+
+		public void cancel(){
+			this.cancelled = true;
+		}
+
+		public boolean isCancelled(){
+			return this.cancelled;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package com.kd.chat;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+
+
+/*
+ * Keeps every connected client's link alive and notices links that have died
+ * without the socket being closed.
+ *
+ * Every client has one timeout on a shared HashedWheelTimer, so a single
+ * thread watches all of them.  When it fires, a heartbeat is sent only if
+ * nothing has been queued for the client for a whole interval; links that are
+ * carrying chat need no extra traffic.  A client that has sent nothing for the
+ * idle timeout is disconnected.  Only clients that send heartbeats themselves
+ * are judged this way, since older clients may be silent for any length of
+ * time; a dead link to one of those is found when a heartbeat write fails.
+ *
+ * Heartbeats are pings in protocol version 2, and each pong updates the
+ * client's round trip time, see Client#getSmoothedRttNanos().  Protocol
+ * version 1 clients are sent keep-alives.
+ *
+ * Set the interval with -Dchat.heartbeat.intervalMillis=<ms>, 0 to disable,
+ * and the idle timeout with -Dchat.heartbeat.idleTimeoutMillis=<ms>.
+ */
+
+public class HeartbeatMonitor{
+	//Longest time a link goes without outbound traffic.
+	//Set with -Dchat.heartbeat.intervalMillis=<ms>, 0 to send no heartbeats
+	public static final long DEFAULT_INTERVAL_MILLIS =
+		Long.getLong("chat.heartbeat.intervalMillis", 5000).longValue();
+
+	//Longest time a client that sends heartbeats may be silent before it is
+	//disconnected. Set with -Dchat.heartbeat.idleTimeoutMillis=<ms>
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS =
+		Long.getLong("chat.heartbeat.idleTimeoutMillis", 3 * DEFAULT_INTERVAL_MILLIS).longValue();
+
+	//Longest timer tick, which is how late a heartbeat can be.  Shorter intervals
+	//get shorter ticks
+	protected static final long MAX_TICK_MILLIS = 100;
+
+	//Slots in the timer wheel, enough that the default interval fits in one turn
+	protected static final int WHEEL_SLOTS = 512;
+
+	protected final ChatClient owner;
+
+	protected final long intervalNanos;
+
+	protected final long idleTimeoutNanos;
+
+	protected final long tickNanos;
+
+	protected final HashedWheelTimer timer;
+
+	/*
+	 * Creates a monitor with the default interval and idle timeout.
+	 *
+	 * @param owner
+	 * 		the chat client whose clients are watched
+	 */
+
+	public HeartbeatMonitor(final ChatClient owner){
+		this(owner, DEFAULT_INTERVAL_MILLIS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+	}
+
+	/*
+	 * @param owner
+	 * 		the chat client whose clients are watched
+	 * @param intervalMillis
+	 * 		the longest time a link goes without outbound traffic
+	 * @param idleTimeoutMillis
+	 * 		the longest time a client may be silent, 0 to never disconnect idle
+	 * 		clients.  Raised to at least twice the interval
+	 */
+
+	public HeartbeatMonitor(final ChatClient owner, final long intervalMillis,
+			final long idleTimeoutMillis){
+		if(intervalMillis < 1){
+			throw new IllegalArgumentException("The heartbeat interval must be positive.");
+		}
+		long tickMillis = Math.max(1, Math.min(MAX_TICK_MILLIS, intervalMillis / 8));
+		this.owner = owner;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		//The remote client's heartbeats can each be up to a tick late, so leave room
+		//for at least one of them to arrive
+		this.idleTimeoutNanos = idleTimeoutMillis <= 0 ? 0 : Math.max(
+				TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis), 2 * (this.intervalNanos + this.tickNanos));
+		this.timer = new HashedWheelTimer("heartbeat-timer", tickMillis, WHEEL_SLOTS);
+	}
+
+	/*
+	 * @return true if heartbeats are enabled
+	 */
+
+	public static boolean isEnabled(){
+		return DEFAULT_INTERVAL_MILLIS > 0;
+	}
+
+	/*
+	 * Starts watching a newly registered client.  It stops being watched once it
+	 * is no longer one of the owner's clients.
+	 *
+	 * @param client
+	 * 		the client to watch
+	 */
+
+	public void watch(final Client client){
+		//Spread the first checks out so clients that connect together don't all
+		//send heartbeats on the same tick
+		this.schedule(client, ThreadLocalRandom.current().nextLong(this.intervalNanos) + 1);
+	}
+
+	protected void schedule(final Client client, final long delayNanos){
+		this.timer.schedule(new Runnable(){
+			@Override
+			public void run(){
+				HeartbeatMonitor.this.check(client);
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/*
+	 * Disconnects the client if it has been silent too long, sends it a heartbeat
+	 * if nothing has been queued for it for an interval, then schedules the next
+	 * check.  Runs on the timer thread.
+	 */
+
+	protected void check(final Client client){
+		if(!this.owner.clients.contains(client)){
+			return;
+		}
+		long now = System.nanoTime();
+		long readIdle = now - client.getLastReadNanos();
+		if(this.idleTimeoutNanos > 0 && client.sendsHeartbeats() && readIdle >= this.idleTimeoutNanos){
+			this.evict(client, "No data for " + TimeUnit.NANOSECONDS.toMillis(readIdle) + "ms");
+			return;
+		}
+
+		long writeIdle = now - client.getLastWriteNanos();
+		//A heartbeat behind queued frames would be late anyway, and an empty queue
+		//never blocks the timer thread
+		if(writeIdle >= this.intervalNanos && client.getOutboundQueue().isEmpty()){
+			try{
+				client.sendHeartbeat();
+				writeIdle = 0;
+			}
+			catch(IOException ioe){
+				this.evict(client, "Failed to send heartbeat/" + ioe.getMessage());
+				return;
+			}
+		}
+
+		long next = this.intervalNanos - writeIdle;
+		if(this.idleTimeoutNanos > 0 && client.sendsHeartbeats()){
+			next = Math.min(next, this.idleTimeoutNanos - readIdle);
+		}
+		this.schedule(client, Math.max(next, this.tickNanos));
+	}
+
+	/*Disconnects the client on a worker, off the timer thread*/
+
+	protected void evict(final Client client, final String reason){
+		try{
+			this.owner.workers.execute(new Runnable(){
+				@Override
+				public void run(){
+					HeartbeatMonitor.this.owner.dropClient(client, reason);
+				}
+			});
+		}
+		catch(RejectedExecutionException ree){
+			//Shutting down
+		}
+	}
+
+	/*
+	 * @return the number of clients with a check scheduled
+	 */
+
+	public int getWatched(){
+		return this.timer.getPending();
+	}
+
+	/*Stops the timer*/
+
+	public void shutdown(){
+		this.timer.shutdown();
+	}
+}
@@ -0,0 +1,718 @@
+package com.kd.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kd.chat.messaging.ChatMessage;
+import com.kd.chat.messaging.CompactCodec;
+
+
+
+
+/*
+ * Durable history of chat messages, kept as append-only segment files written
+ * through memory maps.
+ *
+ * append() only queues the message.  The log's own thread takes whatever has
+ * queued up, writes it to the current segment and forces the segment to disk
+ * once for the whole group, so appending never waits on the disk and the cost
+ * of a force is shared by every message in the group.  If the disk can't keep
+ * up, messages beyond the backlog limit are dropped and counted.
+ *
+ * Every record carries the time it was written to the log, which never goes
+ * backwards, so a log is ordered by that time.  Each segment keeps a sparse
+ * index of the time at roughly every INDEX_BYTES, so reading the messages
+ * since a time is a binary search for the segment and the index entry, then a
+ * sequential scan.  Segments are rolled when full or too old.
+ *
+ * So the log doesn't grow forever, the oldest segments are deleted once there
+ * are more than the segment limit, or once their last record is older than
+ * the retention limit.  The segment being written is always kept.  A cursor
+ * reading a deleted segment carries on from the oldest segment kept; the
+ * mapping itself is released once no cursor holds it.
+ *
+ * Record layout: int length of the rest of the record, long log time, long
+ * origin, long sequence, long timestamp, int username length, UTF-8 username,
+ * UTF-8 message.  A length of 0 ends the segment's records.
+ *
+ * Enable with -Dchat.history.dir=<directory>; the roll limits are set with
+ * -Dchat.history.segmentBytes=<n> and -Dchat.history.segmentMillis=<ms>, and
+ * the backlog limit with -Dchat.history.maxBacklog=<n>, and the retention
+ * limits with -Dchat.history.maxSegments=<n> and
+ * -Dchat.history.retentionMillis=<ms>, 0 for none.
+ */
+
+public class HistoryLog extends Thread{
+	//Directory logs are kept in, or null to keep no history.
+	//Set with -Dchat.history.dir=<directory>
+	public static final String DEFAULT_DIR = System.getProperty("chat.history.dir");
+
+	//Largest segment. Set with -Dchat.history.segmentBytes=<n>
+	public static final int DEFAULT_SEGMENT_BYTES =
+		Integer.getInteger("chat.history.segmentBytes", 64 * 1024 * 1024).intValue();
+
+	//Age at which a segment is rolled. Set with -Dchat.history.segmentMillis=<ms>
+	public static final long DEFAULT_SEGMENT_MILLIS =
+		Long.getLong("chat.history.segmentMillis", TimeUnit.HOURS.toMillis(1)).longValue();
+
+	//Most messages waiting to be written. Set with -Dchat.history.maxBacklog=<n>
+	public static final int DEFAULT_MAX_BACKLOG =
+		Integer.getInteger("chat.history.maxBacklog", 64 * 1024).intValue();
+
+	//Most segments kept, 0 for no limit. Set with -Dchat.history.maxSegments=<n>
+	public static final int DEFAULT_MAX_SEGMENTS =
+		Integer.getInteger("chat.history.maxSegments", 168).intValue();
+
+	//Age of the last record at which a segment is deleted, 0 for no limit.
+	//Set with -Dchat.history.retentionMillis=<ms>
+	public static final long DEFAULT_RETENTION_MILLIS =
+		Long.getLong("chat.history.retentionMillis", TimeUnit.DAYS.toMillis(7)).longValue();
+
+	//Bytes between entries in a segment's sparse index
+	protected static final int INDEX_BYTES = 4 * 1024;
+
+	//Bytes in a record before the username and message
+	protected static final int HEADER_BYTES = 4 + 8 + 8 + 8 + 8 + 4;
+
+	//Most messages written between forces
+	protected static final int MAX_GROUP = 4096;
+
+	protected static final String SUFFIX = ".log";
+
+	protected static final Segment[] NO_SEGMENTS = new Segment[0];
+
+	protected final File directory;
+
+	protected final int segmentBytes;
+
+	protected final long segmentMillis;
+
+	protected final int maxSegments;
+
+	protected final long retentionMillis;
+
+	protected final BlockingQueue<ChatMessage> queue;
+
+	//Oldest first.  Only the last one is written to, and only the log's thread
+	//adds or removes them
+	protected final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+
+	protected volatile boolean keepRunning = true;
+
+	//Log time of the last record written, only touched by the log's thread
+	protected long lastLogTime = 0;
+
+	protected final AtomicLong dropped = new AtomicLong();
+
+	protected volatile long appended = 0;
+
+	protected volatile long groups = 0;
+
+	protected volatile long deletedSegments = 0;
+
+	/*
+	 * Opens the log in the directory with the default limits and starts its
+	 * thread.
+	 *
+	 * @param directory
+	 * 		the directory to keep segments in, created if needed
+	 */
+
+	public HistoryLog(final File directory) throws IOException{
+		this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_SEGMENT_MILLIS, DEFAULT_MAX_BACKLOG,
+				DEFAULT_MAX_SEGMENTS, DEFAULT_RETENTION_MILLIS);
+	}
+
+	/*
+	 * Opens the log in the directory, reading the index of every segment already
+	 * in it, and starts its thread.  New records always go to a new segment.
+	 *
+	 * @param directory
+	 * 		the directory to keep segments in, created if needed
+	 * @param segmentBytes
+	 * 		the largest segment, unless a single record is larger
+	 * @param segmentMillis
+	 * 		the age at which a segment is rolled
+	 * @param maxBacklog
+	 * 		the most messages waiting to be written
+	 * @param maxSegments
+	 * 		the most segments kept, or 0 for no limit
+	 * @param retentionMillis
+	 * 		the age of its last record at which a segment is deleted, or 0 for
+	 * 		no limit
+	 */
+
+	public HistoryLog(final File directory, final int segmentBytes, final long segmentMillis,
+			final int maxBacklog, final int maxSegments, final long retentionMillis) throws IOException{
+		super("history-log");
+		if(segmentBytes < HEADER_BYTES || segmentMillis < 1 || maxBacklog < 1){
+			throw new IllegalArgumentException("The segment limits and backlog must be positive.");
+		}
+		if(maxSegments < 0 || retentionMillis < 0){
+			throw new IllegalArgumentException("The retention limits must not be negative.");
+		}
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Unable to create history directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.segmentMillis = segmentMillis;
+		this.maxSegments = maxSegments;
+		this.retentionMillis = retentionMillis;
+		this.queue = new LinkedBlockingQueue<ChatMessage>(maxBacklog);
+
+		File[] files = directory.listFiles();
+		List<String> names = new ArrayList<String>();
+		for(File file : files == null ? new File[0] : files){
+			if(file.getName().endsWith(SUFFIX)){
+				names.add(file.getName());
+			}
+		}
+		//Names are zero-padded numbers, so they sort oldest first
+		String[] sorted = names.toArray(new String[names.size()]);
+		Arrays.sort(sorted);
+		for(String name : sorted){
+			Segment segment = Segment.recover(new File(directory, name));
+			//An empty segment is reused by the next one created
+			if(segment != null){
+				this.segments.add(segment);
+				this.lastLogTime = Math.max(this.lastLogTime, segment.lastLogTime);
+			}
+		}
+		this.retain(System.currentTimeMillis());
+
+		this.setDaemon(true);
+		this.start();
+	}
+
+	/*
+	 * Queues a message to be written.  Never blocks.
+	 *
+	 * @param message
+	 * 		the message to keep
+	 * @return false if the backlog is full or the log is shut down, in which
+	 * 		case the message is dropped
+	 */
+
+	public boolean append(final ChatMessage message){
+		if(this.keepRunning && this.queue.offer(message)){
+			return true;
+		}
+		this.dropped.incrementAndGet();
+		return false;
+	}
+
+	@Override
+	public void run(){
+		List<ChatMessage> group = new ArrayList<ChatMessage>(MAX_GROUP);
+		while(this.keepRunning || !this.queue.isEmpty()){
+			try{
+				ChatMessage first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null){
+					continue;
+				}
+				group.add(first);
+			}
+			catch(InterruptedException ie){
+				//Shutting down; write what is left
+				continue;
+			}
+			this.queue.drainTo(group, MAX_GROUP - 1);
+			try{
+				Segment written = null;
+				for(ChatMessage message : group){
+					written = this.write(message);
+				}
+				written.force();
+				this.appended += group.size();
+				++this.groups;
+			}
+			catch(IOException ioe){
+				System.err.println("Unable to write chat history: " + ioe.getMessage());
+				this.dropped.addAndGet(group.size());
+			}
+			finally{
+				group.clear();
+			}
+		}
+		for(Segment segment : this.segments){
+			segment.force();
+		}
+	}
+
+	/*Writes one record, rolling the segment first if needed*/
+
+	protected Segment write(final ChatMessage message) throws IOException{
+		byte[] username = message.getUsername().getBytes(CompactCodec.UTF8);
+		byte[] text = message.getMessage().getBytes(CompactCodec.UTF8);
+		int size = HEADER_BYTES + username.length + text.length;
+		long now = Math.max(this.lastLogTime, System.currentTimeMillis());
+
+		Segment segment = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+		if(segment == null || !segment.writable || segment.capacity - segment.end < size + 4
+				|| now - segment.created >= this.segmentMillis){
+			if(segment != null && segment.writable){
+				segment.close();
+			}
+			segment = this.newSegment(Math.max(this.segmentBytes, size + 4), now);
+		}
+
+		ByteBuffer buffer = segment.buffer;
+		int start = segment.end;
+		buffer.putLong(start + 4, now);
+		buffer.putLong(start + 12, message.getOrigin());
+		buffer.putLong(start + 20, message.getSequence());
+		buffer.putLong(start + 28, message.getTimestamp());
+		buffer.putInt(start + 36, username.length);
+		buffer.position(start + HEADER_BYTES);
+		buffer.put(username);
+		buffer.put(text);
+		//Length last, so a record is never seen half written
+		buffer.putInt(start, size - 4);
+		segment.appended(start, size, now);
+		this.lastLogTime = now;
+		return segment;
+	}
+
+	protected Segment newSegment(final int capacity, final long now) throws IOException{
+		long number = 0;
+		if(!this.segments.isEmpty()){
+			number = this.segments.get(this.segments.size() - 1).number + 1;
+		}
+		Segment segment = Segment.create(new File(this.directory,
+				String.format("%016d", Long.valueOf(number)) + SUFFIX), number, capacity, now);
+		this.segments.add(segment);
+		this.retain(now);
+		return segment;
+	}
+
+	/*Deletes the oldest segments while beyond the retention limits, always keeping the newest*/
+
+	protected void retain(final long now){
+		while(this.segments.size() > 1){
+			Segment oldest = this.segments.get(0);
+			boolean tooMany = this.maxSegments > 0 && this.segments.size() > this.maxSegments;
+			boolean tooOld = this.retentionMillis > 0 && now - oldest.lastLogTime > this.retentionMillis;
+			if(!tooMany && !tooOld){
+				return;
+			}
+			this.segments.remove(0);
+			oldest.close();
+			//The mapping stays valid for any cursor still reading it
+			if(!oldest.file.delete()){
+				System.err.println("Unable to delete old chat history " + oldest.file);
+			}
+			++this.deletedSegments;
+		}
+	}
+
+	/*
+	 * @return the index of the first segment numbered at or after the number,
+	 * 		or the size of the list if there is none
+	 */
+
+	protected static int indexOf(final Segment[] segments, final long number){
+		int low = 0;
+		int high = segments.length;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(segments[mid].number < number){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * Opens a cursor over the records written at or after the time.  The cursor
+	 * reads records as they are written, so it can be called again after
+	 * running out to pick up newer ones.
+	 *
+	 * @param sinceMillis
+	 * 		the earliest log time wanted
+	 * @return a cursor positioned before the first such record
+	 */
+
+	public Cursor since(final long sinceMillis){
+		Segment[] snapshot = this.segments.toArray(NO_SEGMENTS);
+		int first = 0;
+		//Every record before the last segment started before the time is older
+		//than the time
+		int low = 0;
+		int high = snapshot.length - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			if(snapshot[mid].created < sinceMillis){
+				first = mid;
+				low = mid + 1;
+			}
+			else{
+				high = mid - 1;
+			}
+		}
+		return new Cursor(snapshot.length == 0 ? 0 : snapshot[first].number, sinceMillis);
+	}
+
+	/*
+	 * @return the number of messages written
+	 */
+
+	public long getAppended(){
+		return this.appended;
+	}
+
+	/*
+	 * @return the number of messages dropped because the backlog was full or
+	 * 		they couldn't be written
+	 */
+
+	public long getDropped(){
+		return this.dropped.get();
+	}
+
+	/*
+	 * @return the number of messages waiting to be written
+	 */
+
+	public int getBacklog(){
+		return this.queue.size();
+	}
+
+	/*
+	 * @return the number of forces, each covering a group of messages
+	 */
+
+	public long getGroups(){
+		return this.groups;
+	}
+
+	public int getSegmentCount(){
+		return this.segments.size();
+	}
+
+	/*
+	 * @return the number of segments deleted by the retention limits
+	 */
+
+	public long getDeletedSegments(){
+		return this.deletedSegments;
+	}
+
+	/*
+	 * Stops taking messages, writes the ones already queued and forces every
+	 * segment, waiting up to the timeout for it to finish.
+	 */
+
+	public void shutdown(final long timeoutMillis){
+		this.keepRunning = false;
+		this.interrupt();
+		try{
+			this.join(timeoutMillis);
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Reads records in log order.  Not thread-safe; each reader opens its own.
+	 */
+
+	public class Cursor{
+		//Number of the segment to read, or of the one being read
+		protected long segment;
+
+		//The segment being read, or null to look it up by number
+		protected Segment current;
+
+		protected ByteBuffer buffer;
+
+		protected int position = -1;
+
+		protected final long sinceMillis;
+
+		//The current record
+		protected long logTime;
+
+		protected long origin;
+
+		protected long sequence;
+
+		protected long timestamp;
+
+		protected int usernameStart;
+
+		protected int usernameLength;
+
+		protected int messageLength;
+
+		protected Cursor(final long segment, final long sinceMillis){
+			this.segment = segment;
+			this.sinceMillis = sinceMillis;
+		}
+
+		/*
+		 * Moves to the next record.
+		 *
+		 * @return false if there are no more records yet
+		 */
+
+		public boolean next(){
+			while(true){
+				Segment current = this.current;
+				if(current == null){
+					Segment[] snapshot = HistoryLog.this.segments.toArray(NO_SEGMENTS);
+					int index = indexOf(snapshot, this.segment);
+					if(index == snapshot.length){
+						return false;
+					}
+					//Later than wanted if the wanted segment was deleted
+					current = snapshot[index];
+					this.current = current;
+					this.segment = current.number;
+					this.buffer = current.buffer.duplicate();
+					this.position = current.seek(this.sinceMillis);
+				}
+				int end = current.end;
+				while(this.position < end){
+					int start = this.position;
+					int length = this.buffer.getInt(start);
+					this.position = start + 4 + length;
+					this.logTime = this.buffer.getLong(start + 4);
+					if(this.logTime < this.sinceMillis){
+						continue;
+					}
+					this.origin = this.buffer.getLong(start + 12);
+					this.sequence = this.buffer.getLong(start + 20);
+					this.timestamp = this.buffer.getLong(start + 28);
+					this.usernameLength = this.buffer.getInt(start + 36);
+					this.usernameStart = start + HEADER_BYTES;
+					this.messageLength = length + 4 - HEADER_BYTES - this.usernameLength;
+					return true;
+				}
+				//Wait for more in the segment being written, unless a newer one has started
+				Segment[] snapshot = HistoryLog.this.segments.toArray(NO_SEGMENTS);
+				int index = indexOf(snapshot, current.number + 1);
+				if(index == snapshot.length){
+					return false;
+				}
+				//Records written before the roll
+				if(this.position < current.end){
+					continue;
+				}
+				this.segment = snapshot[index].number;
+				this.current = null;
+			}
+		}
+
+		/*
+		 * @return when the current record was written to the log
+		 */
+
+		public long getLogTime(){
+			return this.logTime;
+		}
+
+		public long getOrigin(){
+			return this.origin;
+		}
+
+		public long getSequence(){
+			return this.sequence;
+		}
+
+		public long getTimestamp(){
+			return this.timestamp;
+		}
+
+		public String getUsername(){
+			return this.decode(this.usernameStart, this.usernameLength);
+		}
+
+		public String getMessage(){
+			return this.decode(this.usernameStart + this.usernameLength, this.messageLength);
+		}
+
+		/*
+		 * @return the current record as a new ChatMessage
+		 */
+
+		public ChatMessage toChatMessage() throws IOException{
+			return new ChatMessage(this.origin, this.sequence, this.timestamp,
+					this.getUsername(), this.getMessage());
+		}
+
+		protected String decode(final int start, final int length){
+			byte[] bytes = new byte[length];
+			ByteBuffer view = this.buffer.duplicate();
+			view.position(start);
+			view.get(bytes);
+			return new String(bytes, CompactCodec.UTF8);
+		}
+	}
+
+	/*
+	 * One segment file and its sparse index.  Written only by the log's thread;
+	 * readers see records up to end.
+	 */
+
+	protected static final class Segment{
+		protected final File file;
+
+		protected final long number;
+
+		protected final MappedByteBuffer buffer;
+
+		protected final int capacity;
+
+		//Log time of the first record
+		protected final long created;
+
+		protected volatile boolean writable;
+
+		//End of the last complete record
+		protected volatile int end = 0;
+
+		protected long lastLogTime = 0;
+
+		//Log times and offsets of every INDEX_BYTES-th record, grown as needed.
+		//Entries are filled in before the count is raised
+		protected volatile long[] indexTimes = new long[16];
+
+		protected volatile int[] indexOffsets = new int[16];
+
+		protected volatile int indexCount = 0;
+
+		protected int nextIndex = 0;
+
+		protected Segment(final File file, final long number, final MappedByteBuffer buffer,
+				final long created, final boolean writable){
+			this.file = file;
+			this.number = number;
+			this.buffer = buffer;
+			this.capacity = buffer.capacity();
+			this.created = created;
+			this.writable = writable;
+		}
+
+		protected static Segment create(final File file, final long number, final int capacity,
+				final long now) throws IOException{
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try{
+				raf.setLength(capacity);
+				return new Segment(file, number, raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						0, capacity), now, true);
+			}
+			finally{
+				//The mapping stays valid once the file is closed
+				raf.close();
+			}
+		}
+
+		/*
+		 * Maps an existing segment read-only and rebuilds its index.
+		 *
+		 * @return the segment, or null if it holds no records
+		 */
+
+		protected static Segment recover(final File file) throws IOException{
+			String name = file.getName();
+			long number = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			MappedByteBuffer buffer;
+			try{
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			}
+			finally{
+				raf.close();
+			}
+			int position = 0;
+			Segment segment = null;
+			while(position + HEADER_BYTES <= buffer.capacity()){
+				int length = buffer.getInt(position);
+				//A bad length is the end of what was written before a crash
+				if(length < HEADER_BYTES - 4 || position + 4 + length > buffer.capacity()){
+					break;
+				}
+				long logTime = buffer.getLong(position + 4);
+				if(segment == null){
+					segment = new Segment(file, number, buffer, logTime, false);
+				}
+				segment.appended(position, 4 + length, logTime);
+				position += 4 + length;
+			}
+			return segment;
+		}
+
+		/*Records that a record was written and adds it to the index if due*/
+
+		protected void appended(final int start, final int size, final long logTime){
+			if(start >= this.nextIndex){
+				int count = this.indexCount;
+				if(count == this.indexTimes.length){
+					this.indexTimes = Arrays.copyOf(this.indexTimes, count * 2);
+					this.indexOffsets = Arrays.copyOf(this.indexOffsets, count * 2);
+				}
+				this.indexTimes[count] = logTime;
+				this.indexOffsets[count] = start;
+				this.indexCount = count + 1;
+				this.nextIndex = start + INDEX_BYTES;
+			}
+			this.lastLogTime = logTime;
+			this.end = start + size;
+		}
+
+		/*
+		 * @return the offset of the last indexed record written before the time,
+		 * 		from which a scan finds every record at or after it
+		 */
+
+		protected int seek(final long sinceMillis){
+			int count = this.indexCount;
+			long[] times = this.indexTimes;
+			int[] offsets = this.indexOffsets;
+			int low = 0;
+			int high = count - 1;
+			int offset = 0;
+			while(low <= high){
+				int mid = (low + high) >>> 1;
+				if(times[mid] < sinceMillis){
+					offset = offsets[mid];
+					low = mid + 1;
+				}
+				else{
+					high = mid - 1;
+				}
+			}
+			return offset;
+		}
+
+		protected void force(){
+			if(this.writable){
+				this.buffer.force();
+			}
+		}
+
+		/*Forces the segment and stops writing to it*/
+
+		protected void close(){
+			this.force();
+			this.writable = false;
+		}
+	}
+}
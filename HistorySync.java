@@ -0,0 +1,436 @@
+package com.kd.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.kd.chat.messaging.AbstractMessage;
+import com.kd.chat.messaging.ChatFrame;
+import com.kd.chat.messaging.ChatMessage;
+import com.kd.chat.messaging.CompactCodec;
+import com.kd.chat.messaging.EncodedFrame;
+import com.kd.chat.messaging.MessageIds;
+import com.kd.chat.messaging.SyncBatchMessage;
+import com.kd.chat.messaging.SyncRequestMessage;
+
+
+
+
+/*
+ * Catches clients up on the chat messages they missed while they were away.
+ *
+ * Every chat message seen raises the high-water mark of its origin, the
+ * highest sequence number seen from it.  Right after the handshake each side
+ * sends the other its high-water marks, and a side that keeps a HistoryLog
+ * answers by streaming every message in its history that the other hasn't
+ * seen, oldest first, in SyncBatchMessages.  A side without one answers from
+ * its Scrollback instead, which holds only the most recent messages but sends
+ * them without decoding them.  The stream stops at the point in the history
+ * where the request arrived, since the other side has since been getting new
+ * messages live.  Messages without an ID are never sent: private messages are
+ * sent without one, and so are all messages in protocol version 1, where a
+ * private message looks like any other.
+ *
+ * The stream shares the connection with live traffic, so it is flow
+ * controlled: the receiver acknowledges each batch once it has dispatched it,
+ * and a session waits while BATCHES_IN_FLIGHT batches are unacknowledged.
+ * Live messages therefore never wait behind more than that much history,
+ * however long the backlog, where waiting for the outbound queue alone would
+ * still fill the socket buffers on both ends.  Messages that arrive twice,
+ * live and from history or from several peers, are dropped by the DedupeCache.
+ *
+ * Set how far back to look with -Dchat.sync.windowMillis=<ms>, 0 to disable
+ * sync, the messages per batch with -Dchat.sync.batchMessages=<n> and the
+ * batches unacknowledged with -Dchat.sync.batchesInFlight=<n>.
+ */
+
+public class HistorySync{
+	//How far back in the history to look. Set with -Dchat.sync.windowMillis=<ms>
+	public static final long WINDOW_MILLIS =
+		Long.getLong("chat.sync.windowMillis", TimeUnit.DAYS.toMillis(1)).longValue();
+
+	//Most messages in one batch. Set with -Dchat.sync.batchMessages=<n>
+	public static final int BATCH_MESSAGES =
+		Integer.getInteger("chat.sync.batchMessages", 256).intValue();
+
+	//Most batches sent but not yet acknowledged. Set with -Dchat.sync.batchesInFlight=<n>
+	public static final int BATCHES_IN_FLIGHT =
+		Integer.getInteger("chat.sync.batchesInFlight", 4).intValue();
+
+	//Most text in one batch, roughly
+	protected static final int BATCH_CHARS = 32 * 1024;
+
+	//How long a session waits for an acknowledgement before assuming it was lost
+	protected static final long ACK_TIMEOUT_MILLIS = 1000;
+
+	//How long a session waits for the history to write what it held when the
+	//request arrived
+	protected static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	protected final ChatClient owner;
+
+	//History to answer requests from, or null
+	protected final HistoryLog history;
+
+	//Recent messages to answer requests from without a history, or null
+	protected final Scrollback scrollback;
+
+	//Runs sessions
+	protected final Executor executor;
+
+	//Highest sequence number seen from each origin
+	protected final ConcurrentMap<Long, Long> highWaterMarks = new ConcurrentHashMap<Long, Long>();
+
+	//Session streaming to each client
+	protected final ConcurrentMap<Client, Session> serving = new ConcurrentHashMap<Client, Session>();
+
+	protected final AtomicLong sessions = new AtomicLong();
+
+	protected final AtomicLong sent = new AtomicLong();
+
+	/*
+	 * @param owner
+	 * 		the local client
+	 * @param history
+	 * 		the history to answer requests from and to read the high-water marks
+	 * 		from, or null
+	 * @param scrollback
+	 * 		the recent messages to answer requests from if there is no history,
+	 * 		or null to only make requests
+	 * @param executor
+	 * 		runs sessions, each of which holds a thread until it finishes
+	 */
+
+	public HistorySync(final ChatClient owner, final HistoryLog history, final Scrollback scrollback,
+			final Executor executor){
+		this.owner = owner;
+		this.history = history;
+		this.scrollback = scrollback;
+		this.executor = executor;
+		if(history != null){
+			HistoryLog.Cursor cursor = history.since(System.currentTimeMillis() - WINDOW_MILLIS);
+			while(cursor.next()){
+				this.raise(cursor.getOrigin(), cursor.getSequence());
+			}
+		}
+	}
+
+	/*
+	 * @return whether sync is enabled; it needs protocol version 2
+	 */
+
+	public static boolean isEnabled(){
+		return WINDOW_MILLIS > 0 && Client.MAX_PROTOCOL_VERSION >= AbstractMessage.PROTOCOL_V2;
+	}
+
+	/*
+	 * Records that a chat message was seen, sent or received.
+	 *
+	 * @param message
+	 * 		the message
+	 */
+
+	public void record(final ChatMessage message){
+		if(message.getOrigin() != MessageIds.NO_ORIGIN){
+			this.raise(message.getOrigin(), message.getSequence());
+		}
+	}
+
+	/*
+	 * Records that a chat frame was received, without decoding it.
+	 *
+	 * @param frame
+	 * 		a view of the frame
+	 */
+
+	public void record(final ChatFrame frame){
+		if(frame.hasId()){
+			this.raise(frame.getOrigin(), frame.getSequence());
+		}
+	}
+
+	protected void raise(final long origin, final long sequence){
+		Long key = Long.valueOf(origin);
+		Long mark = this.highWaterMarks.putIfAbsent(key, Long.valueOf(sequence));
+		while(mark != null && mark.longValue() < sequence
+				&& !this.highWaterMarks.replace(key, mark, Long.valueOf(sequence))){
+			mark = this.highWaterMarks.get(key);
+		}
+	}
+
+	/*
+	 * Asks a newly connected client for the messages this one hasn't seen.
+	 *
+	 * @param client
+	 * 		a client speaking protocol version 2
+	 */
+
+	public void request(final Client client){
+		List<Long> origins = new ArrayList<Long>(this.highWaterMarks.keySet());
+		long[] originArray = new long[origins.size()];
+		long[] sequenceArray = new long[origins.size()];
+		int count = 0;
+		for(Long origin : origins){
+			Long mark = this.highWaterMarks.get(origin);
+			if(mark != null){
+				originArray[count] = origin.longValue();
+				sequenceArray[count++] = mark.longValue();
+			}
+		}
+		try{
+			this.owner.sendOrDrop(client, EncodedFrame.encode(new SyncRequestMessage(
+					Arrays.copyOf(originArray, count), Arrays.copyOf(sequenceArray, count)),
+					client.getProtocolVersion()), "Failed to send sync request");
+		}
+		catch(IOException e){
+			System.err.println("Unable to encode sync request: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Starts streaming the messages the client asked for, if there is a history
+	 * or scrollback to stream them from.
+	 *
+	 * @param client
+	 * 		the client that sent the request
+	 * @param request
+	 * 		its high-water marks
+	 */
+
+	public void serve(final Client client, final SyncRequestMessage request){
+		if(this.history == null && this.scrollback == null){
+			return;
+		}
+		Session session = new Session(client, request);
+		if(this.serving.putIfAbsent(client, session) != null){
+			return;
+		}
+		this.sessions.incrementAndGet();
+		this.executor.execute(session);
+	}
+
+	/*
+	 * Lets the session streaming to a client send another batch.
+	 *
+	 * @param client
+	 * 		the client that acknowledged a batch
+	 */
+
+	public void acknowledged(final Client client){
+		Session session = this.serving.get(client);
+		if(session != null){
+			session.credits.release();
+		}
+	}
+
+	/*
+	 * @return the number of requests answered
+	 */
+
+	public long getSessions(){
+		return this.sessions.get();
+	}
+
+	/*
+	 * @return the number of messages sent from the history
+	 */
+
+	public long getSent(){
+		return this.sent.get();
+	}
+
+	/*
+	 * @return the number of origins with a high-water mark
+	 */
+
+	public int getOrigins(){
+		return this.highWaterMarks.size();
+	}
+
+	/*Streams one client's missing messages until they are all sent or the client is gone*/
+
+	protected class Session implements Runnable{
+		protected final Client client;
+
+		protected final Map<Long, Long> marks;
+
+		//Messages written to the history once all of those appended before the
+		//request arrived are
+		protected final long written;
+
+		//Scrollback position after the last message appended before the request
+		//arrived
+		protected final long until;
+
+		//Batches that may be sent before the next acknowledgement
+		protected final Semaphore credits = new Semaphore(BATCHES_IN_FLIGHT);
+
+		protected Session(final Client client, final SyncRequestMessage request){
+			HistorySync sync = HistorySync.this;
+			this.client = client;
+			this.written = sync.history == null ? 0 :
+				sync.history.getAppended() + sync.history.getBacklog();
+			this.until = sync.scrollback == null ? 0 : sync.scrollback.getTail();
+			long[] origins = request.getOrigins();
+			long[] sequences = request.getSequences();
+			this.marks = new HashMap<Long, Long>(origins.length * 2);
+			for(int i = 0; i < origins.length; ++i){
+				this.marks.put(Long.valueOf(origins[i]), Long.valueOf(sequences[i]));
+			}
+		}
+
+		@Override
+		public void run(){
+			HistorySync sync = HistorySync.this;
+			try{
+				if(sync.history != null){
+					this.sendHistory();
+				}
+				else{
+					this.sendScrollback();
+				}
+			}
+			catch(IOException e){
+				System.err.println("Unable to send chat history to " + this.client + ": " +
+						e.getMessage());
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			finally{
+				sync.serving.remove(this.client, this);
+			}
+		}
+
+		/*Streams from the HistoryLog*/
+
+		protected void sendHistory() throws IOException, InterruptedException{
+			HistorySync sync = HistorySync.this;
+			long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+			while(sync.history.getAppended() < this.written && System.nanoTime() < deadline){
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+			long until = System.currentTimeMillis();
+			HistoryLog.Cursor cursor = sync.history.since(until - WINDOW_MILLIS);
+			boolean more = true;
+			List<ChatMessage> batch = new ArrayList<ChatMessage>(BATCH_MESSAGES);
+			while(more && this.awaitCredit()){
+				int chars = 0;
+				while(batch.size() < BATCH_MESSAGES && chars < BATCH_CHARS
+						&& (more = cursor.next() && cursor.getLogTime() <= until)){
+					if(this.seen(cursor.getOrigin(), cursor.getSequence())){
+						continue;
+					}
+					ChatMessage message = cursor.toChatMessage();
+					batch.add(message);
+					chars += message.getUsername().length() + message.getMessage().length();
+				}
+				if(batch.isEmpty() || !this.send(new SyncBatchMessage(batch), batch.size())){
+					return;
+				}
+				batch.clear();
+			}
+		}
+
+		/*
+		 * Streams from the Scrollback, copying each frame straight into the batch
+		 * being encoded.
+		 */
+
+		protected void sendScrollback() throws IOException, InterruptedException{
+			HistorySync sync = HistorySync.this;
+			long since = System.currentTimeMillis() - WINDOW_MILLIS;
+			Scrollback.Cursor cursor = sync.scrollback.oldest();
+			Records records = new Records();
+			DataOutputStream out = new DataOutputStream(records);
+			byte[] scratch = new byte[256];
+			boolean more = true;
+			while(more && this.awaitCredit()){
+				records.reset();
+				int count = 0;
+				while(count < BATCH_MESSAGES && records.size() < BATCH_CHARS
+						&& (more = cursor.next() && cursor.getPosition() < this.until)){
+					ChatFrame frame = cursor.getFrame();
+					if(frame.getTimestamp() < since || this.seen(frame.getOrigin(), frame.getSequence())){
+						continue;
+					}
+					int mark = records.size();
+					CompactCodec.writeSyncRecord(out, frame, scratch);
+					if(cursor.isValid()){
+						++count;
+					}
+					else{
+						records.truncate(mark);
+					}
+				}
+				if(count == 0 || !this.send(new SyncBatchMessage(count, records.array(),
+						records.size()), count)){
+					return;
+				}
+			}
+		}
+
+		/*
+		 * Waits until another batch may be sent.
+		 *
+		 * @return false if the client is gone
+		 */
+
+		protected boolean awaitCredit() throws InterruptedException{
+			//Without an acknowledgement in time, one was likely dropped with a full
+			//queue, so send anyway rather than stall
+			this.credits.tryAcquire(ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			return HistorySync.this.owner.clients.contains(this.client);
+		}
+
+		/*Encodes and queues a batch, false if the client had to be dropped*/
+
+		protected boolean send(final SyncBatchMessage batch, final int count) throws IOException{
+			HistorySync sync = HistorySync.this;
+			EncodedFrame frame = EncodedFrame.encode(batch, this.client.getProtocolVersion());
+			if(!sync.owner.sendOrDrop(this.client, frame, "Failed to send chat history")){
+				return false;
+			}
+			sync.sent.addAndGet(count);
+			return true;
+		}
+
+		/*Whether the client already has the message, or it can't be told apart*/
+
+		protected boolean seen(final long origin, final long sequence){
+			if(origin == MessageIds.NO_ORIGIN){
+				return true;
+			}
+			Long mark = this.marks.get(Long.valueOf(origin));
+			return mark != null && sequence <= mark.longValue();
+		}
+	}
+
+	/*Batch being encoded, reused without copying*/
+
+	protected static class Records extends ByteArrayOutputStream{
+		protected Records(){
+			super(BATCH_CHARS + 1024);
+		}
+
+		protected byte[] array(){
+			return this.buf;
+		}
+
+		protected void truncate(final int size){
+			this.count = size;
+		}
+	}
+}
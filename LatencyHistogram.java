@@ -0,0 +1,133 @@
+package com.kd.chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+
+/*
+ * Counts latencies in log-linear buckets: each power of two is split into 8
+ * equal sub-buckets, so a percentile is accurate to within about 12%.
+ * Recording is a single atomic increment and never allocates.
+ */
+
+public class LatencyHistogram{
+	//Sub-buckets per power of two
+	protected static final int SUB_BITS = 3;
+
+	protected static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	//Powers of two covered, so latencies up to about 2^40ns (18 minutes)
+	protected static final int POWERS = 40;
+
+	public static final int BUCKETS = (POWERS - SUB_BITS + 1) * SUB_BUCKETS;
+
+	protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/*
+	 * Records one latency.
+	 *
+	 * @param nanos
+	 * 		the latency in nanoseconds
+	 */
+
+	public void record(final long nanos){
+		this.counts.incrementAndGet(bucketOf(nanos));
+	}
+
+	/*
+	 * @param nanos
+	 * 		a latency in nanoseconds
+	 * @return the index of the bucket that holds it
+	 */
+
+	public static int bucketOf(final long nanos){
+		if(nanos < SUB_BUCKETS){
+			return nanos < 0 ? 0 : (int) nanos;
+		}
+		int power = 63 - Long.numberOfLeadingZeros(nanos);
+		if(power >= POWERS){
+			return BUCKETS - 1;
+		}
+		int sub = (int) (nanos >>> (power - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (power - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/*
+	 * @param bucket
+	 * 		a bucket index
+	 * @return the largest latency in the bucket, in nanoseconds
+	 */
+
+	public static long upperBoundOf(final int bucket){
+		if(bucket < SUB_BUCKETS){
+			return bucket;
+		}
+		int power = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		return (((long) SUB_BUCKETS + sub + 1) << (power - SUB_BITS)) - 1;
+	}
+
+	/*
+	 * @return the number of latencies recorded
+	 */
+
+	public long getCount(){
+		long total = 0;
+		for(int i = 0; i < BUCKETS; ++i){
+			total += this.counts.get(i);
+		}
+		return total;
+	}
+
+	/*
+	 * @param percentile
+	 * 		between 0 and 100, e.g. 99.9
+	 * @return the latency in nanoseconds that the percentile of recorded
+	 * 		latencies are at or below, rounded up to its bucket, or 0 if none have
+	 * 		been recorded
+	 */
+
+	public long getPercentile(final double percentile){
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for(int i = 0; i < BUCKETS; ++i){
+			snapshot[i] = this.counts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0){
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; ++i){
+			seen += snapshot[i];
+			if(seen >= Math.max(1, rank)){
+				return upperBoundOf(i);
+			}
+		}
+		return upperBoundOf(BUCKETS - 1);
+	}
+
+	/*
+	 * Formats the usual percentiles, e.g. "n=1200 p50=12us p99=80us p99.9=310us max=1ms"
+	 */
+
+	@Override
+	public String toString(){
+		return "n=" + this.getCount() + " p50=" + format(this.getPercentile(50)) +
+			" p99=" + format(this.getPercentile(99)) + " p99.9=" + format(this.getPercentile(99.9)) +
+			" max=" + format(this.getPercentile(100));
+	}
+
+	protected static String format(final long nanos){
+		if(nanos < TimeUnit.MICROSECONDS.toNanos(10)){
+			return nanos + "ns";
+		}
+		if(nanos < TimeUnit.MILLISECONDS.toNanos(10)){
+			return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+		}
+		return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+	}
+}
@@ -0,0 +1,349 @@
+package com.kd.chat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.kd.chat.messaging.EncodedFrame;
+
+
+
+
+/*
+ * Bounded queue of frames waiting to be written to one remote client.  Senders
+ * only enqueue; the frames are written by the client's writer thread or by the
+ * EventLoop serving it, so a slow client never holds up sends to the others.
+ *
+ * The queue is bounded by bytes.  Once the queued bytes would pass the high
+ * watermark the {@link SlowConsumerPolicy} decides what happens, and the queue
+ * is considered writable again once it has drained below the low watermark.
+ * Frames that have been handed to the writer but not yet written still count
+ * towards the watermarks.
+ */
+
+public class OutboundQueue{
+	/*
+	 * What to do with a new frame when the queue is over its high watermark
+	 */
+
+	public enum SlowConsumerPolicy{
+		//Discard the oldest queued frames until the queue is below the low watermark
+		DROP_OLDEST,
+		//Make the sender wait until the queue is below the low watermark.  Opt-in
+		//only: a broadcast, relay or dispatcher task sending to clients in turn
+		//then waits on the slowest of them
+		BLOCK,
+		//Refuse the frame with an IOException so the client is disconnected
+		DISCONNECT
+	}
+
+	//Default high watermark in bytes. Set with -Dchat.outbound.highWatermark=<bytes>
+	public static final int DEFAULT_HIGH_WATERMARK =
+		Integer.getInteger("chat.outbound.highWatermark", 1024 * 1024).intValue();
+
+	//Default low watermark in bytes. Set with -Dchat.outbound.lowWatermark=<bytes>
+	public static final int DEFAULT_LOW_WATERMARK =
+		Integer.getInteger("chat.outbound.lowWatermark", 512 * 1024).intValue();
+
+	//Default policy, DISCONNECT, so a client that falls a high watermark behind
+	//is dropped and catches up from history when it reconnects, rather than
+	//holding up the sender. Set with -Dchat.outbound.policy=drop_oldest|block|disconnect
+	public static final SlowConsumerPolicy DEFAULT_POLICY =
+		SlowConsumerPolicy.valueOf(System.getProperty("chat.outbound.policy", "disconnect").toUpperCase());
+
+	//Frames not yet handed to the writer
+	protected final Deque<EncodedFrame> frames = new ArrayDeque<EncodedFrame>();
+
+	protected final int highWatermark;
+
+	protected final int lowWatermark;
+
+	protected final SlowConsumerPolicy policy;
+
+	//Bytes queued or handed to the writer but not yet written
+	protected int queuedBytes = 0;
+
+	//Frames handed to the writer but not yet written
+	protected int inFlight = 0;
+
+	//Number of frames discarded by DROP_OLDEST
+	protected long droppedFrames = 0;
+
+	//Number of times a sender found the queue over its high watermark
+	protected long highWatermarkHits = 0;
+
+	protected boolean closed = false;
+
+	/*Creates a queue with the default watermarks and policy*/
+
+	public OutboundQueue(){
+		this(DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK, DEFAULT_POLICY);
+	}
+
+	/*
+	 * @param highWatermark
+	 * 		the number of queued bytes above which the policy is applied
+	 * @param lowWatermark
+	 * 		the number of queued bytes below which the queue is writable again
+	 * @param policy
+	 * 		what to do with new frames while the queue is over the high watermark
+	 */
+
+	public OutboundQueue(final int highWatermark, final int lowWatermark,
+			final SlowConsumerPolicy policy){
+		if(lowWatermark < 0 || lowWatermark > highWatermark){
+			throw new IllegalArgumentException("Low watermark must be between 0 and the high watermark.");
+		}
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		this.policy = policy;
+	}
+
+	/*
+	 * Adds a frame to the end of the queue, applying the slow consumer policy if
+	 * the queue is over its high watermark.  An empty queue always accepts a
+	 * frame, however large.
+	 *
+	 * @param frame
+	 * 		the frame to queue
+	 * @throws IOException if the queue is closed, or is full and the policy is DISCONNECT
+	 */
+
+	public synchronized void offer(final EncodedFrame frame) throws IOException{
+		if(this.closed){
+			throw new SocketException("Socket is closed.");
+		}
+
+		if(this.queuedBytes > 0 && this.queuedBytes + frame.getLength() > this.highWatermark){
+			++this.highWatermarkHits;
+			switch(this.policy){
+				case DROP_OLDEST:
+					while(!this.frames.isEmpty() && this.queuedBytes > this.lowWatermark){
+						this.queuedBytes -= this.frames.poll().getLength();
+						++this.droppedFrames;
+					}
+					break;
+
+				case BLOCK:
+					try{
+						while(!this.closed && this.queuedBytes > this.lowWatermark){
+							this.wait();
+						}
+					}
+					catch(InterruptedException ie){
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for outbound queue.");
+					}
+					if(this.closed){
+						throw new SocketException("Socket is closed.");
+					}
+					break;
+
+				case DISCONNECT:
+					throw new IOException("Outbound queue is over " + this.highWatermark +
+							" bytes, client is not keeping up.");
+			}
+		}
+
+		this.frames.add(frame);
+		this.queuedBytes += frame.getLength();
+		this.notifyAll();
+	}
+
+	/*
+	 * Adds a small control frame to the end of the queue without applying the
+	 * slow consumer policy, so a thread that must never wait, such as a reader
+	 * answering the remote client, can always queue it.  Callers bound how many
+	 * such frames they send.
+	 *
+	 * @param frame
+	 * 		the frame to queue
+	 * @return false if the queue is closed
+	 */
+
+	public synchronized boolean offerNow(final EncodedFrame frame){
+		if(this.closed){
+			return false;
+		}
+		this.frames.add(frame);
+		this.queuedBytes += frame.getLength();
+		this.notifyAll();
+		return true;
+	}
+
+	/*
+	 * Hands the next frame to the writer without waiting.  The writer must call
+	 * {@link #completed(EncodedFrame)} once the frame has been written.
+	 *
+	 * @return the next frame, or null if none is queued
+	 */
+
+	public synchronized EncodedFrame poll(){
+		EncodedFrame frame = this.frames.poll();
+		if(frame != null){
+			++this.inFlight;
+		}
+		return frame;
+	}
+
+	/*
+	 * Hands as many queued frames to the writer as fit in the byte limit.  When
+	 * filling from the start of the array at least one frame is handed out if
+	 * any are queued, however large.  Each frame must be passed to
+	 * {@link #completed(EncodedFrame)} once it has been written.
+	 *
+	 * @param batch
+	 * 		the array to fill
+	 * @param offset
+	 * 		the first index of the array to fill
+	 * @param maxBytes
+	 * 		the largest number of bytes to hand out, 0 for a single frame
+	 * @return the number of frames added to the array
+	 */
+
+	public synchronized int drainTo(final EncodedFrame[] batch, final int offset,
+			final int maxBytes){
+		int count = 0;
+		int bytes = 0;
+		EncodedFrame frame;
+		while(offset + count < batch.length && (frame = this.frames.peek()) != null){
+			if((offset + count) > 0 && bytes + frame.getLength() > maxBytes){
+				break;
+			}
+			batch[offset + count] = this.frames.poll();
+			bytes += frame.getLength();
+			++count;
+		}
+		this.inFlight += count;
+		return count;
+	}
+
+	/*
+	 * Hands the next frame to the writer, waiting until one is queued.
+	 *
+	 * @return the next frame, or null if the queue was closed
+	 */
+
+	public synchronized EncodedFrame take() throws InterruptedException{
+		while(!this.closed && this.frames.isEmpty()){
+			this.wait();
+		}
+		return this.closed ? null : this.poll();
+	}
+
+	/*
+	 * Records that a frame handed out by poll or take has been written.
+	 *
+	 * @param frame
+	 * 		the written frame
+	 */
+
+	public synchronized void completed(final EncodedFrame frame){
+		--this.inFlight;
+		this.queuedBytes -= frame.getLength();
+		this.notifyAll();
+	}
+
+	/*
+	 * Waits until every queued frame has been written or the timeout expires.
+	 *
+	 * @param timeoutMillis
+	 * 		the longest time to wait
+	 * @return true if the queue drained
+	 */
+
+	public synchronized boolean awaitDrained(final long timeoutMillis) throws InterruptedException{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while(!this.closed && (!this.frames.isEmpty() || this.inFlight > 0)){
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0){
+				return false;
+			}
+			this.wait(remaining);
+		}
+		return this.frames.isEmpty() && this.inFlight == 0;
+	}
+
+	/*Discards every queued frame and wakes any waiting senders or writer*/
+
+	public synchronized void close(){
+		this.closed = true;
+		this.frames.clear();
+		this.notifyAll();
+	}
+
+	public synchronized boolean isEmpty(){
+		return this.frames.isEmpty();
+	}
+
+	/*
+	 * @return the number of frames queued or being written
+	 */
+
+	public synchronized int getDepth(){
+		return this.frames.size() + this.inFlight;
+	}
+
+	public synchronized int getQueuedBytes(){
+		return this.queuedBytes;
+	}
+
+	public synchronized long getDroppedFrames(){
+		return this.droppedFrames;
+	}
+
+	/*
+	 * @return a consistent snapshot of this queue's counters
+	 */
+
+	public synchronized Stats getStats(){
+		return new Stats(this.frames.size() + this.inFlight, this.queuedBytes,
+				this.droppedFrames, this.highWatermarkHits);
+	}
+
+	/*
+	 * Point-in-time counters for an OutboundQueue
+	 */
+
+	public static final class Stats{
+		protected final int depth;
+
+		protected final int queuedBytes;
+
+		protected final long droppedFrames;
+
+		protected final long highWatermarkHits;
+
+		protected Stats(final int depth, final int queuedBytes,
+				final long droppedFrames, final long highWatermarkHits){
+			this.depth = depth;
+			this.queuedBytes = queuedBytes;
+			this.droppedFrames = droppedFrames;
+			this.highWatermarkHits = highWatermarkHits;
+		}
+
+		public int getDepth(){
+			return this.depth;
+		}
+
+		public int getQueuedBytes(){
+			return this.queuedBytes;
+		}
+
+		public long getDroppedFrames(){
+			return this.droppedFrames;
+		}
+
+		public long getHighWatermarkHits(){
+			return this.highWatermarkHits;
+		}
+
+		@Override
+		public String toString(){
+			return "depth=" + this.depth + ", bytes=" + this.queuedBytes +
+				", dropped=" + this.droppedFrames + ", highWatermarkHits=" + this.highWatermarkHits;
+		}
+	}
+}
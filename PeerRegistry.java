@@ -0,0 +1,228 @@
+package com.kd.chat;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+
+/*
+ * Concurrent index of the currently-connected clients, by resolved listen address
+ * and by username.  Shared by the ChatClient and its user interface so both see
+ * the same set of clients.
+ *
+ * A client is keyed by {@link Client#getPeerAddress()}, so it can only be
+ * registered once its listen port is known, i.e. after the handshake.  If two
+ * clients share a username, lookups by that name return the one registered first,
+ * and once it is removed, one of the others.
+ *
+ * The registry also keeps a version, bumped on every change, and an
+ * order-independent digest of the registered addresses (the XOR of their
+ * hashOf values), so two clients can tell cheaply whether they know the same peers.
+ */
+
+public class PeerRegistry implements Iterable<Client>{
+	//Clients by resolved listen address
+	protected final ConcurrentMap<InetSocketAddress, Client> byAddress =
+		new ConcurrentHashMap<InetSocketAddress, Client>();
+
+	//Clients by username
+	protected final ConcurrentMap<String, Client> byUsername =
+		new ConcurrentHashMap<String, Client>();
+
+	//Number of times a client has been registered or removed
+	protected final AtomicLong version = new AtomicLong();
+
+	//XOR of hashOf() of every registered address
+	protected final AtomicLong digest = new AtomicLong();
+
+	/*
+	 * Registers the client unless another client with the same address is
+	 * already registered.
+	 *
+	 * @param client
+	 * 		the client to register, with a known listen port
+	 * @return the client already registered at that address, or null if this
+	 * 		client was registered.  A client that is already registered gets itself
+	 */
+
+	public Client registerIfAbsent(final Client client){
+		InetSocketAddress address = client.getPeerAddress();
+		if(address == null){
+			throw new IllegalArgumentException("Cannot register " + client + " before its address is known.");
+		}
+		Client existing = this.byAddress.putIfAbsent(address, client);
+		if(existing != null){
+			return existing;
+		}
+		if(client.getUsername() != null){
+			this.byUsername.putIfAbsent(client.getUsername(), client);
+		}
+		this.changed(address);
+		return null;
+	}
+
+	/*
+	 * Removes the client if it is registered.  Another client registered at the
+	 * same address is left alone, and another client with the same name takes
+	 * its place in the index by username.
+	 *
+	 * @param client
+	 * 		the client to remove
+	 * @return true if the client was removed
+	 */
+
+	public boolean remove(final Client client){
+		InetSocketAddress address = client.getPeerAddress();
+		if(address == null || !this.byAddress.remove(address, client)){
+			return false;
+		}
+		if(client.getUsername() != null && this.byUsername.remove(client.getUsername(), client)){
+			this.reindex(client.getUsername());
+		}
+		this.changed(address);
+		return true;
+	}
+
+	/*
+	 * Indexes another registered client under a username whose client was
+	 * removed, if there is one.  Scans every client, but only runs when a
+	 * username shared by several clients loses the one it was indexed under.
+	 *
+	 * @param username
+	 * 		the username no longer indexed
+	 */
+
+	protected void reindex(final String username){
+		for(Client other : this.byAddress.values()){
+			if(!username.equals(other.getUsername())){
+				continue;
+			}
+			if(this.byUsername.putIfAbsent(username, other) != null || this.contains(other)){
+				return;
+			}
+			//Removed while being indexed, so try the next
+			this.byUsername.remove(username, other);
+		}
+	}
+
+	/*Toggles the address in the digest and bumps the version*/
+
+	protected void changed(final InetSocketAddress address){
+		long hash = hashOf(address);
+		long current;
+		do{
+			current = this.digest.get();
+		}
+		while(!this.digest.compareAndSet(current, current ^ hash));
+		this.version.incrementAndGet();
+	}
+
+	/*
+	 * @return the number of times a client has been registered or removed
+	 */
+
+	public long getVersion(){
+		return this.version.get();
+	}
+
+	/*
+	 * @return the XOR of hashOf() of every registered address, 0 when empty
+	 */
+
+	public long getDigest(){
+		return this.digest.get();
+	}
+
+	/*
+	 * Hashes a listen address the same way on every client, so digests and
+	 * hashes can be compared across the network.
+	 *
+	 * @param address
+	 * 		a listen address, resolved or not
+	 * @return a 64-bit hash of the address and port
+	 */
+
+	public static long hashOf(final InetSocketAddress address){
+		//FNV-1a over the address bytes and port, then a final mix
+		long hash = 0xcbf29ce484222325L;
+		InetAddress inet = address.getAddress();
+		byte[] bytes = inet != null ? inet.getAddress() : address.getHostString().getBytes();
+		for(int i = 0; i < bytes.length; ++i){
+			hash = (hash ^ (bytes[i] & 0xFF)) * 0x100000001b3L;
+		}
+		hash = (hash ^ (address.getPort() >>> 8)) * 0x100000001b3L;
+		hash = (hash ^ (address.getPort() & 0xFF)) * 0x100000001b3L;
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return hash ^ (hash >>> 33);
+	}
+
+	/*
+	 * @param address
+	 * 		a resolved listen address
+	 * @return the client registered at that address, or null
+	 */
+
+	public Client get(final InetSocketAddress address){
+		return this.byAddress.get(address);
+	}
+
+	/*
+	 * @param username
+	 * 		a remote username
+	 * @return a client registered under that username, or null
+	 */
+
+	public Client getByUsername(final String username){
+		return this.byUsername.get(username);
+	}
+
+	/*
+	 * @param client
+	 * 		the client to look for
+	 * @return the registered client with the same address, or null
+	 */
+
+	public Client findDuplicate(final Client client){
+		InetSocketAddress address = client.getPeerAddress();
+		return address == null ? null : this.byAddress.get(address);
+	}
+
+	public boolean contains(final Client client){
+		InetSocketAddress address = client.getPeerAddress();
+		return address != null && this.byAddress.get(address) == client;
+	}
+
+	public int size(){
+		return this.byAddress.size();
+	}
+
+	public boolean isEmpty(){
+		return this.byAddress.isEmpty();
+	}
+
+	/*
+	 * @return a live, unmodifiable view of the registered clients
+	 */
+
+	public Collection<Client> getClients(){
+		return Collections.unmodifiableCollection(this.byAddress.values());
+	}
+
+	/*
+	 * Iterates over the registered clients.  The iterator is weakly consistent and
+	 * does not support removal; use {@link #remove(Client)}.
+	 */
+
+	@Override
+	public Iterator<Client> iterator(){
+		return this.getClients().iterator();
+	}
+}
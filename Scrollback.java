@@ -0,0 +1,443 @@
+package com.kd.chat;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+import com.kd.chat.messaging.AbstractMessage;
+import com.kd.chat.messaging.ChatFrame;
+import com.kd.chat.messaging.ChatMessage;
+import com.kd.chat.messaging.CompactCodec;
+import com.kd.chat.messaging.EncodedFrame;
+
+
+
+
+/*
+ * Fixed-size ring of the most recent chat messages, kept in direct memory in
+ * their protocol version 2 wire form, with timestamps relative to
+ * CompactCodec.LOCAL_EPOCH.  However much traffic passes through, the ring
+ * takes the same memory and keeps nothing on the heap.
+ *
+ * Positions count bytes from the first message ever appended.  Appending
+ * writes the frame after the newest one, first dropping the oldest frames
+ * until it fits, so it takes constant time per message.  A frame never wraps
+ * around the end of the buffer: if it doesn't fit before the end, a zero byte,
+ * which can't start a frame, marks the rest of the buffer as unused and the
+ * frame goes at the start.
+ *
+ * Appends are serialized; any number of Cursors read without locking.  A
+ * cursor wraps each frame in a ChatFrame view of the direct buffer, so nothing
+ * is copied to the heap unless the reader asks for Strings.  The writer moves
+ * the oldest position forward before overwriting a frame, so a reader that
+ * finds its position still inside the ring after reading knows what it read
+ * was intact, see Cursor#isValid().
+ *
+ * Set the size with -Dchat.scrollback.bytes=<n>, 0 to keep none.
+ */
+
+public class Scrollback{
+	//Bytes of direct memory to keep messages in, or 0 to keep none.
+	//Set with -Dchat.scrollback.bytes=<n>
+	public static final int DEFAULT_BYTES =
+		Integer.getInteger("chat.scrollback.bytes", 4 * 1024 * 1024).intValue();
+
+	//Marks the rest of the buffer as unused
+	protected static final byte WRAP = 0;
+
+	protected final ByteBuffer ring;
+
+	protected final int capacity;
+
+	//Writer's view, so the ring's own position is never moved
+	protected final ByteBuffer writeView;
+
+	//Position of the oldest frame kept
+	protected volatile long head = 0;
+
+	//Position after the newest frame
+	protected volatile long tail = 0;
+
+	//Frames kept, only changed while appending
+	protected volatile int count = 0;
+
+	protected volatile long appended = 0;
+
+	protected volatile long evicted = 0;
+
+	//Frames too large for the ring or that couldn't be encoded
+	protected volatile long dropped = 0;
+
+	/*
+	 * @param capacity
+	 * 		the bytes of direct memory to allocate
+	 */
+
+	public Scrollback(final int capacity){
+		if(capacity < 16){
+			throw new IllegalArgumentException("Scrollback needs at least 16 bytes.");
+		}
+		this.capacity = capacity;
+		this.ring = ByteBuffer.allocateDirect(capacity);
+		this.writeView = this.ring.duplicate();
+	}
+
+	/*
+	 * Adds a message as the newest, dropping the oldest messages to make room.
+	 *
+	 * @param message
+	 * 		the message to keep
+	 * @return false if the message is larger than the ring or can't be encoded
+	 */
+
+	public boolean append(final ChatMessage message){
+		EncodedFrame frame;
+		try{
+			frame = EncodedFrame.encode(message, AbstractMessage.PROTOCOL_V2);
+		}
+		catch(IOException ioe){
+			synchronized(this){
+				++this.dropped;
+			}
+			return false;
+		}
+		return this.append(frame);
+	}
+
+	/*
+	 * Adds an encoded chat frame as the newest, dropping the oldest frames to
+	 * make room.
+	 *
+	 * @param frame
+	 * 		a protocol version 2 chat frame, timestamped relative to
+	 * 		CompactCodec.LOCAL_EPOCH
+	 * @return false if the frame is larger than the ring
+	 */
+
+	public synchronized boolean append(final EncodedFrame frame){
+		long start = this.reserve(frame.getLength());
+		if(start < 0){
+			return false;
+		}
+		this.writeView.clear().position(this.indexOf(start));
+		this.writeView.put(frame.asByteBuffer());
+		this.appended(start + frame.getLength());
+		return true;
+	}
+
+	/*
+	 * Adds a chat frame as it was read as the newest, dropping the oldest frames
+	 * to make room.  A protocol version 2 frame is copied in without decoding
+	 * its text.
+	 *
+	 * @param frame
+	 * 		a view of the frame, only read during this call
+	 * @return false if the frame is larger than the ring or can't be encoded
+	 */
+
+	public boolean append(final ChatFrame frame){
+		if(frame.getCharset() != CompactCodec.UTF8){
+			try{
+				return this.append(frame.toChatMessage());
+			}
+			catch(IOException ioe){
+				synchronized(this){
+					++this.dropped;
+				}
+				return false;
+			}
+		}
+		synchronized(this){
+			int size = CompactCodec.chatFrameSize(frame, CompactCodec.LOCAL_EPOCH);
+			long start = this.reserve(size);
+			if(start < 0){
+				return false;
+			}
+			CompactCodec.putChatFrame(this.ring, this.indexOf(start), frame, CompactCodec.LOCAL_EPOCH);
+			this.appended(start + size);
+			return true;
+		}
+	}
+
+	/*
+	 * Drops the oldest frames until a frame of the given size fits after the
+	 * newest, and marks any unused tail of the buffer it must skip.  Only called
+	 * while appending.
+	 *
+	 * @return the position to write the frame at, or -1 if it is larger than the ring
+	 */
+
+	protected long reserve(final int size){
+		if(size >= this.capacity){
+			++this.dropped;
+			return -1;
+		}
+		long tail = this.tail;
+		int index = this.indexOf(tail);
+		long start = index + size <= this.capacity ? tail : tail + this.capacity - index;
+		long end = start + size;
+
+		long head = this.head;
+		int evicted = 0;
+		while(end - head > this.capacity){
+			if(this.ring.get(this.indexOf(head)) != WRAP){
+				++evicted;
+			}
+			head = this.skip(head);
+		}
+		if(head != this.head){
+			this.head = head;
+			this.count -= evicted;
+			this.evicted += evicted;
+			//Readers must see the new head before any overwritten byte
+			VarHandle.storeStoreFence();
+		}
+
+		if(start != tail){
+			this.ring.put(index, WRAP);
+		}
+		return start;
+	}
+
+	/*Publishes a frame written by the caller of reserve, which ends at a position*/
+
+	protected void appended(final long end){
+		++this.count;
+		++this.appended;
+		this.tail = end;
+	}
+
+	/*Index in the buffer of a position*/
+
+	protected int indexOf(final long position){
+		return (int) (position % this.capacity);
+	}
+
+	/*
+	 * Position after the frame or wrap marker at a position.  Only called for
+	 * positions inside the ring, by the writer or after checking the result.
+	 */
+
+	protected long skip(final long position){
+		int index = this.indexOf(position);
+		if(this.ring.get(index) == WRAP){
+			return position + this.capacity - index;
+		}
+		try{
+			long length = CompactCodec.getVarint(this.ring, index);
+			return position + CompactCodec.varintSize(length) + length;
+		}
+		catch(IOException ioe){
+			//Only a frame being overwritten is malformed; the caller will see that
+			return position + 1;
+		}
+	}
+
+	/*
+	 * @return a cursor before the oldest message kept
+	 */
+
+	public Cursor oldest(){
+		return new Cursor(this.head);
+	}
+
+	/*
+	 * Returns a cursor before the newest messages.  Finding them reads through
+	 * the older ones, so this takes time in proportion to the messages kept.
+	 *
+	 * @param messages
+	 * 		how many of the newest messages to read
+	 * @return a cursor before them
+	 */
+
+	public Cursor newest(final int messages){
+		Cursor cursor = this.oldest();
+		for(int older = this.count - messages; older > 0 && cursor.next(); --older){
+		}
+		return cursor;
+	}
+
+	/*
+	 * @return the position after the newest message, for Cursor#getPosition()
+	 */
+
+	public long getTail(){
+		return this.tail;
+	}
+
+	/*
+	 * @return the bytes of direct memory the ring takes
+	 */
+
+	public int getCapacity(){
+		return this.capacity;
+	}
+
+	/*
+	 * @return the number of messages kept
+	 */
+
+	public int getCount(){
+		return this.count;
+	}
+
+	/*
+	 * @return the number of messages ever added
+	 */
+
+	public long getAppended(){
+		return this.appended;
+	}
+
+	/*
+	 * @return the number of messages dropped to make room for newer ones
+	 */
+
+	public long getEvicted(){
+		return this.evicted;
+	}
+
+	/*
+	 * @return the number of messages not kept because they were too large
+	 */
+
+	public long getDropped(){
+		return this.dropped;
+	}
+
+	@Override
+	public String toString(){
+		return "messages=" + this.count + ", bytes=" + (this.tail - this.head) + '/' +
+			this.capacity + ", appended=" + this.appended + ", evicted=" + this.evicted +
+			", dropped=" + this.dropped;
+	}
+
+	/*
+	 * Reads messages from oldest to newest.  Once it reaches the newest, later
+	 * calls to next() pick up messages appended since.  A cursor that falls so
+	 * far behind that its messages are overwritten continues from the oldest
+	 * message kept, see getLost().
+	 *
+	 * Not thread safe; each reader needs its own cursor.
+	 */
+
+	public class Cursor{
+		//Position of the current frame, or of the next one before next() is called
+		protected long position;
+
+		//Position after the current frame, or -1 before the first
+		protected long next = -1;
+
+		protected final ChatFrame frame = new ChatFrame();
+
+		protected long lost = 0;
+
+		protected Cursor(final long position){
+			this.position = position;
+		}
+
+		/*
+		 * Moves to the next message.
+		 *
+		 * @return false if there are no newer messages yet
+		 */
+
+		public boolean next(){
+			Scrollback ring = Scrollback.this;
+			long position = this.next < 0 ? this.position : this.next;
+			while(position < ring.tail){
+				long head = ring.head;
+				if(position < head){
+					++this.lost;
+					position = head;
+					continue;
+				}
+				int index = ring.indexOf(position);
+				long end;
+				try{
+					if(ring.ring.get(index) == WRAP){
+						end = -1;
+					}
+					else{
+						long length = CompactCodec.getVarint(ring.ring, index);
+						if(length >= ring.capacity - index){
+							throw new IOException("Frame overwritten.");
+						}
+						int size = CompactCodec.varintSize(length) + (int) length;
+						if(index + size > ring.capacity || this.frame.wrap(ring.ring, index, size,
+								AbstractMessage.PROTOCOL_V2, CompactCodec.LOCAL_EPOCH)
+								!= AbstractMessage.TYPE_CHAT_MESSAGE){
+							throw new IOException("Frame overwritten.");
+						}
+						end = position + size;
+					}
+				}
+				catch(IOException ioe){
+					//Only happens when the frame was overwritten while being read
+					end = 0;
+				}
+				VarHandle.acquireFence();
+				if(position < ring.head){
+					continue;
+				}
+				if(end < 0){
+					position += ring.capacity - index;
+					continue;
+				}
+				if(end == 0){
+					//Garbled yet not overwritten, which appending never leaves, so
+					//give up on what is kept rather than guess where the next frame is
+					++this.lost;
+					position = ring.tail;
+					continue;
+				}
+				this.position = position;
+				this.next = end;
+				return true;
+			}
+			if(this.next >= 0){
+				this.position = position;
+				this.next = -1;
+			}
+			return false;
+		}
+
+		/*
+		 * Whether the current message is still in the ring.  Call after reading
+		 * what is needed from getFrame(); if false, what was read may be garbled.
+		 *
+		 * @return true if nothing read from the frame has been overwritten
+		 */
+
+		public boolean isValid(){
+			VarHandle.acquireFence();
+			return this.position >= Scrollback.this.head;
+		}
+
+		/*
+		 * @return a view of the current message, valid until next() is called or
+		 * 		the ring overwrites it
+		 */
+
+		public ChatFrame getFrame(){
+			return this.frame;
+		}
+
+		/*
+		 * @return the position of the current message, comparable to getTail()
+		 */
+
+		public long getPosition(){
+			return this.position;
+		}
+
+		/*
+		 * @return the number of times this cursor fell behind and skipped
+		 * 		messages that were overwritten before it read them
+		 */
+
+		public long getLost(){
+			return this.lost;
+		}
+	}
+}
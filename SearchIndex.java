@@ -0,0 +1,735 @@
+package com.kd.chat;
+
+import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kd.chat.messaging.ChatMessage;
+import com.kd.chat.messaging.CompactCodec;
+import com.kd.chat.messaging.MessageIds;
+
+
+
+
+/*
+ * In-memory inverted index of chat messages for full-text search.
+ *
+ * Messages are handed over with add(), which only queues them, and indexed in
+ * groups by the index's own thread, so indexing never slows the readers.  Each
+ * message indexed gets the next document number.  Every lower-cased word in
+ * its text, and its lower-cased username prefixed with '@', maps to a posting
+ * list: the numbers of the documents holding it, ascending, stored as varint
+ * deltas in one growing byte array.  The message itself is kept as its UTF-8
+ * bytes in large shared chunks, with its timestamp and username number in
+ * arrays indexed by document, so the index holds a handful of objects per
+ * distinct word rather than several per message.
+ *
+ * A query lists words, which must all appear, optionally "@user", and
+ * optionally "after:" and "before:" limits, each either a duration ago such
+ * as 30m, 2h or 7d, or a date as yyyy-MM-dd or yyyy-MM-ddTHH:mm.  Searching
+ * intersects the posting lists, shortest first, and returns the newest
+ * matches within the time range.
+ *
+ * Documents are kept in two generations so the index stays bounded in a long
+ * running process.  New messages go to the current generation; once it holds
+ * half the document limit, the previous generation is dropped whole and the
+ * current one takes its place.  The index so holds between half and all of
+ * the newest limit's worth of messages, and evicting costs nothing more than
+ * letting the old generation's arrays go.
+ *
+ * When there is a HistoryLog, the thread indexes what was already in it before
+ * taking new messages.
+ *
+ * Enable with -Dchat.search=true; set the backlog limit with
+ * -Dchat.search.maxBacklog=<n> and the document limit with
+ * -Dchat.search.maxDocuments=<n>, 0 for none.
+ */
+
+public class SearchIndex extends Thread{
+	//Whether to index messages. Set with -Dchat.search=true
+	public static final boolean ENABLED = Boolean.getBoolean("chat.search");
+
+	//Most messages waiting to be indexed. Set with -Dchat.search.maxBacklog=<n>
+	public static final int DEFAULT_MAX_BACKLOG =
+		Integer.getInteger("chat.search.maxBacklog", 64 * 1024).intValue();
+
+	//Most messages kept, 0 for no limit. Set with -Dchat.search.maxDocuments=<n>
+	public static final int DEFAULT_MAX_DOCUMENTS =
+		Integer.getInteger("chat.search.maxDocuments", 1000000).intValue();
+
+	//Most messages indexed at once, while searches wait
+	protected static final int MAX_GROUP = 4096;
+
+	//Bytes in each chunk of message text
+	protected static final int CHUNK_BYTES = 1024 * 1024;
+
+	//Longest word indexed, longer ones are rarely searched for
+	protected static final int MAX_WORD_CHARS = 64;
+
+	protected final BlockingQueue<ChatMessage> queue;
+
+	//History to index first, or null
+	protected final HistoryLog history;
+
+	//Only messages logged before this are indexed from the history; later ones
+	//also arrive through add()
+	protected final long createdMillis = System.currentTimeMillis();
+
+	//Documents in a generation before it becomes the previous one, or
+	//Integer.MAX_VALUE for no limit
+	protected final int generationDocuments;
+
+	protected volatile boolean keepRunning = true;
+
+	//Everything below is guarded by this index's lock
+
+	protected Generation current = new Generation();
+
+	//Older documents, or null
+	protected Generation previous;
+
+	//Messages indexed and messages since dropped with their generation
+	protected long indexed = 0;
+
+	protected long evicted = 0;
+
+	protected final AtomicLong dropped = new AtomicLong();
+
+	protected volatile long indexNanos = 0;
+
+	/*
+	 * Starts indexing, with the default backlog limit.
+	 *
+	 * @param history
+	 * 		the history to index first, or null
+	 */
+
+	public SearchIndex(final HistoryLog history){
+		this(history, DEFAULT_MAX_BACKLOG);
+	}
+
+	/*
+	 * Starts indexing, with the default document limit.
+	 *
+	 * @param history
+	 * 		the history to index first, or null
+	 * @param maxBacklog
+	 * 		the most messages waiting to be indexed
+	 */
+
+	public SearchIndex(final HistoryLog history, final int maxBacklog){
+		this(history, maxBacklog, DEFAULT_MAX_DOCUMENTS);
+	}
+
+	/*
+	 * Starts indexing.
+	 *
+	 * @param history
+	 * 		the history to index first, or null
+	 * @param maxBacklog
+	 * 		the most messages waiting to be indexed
+	 * @param maxDocuments
+	 * 		the most messages kept, see the class comment, or 0 for no limit
+	 */
+
+	public SearchIndex(final HistoryLog history, final int maxBacklog, final int maxDocuments){
+		super("search-index");
+		if(maxBacklog < 1 || maxDocuments < 0){
+			throw new IllegalArgumentException("The backlog must be positive and the document limit not negative.");
+		}
+		this.history = history;
+		this.generationDocuments = maxDocuments == 0 ? Integer.MAX_VALUE : Math.max(1, maxDocuments / 2);
+		this.queue = new LinkedBlockingQueue<ChatMessage>(maxBacklog);
+		this.setDaemon(true);
+		this.start();
+	}
+
+	/*
+	 * Queues a message to be indexed.  Never blocks.
+	 *
+	 * @param message
+	 * 		the message
+	 * @return false if the backlog is full or the index is shut down, in which
+	 * 		case the message is dropped
+	 */
+
+	public boolean add(final ChatMessage message){
+		if(this.keepRunning && this.queue.offer(message)){
+			return true;
+		}
+		this.dropped.incrementAndGet();
+		return false;
+	}
+
+	@Override
+	public void run(){
+		if(this.history != null){
+			this.indexHistory();
+		}
+		List<ChatMessage> group = new ArrayList<ChatMessage>(MAX_GROUP);
+		while(this.keepRunning){
+			try{
+				ChatMessage first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null){
+					continue;
+				}
+				group.add(first);
+			}
+			catch(InterruptedException ie){
+				continue;
+			}
+			this.queue.drainTo(group, MAX_GROUP - 1);
+			long start = System.nanoTime();
+			synchronized(this){
+				for(ChatMessage message : group){
+					this.index(message.getTimestamp(), message.getUsername(), message.getMessage());
+				}
+			}
+			this.indexNanos += System.nanoTime() - start;
+			group.clear();
+		}
+	}
+
+	/*Indexes what the history held when the index was created*/
+
+	protected void indexHistory(){
+		HistoryLog.Cursor cursor = this.history.since(0);
+		boolean more = true;
+		while(more && this.keepRunning){
+			long start = System.nanoTime();
+			synchronized(this){
+				for(int i = 0; i < MAX_GROUP && (more = cursor.next()
+						&& cursor.getLogTime() < this.createdMillis); ++i){
+					this.index(cursor.getTimestamp(), cursor.getUsername(), cursor.getMessage());
+				}
+			}
+			this.indexNanos += System.nanoTime() - start;
+		}
+	}
+
+	/*Adds one document, first retiring a full generation; called with the lock held*/
+
+	protected void index(final long timestamp, final String username, final String message){
+		if(this.current.documents >= this.generationDocuments){
+			if(this.previous != null){
+				this.evicted += this.previous.documents;
+			}
+			this.previous = this.current;
+			this.current = new Generation();
+		}
+		this.current.index(timestamp, username, message);
+		++this.indexed;
+	}
+
+	/*
+	 * Splits text into lower-cased words: runs of letters and digits, no longer
+	 * than MAX_WORD_CHARS.
+	 */
+
+	protected static List<String> words(final String text){
+		List<String> words = new ArrayList<String>();
+		int start = -1;
+		for(int i = 0; i <= text.length(); ){
+			int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+			if(Character.isLetterOrDigit(codePoint)){
+				if(start < 0){
+					start = i;
+				}
+			}
+			else if(start >= 0){
+				if(i - start <= MAX_WORD_CHARS){
+					words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				}
+				start = -1;
+			}
+			i += Character.charCount(codePoint);
+		}
+		return words;
+	}
+
+	/*
+	 * Finds the newest messages matching a query, see the class comment.
+	 *
+	 * @param query
+	 * 		the query
+	 * @param limit
+	 * 		the most messages to return
+	 * @return the matches
+	 * @throws IllegalArgumentException if a time limit can't be read
+	 */
+
+	public Results search(final String query, final int limit){
+		long start = System.nanoTime();
+		List<String> terms = new ArrayList<String>();
+		long after = Long.MIN_VALUE;
+		long before = Long.MAX_VALUE;
+		for(String part : query.trim().split("\\s+")){
+			String lower = part.toLowerCase(Locale.ROOT);
+			if(lower.length() == 0){
+				continue;
+			}
+			if(lower.startsWith("after:")){
+				after = parseTime(part.substring("after:".length()));
+			}
+			else if(lower.startsWith("before:")){
+				before = parseTime(part.substring("before:".length()));
+			}
+			else if(lower.startsWith("@") && lower.length() > 1){
+				terms.add(lower);
+			}
+			else{
+				terms.addAll(words(part));
+			}
+		}
+
+		List<ChatMessage> found = new ArrayList<ChatMessage>();
+		int matches = 0;
+		synchronized(this){
+			matches = this.current.search(terms, after, before, limit, found, 0);
+			if(this.previous != null){
+				matches = this.previous.search(terms, after, before, limit, found, matches);
+			}
+		}
+		return new Results(found, matches, System.nanoTime() - start);
+	}
+
+	/*
+	 * Reads a time limit: a duration ago such as 30s, 30m, 2h or 7d, or a date
+	 * as yyyy-MM-dd or yyyy-MM-ddTHH:mm in local time.
+	 */
+
+	protected static long parseTime(final String text){
+		if(text.matches("\\d+[smhd]")){
+			long amount = Long.parseLong(text.substring(0, text.length() - 1));
+			TimeUnit unit;
+			switch(text.charAt(text.length() - 1)){
+				case 's':
+					unit = TimeUnit.SECONDS;
+					break;
+				case 'm':
+					unit = TimeUnit.MINUTES;
+					break;
+				case 'h':
+					unit = TimeUnit.HOURS;
+					break;
+				default:
+					unit = TimeUnit.DAYS;
+					break;
+			}
+			return System.currentTimeMillis() - unit.toMillis(amount);
+		}
+		String pattern = text.indexOf('T') >= 0 ? "yyyy-MM-dd'T'HH:mm" : "yyyy-MM-dd";
+		try{
+			SimpleDateFormat format = new SimpleDateFormat(pattern);
+			format.setLenient(false);
+			return format.parse(text).getTime();
+		}
+		catch(ParseException pe){
+			throw new IllegalArgumentException("Unrecognized time \"" + text +
+					"\", use e.g. 30m, 2h, 7d, 2024-05-01 or 2024-05-01T09:30.");
+		}
+	}
+
+	/*
+	 * @return the number of messages searchable
+	 */
+
+	public synchronized int getDocuments(){
+		return this.current.documents + (this.previous == null ? 0 : this.previous.documents);
+	}
+
+	/*
+	 * @return the number of messages dropped with an old generation
+	 */
+
+	public synchronized long getEvicted(){
+		return this.evicted;
+	}
+
+	/*
+	 * @return the number of distinct words and usernames
+	 */
+
+	public synchronized int getTerms(){
+		int terms = this.current.postings.size();
+		if(this.previous != null){
+			for(String term : this.previous.postings.keySet()){
+				if(!this.current.postings.containsKey(term)){
+					++terms;
+				}
+			}
+		}
+		return terms;
+	}
+
+	/*
+	 * @return the bytes used by posting lists and message text
+	 */
+
+	public synchronized long getBytes(){
+		return this.current.getBytes() + (this.previous == null ? 0 : this.previous.getBytes());
+	}
+
+	/*
+	 * @return the number of messages dropped because the backlog was full
+	 */
+
+	public long getDropped(){
+		return this.dropped.get();
+	}
+
+	/*
+	 * @return the number of messages waiting to be indexed
+	 */
+
+	public int getBacklog(){
+		return this.queue.size();
+	}
+
+	/*
+	 * @return the average time spent indexing a message, in nanoseconds
+	 */
+
+	public long getIndexNanosPerMessage(){
+		long indexed;
+		synchronized(this){
+			indexed = this.indexed;
+		}
+		return indexed == 0 ? 0 : this.indexNanos / indexed;
+	}
+
+	@Override
+	public String toString(){
+		return "messages=" + this.getDocuments() + ", terms=" + this.getTerms() + ", bytes=" +
+			this.getBytes() + ", index=" + this.getIndexNanosPerMessage() +
+			"ns/message, backlog=" + this.getBacklog() + ", dropped=" + this.getDropped() +
+			", evicted=" + this.getEvicted();
+	}
+
+	/*
+	 * Stops indexing, dropping any messages still queued, and waits up to the
+	 * timeout for the thread to finish.
+	 */
+
+	public void shutdown(final long timeoutMillis){
+		this.keepRunning = false;
+		this.interrupt();
+		try{
+			this.join(timeoutMillis);
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * One generation of documents and their postings.  Guarded by the index's
+	 * lock.
+	 */
+
+	protected static final class Generation{
+		protected final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+		protected final Map<String, Integer> usernameNumbers = new HashMap<String, Integer>();
+
+		protected final List<String> usernames = new ArrayList<String>();
+
+		//Posting list key of each username
+		protected final List<String> usernameTerms = new ArrayList<String>();
+
+		protected final List<byte[]> chunks = new ArrayList<byte[]>();
+
+		//Free bytes at the end of the last chunk
+		protected int chunkFree = 0;
+
+		protected int documents = 0;
+
+		protected long[] timestamps = new long[1024];
+
+		protected int[] users = new int[1024];
+
+		//Chunk number in the high half, offset in the low half
+		protected long[] textStarts = new long[1024];
+
+		protected int[] textLengths = new int[1024];
+
+		/*Adds one document*/
+
+		protected void index(final long timestamp, final String username, final String message){
+			int document = this.documents;
+			if(document == this.timestamps.length){
+				int length = document * 2;
+				this.timestamps = Arrays.copyOf(this.timestamps, length);
+				this.users = Arrays.copyOf(this.users, length);
+				this.textStarts = Arrays.copyOf(this.textStarts, length);
+				this.textLengths = Arrays.copyOf(this.textLengths, length);
+			}
+			String name = username == null ? "" : username;
+			Integer user = this.usernameNumbers.get(name);
+			if(user == null){
+				user = Integer.valueOf(this.usernames.size());
+				this.usernames.add(name);
+				this.usernameTerms.add("@" + name.toLowerCase(Locale.ROOT));
+				this.usernameNumbers.put(name, user);
+			}
+			this.post(this.usernameTerms.get(user.intValue()), document);
+
+			byte[] text = message.getBytes(CompactCodec.UTF8);
+			if(text.length > this.chunkFree){
+				this.chunks.add(new byte[Math.max(CHUNK_BYTES, text.length)]);
+				this.chunkFree = this.chunks.get(this.chunks.size() - 1).length;
+			}
+			byte[] chunk = this.chunks.get(this.chunks.size() - 1);
+			int offset = chunk.length - this.chunkFree;
+			System.arraycopy(text, 0, chunk, offset, text.length);
+			this.chunkFree -= text.length;
+
+			this.timestamps[document] = timestamp;
+			this.users[document] = user.intValue();
+			this.textStarts[document] = ((long) (this.chunks.size() - 1) << 32) | offset;
+			this.textLengths[document] = text.length;
+			++this.documents;
+
+			for(String word : words(message)){
+				this.post(word, document);
+			}
+		}
+
+		protected void post(final String term, final int document){
+			Postings list = this.postings.get(term);
+			if(list == null){
+				list = new Postings();
+				this.postings.put(term, list);
+			}
+			list.add(document);
+		}
+
+		/*
+		 * Adds this generation's matches, newest first, to those found so far.
+		 *
+		 * @param found
+		 * 		the messages found so far, added to up to the limit
+		 * @param matches
+		 * 		the matches counted so far
+		 * @return the matches counted, including this generation's
+		 */
+
+		protected int search(final List<String> terms, final long after, final long before,
+				final int limit, final List<ChatMessage> found, final int matches){
+			int counted = matches;
+			int[] candidates = this.match(terms);
+			//Newest first; documents are numbered in arrival order, so close enough
+			for(int i = candidates == null ? this.documents - 1 : candidates.length - 1; i >= 0; --i){
+				int document = candidates == null ? i : candidates[i];
+				long timestamp = this.timestamps[document];
+				if(timestamp < after || timestamp >= before){
+					continue;
+				}
+				if(++counted <= limit){
+					ChatMessage message = this.toChatMessage(document);
+					if(message != null){
+						found.add(message);
+					}
+				}
+			}
+			return counted;
+		}
+
+		/*
+		 * Intersects the posting lists of the terms.
+		 *
+		 * @return the documents holding every term, ascending, or null to match every
+		 * 		document
+		 */
+
+		protected int[] match(final List<String> terms){
+			if(terms.isEmpty()){
+				return null;
+			}
+			List<Postings> lists = new ArrayList<Postings>(terms.size());
+			for(String term : terms){
+				Postings list = this.postings.get(term);
+				if(list == null){
+					return new int[0];
+				}
+				lists.add(list);
+			}
+			Collections.sort(lists, new Comparator<Postings>(){
+				@Override
+				public int compare(final Postings a, final Postings b){
+					return Integer.compare(a.count, b.count);
+				}
+			});
+			int[] candidates = lists.get(0).decode();
+			for(int i = 1; i < lists.size() && candidates.length > 0; ++i){
+				candidates = lists.get(i).retain(candidates);
+			}
+			return candidates;
+		}
+
+		/*Rebuilds a document's message, or null if it can't be*/
+
+		protected ChatMessage toChatMessage(final int document){
+			long start = this.textStarts[document];
+			byte[] chunk = this.chunks.get((int) (start >>> 32));
+			String text = new String(chunk, (int) start, this.textLengths[document], CompactCodec.UTF8);
+			try{
+				return new ChatMessage(MessageIds.NO_ORIGIN, 0, this.timestamps[document],
+						this.usernames.get(this.users[document]), text);
+			}
+			catch(UnsupportedEncodingException uee){
+				System.err.println("Unable to show a search result: " + uee.getMessage());
+				return null;
+			}
+		}
+
+		/*
+		 * @return the bytes used by posting lists and message text
+		 */
+
+		protected long getBytes(){
+			long bytes = 0;
+			for(Postings list : this.postings.values()){
+				bytes += list.length;
+			}
+			for(byte[] chunk : this.chunks){
+				bytes += chunk.length;
+			}
+			return bytes;
+		}
+	}
+
+	/*Ascending document numbers holding one term, as varint deltas*/
+
+	protected static class Postings{
+		protected byte[] deltas = new byte[8];
+
+		protected int length = 0;
+
+		protected int count = 0;
+
+		protected int last = -1;
+
+		protected void add(final int document){
+			//A word repeated in one message is posted once
+			if(document == this.last){
+				return;
+			}
+			if(this.length + 5 > this.deltas.length){
+				this.deltas = Arrays.copyOf(this.deltas, this.deltas.length * 2);
+			}
+			int delta = document - this.last;
+			while((delta & ~0x7F) != 0){
+				this.deltas[this.length++] = (byte) ((delta & 0x7F) | 0x80);
+				delta >>>= 7;
+			}
+			this.deltas[this.length++] = (byte) delta;
+			this.last = document;
+			++this.count;
+		}
+
+		/*@return every document, ascending*/
+
+		protected int[] decode(){
+			int[] documents = new int[this.count];
+			int document = -1;
+			for(int i = 0, index = 0; i < this.count; ++i){
+				int delta = 0;
+				for(int shift = 0; ; shift += 7){
+					byte b = this.deltas[index++];
+					delta |= (b & 0x7F) << shift;
+					if(b >= 0){
+						break;
+					}
+				}
+				document += delta;
+				documents[i] = document;
+			}
+			return documents;
+		}
+
+		/*
+		 * @param candidates
+		 * 		ascending documents
+		 * @return the candidates also in this list, ascending
+		 */
+
+		protected int[] retain(final int[] candidates){
+			int[] kept = new int[candidates.length];
+			int keptCount = 0;
+			int next = 0;
+			int document = -1;
+			for(int i = 0, index = 0; i < this.count && next < candidates.length; ++i){
+				int delta = 0;
+				for(int shift = 0; ; shift += 7){
+					byte b = this.deltas[index++];
+					delta |= (b & 0x7F) << shift;
+					if(b >= 0){
+						break;
+					}
+				}
+				document += delta;
+				while(next < candidates.length && candidates[next] < document){
+					++next;
+				}
+				if(next < candidates.length && candidates[next] == document){
+					kept[keptCount++] = document;
+					++next;
+				}
+			}
+			return Arrays.copyOf(kept, keptCount);
+		}
+	}
+
+	/*Messages found by a search*/
+
+	public static class Results{
+		protected final List<ChatMessage> messages;
+
+		protected final int matches;
+
+		protected final long nanos;
+
+		protected Results(final List<ChatMessage> messages, final int matches, final long nanos){
+			this.messages = messages;
+			this.matches = matches;
+			this.nanos = nanos;
+		}
+
+		/*
+		 * @return the newest matches, newest first, up to the limit
+		 */
+
+		public List<ChatMessage> getMessages(){
+			return this.messages;
+		}
+
+		/*
+		 * @return the number of messages matching, including any past the limit
+		 */
+
+		public int getMatches(){
+			return this.matches;
+		}
+
+		/*
+		 * @return the time the search took, in nanoseconds
+		 */
+
+		public long getNanos(){
+			return this.nanos;
+		}
+	}
+}
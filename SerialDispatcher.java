@@ -0,0 +1,245 @@
+package com.kd.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+
+/*
+ * Runs tasks for many keys on a fixed pool of threads, in the order they were
+ * submitted for each key.  Used to handle the messages of each remote client
+ * in the order they arrived while different clients are handled in parallel.
+ *
+ * Each key has its own queue, and at most one pool thread works on a key at a
+ * time.  A thread runs a limited batch of a key's tasks before handing the key
+ * back to the pool, so one busy client can't starve the rest.  Each key may
+ * only have a limited number of tasks waiting; beyond that, tasks are refused
+ * and the caller decides what to do with the client that sent them.  A key's
+ * queue is discarded once every task on it has run, so keys that are no longer
+ * used don't accumulate; a task queued later starts a new queue, which is safe
+ * since nothing earlier for that key is still waiting.
+ *
+ * Set the pool size with -Dchat.dispatch.threads=<n> and the limit per key with
+ * -Dchat.dispatch.maxBacklog=<n>.
+ */
+
+public class SerialDispatcher{
+	//Threads running tasks. Set with -Dchat.dispatch.threads=<n>
+	public static final int DEFAULT_THREADS = Integer.getInteger("chat.dispatch.threads",
+			Runtime.getRuntime().availableProcessors()).intValue();
+
+	//Most tasks waiting for one key. Set with -Dchat.dispatch.maxBacklog=<n>
+	public static final int DEFAULT_MAX_BACKLOG =
+		Integer.getInteger("chat.dispatch.maxBacklog", 4096).intValue();
+
+	//Tasks run for one key before the thread moves on to another
+	protected static final int BATCH_SIZE = 64;
+
+	protected final ExecutorService pool;
+
+	protected final int maxBacklog;
+
+	protected final ConcurrentMap<Object, Serial> serials = new ConcurrentHashMap<Object, Serial>();
+
+	//Tasks refused because their key's backlog was full
+	protected final AtomicInteger refused = new AtomicInteger();
+
+	/*Creates a dispatcher with the default pool size and backlog limit*/
+
+	public SerialDispatcher(){
+		this(DEFAULT_THREADS, DEFAULT_MAX_BACKLOG);
+	}
+
+	/*
+	 * @param threads
+	 * 		the threads running tasks
+	 * @param maxBacklog
+	 * 		the most tasks waiting for one key
+	 */
+
+	public SerialDispatcher(final int threads, final int maxBacklog){
+		if(threads < 1 || maxBacklog < 1){
+			throw new IllegalArgumentException("The pool size and backlog must be positive.");
+		}
+		this.maxBacklog = maxBacklog;
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			protected final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable task){
+				Thread thread = new Thread(task, "dispatch-" + this.count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * Queues a task to run after every task already queued for the key.
+	 *
+	 * @param key
+	 * 		what the task belongs to, e.g. the client that sent a message
+	 * @param task
+	 * 		the task to run
+	 * @return false if the key's backlog is full or the dispatcher is shut down,
+	 * 		in which case the task will not run
+	 */
+
+	public boolean execute(final Object key, final Runnable task){
+		Serial serial;
+		while(true){
+			serial = this.serials.get(key);
+			if(serial == null){
+				Serial created = new Serial(key);
+				serial = this.serials.putIfAbsent(key, created);
+				if(serial == null){
+					serial = created;
+				}
+			}
+			int size = serial.size.get();
+			if(size < 0){
+				//Retired but not yet removed; remove it and start a new queue
+				this.serials.remove(key, serial);
+				continue;
+			}
+			if(size >= this.maxBacklog){
+				this.refused.incrementAndGet();
+				return false;
+			}
+			if(serial.size.compareAndSet(size, size + 1)){
+				break;
+			}
+		}
+		serial.tasks.add(task);
+		return serial.schedule();
+	}
+
+	/*
+	 * Forgets a key once nothing more will be queued for it.  Its queue is
+	 * discarded now if it is idle, otherwise once its queued tasks have run.
+	 * A task queued for the key afterwards still runs, after those tasks.
+	 *
+	 * @param key
+	 * 		the key to forget
+	 */
+
+	public void release(final Object key){
+		Serial serial = this.serials.get(key);
+		if(serial != null){
+			serial.retire();
+		}
+	}
+
+	/*
+	 * @param key
+	 * 		the key to look up
+	 * @return the number of tasks waiting for or running on the key
+	 */
+
+	public int getBacklog(final Object key){
+		Serial serial = this.serials.get(key);
+		return serial == null ? 0 : Math.max(serial.size.get(), 0);
+	}
+
+	/*
+	 * @return the number of tasks refused because their key's backlog was full
+	 */
+
+	public int getRefused(){
+		return this.refused.get();
+	}
+
+	/*Stops the pool.  Queued tasks are abandoned.*/
+
+	public void shutdown(){
+		this.pool.shutdownNow();
+	}
+
+	/*The queue of one key's tasks, on the pool whenever it has tasks*/
+
+	protected class Serial implements Runnable{
+		protected final Object key;
+
+		protected final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		//Tasks queued and not yet finished, or -1 once retired
+		protected final AtomicInteger size = new AtomicInteger();
+
+		//Whether this queue is on the pool or being run
+		protected final AtomicBoolean scheduled = new AtomicBoolean();
+
+		/*
+		 * @param key
+		 * 		the key whose tasks this queue runs
+		 */
+
+		protected Serial(final Object key){
+			this.key = key;
+		}
+
+		/*
+		 * Removes this queue from the dispatcher if no task is queued or running.
+		 * Once retired, execute won't queue on it again.
+		 */
+
+		protected void retire(){
+			if(this.size.compareAndSet(0, -1)){
+				SerialDispatcher.this.serials.remove(this.key, this);
+			}
+		}
+
+		/*Puts this queue on the pool unless it is already there*/
+
+		protected boolean schedule(){
+			if(!this.scheduled.compareAndSet(false, true)){
+				return true;
+			}
+			try{
+				SerialDispatcher.this.pool.execute(this);
+				return true;
+			}
+			catch(RejectedExecutionException ree){
+				this.scheduled.set(false);
+				return false;
+			}
+		}
+
+		@Override
+		public void run(){
+			for(int i = 0; i < BATCH_SIZE; ++i){
+				Runnable task = this.tasks.poll();
+				if(task == null){
+					break;
+				}
+				try{
+					task.run();
+				}
+				catch(RuntimeException re){
+					System.err.println("Dispatched task failed: " + re.getMessage());
+					re.printStackTrace(System.err);
+				}
+				finally{
+					this.size.decrementAndGet();
+				}
+			}
+			this.scheduled.set(false);
+			//A task may have been queued after the last poll but before the flag
+			//was cleared, in which case nobody else scheduled this queue
+			if(!this.tasks.isEmpty()){
+				this.schedule();
+			}
+			else{
+				this.retire();
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.kd.chat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+
+
+
+/*
+ * Access to virtual threads without requiring them at compile time.  The
+ * builder and executor methods are looked up reflectively, so on a JVM that
+ * does not have virtual threads {@link #isSupported()} is false and callers
+ * fall back to platform threads.
+ */
+
+public final class VirtualThreads{
+	//Factory for virtual threads, or null if the running JVM has none
+	protected static final ThreadFactory FACTORY = lookupFactory();
+
+	private VirtualThreads(){
+	}
+
+	/*
+	 * @return true if the running JVM can create virtual threads
+	 */
+
+	public static boolean isSupported(){
+		return FACTORY != null;
+	}
+
+	/*
+	 * Creates an unstarted virtual thread that runs the task.
+	 *
+	 * @param task
+	 * 		the task to run, e.g. a Client read loop or the ConsoleUI
+	 * @return the new thread
+	 * @throws UnsupportedOperationException if virtual threads are not supported
+	 */
+
+	public static Thread newThread(final Runnable task){
+		if(FACTORY == null){
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM.");
+		}
+		return FACTORY.newThread(task);
+	}
+
+	/*
+	 * Creates an executor that starts a new virtual thread for every task.
+	 *
+	 * @return the new executor
+	 * @throws UnsupportedOperationException if virtual threads are not supported
+	 */
+
+	public static ExecutorService newThreadPerTaskExecutor(){
+		if(FACTORY == null){
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM.");
+		}
+		try{
+			Method method = Class.forName("java.util.concurrent.Executors")
+				.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, FACTORY);
+		}
+		catch(ReflectiveOperationException roe){
+			throw new UnsupportedOperationException("Unable to create virtual thread executor.", roe);
+		}
+	}
+
+	/*Finds Thread.ofVirtual().name(...).factory(), or returns null if it doesn't exist*/
+
+	protected static ThreadFactory lookupFactory(){
+		try{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class)
+				.invoke(builder, "virtual-", Long.valueOf(0));
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}
+		catch(ReflectiveOperationException roe){
+			//Includes a disabled preview feature on older JVMs
+			return null;
+		}
+	}
+}
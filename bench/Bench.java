@@ -0,0 +1,227 @@
+package com.kd.chat.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+
+
+/*
+ * The small part of JMH the benchmarks here need, since the tree has no build
+ * to pull JMH in with.
+ *
+ * Each measurement runs in several fresh JVMs (forks), so one benchmark's
+ * profile and compiled code can't leak into another's, and a fork that
+ * happened to compile badly shows up in the error.  Every fork runs warmup
+ * iterations, whose scores are thrown away, before the measured ones, so the
+ * scores are for compiled code.  Benchmarks pass every result they compute to
+ * consume(), and take their inputs from fields or arguments rather than
+ * constants, so the JIT can neither fold the work away nor drop it as dead.
+ *
+ * The forks are started with the same JVM options as the parent, so -D options
+ * reach them.  Set the number of forks and iterations with -Dbench.forks=<n>,
+ * -Dbench.warmupIterations=<n> and -Dbench.iterations=<n>; -Dbench.forks=0
+ * measures in the calling JVM.
+ */
+
+public final class Bench{
+	public static final int FORKS = Integer.getInteger("bench.forks", 2).intValue();
+
+	public static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmupIterations", 3).intValue();
+
+	public static final int ITERATIONS = Integer.getInteger("bench.iterations", 5).intValue();
+
+	//Set in a fork, which only measures and prints its scores
+	protected static final boolean CHILD = Boolean.getBoolean("bench.child");
+
+	//Prefix of the lines a fork prints its scores on
+	protected static final String SCORE = "@score ";
+
+	//Student's t at 99.9% for 1 to 30 degrees of freedom, as JMH reports
+	protected static final double[] T_999 = { 636.619, 31.599, 12.924, 8.610, 6.869,
+		5.959, 5.408, 5.041, 4.781, 4.587, 4.437, 4.318, 4.221, 4.140, 4.073, 4.015,
+		3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690,
+		3.674, 3.659, 3.646 };
+
+	//Written with everything passed to consume(), so none of it is dead code
+	protected static volatile long sink;
+
+	/*
+	 * One iteration of a benchmark
+	 */
+
+	public interface Iteration{
+		/*
+		 * Runs one iteration.
+		 *
+		 * @return a score for each of the benchmark's names, in the same order
+		 */
+		public double[] run() throws Exception;
+	}
+
+	private Bench(){
+	}
+
+	/*
+	 * Keeps a result alive, see the class comment.  Cheap enough to call once per
+	 * batch of operations; call it with a running total rather than per operation.
+	 */
+
+	public static void consume(final long value){
+		sink += value;
+	}
+
+	/*
+	 * @return true if this JVM is a fork, in which case the benchmark must only
+	 * 		call measure() and return
+	 */
+
+	public static boolean isFork(){
+		return CHILD;
+	}
+
+	/*
+	 * Measures a benchmark and prints its scores in JMH's layout.  In the parent
+	 * this starts the forks, each of which runs the benchmark's main method with
+	 * the same arguments and comes back here to run the iterations.
+	 *
+	 * @param benchmark
+	 * 		the class whose main method is being run
+	 * @param args
+	 * 		its arguments, passed on to the forks
+	 * @param names
+	 * 		the name of each score an iteration returns
+	 * @param mode
+	 * 		JMH's name for what the scores are, e.g. "avgt" or "thrpt"
+	 * @param units
+	 * 		the units of the scores
+	 * @param iteration
+	 * 		runs one iteration
+	 * @return every measured score, by name, or null in a fork
+	 */
+
+	public static Map<String, double[]> measure(final Class<?> benchmark, final String[] args,
+			final String[] names, final String mode, final String units,
+			final Iteration iteration) throws Exception{
+		String[] each = new String[names.length];
+		Arrays.fill(each, units);
+		return measure(benchmark, args, names, mode, each, iteration);
+	}
+
+	/*
+	 * Measures a benchmark whose scores are in different units.
+	 *
+	 * @param units
+	 * 		the units of each score, in the same order as the names
+	 * @see #measure(Class, String[], String[], String, String, Iteration)
+	 */
+
+	public static Map<String, double[]> measure(final Class<?> benchmark, final String[] args,
+			final String[] names, final String mode, final String[] units,
+			final Iteration iteration) throws Exception{
+		if(CHILD){
+			for(int i = -WARMUP_ITERATIONS; i < ITERATIONS; ++i){
+				double[] scores = iteration.run();
+				if(i >= 0){
+					for(int n = 0; n < names.length; ++n){
+						System.out.println(SCORE + names[n] + " " + scores[n]);
+					}
+				}
+			}
+			return null;
+		}
+
+		Map<String, List<Double>> samples = new LinkedHashMap<String, List<Double>>();
+		for(String name : names){
+			samples.put(name, new ArrayList<Double>());
+		}
+		if(FORKS < 1){
+			for(int i = -WARMUP_ITERATIONS; i < ITERATIONS; ++i){
+				double[] scores = iteration.run();
+				for(int n = 0; i >= 0 && n < names.length; ++n){
+					samples.get(names[n]).add(Double.valueOf(scores[n]));
+				}
+			}
+		}
+		for(int f = 0; f < FORKS; ++f){
+			fork(benchmark, args, samples);
+		}
+
+		Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+		System.out.println("Benchmark                          Mode  Cnt          Score        Error  Units");
+		for(int n = 0; n < names.length; ++n){
+			List<Double> sampled = samples.get(names[n]);
+			double[] scores = new double[sampled.size()];
+			for(int i = 0; i < scores.length; ++i){
+				scores[i] = sampled.get(i).doubleValue();
+			}
+			results.put(names[n], scores);
+			report(names[n], mode, units[n], scores);
+		}
+		return results;
+	}
+
+	/*Runs the benchmark in a new JVM and adds the scores it prints*/
+
+	protected static void fork(final Class<?> benchmark, final String[] args,
+			final Map<String, List<Double>> samples) throws IOException, InterruptedException{
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-Dbench.child=true");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(benchmark.getName());
+		command.addAll(Arrays.asList(args));
+
+		Process process = new ProcessBuilder(command)
+			.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+		while((line = reader.readLine()) != null){
+			if(!line.startsWith(SCORE)){
+				System.out.println(line);
+				continue;
+			}
+			String[] parts = line.substring(SCORE.length()).split(" ");
+			List<Double> scores = samples.get(parts[0]);
+			if(scores != null){
+				scores.add(Double.valueOf(parts[1]));
+			}
+		}
+		if(process.waitFor() != 0){
+			throw new IOException("Fork of " + benchmark.getName() + " exited with " + process.exitValue());
+		}
+	}
+
+	/*Prints the mean and 99.9% confidence half-width, as JMH does*/
+
+	protected static void report(final String name, final String mode, final String units,
+			final double[] scores){
+		double mean = 0;
+		for(double score : scores){
+			mean += score;
+		}
+		mean /= scores.length;
+		double error = Double.NaN;
+		if(scores.length > 1){
+			double variance = 0;
+			for(double score : scores){
+				variance += (score - mean) * (score - mean);
+			}
+			variance /= scores.length - 1;
+			double t = scores.length - 1 <= T_999.length ? T_999[scores.length - 2] : 3.291;
+			error = t * Math.sqrt(variance / scores.length);
+		}
+		System.out.printf("%-32s  %5s  %3d  %13.3f  %9.3f  %s%n", name, mode, scores.length,
+				mean, error, units);
+	}
+}
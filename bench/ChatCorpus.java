@@ -0,0 +1,150 @@
+package com.kd.chat.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.kd.chat.HistoryLog;
+import com.kd.chat.messaging.ChatMessage;
+import com.kd.chat.messaging.CompactCodec;
+
+
+
+
+/*
+ * Chat messages for the wire format benchmarks to encode.
+ *
+ * A recorded corpus can be given as either of:
+ * - a history directory, as kept with -Dchat.history.dir (the directory for
+ *   one listen port), which is read without being changed
+ * - a text file with a message per line, as "username: message" the way
+ *   ConsoleUI prints them, or just the message
+ * Without one, a short built-in conversation is used.  It is enough to compare
+ * the formats, but a real recording gives the numbers that matter.
+ *
+ * Recorded timestamps are moved so the first message is sent as this process
+ * starts, keeping the gaps between them, as they would be if the conversation
+ * were happening now.
+ */
+
+public final class ChatCorpus{
+	protected static final String[][] SAMPLE = {
+		{ "alice", "morning everyone" },
+		{ "bob", "hey alice, how's it going?" },
+		{ "alice", "not bad, just getting coffee before the meeting" },
+		{ "carol", "is the meeting still at 10?" },
+		{ "bob", "yeah 10, same room as last week" },
+		{ "dave", "I'll be a few minutes late, sorry" },
+		{ "carol", "no problem" },
+		{ "alice", "did anyone look at the build failure from last night?" },
+		{ "bob", "I think it's the flaky network test again" },
+		{ "dave", "I can take a look after lunch" },
+		{ "alice", "thanks dave" },
+		{ "carol", "can someone send me the link to the design doc?" },
+		{ "bob", "https://example.com/docs/chat-client-design.html" },
+		{ "carol", "thanks!" },
+		{ "alice", "lunch at noon? thinking about the place around the corner" },
+		{ "dave", "sure, count me in" },
+		{ "bob", "I already ate, have fun" },
+		{ "carol", "I'm in too" },
+		{ "alice", "great, see you all at 12" },
+		{ "dave", "ok the test is fixed, it was a timeout that was way too short" },
+		{ "bob", "nice, thanks for looking into it" },
+		{ "carol", "are we still doing the release on friday?" },
+		{ "alice", "that's the plan, unless something comes up" },
+		{ "bob", "I still need to finish the changelog" },
+		{ "dave", "let me know if you need help with it" },
+		{ "alice", "heading out for the day, see you tomorrow" },
+		{ "carol", "bye!" },
+		{ "bob", "see you" },
+		{ "dave", "good night everyone :)" },
+		{ "carol", "does anyone know why my client keeps disconnecting?" },
+		{ "bob", "which version are you running?" },
+		{ "carol", "whatever was on the shared drive yesterday" },
+		{ "dave", "try the new one, the heartbeat fix went in this morning" },
+		{ "carol", "that did it, thanks" },
+		{ "alice", "\u65e5\u672c\u8a9e\u306e\u30e1\u30c3\u30bb\u30fc\u30b8\u3082\u5927\u4e08\u592b\uff1f" },
+		{ "bob", "looks fine on my end \ud83d\udc4d" },
+		{ "dave", "here's the error I get on startup, any idea? java.net.BindException: Address already in use at sun.nio.ch.Net.bind0(Native Method) at sun.nio.ch.Net.bind(Net.java:555)" },
+		{ "bob", "something else is already listening on that port, probably an old client you didn't quit. run it on another port or kill the old one first" },
+		{ "dave", "yep, there was an old one running in another terminal, thanks" },
+		{ "alice", "quick summary of the meeting for anyone who missed it: release is still on for friday, bob is finishing the changelog, carol is looking at the reconnect bug, and dave owns the flaky test" },
+		{ "carol", "about the reconnect bug: it only happens when the laptop goes to sleep and wakes up on a different network, the old connection never gets closed and the new one is refused as a duplicate" },
+		{ "bob", "that sounds like the liveness check, it should replace a connection that has been idle longer than the window. which version are you on?" },
+		{ "carol", "the one from yesterday, I'll try again with the heartbeat interval turned down and let you know what happens" },
+		{ "alice", "reminder that the office is closed on monday, so if you need anything from the shared drive before the release grab it before friday evening" },
+		{ "dave", "the flaky test is fixed for real this time, it was waiting for a fixed 100ms instead of waiting for the message to arrive, so it failed whenever the machine was busy" },
+		{ "bob", "changelog is up for review, please have a look when you get a chance and tell me if I missed anything from your side of things this week" },
+		{ "carol", "looks good to me, but you missed the search command, that went in on tuesday along with the scrollback changes" },
+		{ "bob", "good catch, added it" },
+	};
+
+	private ChatCorpus(){
+	}
+
+	/*
+	 * Loads a corpus.
+	 *
+	 * @param source
+	 * 		a history directory or a text file, or null for the built-in sample
+	 * @return the messages, oldest first, each with its own ID and timestamp
+	 */
+
+	public static List<ChatMessage> load(final String source) throws IOException{
+		List<ChatMessage> messages = new ArrayList<ChatMessage>();
+		long timestamp = CompactCodec.LOCAL_EPOCH;
+		if(source == null){
+			for(String[] line : SAMPLE){
+				timestamp += 1500;
+				messages.add(new ChatMessage(timestamp, line[0], line[1]));
+			}
+			return messages;
+		}
+
+		File file = new File(source);
+		if(file.isDirectory()){
+			//No limits, so nothing in the directory is deleted
+			HistoryLog log = new HistoryLog(file, HistoryLog.DEFAULT_SEGMENT_BYTES,
+					HistoryLog.DEFAULT_SEGMENT_MILLIS, 1, 0, 0);
+			try{
+				HistoryLog.Cursor cursor = log.since(0);
+				long shift = 0;
+				while(cursor.next()){
+					if(messages.isEmpty()){
+						shift = timestamp - cursor.getTimestamp();
+					}
+					messages.add(new ChatMessage(cursor.getOrigin(), cursor.getSequence(),
+							cursor.getTimestamp() + shift, cursor.getUsername(), cursor.getMessage()));
+				}
+			}
+			finally{
+				log.shutdown(1000);
+			}
+			return messages;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), CompactCodec.UTF8));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				if(line.isEmpty()){
+					continue;
+				}
+				int colon = line.indexOf(": ");
+				boolean named = colon > 0 && line.lastIndexOf(' ', colon - 1) < 0;
+				timestamp += 1500;
+				messages.add(new ChatMessage(timestamp, named ? line.substring(0, colon) : "anonymous",
+						named ? line.substring(colon + 2) : line));
+			}
+		}
+		finally{
+			reader.close();
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,129 @@
+package com.kd.chat.bench;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.kd.chat.messaging.AbstractMessage;
+import com.kd.chat.messaging.ChatMessage;
+import com.kd.chat.messaging.EncodedFrame;
+import com.kd.chat.messaging.FrameCompressor;
+
+
+
+
+/*
+ * Measures what compression, see FrameCompressor, does to a chat corpus: the
+ * bytes on the wire as a percentage of the uncompressed protocol version 2
+ * frames, the percentage of messages large enough to be compressed, and the CPU
+ * time per message spent compressing and inflating.
+ *
+ * Each pass sends the whole corpus, in order, down a new connection: a new
+ * FrameCompressor for the writer and another for the reader, so the stream
+ * starts from the dictionary as it does for a real connection.  Only the
+ * compress() and inflate() calls are timed; messages too small to compress
+ * count towards the time per message at no cost, as they do on a connection.
+ *
+ * Frames under -Dchat.compression.minBytes (128 by default) are not
+ * compressed, and most chat messages are shorter than that; the built-in
+ * sample has about a fifth over it.  Run with -Dchat.compression.minBytes=0
+ * to see what compressing every message would give.  The level is set with
+ * -Dchat.compression.level, both reach the forks.
+ *
+ * Run with: java com.kd.chat.bench.CompressionBenchmark [corpus] [millisPerIteration]
+ * where corpus is a history directory or text file, see ChatCorpus, or - for
+ * the built-in sample.
+ */
+
+public class CompressionBenchmark{
+	public static void main(String[] args) throws Exception{
+		String source = args.length > 0 && !"-".equals(args[0]) ? args[0] : null;
+		final long millis = args.length > 1 ? Long.parseLong(args[1]) : 500;
+		List<ChatMessage> corpus = ChatCorpus.load(source);
+		if(corpus.isEmpty()){
+			throw new IllegalArgumentException("No messages in " + source);
+		}
+		final EncodedFrame[] frames = new EncodedFrame[corpus.size()];
+		for(int m = 0; m < frames.length; ++m){
+			frames[m] = EncodedFrame.encode(corpus.get(m), AbstractMessage.PROTOCOL_V2);
+		}
+
+		if(!Bench.isFork()){
+			System.out.println(frames.length + " messages in the corpus, minBytes=" +
+					FrameCompressor.MIN_BYTES + ", level=" + FrameCompressor.LEVEL + ".");
+		}
+		Bench.measure(CompressionBenchmark.class, args,
+				new String[]{ "wireSize", "compressed", "deflate", "inflate" }, "avgt",
+				new String[]{ "% of v2", "% of msgs", "ns/msg", "ns/msg" },
+				new Bench.Iteration(){
+					@Override
+					public double[] run() throws Exception{
+						return compress(frames, millis);
+					}
+				});
+	}
+
+	/*
+	 * Sends the frames down new connections for a while.
+	 *
+	 * @return the wire bytes as a percentage of the frames' bytes, the percentage
+	 * 		of frames compressed, and the nanoseconds per message spent compressing
+	 * 		and inflating
+	 */
+
+	protected static double[] compress(final EncodedFrame[] frames, final long millis) throws Exception{
+		long frameBytes = 0;
+		for(EncodedFrame frame : frames){
+			frameBytes += frame.getLength();
+		}
+		EncodedFrame[] sent = new EncodedFrame[frames.length];
+		long wireBytes = 0;
+		long compressed = 0;
+		long deflateNanos = 0;
+		long inflateNanos = 0;
+		long inflatedBytes = 0;
+		long passes = 0;
+		long deadline = System.nanoTime() + millis * 1000000L;
+		do{
+			FrameCompressor writer = new FrameCompressor();
+			FrameCompressor reader = new FrameCompressor();
+			try{
+				long start = System.nanoTime();
+				for(int m = 0; m < frames.length; ++m){
+					sent[m] = writer.compress(frames[m]);
+				}
+				deflateNanos += System.nanoTime() - start;
+
+				for(int m = 0; m < frames.length; ++m){
+					if(sent[m] == frames[m]){
+						continue;
+					}
+					//An array-backed buffer, as a Client reads into
+					ByteBuffer buffer = ByteBuffer.allocate(sent[m].getLength());
+					buffer.put(sent[m].asByteBuffer());
+					start = System.nanoTime();
+					inflatedBytes += reader.inflate(buffer, 0, buffer.capacity()).remaining();
+					inflateNanos += System.nanoTime() - start;
+					if(passes == 0){
+						++compressed;
+					}
+				}
+			}
+			finally{
+				writer.end();
+				reader.end();
+			}
+			if(passes == 0){
+				for(EncodedFrame frame : sent){
+					wireBytes += frame.getLength();
+				}
+			}
+			++passes;
+		}
+		while(System.nanoTime() < deadline);
+
+		Bench.consume(inflatedBytes);
+		long messages = passes * frames.length;
+		return new double[]{ 100.0 * wireBytes / frameBytes, 100.0 * compressed / frames.length,
+				(double) deflateNanos / messages, (double) inflateNanos / messages };
+	}
+}
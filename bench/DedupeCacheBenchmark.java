@@ -0,0 +1,142 @@
+package com.kd.chat.bench;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.kd.chat.DedupeCache;
+import com.kd.chat.messaging.MessageIds;
+
+
+
+
+/*
+ * Measures the DedupeCache and checks it stays correct at the rate it is sized
+ * for.  A plain main method rather than JMH, which the tree has no build to
+ * pull in; see Bench for how the forks, warmup and consume() stand in for it.
+ *
+ * Throughput: one thread adds new IDs, then adds each again, on a cache with
+ * the default window and size.  Reports the time per add of each kind.  The
+ * IDs come from a counter, so no add can be folded into a constant, and every
+ * result is summed and passed to Bench.consume().
+ *
+ * Paced: several threads add the same IDs at the target rate, racing on every
+ * one.  Exactly one add of each ID must win, no bucket may fill up, and the
+ * memory used is fixed.  Exits with status 1 if any of that fails.
+ *
+ * Run with: java com.kd.chat.bench.DedupeCacheBenchmark [seconds] [messagesPerSecond] [threads]
+ */
+
+public class DedupeCacheBenchmark{
+	//IDs added in a row before they are added again as duplicates
+	protected static final int BATCH = 1024;
+
+	public static void main(String[] args) throws Exception{
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int rate = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		Map<String, double[]> scores = Bench.measure(DedupeCacheBenchmark.class, args,
+				new String[]{ "add.unique", "add.duplicate" }, "avgt", "ns/op",
+				new Bench.Iteration(){
+					@Override
+					public double[] run(){
+						return throughput(1000);
+					}
+				});
+		if(scores == null){
+			return;
+		}
+
+		boolean correct = paced(seconds, rate, threads);
+		System.exit(correct ? 0 : 1);
+	}
+
+	/*
+	 * Adds new IDs and then the same IDs again, in batches, for a while.
+	 *
+	 * @return the nanoseconds per new add and per duplicate add
+	 */
+
+	protected static double[] throughput(final long millis){
+		DedupeCache cache = new DedupeCache();
+		long origin = MessageIds.LOCAL_ORIGIN;
+		long sequence = 0;
+		long uniqueNanos = 0;
+		long duplicateNanos = 0;
+		long batches = 0;
+		long added = 0;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		while(System.nanoTime() < deadline){
+			long first = sequence;
+			long start = System.nanoTime();
+			for(int i = 0; i < BATCH; ++i){
+				added += cache.add(MessageIds.idOf(origin, sequence++)) ? 1 : 0;
+			}
+			long middle = System.nanoTime();
+			for(int i = 0; i < BATCH; ++i){
+				added += cache.add(MessageIds.idOf(origin, first + i)) ? 1 : 0;
+			}
+			long end = System.nanoTime();
+			uniqueNanos += middle - start;
+			duplicateNanos += end - middle;
+			++batches;
+		}
+		Bench.consume(added);
+		return new double[]{ (double) uniqueNanos / (batches * BATCH),
+				(double) duplicateNanos / (batches * BATCH) };
+	}
+
+	/*
+	 * Has several threads add the same IDs at a fixed rate and checks that
+	 * exactly one add of each wins.
+	 *
+	 * @return true if the cache stayed correct
+	 */
+
+	protected static boolean paced(final int seconds, final int rate, final int threads)
+			throws InterruptedException{
+		final DedupeCache cache = new DedupeCache();
+		final int total = seconds * rate;
+		final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		final AtomicIntegerArray winners = new AtomicIntegerArray(total);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		for(int t = 0; t < threads; ++t){
+			Thread adder = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					for(int i = 0; i < total; ++i){
+						long due = start + i * intervalNanos;
+						long wait = due - System.nanoTime();
+						if(wait > 100000){
+							LockSupport.parkNanos(wait);
+						}
+						if(cache.add(MessageIds.idOf(MessageIds.LOCAL_ORIGIN, i))){
+							winners.incrementAndGet(i);
+						}
+					}
+					done.countDown();
+				}
+			}, "adder-" + t);
+			adder.start();
+		}
+		done.await();
+		double achieved = total / ((System.nanoTime() - start) / 1e9);
+
+		int wrong = 0;
+		for(int i = 0; i < total; ++i){
+			if(winners.get(i) != 1){
+				++wrong;
+			}
+		}
+		boolean correct = wrong == 0 && cache.getOverflows() == 0
+			&& cache.getDuplicates() == (long) (threads - 1) * total;
+		System.out.printf("paced: %d threads, %d IDs at %.0f/s, %d without exactly one winner, %s%n",
+				threads, total, achieved, wrong, cache);
+		System.out.println(correct ? "paced: OK" : "paced: FAILED");
+		return correct;
+	}
+}
@@ -0,0 +1,135 @@
+package com.kd.chat.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import com.kd.chat.messaging.AbstractMessage;
+import com.kd.chat.messaging.ChatMessage;
+
+
+
+
+/*
+ * Counts the writes that reach the socket per chat message, each one a send
+ * system call, and measures messages per second over loopback, with and
+ * without the per-client write buffer.
+ *
+ * Unbuffered is how frames used to be written: AbstractMessage.encodeMessage
+ * straight onto the socket's stream, so every field is its own write.
+ * Buffered is how a Client writes them now: onto a DataOutputStream over a
+ * BufferedOutputStream of the same size as Client's, with one flush per frame.
+ * A thread on the other end reads and discards everything, so the link never
+ * fills up.
+ *
+ * Run with: java com.kd.chat.bench.FrameWriteBenchmark [millisPerIteration]
+ */
+
+public class FrameWriteBenchmark{
+	//Same size as Client.WRITE_BUFFER_SIZE with coalescing off
+	protected static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+	protected static final String TEXT = "Is everyone still on for lunch at noon tomorrow?";
+
+	public static void main(String[] args) throws Exception{
+		final long millis = args.length > 0 ? Long.parseLong(args[0]) : 500;
+		Bench.measure(FrameWriteBenchmark.class, args,
+				new String[]{ "unbuffered.msgsPerSec", "unbuffered.syscallsPerMsg",
+					"buffered.msgsPerSec", "buffered.syscallsPerMsg" }, "thrpt", "",
+				new Bench.Iteration(){
+					@Override
+					public double[] run() throws Exception{
+						double[] unbuffered = write(false, millis);
+						double[] buffered = write(true, millis);
+						return new double[]{ unbuffered[0], unbuffered[1], buffered[0], buffered[1] };
+					}
+				});
+	}
+
+	/*
+	 * Writes chat frames over a loopback connection for a while.
+	 *
+	 * @return the messages per second and the socket writes per message
+	 */
+
+	protected static double[] write(final boolean buffered, final long millis) throws IOException{
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Socket sender = new Socket();
+		sender.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+		final Socket receiver = server.accept();
+		server.close();
+		Thread drain = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				byte[] discard = new byte[64 * 1024];
+				try{
+					InputStream in = receiver.getInputStream();
+					while(in.read(discard) >= 0){
+					}
+				}
+				catch(IOException ioe){
+					//Closed
+				}
+			}
+		}, "drain");
+		drain.start();
+
+		CountingStream socket = new CountingStream(sender.getOutputStream());
+		OutputStream out = buffered ?
+			new DataOutputStream(new BufferedOutputStream(socket, WRITE_BUFFER_SIZE)) : socket;
+		long messages = 0;
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(millis);
+		long now;
+		do{
+			//A new message each time, as each chat message is
+			for(int i = 0; i < 64; ++i){
+				AbstractMessage.encodeMessage(new ChatMessage(start + messages, "alice", TEXT), out);
+				++messages;
+			}
+		}
+		while((now = System.nanoTime()) < deadline);
+		long writes = socket.writes;
+
+		sender.close();
+		receiver.close();
+		try{
+			drain.join();
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+		Bench.consume(messages);
+		return new double[]{ messages / ((now - start) / 1e9), (double) writes / messages };
+	}
+
+	/*Counts the writes passed on to the socket's stream*/
+
+	protected static class CountingStream extends FilterOutputStream{
+		protected long writes = 0;
+
+		protected CountingStream(final OutputStream out){
+			super(out);
+		}
+
+		@Override
+		public void write(final int b) throws IOException{
+			++this.writes;
+			this.out.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException{
+			++this.writes;
+			this.out.write(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.kd.chat.bench;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kd.chat.ChatClient;
+import com.kd.chat.Client;
+import com.kd.chat.LatencyHistogram;
+import com.kd.chat.ui.ConsoleUI;
+
+
+
+
+/*
+ * Times 500 clients joining a ChatClient at the same moment.
+ *
+ * The ChatClient listens on a loopback port as it normally would, accepting
+ * through its Acceptor and handshaking each connection under the Connector's
+ * deadline.  Each joiner is a Client on its own thread, as if on its own
+ * machine, that connects and handshakes the way a dial does, with its own
+ * listen port so the ChatClient registers every one of them.  All of them are
+ * released at once; a join ends when the ChatClient has registered the client
+ * and started reading it.  Between iterations the joiners disconnect and the
+ * ChatClient is left with no clients.
+ *
+ * Reports the time until every client has joined, the p99 time for a single
+ * client to join (rounded up to its LatencyHistogram bucket, so it can come
+ * out above the first), and the joins that failed, e.g. a handshake that
+ * missed its deadline.  Connections over the accept backlog,
+ * -Dchat.accept.backlog, wait for the kernel to retry them, so the backlog and
+ * -Dchat.accept.threads are the options to try here.
+ *
+ * The ChatClient logs each client it loses to standard error, so add
+ * 2>/dev/null to see only the scores.
+ *
+ * Run with: java com.kd.chat.bench.JoinBenchmark [clients]
+ */
+
+public class JoinBenchmark{
+	//Joiners' listen ports start here; they are never listened on
+	protected static final int FIRST_PORT = 40000;
+
+	//Longest to wait for the joins, or for the clients to leave, in seconds
+	protected static final int TIMEOUT_SECONDS = 60;
+
+	public static void main(String[] args) throws Exception{
+		final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final int port = probe.getLocalPort();
+		probe.close();
+
+		final Host host = new Host(port);
+		host.start();
+		final ExecutorService joiners = Executors.newFixedThreadPool(clients);
+		awaitListening(host, port);
+
+		Bench.measure(JoinBenchmark.class, args,
+				new String[]{ "allJoinedMs", "p99JoinMs", "failedJoins" }, "ss", "",
+				new Bench.Iteration(){
+					@Override
+					public double[] run() throws Exception{
+						return join(host, port, joiners, clients);
+					}
+				});
+
+		host.userRequestedShutdown();
+		joiners.shutdown();
+		//The console's thread is still waiting on standard input
+		System.exit(0);
+	}
+
+	/*
+	 * Joins the clients all at once, then disconnects them.
+	 *
+	 * @return the milliseconds until every client joined, the p99 milliseconds
+	 * 		for one to join, and the number that failed to
+	 */
+
+	protected static double[] join(final Host host, final int port, final ExecutorService joiners,
+			final int clients) throws Exception{
+		final Client[] joined = new Client[clients];
+		final AtomicInteger failed = new AtomicInteger();
+		final CountDownLatch ready = new CountDownLatch(clients);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(clients);
+		host.reset();
+
+		for(int i = 0; i < clients; ++i){
+			final int joiner = i;
+			joiners.execute(new Runnable(){
+				@Override
+				public void run(){
+					Client client = new Client("127.0.0.1", port, "host", "joiner" + joiner,
+							FIRST_PORT + joiner);
+					ready.countDown();
+					try{
+						go.await();
+						client.connect(0);
+						if(client.performHandshake()){
+							joined[joiner] = client;
+						}
+						else{
+							failed.incrementAndGet();
+							client.disconnect();
+						}
+					}
+					catch(Exception e){
+						failed.incrementAndGet();
+						client.disconnect();
+					}
+					done.countDown();
+				}
+			});
+		}
+		ready.await();
+
+		long start = System.nanoTime();
+		host.release(start);
+		go.countDown();
+		done.await();
+		//Joiners that handshaked but were turned away never reach the host
+		host.awaitJoins(clients - failed.get(), TIMEOUT_SECONDS);
+		double allJoinedMs = (host.getLastJoinNanos() - start) / 1e6;
+		double p99Ms = host.getLatencies().getPercentile(99) / 1e6;
+		int joins = host.getJoins();
+
+		for(Client client : joined){
+			if(client != null){
+				client.disconnect();
+			}
+		}
+		host.awaitEmpty(TIMEOUT_SECONDS);
+		Bench.consume(joins);
+		return new double[]{ allJoinedMs, p99Ms, clients - joins };
+	}
+
+	/*Waits for the host to bind, joining and leaving with one client until it can*/
+
+	protected static void awaitListening(final Host host, final int port) throws Exception{
+		host.reset();
+		while(true){
+			Client client = new Client("127.0.0.1", port, "host", "probe", FIRST_PORT - 1);
+			try{
+				client.connect(0);
+			}
+			catch(ConnectException ce){
+				Thread.sleep(10);
+				continue;
+			}
+			host.release(System.nanoTime());
+			if(!client.performHandshake()){
+				throw new IllegalStateException("Handshake with the host failed.");
+			}
+			host.awaitJoins(1, TIMEOUT_SECONDS);
+			client.disconnect();
+			host.awaitEmpty(TIMEOUT_SECONDS);
+			return;
+		}
+	}
+
+	/*
+	 * The ChatClient being joined, with a console that counts and times joins
+	 * instead of printing them.
+	 */
+
+	protected static class Host extends ChatClient{
+		protected final Object lock = new Object();
+
+		protected LatencyHistogram latencies;
+
+		protected long releasedNanos;
+
+		protected long lastJoinNanos;
+
+		protected int joins;
+
+		protected Host(final int port){
+			super(port, "host");
+			this.userInterface = new ConsoleUI(this.clients){
+				@Override
+				public void clientConnected(final Client client){
+					Host.this.joined();
+				}
+
+				@Override
+				public void clientDisconnected(final Client client, final String reason){
+				}
+			};
+		}
+
+		/*Starts counting joins afresh*/
+
+		protected void reset(){
+			synchronized(this.lock){
+				this.latencies = new LatencyHistogram();
+				this.joins = 0;
+				this.lastJoinNanos = 0;
+			}
+		}
+
+		/*Sets when the joiners were let go, which joins are timed from*/
+
+		protected void release(final long nanos){
+			synchronized(this.lock){
+				this.releasedNanos = nanos;
+			}
+		}
+
+		protected void joined(){
+			long now = System.nanoTime();
+			synchronized(this.lock){
+				this.latencies.record(now - this.releasedNanos);
+				this.lastJoinNanos = Math.max(this.lastJoinNanos, now);
+				++this.joins;
+				this.lock.notifyAll();
+			}
+		}
+
+		protected void awaitJoins(final int clients, final int seconds) throws InterruptedException{
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+			synchronized(this.lock){
+				long wait;
+				while(this.joins < clients && (wait = deadline - System.nanoTime()) > 0){
+					TimeUnit.NANOSECONDS.timedWait(this.lock, wait);
+				}
+			}
+		}
+
+		/*Waits for every client to be dropped*/
+
+		protected void awaitEmpty(final int seconds) throws InterruptedException{
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+			while(!this.clients.isEmpty()){
+				if(System.nanoTime() > deadline){
+					throw new IllegalStateException(this.clients.size() + " clients never left.");
+				}
+				Thread.sleep(10);
+			}
+		}
+
+		protected int getJoins(){
+			synchronized(this.lock){
+				return this.joins;
+			}
+		}
+
+		protected long getLastJoinNanos(){
+			synchronized(this.lock){
+				return this.lastJoinNanos;
+			}
+		}
+
+		protected LatencyHistogram getLatencies(){
+			synchronized(this.lock){
+				return this.latencies;
+			}
+		}
+	}
+}
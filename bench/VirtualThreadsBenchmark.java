@@ -0,0 +1,193 @@
+package com.kd.chat.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.kd.chat.LatencyHistogram;
+import com.kd.chat.VirtualThreads;
+
+
+
+
+/*
+ * Compares memory use and delivery latency with platform and virtual threads,
+ * see -Dchat.virtualThreads, at 1k and 10k connected clients.
+ *
+ * Each client is a reader thread blocked waiting for its next frame, as a
+ * Client is blocked on its socket, started the way ChatClient.startThread
+ * starts it.  Frames come from a queue rather than a socket, so 10k clients
+ * don't need 20k file descriptors; what is measured is the cost of the threads
+ * themselves.  A reader hands each frame to the workers executor, the cached
+ * pool or a virtual thread per task as in ChatClient, and the worker records
+ * the time since the frame was sent.  Frames are sent to the clients in turn at
+ * a steady rate.
+ *
+ * Reports, for each mode and number of clients, the resident set size and heap
+ * used once every reader is parked, the platform threads alive, and the p99
+ * delivery latency.  The JVM rarely gives memory back, so the resident set is
+ * the high-water mark of the fork.  Virtual threads need a JVM that has them;
+ * on an older one only platform threads are measured.
+ *
+ * Starting 10k platform threads takes a while, so with the default forks and
+ * iterations this runs for several minutes; add -Dbench.warmupIterations=1
+ * -Dbench.iterations=2 for a quicker look.
+ *
+ * Run with: java com.kd.chat.bench.VirtualThreadsBenchmark [seconds] [framesPerSecond]
+ */
+
+public class VirtualThreadsBenchmark{
+	protected static final int[] CLIENTS = { 1000, 10000 };
+
+	protected static final String PLATFORM = "platform";
+
+	protected static final String VIRTUAL = "virtual";
+
+	public static void main(String[] args) throws Exception{
+		//A fork is passed its mode and number of clients ahead of the options
+		if(args.length > 2 || Bench.isFork()){
+			run(args[0], Integer.parseInt(args[1]), args);
+			return;
+		}
+		String seconds = args.length > 0 ? args[0] : "1";
+		String rate = args.length > 1 ? args[1] : "10000";
+		for(int clients : CLIENTS){
+			run(PLATFORM, clients, new String[]{ PLATFORM, String.valueOf(clients), seconds, rate });
+			if(VirtualThreads.isSupported()){
+				run(VIRTUAL, clients, new String[]{ VIRTUAL, String.valueOf(clients), seconds, rate });
+			}
+		}
+		if(!VirtualThreads.isSupported()){
+			System.out.println("Virtual threads are not supported by this JVM, only platform threads were measured.");
+		}
+	}
+
+	/*Measures one mode and number of clients*/
+
+	protected static void run(final String mode, final int clients, final String[] args) throws Exception{
+		final int seconds = Integer.parseInt(args[2]);
+		final int rate = Integer.parseInt(args[3]);
+		String prefix = mode + "." + clients + ".";
+		Bench.measure(VirtualThreadsBenchmark.class, args,
+				new String[]{ prefix + "rssMB", prefix + "heapMB", prefix + "platformThreads",
+					prefix + "p99us" }, "ss", "",
+				new Bench.Iteration(){
+					@Override
+					public double[] run() throws Exception{
+						return deliver(VIRTUAL.equals(mode), clients, seconds, rate);
+					}
+				});
+	}
+
+	/*
+	 * Starts the readers, sends them frames for a while and stops them.
+	 *
+	 * @return the resident set and heap in MB, the platform threads alive, and
+	 * 		the p99 delivery latency in microseconds
+	 */
+
+	protected static double[] deliver(final boolean virtual, final int clients, final int seconds,
+			final int rate) throws Exception{
+		final ExecutorService workers = virtual ?
+			VirtualThreads.newThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+		final LatencyHistogram latencies = new LatencyHistogram();
+		final int frames = seconds * rate;
+		final CountDownLatch started = new CountDownLatch(clients);
+		final CountDownLatch stopped = new CountDownLatch(clients);
+		final CountDownLatch delivered = new CountDownLatch(frames);
+		final List<BlockingQueue<Long>> inboxes = new ArrayList<BlockingQueue<Long>>(clients);
+		for(int c = 0; c < clients; ++c){
+			final BlockingQueue<Long> inbox = new LinkedBlockingQueue<Long>();
+			inboxes.add(inbox);
+			Runnable reader = new Runnable(){
+				@Override
+				public void run(){
+					started.countDown();
+					try{
+						long sentNanos;
+						while((sentNanos = inbox.take().longValue()) >= 0){
+							final long sent = sentNanos;
+							workers.execute(new Runnable(){
+								@Override
+								public void run(){
+									latencies.record(System.nanoTime() - sent);
+									delivered.countDown();
+								}
+							});
+						}
+					}
+					catch(InterruptedException ie){
+						//Stop
+					}
+					stopped.countDown();
+				}
+			};
+			if(virtual){
+				VirtualThreads.newThread(reader).start();
+			}
+			else{
+				new Thread(reader).start();
+			}
+		}
+		started.await();
+
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		double heapMB = (runtime.totalMemory() - runtime.freeMemory()) / (1024.0 * 1024.0);
+		double rssMB = residentKB() / 1024.0;
+		double platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		long start = System.nanoTime();
+		for(int i = 0; i < frames; ++i){
+			long due = start + i * intervalNanos;
+			long wait = due - System.nanoTime();
+			if(wait > 100000){
+				LockSupport.parkNanos(wait);
+			}
+			inboxes.get(i % clients).add(Long.valueOf(System.nanoTime()));
+		}
+		delivered.await();
+
+		for(BlockingQueue<Long> inbox : inboxes){
+			inbox.add(Long.valueOf(-1));
+		}
+		stopped.await();
+		workers.shutdown();
+		workers.awaitTermination(10, TimeUnit.SECONDS);
+		return new double[]{ rssMB, heapMB, platformThreads,
+				latencies.getPercentile(99) / 1000.0 };
+	}
+
+	/*@return the resident set size in KB, or 0 where /proc isn't available*/
+
+	protected static long residentKB(){
+		try{
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+			try{
+				String line;
+				while((line = reader.readLine()) != null){
+					if(line.startsWith("VmRSS:")){
+						return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+					}
+				}
+			}
+			finally{
+				reader.close();
+			}
+		}
+		catch(IOException ioe){
+		}
+		return 0;
+	}
+}
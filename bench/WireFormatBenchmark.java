@@ -0,0 +1,104 @@
+package com.kd.chat.bench;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.kd.chat.messaging.AbstractMessage;
+import com.kd.chat.messaging.ChatFrame;
+import com.kd.chat.messaging.ChatMessage;
+import com.kd.chat.messaging.CompactCodec;
+import com.kd.chat.messaging.EncodedFrame;
+
+
+
+
+/*
+ * Compares the two wire formats on a chat corpus: the bytes per message on
+ * the wire, length prefix included, and the time to decode a message.
+ *
+ * Every message of the corpus is encoded once in each format, back to back in
+ * one buffer as a Client reads them.  Decoding is what a Client does with each
+ * chat frame it reads: ChatFrame.wrap() to parse the header, then the username
+ * and text as strings.
+ *
+ * Run with: java com.kd.chat.bench.WireFormatBenchmark [corpus] [millisPerIteration]
+ * where corpus is a history directory or text file, see ChatCorpus, or - for
+ * the built-in sample.
+ */
+
+public class WireFormatBenchmark{
+	protected static final int[] VERSIONS = { AbstractMessage.PROTOCOL_V1, AbstractMessage.PROTOCOL_V2 };
+
+	public static void main(String[] args) throws Exception{
+		String source = args.length > 0 && !"-".equals(args[0]) ? args[0] : null;
+		final long millis = args.length > 1 ? Long.parseLong(args[1]) : 500;
+		List<ChatMessage> corpus = ChatCorpus.load(source);
+		if(corpus.isEmpty()){
+			throw new IllegalArgumentException("No messages in " + source);
+		}
+
+		final ByteBuffer[] buffers = new ByteBuffer[VERSIONS.length];
+		final int[][] sizes = new int[VERSIONS.length][corpus.size()];
+		final double[] bytesPerMessage = new double[VERSIONS.length];
+		for(int v = 0; v < VERSIONS.length; ++v){
+			int total = 0;
+			EncodedFrame[] frames = new EncodedFrame[corpus.size()];
+			for(int m = 0; m < frames.length; ++m){
+				frames[m] = EncodedFrame.encode(corpus.get(m), VERSIONS[v]);
+				sizes[v][m] = frames[m].getLength();
+				total += sizes[v][m];
+			}
+			buffers[v] = ByteBuffer.allocate(total);
+			for(EncodedFrame frame : frames){
+				buffers[v].put(frame.asByteBuffer());
+			}
+			bytesPerMessage[v] = (double) total / frames.length;
+		}
+
+		if(!Bench.isFork()){
+			System.out.println(corpus.size() + " messages in the corpus.");
+		}
+		Bench.measure(WireFormatBenchmark.class, args,
+				new String[]{ "v1.bytesPerMsg", "v1.decodeNsPerMsg", "v2.bytesPerMsg",
+					"v2.decodeNsPerMsg" }, "avgt", "",
+				new Bench.Iteration(){
+					@Override
+					public double[] run() throws Exception{
+						double[] scores = new double[2 * VERSIONS.length];
+						for(int v = 0; v < VERSIONS.length; ++v){
+							scores[2 * v] = bytesPerMessage[v];
+							scores[2 * v + 1] = decode(buffers[v], sizes[v], VERSIONS[v], millis);
+						}
+						return scores;
+					}
+				});
+	}
+
+	/*
+	 * Decodes the frames in the buffer over and over for a while.
+	 *
+	 * @return the average nanoseconds to decode a message
+	 */
+
+	protected static double decode(final ByteBuffer buffer, final int[] sizes,
+			final int protocolVersion, final long millis) throws Exception{
+		ChatFrame frame = new ChatFrame();
+		long messages = 0;
+		long characters = 0;
+		long start = System.nanoTime();
+		long deadline = start + millis * 1000000L;
+		long now;
+		do{
+			int index = 0;
+			for(int size : sizes){
+				frame.wrap(buffer, index, size, protocolVersion, CompactCodec.LOCAL_EPOCH);
+				characters += frame.getUsername().length() + frame.getMessage().length();
+				index += size;
+			}
+			messages += sizes.length;
+		}
+		while((now = System.nanoTime()) < deadline);
+		Bench.consume(characters);
+		return (double) (now - start) / messages;
+	}
+}
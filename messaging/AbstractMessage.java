@@ -22,8 +22,52 @@ public abstract class AbstractMessage{
 
 	public static final byte TYPE_KEEPALIVE_MESSAGE = 4;
 
+	//Only sent in protocol version 2
+	public static final byte TYPE_SESSION_MESSAGE = 5;
+
+	//Only sent in protocol version 2
+	public static final byte TYPE_PEER_LIST_MESSAGE = 6;
+
+	//Only sent in protocol version 2
+	public static final byte TYPE_PEER_DIGEST_MESSAGE = 7;
+
+	//Only sent in protocol version 2
+	public static final byte TYPE_GOSSIP_MESSAGE = 8;
+
+	//Only sent in protocol version 2
+	public static final byte TYPE_IHAVE_MESSAGE = 9;
+
+	//Only sent in protocol version 2
+	public static final byte TYPE_IWANT_MESSAGE = 10;
+
+	//Only sent in protocol version 2
+	public static final byte TYPE_PING_MESSAGE = 11;
+
+	//Only sent in protocol version 2
+	public static final byte TYPE_PONG_MESSAGE = 12;
+
+	//Only sent in protocol version 2, once offered after the handshake. See FrameCompressor
+	public static final byte TYPE_COMPRESSED_MESSAGE = 13;
+
+	//Only sent in protocol version 2
+	public static final byte TYPE_SYNC_REQUEST_MESSAGE = 14;
+
+	//Only sent in protocol version 2
+	public static final byte TYPE_SYNC_BATCH_MESSAGE = 15;
+
+	//Only sent in protocol version 2
+	public static final byte TYPE_SYNC_ACK_MESSAGE = 16;
+
 	public static final String[] MESSAGE_NAMES = {
-		"Chat", "Client Exchange", "Disconnect", "Handshake", "Keep-Alive" };
+		"Chat", "Client Exchange", "Disconnect", "Handshake", "Keep-Alive", "Session",
+		"Peer List", "Peer Digest", "Gossip", "IHave", "IWant", "Ping", "Pong", "Compressed",
+		"Sync Request", "Sync Batch", "Sync Ack" };
+
+	//Original wire format: UTF-16BE strings, fixed-size lengths and timestamps
+	public static final int PROTOCOL_V1 = 1;
+
+	//Compact wire format, see CompactCodec
+	public static final int PROTOCOL_V2 = 2;
 
 	public static final DisconnectMessage DISCONNECT_MESSAGE = new DisconnectMessage();
 
@@ -63,10 +107,17 @@ public abstract class AbstractMessage{
 		}
 	}
 
+	/*
+	 * Writes the message to the stream and flushes it once.  Pass a buffered
+	 * DataOutputStream to have the whole frame written with a single call; any
+	 * other stream is wrapped for the duration of the call.
+	 */
+
 	public static void encodeMessage(final AbstractMessage message,
 			final OutputStream out) throws IOException{
 
-		DataOutputStream dout = new DataOutputStream(out);
+		DataOutputStream dout = out instanceof DataOutputStream ?
+				(DataOutputStream) out : new DataOutputStream(out);
 
 		dout.writeInt(message.getLength());
 		dout.writeByte(message.getType());
@@ -76,22 +127,27 @@ public abstract class AbstractMessage{
 				case AbstractMessage.TYPE_CHAT_MESSAGE:
 					ChatMessage chat = (ChatMessage) message;
 					dout.writeLong(chat.getTimestamp());
-					dout.writeInt(chat.getUsername().getBytes("UTF-16BE").length);
-					dout.write(chat.getUsername().getBytes("UTF-16BE"));
-					dout.write(chat.getMessage().getBytes("UTF-16BE"));
+					dout.writeInt(chat.usernameBytes.length);
+					dout.write(chat.usernameBytes);
+					dout.write(chat.messageBytes);
 					break;
 
 				case AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE:
 					ClientExchangeMessage client = (ClientExchangeMessage) message;
-					InetAddress addx = InetAddress.getByName(client.getIpAddress());
+					InetAddress addx = client.getInetAddress();
+					//Version 1 only has room for an IPv4 address
+					if(addx.getAddress().length != 4){
+						throw new IOException("Protocol version 1 cannot carry the address " +
+								addx.getHostAddress());
+					}
 					dout.write(addx.getAddress());
 					dout.writeShort(client.getPort());
-					dout.write(client.getUsername().getBytes("UTF-16BE"));
+					dout.write(client.usernameBytes);
 					break;
 
 				case AbstractMessage.TYPE_HANDSHAKE_MESSAGE:
 					HandshakeMessage handshake = (HandshakeMessage) message;
-					dout.write(HandshakeMessage.PROTOCOL_STRING.getBytes("UTF-16BE"));
+					dout.write(handshake.getProtocolString().getBytes("UTF-16BE"));
 					dout.writeShort(handshake.getListenPort());
 					dout.write(handshake.getUsername().getBytes("UTF-16BE"));
 					break;
@@ -122,16 +178,18 @@ public abstract class AbstractMessage{
 			case AbstractMessage.TYPE_CHAT_MESSAGE:
 				long timestamp = din.readLong();
 
-				int usernameLength = din.readInt();
+				int usernameLength = CompactCodec.checkLength(din.readInt(), messageLength);
 				byte[] usernameBytes = new byte[usernameLength];
 				din.readFully(usernameBytes);
 				String username = new String(usernameBytes, "UTF-16BE");
 
-				byte[] messageBytes = new byte[messageLength - 13 - usernameLength];
+				byte[] messageBytes = new byte[CompactCodec.checkLength(
+						messageLength - 13 - usernameLength, messageLength)];
 				din.readFully(messageBytes);
 				String messageString = new String(messageBytes, "UTF-16BE");
 
-				message = new ChatMessage(timestamp, username, messageString);
+				message = new ChatMessage(timestamp, username, messageString,
+						usernameBytes, messageBytes);
 				break;
 			case AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE:
 				byte[] ipBytes = new byte[4];
@@ -140,30 +198,36 @@ public abstract class AbstractMessage{
 
 				int port = din.readShort() & 0xFFFF;
 
-				byte[] unameBytes = new byte[messageLength -7];
+				byte[] unameBytes = new byte[CompactCodec.checkLength(messageLength - 7, messageLength)];
 				din.readFully(unameBytes);
 				String uname = new String(unameBytes, "UTF-16BE");
 
-				message = new ClientExchangeMessage(addx.getHostAddress(), port, uname);
+				message = new ClientExchangeMessage(addx.getHostAddress(), addx, port, uname,
+						unameBytes);
 				break;
 			case AbstractMessage.TYPE_HANDSHAKE_MESSAGE:
 				byte[] pstrBytes = new byte[HandshakeMessage.PROTOCOL_STRING.getBytes("UTF-16BE").length];
 				din.readFully(pstrBytes);
 				String protocolString = new String(pstrBytes, "UTF-16BE");
 
-				if(!protocolString.equals(HandshakeMessage.PROTOCOL_STRING)){
+				int protocolVersion = PROTOCOL_V1;
+				if(protocolString.equals(HandshakeMessage.PROTOCOL_STRING_V2)){
+					protocolVersion = PROTOCOL_V2;
+				}
+				else if(!protocolString.equals(HandshakeMessage.PROTOCOL_STRING)){
 					System.err.println("Recieved invalid handshake protocol string: "
 							+ protocolString);
 				}
 
 				int listenPort = din.readShort() & 0xFFFF;
 
-				byte[] nameBytes = new byte[messageLength - 3 - HandshakeMessage.PROTOCOL_STRING.getBytes("UTF-16BE").length];
+				byte[] nameBytes = new byte[CompactCodec.checkLength(messageLength - 3
+						- HandshakeMessage.PROTOCOL_STRING.getBytes("UTF-16BE").length, messageLength)];
 
 				din.readFully(nameBytes);
 				String name = new String(nameBytes, "UTF-16BE");
 
-				message = new HandshakeMessage(name, listenPort);
+				message = new HandshakeMessage(name, listenPort, protocolVersion);
 				break;
 
 			case AbstractMessage.TYPE_DISCONNECT_MESSAGE:
@@ -0,0 +1,19 @@
+package com.kd.chat.messaging;
+import java.util.Collections;
+
+import com.kd.chat.Client;
+
+
+
+
+/*
+ * Base for BatchMessageListeners that handle every chat message as a batch.
+ * A single chat message is passed on as a batch of one.
+ */
+
+public abstract class BatchMessageAdapter implements BatchMessageListener{
+	@Override
+	public void chatMessageArrived(final Client client, final ChatMessage message){
+		this.chatMessagesArrived(client, Collections.singletonList(message));
+	}
+}
@@ -0,0 +1,31 @@
+package com.kd.chat.messaging;
+import java.util.List;
+
+import com.kd.chat.Client;
+
+
+
+
+/*
+ * A MessageListener that receives the chat messages read from a client in
+ * batches: every chat message decoded in one read is passed in a single call,
+ * so a burst of buffered messages costs one call instead of one per message.
+ *
+ * Batches are delivered in order, and before any other message read after
+ * them.  Chat messages that reach a client some other way, e.g. relayed through
+ * the overlay, are still passed to chatMessageArrived; see BatchMessageAdapter
+ * for listeners that only want batches.
+ */
+
+public interface BatchMessageListener extends MessageListener{
+	/*
+	 * Called with the chat messages decoded in one read from the client.  The
+	 * list is reused and only valid until this method returns.
+	 *
+	 * @param client
+	 * 		the client the messages were read from
+	 * @param messages
+	 * 		the messages, in the order they arrived, never empty
+	 */
+	public void chatMessagesArrived(final Client client, final List<ChatMessage> messages);
+}
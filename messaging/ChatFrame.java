@@ -0,0 +1,308 @@
+package com.kd.chat.messaging;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Date;
+
+/*
+ * A reusable, read-only view of a chat frame sitting in a read buffer.  Parsing
+ * only records where the fields are; the message text is not decoded until
+ * {@link #getMessage()} is called.  The username is cached, since a connection
+ * nearly always carries the same one, so dispatching a chat frame allocates
+ * nothing unless a listener asks for the message.
+ *
+ * A view is only valid until the buffer it wraps is reused, i.e. for the
+ * duration of a {@link ChatFrameListener#chatFrameArrived} call.  Listeners that
+ * keep the message must copy what they need, or use {@link #toChatMessage()}.
+ *
+ * The buffer may also be direct, as in the Scrollback, in which case
+ * {@link #appendMessageTo(StringBuilder)} shows the text without building a
+ * String for it.
+ */
+
+public final class ChatFrame{
+	protected static final Charset UTF16 = Charset.forName("UTF-16BE");
+
+	protected ByteBuffer buffer;
+
+	protected int protocolVersion;
+
+	//Sender-scoped ID, origin is NO_ORIGIN for protocol version 1 frames
+	protected long origin;
+
+	protected long sequence;
+
+	protected long timestamp;
+
+	protected int usernameStart;
+
+	protected int usernameLength;
+
+	protected int messageStart;
+
+	protected int messageLength;
+
+	//Most recently decoded username and its encoded bytes
+	protected byte[] cachedUsernameBytes = new byte[0];
+
+	protected String cachedUsername = "";
+
+	//View of a direct buffer to decode from, and the decoder and chars it needs,
+	//all created on first use
+	protected ByteBuffer view;
+
+	protected CharsetDecoder decoder;
+
+	protected CharBuffer chars;
+
+	/*
+	 * Points this view at the frame starting at the given index and parses its
+	 * header.  The buffer's position is not moved.
+	 *
+	 * @param buffer
+	 * 		the buffer holding the whole frame
+	 * @param start
+	 * 		the index of the frame's length prefix
+	 * @param size
+	 * 		the size of the frame including its length prefix
+	 * @param protocolVersion
+	 * 		the wire format of the frame
+	 * @param remoteEpoch
+	 * 		the sender's session epoch, for protocol version 2
+	 * @return the frame's message type.  Only chat frames are parsed beyond the type
+	 */
+
+	public byte wrap(final ByteBuffer buffer, final int start, final int size,
+			final int protocolVersion, final long remoteEpoch) throws IOException{
+		if(this.buffer != buffer){
+			this.view = null;
+		}
+		this.buffer = buffer;
+		if(this.protocolVersion != protocolVersion){
+			this.decoder = null;
+		}
+		this.protocolVersion = protocolVersion;
+		int end = start + size;
+		int index;
+		byte type;
+
+		if(protocolVersion >= AbstractMessage.PROTOCOL_V2){
+			index = start + CompactCodec.varintSize(CompactCodec.getVarint(buffer, start, end));
+			if(index >= end){
+				throw new IOException("Malformed frame.");
+			}
+			type = buffer.get(index++);
+			if(type != AbstractMessage.TYPE_CHAT_MESSAGE){
+				return type;
+			}
+			if(end - index < 8){
+				throw new IOException("Malformed chat frame.");
+			}
+			this.origin = buffer.getLong(index);
+			index += 8;
+			this.sequence = CompactCodec.getVarint(buffer, index, end);
+			index += CompactCodec.varintSize(this.sequence);
+			long offset = CompactCodec.getVarint(buffer, index, end);
+			index += CompactCodec.varintSize(offset);
+			this.timestamp = remoteEpoch + CompactCodec.unzigzag(offset);
+			long usernameLength = CompactCodec.getVarint(buffer, index, end);
+			index += CompactCodec.varintSize(usernameLength);
+			this.usernameLength = CompactCodec.checkLength(usernameLength, end - index);
+		}
+		else{
+			index = start + 4;
+			if(index >= end){
+				throw new IOException("Malformed frame.");
+			}
+			type = buffer.get(index++);
+			if(type != AbstractMessage.TYPE_CHAT_MESSAGE){
+				return type;
+			}
+			if(end - index < 12){
+				throw new IOException("Malformed chat frame.");
+			}
+			this.origin = MessageIds.NO_ORIGIN;
+			this.sequence = 0;
+			this.timestamp = buffer.getLong(index);
+			this.usernameLength = CompactCodec.checkLength(buffer.getInt(index + 8), end - index - 12);
+			index += 12;
+		}
+
+		//Both lengths are now known to lie within the frame
+		this.usernameStart = index;
+		this.messageStart = index + this.usernameLength;
+		this.messageLength = end - this.messageStart;
+		return type;
+	}
+
+	public long getTimestamp(){
+		return this.timestamp;
+	}
+
+	/*
+	 * @return true if the frame carries an ID, i.e. is in protocol version 2
+	 */
+
+	public boolean hasId(){
+		return this.origin != MessageIds.NO_ORIGIN;
+	}
+
+	/*
+	 * @return the frame's message ID, see MessageIds#idOf
+	 */
+
+	public long getId(){
+		return MessageIds.idOf(this.origin, this.sequence);
+	}
+
+	/*
+	 * @return the origin of the frame's message ID, see MessageIds
+	 */
+
+	public long getOrigin(){
+		return this.origin;
+	}
+
+	/*
+	 * @return the sequence number of the frame's message ID, see MessageIds
+	 */
+
+	public long getSequence(){
+		return this.sequence;
+	}
+
+	/*
+	 * @return the sender's username, reusing the previous String if the bytes match
+	 */
+
+	public String getUsername(){
+		if(!this.buffer.hasArray()){
+			return this.getDirectUsername();
+		}
+		byte[] array = this.buffer.array();
+		int from = this.buffer.arrayOffset() + this.usernameStart;
+		int to = from + this.usernameLength;
+		if(!Arrays.equals(this.cachedUsernameBytes, 0, this.cachedUsernameBytes.length,
+				array, from, to)){
+			this.cachedUsernameBytes = Arrays.copyOfRange(array, from, to);
+			this.cachedUsername = new String(this.cachedUsernameBytes, this.getCharset());
+		}
+		return this.cachedUsername;
+	}
+
+	/*getUsername() for a buffer with no array*/
+
+	protected String getDirectUsername(){
+		boolean same = this.cachedUsernameBytes.length == this.usernameLength;
+		for(int i = 0; same && i < this.usernameLength; ++i){
+			same = this.cachedUsernameBytes[i] == this.buffer.get(this.usernameStart + i);
+		}
+		if(!same){
+			this.cachedUsernameBytes = new byte[this.usernameLength];
+			for(int i = 0; i < this.usernameLength; ++i){
+				this.cachedUsernameBytes[i] = this.buffer.get(this.usernameStart + i);
+			}
+			this.cachedUsername = new String(this.cachedUsernameBytes, this.getCharset());
+		}
+		return this.cachedUsername;
+	}
+
+	/*
+	 * Decodes the message text onto the end of a StringBuilder, through a
+	 * reused buffer, so nothing is allocated once the builder has room.
+	 *
+	 * @param out
+	 * 		where to append the text
+	 */
+
+	public void appendMessageTo(final StringBuilder out){
+		if(this.view == null){
+			this.view = this.buffer.duplicate();
+		}
+		if(this.decoder == null){
+			this.decoder = this.getCharset().newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.chars = CharBuffer.allocate(1024);
+		}
+		ByteBuffer in = this.view;
+		in.limit(this.messageStart + this.messageLength).position(this.messageStart);
+		CharsetDecoder decoder = this.decoder.reset();
+		CoderResult result;
+		do{
+			this.chars.clear();
+			result = decoder.decode(in, this.chars, true);
+			if(!result.isOverflow()){
+				result = decoder.flush(this.chars);
+			}
+			this.chars.flip();
+			out.append(this.chars);
+		}
+		while(result.isOverflow());
+	}
+
+	/*
+	 * Decodes the message text.  Each call builds a new String.
+	 *
+	 * @return the message text
+	 */
+
+	public String getMessage(){
+		if(!this.buffer.hasArray()){
+			StringBuilder text = new StringBuilder(this.messageLength);
+			this.appendMessageTo(text);
+			return text.toString();
+		}
+		return new String(this.buffer.array(), this.buffer.arrayOffset() + this.messageStart,
+				this.messageLength, this.getCharset());
+	}
+
+	/*
+	 * @return the number of encoded bytes in the message text
+	 */
+
+	public int getMessageLength(){
+		return this.messageLength;
+	}
+
+	/*
+	 * @return the charset the username and message are encoded in
+	 */
+
+	public Charset getCharset(){
+		return this.protocolVersion >= AbstractMessage.PROTOCOL_V2 ? CompactCodec.UTF8 : UTF16;
+	}
+
+	/*
+	 * Copies this frame into a standalone ChatMessage that remains valid after the
+	 * read buffer is reused.
+	 *
+	 * @return the equivalent ChatMessage
+	 */
+
+	public ChatMessage toChatMessage() throws UnsupportedEncodingException{
+		if(this.protocolVersion >= AbstractMessage.PROTOCOL_V2){
+			return new ChatMessage(this.origin, this.sequence, this.timestamp,
+					this.getUsername(), this.getMessage());
+		}
+		byte[] array = this.buffer.array();
+		int offset = this.buffer.arrayOffset();
+		byte[] messageBytes = Arrays.copyOfRange(array, offset + this.messageStart,
+				offset + this.messageStart + this.messageLength);
+		return new ChatMessage(this.timestamp, this.getUsername(),
+				new String(messageBytes, UTF16), this.cachedUsernameBytes, messageBytes);
+	}
+
+	@Override
+	public String toString(){
+		return "Chat frame " + this.getUsername() + '@' + new Date(this.timestamp) +
+			" (" + this.messageLength + " bytes)";
+	}
+}
@@ -0,0 +1,29 @@
+package com.kd.chat.messaging;
+import com.kd.chat.Client;
+
+
+
+
+/*
+ * A MessageListener that receives chat messages as in-place ChatFrame views
+ * instead of ChatMessage objects.  Listeners that only implement
+ * MessageListener are still handed a ChatMessage built from the frame.
+ */
+
+public interface ChatFrameListener extends MessageListener{
+	/*
+	 * Called for each chat frame read from the client.  The frame is only valid
+	 * until this method returns.
+	 */
+	public void chatFrameArrived(final Client client, final ChatFrame frame);
+
+	/*
+	 * Called once the chat frames of one read have all been passed to
+	 * chatFrameArrived, and before any other message read after them, so a
+	 * burst of frames can be handled together.
+	 *
+	 * @param client
+	 * 		the client the frames were read from
+	 */
+	public void chatFramesRead(final Client client);
+}
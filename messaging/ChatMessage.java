@@ -4,22 +4,93 @@ import java.io.UnsupportedEncodingException;
 import java.util.Date;
 
 public class ChatMessage extends AbstractMessage{
+	//Sender-scoped ID, see MessageIds.  Origin is NO_ORIGIN if the message has none
+	protected final long origin;
+
+	protected final long sequence;
+
 	protected final long timestamp;
 
 	protected final String username;
 
 	protected final String message;
 
+	//Encoded username and message, kept so they are only encoded once
+	protected final byte[] usernameBytes;
+
+	protected final byte[] messageBytes;
+
+	/*
+	 * Creates a message written by this process, with the next local ID.
+	 */
+
 	public ChatMessage(final long timestamp, final String username,
 				final String message) throws UnsupportedEncodingException{
 
-		super(13 + username.getBytes("UTF-16BE").length +
-				message.getBytes("UTF-16BE").length,
+		this(MessageIds.LOCAL_ORIGIN, MessageIds.nextSequence(), timestamp, username, message);
+	}
+
+	/*
+	 * Creates a message with a known ID, e.g. one read from another client.
+	 */
+
+	public ChatMessage(final long origin, final long sequence, final long timestamp,
+				final String username, final String message) throws UnsupportedEncodingException{
+
+		this(origin, sequence, timestamp, username, message, username.getBytes("UTF-16BE"),
+				message.getBytes("UTF-16BE"));
+	}
+
+	/*
+	 * Creates a message without an ID from its decoded and encoded forms, as read
+	 * in protocol version 1.
+	 */
+
+	protected ChatMessage(final long timestamp, final String username,
+				final String message, final byte[] usernameBytes,
+				final byte[] messageBytes){
+
+		this(MessageIds.NO_ORIGIN, 0, timestamp, username, message, usernameBytes, messageBytes);
+	}
+
+	protected ChatMessage(final long origin, final long sequence, final long timestamp,
+				final String username, final String message, final byte[] usernameBytes,
+				final byte[] messageBytes){
+
+		super(13 + usernameBytes.length + messageBytes.length,
 				AbstractMessage.TYPE_CHAT_MESSAGE);
 		
+		this.origin = origin;
+		this.sequence = sequence;
 		this.timestamp = timestamp;
 		this.username = username;
 		this.message = message;
+		this.usernameBytes = usernameBytes;
+		this.messageBytes = messageBytes;
+	}
+
+	public long getOrigin(){
+		return this.origin;
+	}
+
+	public long getSequence(){
+		return this.sequence;
+	}
+
+	/*
+	 * @return true if the message carries an ID
+	 */
+
+	public boolean hasId(){
+		return this.origin != MessageIds.NO_ORIGIN;
+	}
+
+	/*
+	 * @return the message's ID, see MessageIds#idOf
+	 */
+
+	public long getId(){
+		return MessageIds.idOf(this.origin, this.sequence);
 	}
 
 	public long getTimestamp(){
@@ -1,27 +1,65 @@
 package com.kd.chat.messaging;
 
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import com.kd.chat.AddressCache;
 
 public class ClientExchangeMessage extends AbstractMessage{
 	protected final String ipAddress;
 
+	//Resolved form of ipAddress, if known when the message was created
+	protected final InetAddress address;
+
 	protected final int port;
 
 	protected final String username;
 
+	//Encoded username, kept so it is only encoded once
+	protected final byte[] usernameBytes;
+
 	public ClientExchangeMessage(final String ipAddress, 
 			final int port, final String username) throws UnsupportedEncodingException{
 		
-		super(7+username.getBytes("UTF-16BE").length, AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE);
+		this(ipAddress, null, port, username, username.getBytes("UTF-16BE"));
+	}
+
+	/*
+	 * Creates a message for an already-resolved client address, so encoding it does
+	 * not need to resolve the address again.
+	 */
+
+	public ClientExchangeMessage(final InetAddress address, 
+			final int port, final String username) throws UnsupportedEncodingException{
+		
+		this(address.getHostAddress(), address, port, username, username.getBytes("UTF-16BE"));
+	}
+
+	protected ClientExchangeMessage(final String ipAddress, final InetAddress address,
+			final int port, final String username, final byte[] usernameBytes){
+		
+		super(7+usernameBytes.length, AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE);
 		this.ipAddress = ipAddress;
+		this.address = address;
 		this.port = port;
 		this.username = username;
+		this.usernameBytes = usernameBytes;
 	}
 
 	public String getIpAddress(){
 		return this.ipAddress;
 	}
 
+	/*
+	 * @return the client's resolved address, looked up through the shared
+	 * 		AddressCache if the message was created from a hostname
+	 */
+
+	public InetAddress getInetAddress() throws UnknownHostException{
+		return this.address != null ? this.address : AddressCache.SHARED.resolve(this.ipAddress);
+	}
+
 	public int getPort(){
 		return this.port;
 	}
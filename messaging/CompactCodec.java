@@ -0,0 +1,625 @@
+package com.kd.chat.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Encoder and decoder for version 2 of the wire protocol.  Compared to version 1
+ * strings are UTF-8 instead of UTF-16BE, the frame length and string lengths are
+ * varints, and chat timestamps are sent as a zigzag varint offset from the
+ * sender's session epoch instead of a fixed 8-byte value.
+ *
+ * Frame layout: varint length, type byte, body.  The length counts the type byte
+ * and the body, as in version 1.
+ *
+ * Chat:            8-byte origin, varint sequence, varint timestamp offset,
+ *                  varint username length, username, message
+ * Client exchange: address length byte (4 or 16), address, varint port, username
+ * Session:         varint epoch
+ * Peer list:       varint version, 8-byte digest, varint count, then per entry an
+ *                  address length byte (4 or 16), address, varint port,
+ *                  varint username length, username
+ * Peer digest:     varint version, 8-byte digest, varint count, 8-byte hashes
+ * Gossip:          8-byte origin, varint sequence, varint hops, varint timestamp,
+ *                  varint username length, username, message
+ * IHave and IWant: varint count, 8-byte message IDs
+ * Compressed:      deflated frame once offered, or no body as the offer, see
+ *                  FrameCompressor
+ * Sync request:    varint count, then per origin an 8-byte origin, varint sequence
+ * Sync batch:      varint count, then per message an 8-byte origin, varint
+ *                  sequence, varint timestamp, varint username length, username,
+ *                  varint message length, message
+ * Sync ack:        varint count of messages acknowledged
+ * Disconnect and keep-alive have no body.  Handshakes are always sent in
+ * version 1, since that is where the version is agreed.
+ */
+
+public final class CompactCodec{
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	//Epoch this process sends chat timestamps relative to
+	public static final long LOCAL_EPOCH = System.currentTimeMillis();
+
+	private CompactCodec(){
+	}
+
+	/*
+	 * Writes the message as a single version 2 frame and flushes the stream.
+	 *
+	 * @param message
+	 * 		the message to encode, must not be a handshake
+	 * @param out
+	 * 		the stream to write to
+	 */
+
+	public static void encodeMessage(final AbstractMessage message,
+			final OutputStream out) throws IOException{
+		DataOutputStream dout = out instanceof DataOutputStream ?
+				(DataOutputStream) out : new DataOutputStream(out);
+
+		//Lists and relayed messages are easier to size by encoding them first
+		if(message.getType() >= AbstractMessage.TYPE_PEER_LIST_MESSAGE){
+			ByteArrayOutputStream body = new ByteArrayOutputStream(message.getLength());
+			encodeBody(message, new DataOutputStream(body));
+			writeVarint(dout, 1 + body.size());
+			dout.writeByte(message.getType());
+			body.writeTo(dout);
+			dout.flush();
+			return;
+		}
+
+		byte[] first = null;
+		byte[] second = null;
+		long number = 0;
+		int bodyLength = 0;
+
+		switch(message.getType()){
+			case AbstractMessage.TYPE_CHAT_MESSAGE:
+				ChatMessage chat = (ChatMessage) message;
+				number = zigzag(chat.getTimestamp() - LOCAL_EPOCH);
+				first = chat.getUsername().getBytes(UTF8);
+				second = chat.getMessage().getBytes(UTF8);
+				bodyLength = 8 + varintSize(chat.getSequence()) + varintSize(number)
+					+ varintSize(first.length) + first.length + second.length;
+				break;
+
+			case AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE:
+				ClientExchangeMessage client = (ClientExchangeMessage) message;
+				first = client.getInetAddress().getAddress();
+				number = client.getPort();
+				second = client.getUsername().getBytes(UTF8);
+				bodyLength = 1 + first.length + varintSize(number) + second.length;
+				break;
+
+			case AbstractMessage.TYPE_SESSION_MESSAGE:
+				number = ((SessionMessage) message).getEpoch();
+				bodyLength = varintSize(number);
+				break;
+
+			case AbstractMessage.TYPE_DISCONNECT_MESSAGE:
+			case AbstractMessage.TYPE_KEEPALIVE_MESSAGE:
+				break;
+
+			default:
+				throw new IOException("Cannot encode " +
+						AbstractMessage.MESSAGE_NAMES[message.getType()] + " in protocol version 2");
+		}
+
+		writeVarint(dout, 1 + bodyLength);
+		dout.writeByte(message.getType());
+
+		switch(message.getType()){
+			case AbstractMessage.TYPE_CHAT_MESSAGE:
+				dout.writeLong(((ChatMessage) message).getOrigin());
+				writeVarint(dout, ((ChatMessage) message).getSequence());
+				writeVarint(dout, number);
+				writeVarint(dout, first.length);
+				dout.write(first);
+				dout.write(second);
+				break;
+
+			case AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE:
+				dout.writeByte(first.length);
+				dout.write(first);
+				writeVarint(dout, number);
+				dout.write(second);
+				break;
+
+			case AbstractMessage.TYPE_SESSION_MESSAGE:
+				writeVarint(dout, number);
+				break;
+
+			default:
+				break;
+		}
+
+		dout.flush();
+	}
+
+	/*Writes the body of a peer list, peer digest, gossip, IHave, IWant, ping, pong
+	 * or sync message*/
+
+	protected static void encodeBody(final AbstractMessage message,
+			final DataOutputStream body) throws IOException{
+		if(message.getType() == AbstractMessage.TYPE_GOSSIP_MESSAGE){
+			GossipMessage gossip = (GossipMessage) message;
+			byte[] username = gossip.getUsername().getBytes(UTF8);
+			body.writeLong(gossip.getOrigin());
+			writeVarint(body, gossip.getSequence());
+			writeVarint(body, gossip.getHops());
+			writeVarint(body, gossip.getTimestamp());
+			writeVarint(body, username.length);
+			body.write(username);
+			body.write(gossip.getMessage().getBytes(UTF8));
+		}
+		else if(message.getType() == AbstractMessage.TYPE_IHAVE_MESSAGE
+				|| message.getType() == AbstractMessage.TYPE_IWANT_MESSAGE){
+			long[] ids = ((GossipIdsMessage) message).getIds();
+			writeVarint(body, ids.length);
+			for(int i = 0; i < ids.length; ++i){
+				body.writeLong(ids[i]);
+			}
+		}
+		else if(message.getType() == AbstractMessage.TYPE_PING_MESSAGE
+				|| message.getType() == AbstractMessage.TYPE_PONG_MESSAGE){
+			body.writeLong(((HeartbeatMessage) message).getToken());
+		}
+		else if(message.getType() == AbstractMessage.TYPE_SYNC_REQUEST_MESSAGE){
+			SyncRequestMessage request = (SyncRequestMessage) message;
+			long[] origins = request.getOrigins();
+			long[] sequences = request.getSequences();
+			writeVarint(body, origins.length);
+			for(int i = 0; i < origins.length; ++i){
+				body.writeLong(origins[i]);
+				writeVarint(body, sequences[i]);
+			}
+		}
+		else if(message.getType() == AbstractMessage.TYPE_SYNC_BATCH_MESSAGE){
+			SyncBatchMessage batch = (SyncBatchMessage) message;
+			List<ChatMessage> messages = batch.getMessages();
+			writeVarint(body, batch.getCount());
+			if(messages == null){
+				body.write(batch.records, 0, batch.recordsLength);
+			}
+			else{
+				for(ChatMessage chat : messages){
+					byte[] username = chat.getUsername().getBytes(UTF8);
+					byte[] text = chat.getMessage().getBytes(UTF8);
+					body.writeLong(chat.getOrigin());
+					writeVarint(body, chat.getSequence());
+					writeVarint(body, chat.getTimestamp());
+					writeVarint(body, username.length);
+					body.write(username);
+					writeVarint(body, text.length);
+					body.write(text);
+				}
+			}
+		}
+		else if(message.getType() == AbstractMessage.TYPE_SYNC_ACK_MESSAGE){
+			writeVarint(body, ((SyncAckMessage) message).getCount());
+		}
+		else if(message.getType() == AbstractMessage.TYPE_PEER_LIST_MESSAGE){
+			PeerListMessage list = (PeerListMessage) message;
+			writeVarint(body, list.getVersion());
+			body.writeLong(list.getDigest());
+			writeVarint(body, list.getPeers().size());
+			for(ClientExchangeMessage peer : list.getPeers()){
+				byte[] address = peer.getInetAddress().getAddress();
+				byte[] username = peer.getUsername().getBytes(UTF8);
+				body.writeByte(address.length);
+				body.write(address);
+				writeVarint(body, peer.getPort());
+				writeVarint(body, username.length);
+				body.write(username);
+			}
+		}
+		else{
+			PeerDigestMessage digest = (PeerDigestMessage) message;
+			writeVarint(body, digest.getVersion());
+			body.writeLong(digest.getDigest());
+			long[] hashes = digest.getHashes();
+			writeVarint(body, hashes.length);
+			for(int i = 0; i < hashes.length; ++i){
+				body.writeLong(hashes[i]);
+			}
+		}
+	}
+
+	/*
+	 * Reads one version 2 frame.
+	 *
+	 * @param in
+	 * 		the stream to read from
+	 * @param remoteEpoch
+	 * 		the epoch the remote client sends chat timestamps relative to
+	 * @return the decoded message, or null if the frame had an unknown type
+	 */
+
+	public static AbstractMessage decodeMessage(final InputStream in,
+			final long remoteEpoch) throws IOException{
+		if(in == null || in.available() < 0){
+			throw new SocketException("Socket is null or closed.");
+		}
+
+		DataInputStream din = new DataInputStream(in);
+
+		int messageLength = checkLength(readVarint(din), Integer.MAX_VALUE);
+		byte messageType = din.readByte();
+		int bodyLength = messageLength - 1;
+
+		switch(messageType){
+			case AbstractMessage.TYPE_CHAT_MESSAGE:
+				long chatOrigin = din.readLong();
+				long chatSequence = readVarint(din);
+				long offset = readVarint(din);
+				int usernameLength = checkLength(readVarint(din), bodyLength);
+				byte[] usernameBytes = new byte[usernameLength];
+				din.readFully(usernameBytes);
+				byte[] messageBytes = new byte[checkLength(bodyLength - 8 - varintSize(chatSequence)
+					- varintSize(offset) - varintSize(usernameLength) - usernameLength, bodyLength)];
+				din.readFully(messageBytes);
+				return new ChatMessage(chatOrigin, chatSequence, remoteEpoch + unzigzag(offset),
+						new String(usernameBytes, UTF8), new String(messageBytes, UTF8));
+
+			case AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE:
+				int ipLength = din.readUnsignedByte();
+				if(ipLength != 4 && ipLength != 16){
+					throw new IOException("Invalid client address length: " + ipLength);
+				}
+				byte[] ipBytes = new byte[ipLength];
+				din.readFully(ipBytes);
+				int port = checkLength(readVarint(din), 0xFFFF);
+				byte[] unameBytes = new byte[checkLength(bodyLength - 1 - ipLength - varintSize(port),
+						bodyLength)];
+				din.readFully(unameBytes);
+				return new ClientExchangeMessage(InetAddress.getByAddress(ipBytes),
+						port, new String(unameBytes, UTF8));
+
+			case AbstractMessage.TYPE_SESSION_MESSAGE:
+				return new SessionMessage(readVarint(din));
+
+			case AbstractMessage.TYPE_PEER_LIST_MESSAGE:
+				long listVersion = readVarint(din);
+				long listDigest = din.readLong();
+				//Every entry takes at least 4 bytes, so the count can't exceed the body
+				int peerCount = checkLength(readVarint(din), bodyLength / 4);
+				List<ClientExchangeMessage> peers = new ArrayList<ClientExchangeMessage>(peerCount);
+				for(int i = 0; i < peerCount; ++i){
+					int addressLength = din.readUnsignedByte();
+					if(addressLength != 4 && addressLength != 16){
+						throw new IOException("Invalid peer address length: " + addressLength);
+					}
+					byte[] address = new byte[addressLength];
+					din.readFully(address);
+					int peerPort = checkLength(readVarint(din), 0xFFFF);
+					byte[] name = new byte[checkLength(readVarint(din), bodyLength)];
+					din.readFully(name);
+					peers.add(new ClientExchangeMessage(InetAddress.getByAddress(address),
+							peerPort, new String(name, UTF8)));
+				}
+				return new PeerListMessage(listVersion, listDigest, peers);
+
+			case AbstractMessage.TYPE_PEER_DIGEST_MESSAGE:
+				long digestVersion = readVarint(din);
+				long digest = din.readLong();
+				long[] hashes = new long[checkLength(readVarint(din), bodyLength / 8)];
+				for(int i = 0; i < hashes.length; ++i){
+					hashes[i] = din.readLong();
+				}
+				return new PeerDigestMessage(digestVersion, digest, hashes);
+
+			case AbstractMessage.TYPE_GOSSIP_MESSAGE:
+				long origin = din.readLong();
+				long sequence = readVarint(din);
+				int hops = checkLength(readVarint(din), Integer.MAX_VALUE);
+				long timestamp = readVarint(din);
+				int nameLength = checkLength(readVarint(din), bodyLength);
+				byte[] gossipName = new byte[nameLength];
+				din.readFully(gossipName);
+				byte[] gossipText = new byte[checkLength(bodyLength - 8 - varintSize(sequence)
+					- varintSize(hops) - varintSize(timestamp) - varintSize(nameLength) - nameLength,
+					bodyLength)];
+				din.readFully(gossipText);
+				return new GossipMessage(origin, sequence, hops, timestamp,
+						new String(gossipName, UTF8), new String(gossipText, UTF8));
+
+			case AbstractMessage.TYPE_IHAVE_MESSAGE:
+			case AbstractMessage.TYPE_IWANT_MESSAGE:
+				long[] ids = new long[checkLength(readVarint(din), bodyLength / 8)];
+				for(int i = 0; i < ids.length; ++i){
+					ids[i] = din.readLong();
+				}
+				return new GossipIdsMessage(messageType, ids);
+
+			case AbstractMessage.TYPE_PING_MESSAGE:
+			case AbstractMessage.TYPE_PONG_MESSAGE:
+				return new HeartbeatMessage(messageType, din.readLong());
+
+			case AbstractMessage.TYPE_SYNC_REQUEST_MESSAGE:
+				//Every origin takes at least 9 bytes, so the count can't exceed the body
+				int originCount = checkLength(readVarint(din), bodyLength / 9);
+				long[] origins = new long[originCount];
+				long[] sequences = new long[originCount];
+				for(int i = 0; i < originCount; ++i){
+					origins[i] = din.readLong();
+					sequences[i] = readVarint(din);
+				}
+				return new SyncRequestMessage(origins, sequences);
+
+			case AbstractMessage.TYPE_SYNC_BATCH_MESSAGE:
+				//Every message takes at least 12 bytes
+				int syncCount = checkLength(readVarint(din), bodyLength / 12);
+				List<ChatMessage> synced = new ArrayList<ChatMessage>(syncCount);
+				for(int i = 0; i < syncCount; ++i){
+					long syncOrigin = din.readLong();
+					long syncSequence = readVarint(din);
+					long syncTimestamp = readVarint(din);
+					byte[] syncName = new byte[checkLength(readVarint(din), bodyLength)];
+					din.readFully(syncName);
+					byte[] syncText = new byte[checkLength(readVarint(din), bodyLength)];
+					din.readFully(syncText);
+					synced.add(new ChatMessage(syncOrigin, syncSequence, syncTimestamp,
+							new String(syncName, UTF8), new String(syncText, UTF8)));
+				}
+				return new SyncBatchMessage(synced);
+
+			case AbstractMessage.TYPE_SYNC_ACK_MESSAGE:
+				return new SyncAckMessage(checkLength(readVarint(din), Integer.MAX_VALUE));
+
+			case AbstractMessage.TYPE_DISCONNECT_MESSAGE:
+				return AbstractMessage.DISCONNECT_MESSAGE;
+
+			case AbstractMessage.TYPE_KEEPALIVE_MESSAGE:
+				return AbstractMessage.KEEPALIVE_MESSAGE;
+
+			default:
+				System.err.println("Unexpected message type when decoding: "+ messageType);
+				//The length is known, so skip the body and stay in step with the stream
+				din.skipBytes(bodyLength);
+				return null;
+		}
+	}
+
+	/*
+	 * Reads the frame length at the buffer's position without moving it.
+	 *
+	 * @param buffer
+	 * 		the buffer holding the start of a frame
+	 * @return the total size of the frame including its length prefix, or -1 if
+	 * 		the buffer doesn't yet hold the whole prefix
+	 */
+
+	public static int peekFrameSize(final ByteBuffer buffer) throws IOException{
+		long value = 0;
+		for(int i = 0; i < 5; ++i){
+			if(buffer.position() + i >= buffer.limit()){
+				return -1;
+			}
+			byte b = buffer.get(buffer.position() + i);
+			value |= (long) (b & 0x7F) << (7 * i);
+			if(b >= 0){
+				if(value < 1 || value > Integer.MAX_VALUE - 5){
+					throw new IOException("Invalid frame length: " + value);
+				}
+				return (int) value + i + 1;
+			}
+		}
+		throw new IOException("Frame length is not a valid varint.");
+	}
+
+	/*
+	 * Reads an unsigned varint at the given index without moving the buffer's
+	 * position.  The caller must know that the whole varint is in the buffer.
+	 */
+
+	public static long getVarint(final ByteBuffer buffer, final int index) throws IOException{
+		return getVarint(buffer, index, buffer.limit());
+	}
+
+	/*
+	 * Reads an unsigned varint at the given index without moving the buffer's
+	 * position, failing if it runs past the end index, e.g. the end of its frame.
+	 */
+
+	public static long getVarint(final ByteBuffer buffer, final int index, final int end)
+			throws IOException{
+		long value = 0;
+		for(int shift = 0, i = index; shift < 64 && i < end; shift += 7, ++i){
+			byte b = buffer.get(i);
+			value |= (long) (b & 0x7F) << shift;
+			if(b >= 0){
+				return value;
+			}
+		}
+		throw new IOException("Varint is truncated or too long.");
+	}
+
+	/*Writes an unsigned LEB128 varint*/
+
+	public static void writeVarint(final DataOutputStream out, long value) throws IOException{
+		while((value & ~0x7FL) != 0){
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/*
+	 * Checks a length or count read from a frame, so a malformed frame fails
+	 * with an IOException rather than a runtime exception further on.
+	 *
+	 * @param length
+	 * 		the value read
+	 * @param limit
+	 * 		the largest value the frame can hold
+	 * @return the value as an int
+	 */
+
+	public static int checkLength(final long length, final int limit) throws IOException{
+		if(length < 0 || length > limit){
+			throw new IOException("Malformed frame, length " + length + " is out of range.");
+		}
+		return (int) length;
+	}
+
+	/*Reads an unsigned LEB128 varint of up to 64 bits*/
+
+	public static long readVarint(final DataInputStream in) throws IOException{
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7){
+			int b = in.read();
+			if(b < 0){
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0){
+				return value;
+			}
+		}
+		throw new IOException("Varint is too long.");
+	}
+
+	/*
+	 * @return the number of bytes the value takes as a varint
+	 */
+
+	public static int varintSize(long value){
+		int size = 1;
+		while((value & ~0x7FL) != 0){
+			value >>>= 7;
+			++size;
+		}
+		return size;
+	}
+
+	/*Maps signed values to unsigned so small negative offsets stay short*/
+
+	public static long zigzag(final long value){
+		return (value << 1) ^ (value >> 63);
+	}
+
+	public static long unzigzag(final long value){
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/*
+	 * Writes one message of a sync batch, see SyncBatchMessage, straight from a
+	 * protocol version 2 chat frame, copying its text through a scratch array
+	 * rather than decoding it.
+	 *
+	 * @param out
+	 * 		where to write the record
+	 * @param frame
+	 * 		a view of the frame
+	 * @param scratch
+	 * 		any array, to copy the frame's text through
+	 */
+
+	public static void writeSyncRecord(final DataOutputStream out, final ChatFrame frame,
+			final byte[] scratch) throws IOException{
+		out.writeLong(frame.origin);
+		writeVarint(out, frame.sequence);
+		writeVarint(out, frame.timestamp);
+		writeVarint(out, frame.usernameLength);
+		copy(out, frame.buffer, frame.usernameStart, frame.usernameLength, scratch);
+		writeVarint(out, frame.messageLength);
+		copy(out, frame.buffer, frame.messageStart, frame.messageLength, scratch);
+	}
+
+	/*Writes bytes from any buffer without moving its position*/
+
+	protected static void copy(final DataOutputStream out, final ByteBuffer buffer, final int start,
+			final int length, final byte[] scratch) throws IOException{
+		if(buffer.hasArray()){
+			out.write(buffer.array(), buffer.arrayOffset() + start, length);
+			return;
+		}
+		for(int done = 0; done < length; ){
+			int chunk = Math.min(scratch.length, length - done);
+			for(int i = 0; i < chunk; ++i){
+				scratch[i] = buffer.get(start + done + i);
+			}
+			out.write(scratch, 0, chunk);
+			done += chunk;
+		}
+	}
+
+	/*
+	 * @return the size, including its length prefix, of the frame putChatFrame
+	 * 		writes for a chat frame
+	 */
+
+	public static int chatFrameSize(final ChatFrame frame, final long epoch){
+		int length = chatBodyLength(frame, epoch);
+		return varintSize(length) + length;
+	}
+
+	/*
+	 * Writes a protocol version 2 chat frame straight from a view of another,
+	 * with its timestamp relative to a different epoch, copying the text rather
+	 * than decoding it.  Neither buffer's position is moved.
+	 *
+	 * @param out
+	 * 		the buffer to write to, with room for chatFrameSize(frame, epoch) bytes
+	 * @param index
+	 * 		where to write the frame
+	 * @param frame
+	 * 		a view of a protocol version 2 chat frame
+	 * @param epoch
+	 * 		the epoch to write the timestamp relative to
+	 */
+
+	public static void putChatFrame(final ByteBuffer out, int index, final ChatFrame frame,
+			final long epoch){
+		index = putVarint(out, index, chatBodyLength(frame, epoch));
+		out.put(index++, AbstractMessage.TYPE_CHAT_MESSAGE);
+		out.putLong(index, frame.origin);
+		index = putVarint(out, index + 8, frame.sequence);
+		index = putVarint(out, index, zigzag(frame.timestamp - epoch));
+		index = putVarint(out, index, frame.usernameLength);
+		copy(frame.buffer, frame.usernameStart, out, index, frame.usernameLength);
+		copy(frame.buffer, frame.messageStart, out, index + frame.usernameLength, frame.messageLength);
+	}
+
+	/*Copies bytes between buffers by index, without moving either position.
+	 * ByteBuffer only has an absolute bulk put from JDK 16.*/
+
+	protected static void copy(final ByteBuffer from, final int start, final ByteBuffer out,
+			final int index, final int length){
+		if(from.hasArray() && out.hasArray()){
+			System.arraycopy(from.array(), from.arrayOffset() + start,
+					out.array(), out.arrayOffset() + index, length);
+			return;
+		}
+		for(int i = 0; i < length; ++i){
+			out.put(index + i, from.get(start + i));
+		}
+	}
+
+	protected static int chatBodyLength(final ChatFrame frame, final long epoch){
+		return 9 + varintSize(frame.sequence) + varintSize(zigzag(frame.timestamp - epoch))
+			+ varintSize(frame.usernameLength) + frame.usernameLength + frame.messageLength;
+	}
+
+	/*Writes an unsigned varint at the given index, returning the index after it*/
+
+	protected static int putVarint(final ByteBuffer out, int index, long value){
+		while((value & ~0x7FL) != 0){
+			out.put(index++, (byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put(index++, (byte) value);
+		return index;
+	}
+}
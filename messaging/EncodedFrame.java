@@ -0,0 +1,103 @@
+package com.kd.chat.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * An immutable, fully-encoded message frame (length prefix included).  A frame
+ * is encoded once and can then be written as-is to any number of remote
+ * clients, so broadcasting a message does not re-encode it for every peer.
+ */
+
+public final class EncodedFrame{
+	protected final byte type;
+
+	protected final int protocolVersion;
+
+	protected final byte[] bytes;
+
+	protected EncodedFrame(final byte type, final int protocolVersion, final byte[] bytes){
+		this.type = type;
+		this.protocolVersion = protocolVersion;
+		this.bytes = bytes;
+	}
+
+	/*
+	 * Encodes the message into a new protocol version 1 frame.
+	 *
+	 * @param message
+	 * 		the message to encode
+	 * @return the encoded frame
+	 */
+
+	public static EncodedFrame encode(final AbstractMessage message) throws IOException{
+		return encode(message, AbstractMessage.PROTOCOL_V1);
+	}
+
+	/*
+	 * Encodes the message into a new frame in the given wire format.
+	 *
+	 * @param message
+	 * 		the message to encode
+	 * @param protocolVersion
+	 * 		PROTOCOL_V1 or PROTOCOL_V2
+	 * @return the encoded frame
+	 */
+
+	public static EncodedFrame encode(final AbstractMessage message,
+			final int protocolVersion) throws IOException{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(4 + message.getLength());
+		if(protocolVersion >= AbstractMessage.PROTOCOL_V2){
+			CompactCodec.encodeMessage(message, out);
+		}
+		else{
+			AbstractMessage.encodeMessage(message, out);
+		}
+		return new EncodedFrame(message.getType(), protocolVersion, out.toByteArray());
+	}
+
+	public byte getType(){
+		return this.type;
+	}
+
+	public int getProtocolVersion(){
+		return this.protocolVersion;
+	}
+
+	/*
+	 * @return the number of bytes in the frame, including the length prefix
+	 */
+
+	public int getLength(){
+		return this.bytes.length;
+	}
+
+	/*
+	 * @return a new read-only view of the frame, positioned at its first byte.
+	 * Each caller gets its own position and limit.
+	 */
+
+	public ByteBuffer asByteBuffer(){
+		return ByteBuffer.wrap(this.bytes).asReadOnlyBuffer();
+	}
+
+	/*
+	 * Writes the whole frame to the stream with a single write.  The stream is not
+	 * flushed, so several frames can be written to a buffered stream and sent
+	 * together.
+	 *
+	 * @param out
+	 * 		the stream to write to
+	 */
+
+	public void writeTo(final OutputStream out) throws IOException{
+		out.write(this.bytes);
+	}
+
+	@Override
+	public String toString(){
+		return '(' + String.valueOf(this.bytes.length) + ")" + AbstractMessage.MESSAGE_NAMES[this.type] + " frame";
+	}
+}
@@ -0,0 +1,308 @@
+package com.kd.chat.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * DEFLATE compression for one connection in protocol version 2.  Each
+ * direction is a single raw deflate stream that lives as long as the
+ * connection, so later frames are compressed against the text of earlier
+ * ones.  Both ends start the stream from the same preset dictionary of common
+ * chat text, which helps the first few frames.
+ *
+ * Compression is agreed after the handshake, which is unchanged.  A client
+ * with compression on sends an offer, a compressed frame with no body, right
+ * after its session message, and starts compressing what it sends once it
+ * reads the other side's offer.  Clients that predate compression skip the
+ * offer as an unknown frame type and never send one, so they are never sent
+ * a compressed frame.
+ *
+ * A frame at least MIN_BYTES long is deflated whole and sent as a compressed
+ * frame: varint length, type byte, then the deflate output up to a sync flush,
+ * minus the 00 00 FF FF that every sync flush ends with.  Inflating the body
+ * gives back exactly one frame.  Smaller frames are sent as they are and don't
+ * touch the stream.
+ *
+ * compress() must only be called by the thread writing the connection, in the
+ * order frames go out, and inflate() only by the thread reading it.  end()
+ * frees the native zlib memory once the connection is closed, from any thread;
+ * compressing or inflating after that throws an IOException.
+ *
+ * Set the smallest frame compressed with -Dchat.compression.minBytes=<n> and
+ * the level with -Dchat.compression.level=<0-9>.
+ */
+
+public final class FrameCompressor{
+	//Smallest frame worth compressing. Set with -Dchat.compression.minBytes=<n>
+	public static final int MIN_BYTES =
+		Integer.getInteger("chat.compression.minBytes", 128).intValue();
+
+	//Deflate level. Set with -Dchat.compression.level=<0-9>
+	public static final int LEVEL =
+		Integer.getInteger("chat.compression.level", Deflater.DEFAULT_COMPRESSION).intValue();
+
+	//Largest frame a compressed frame may inflate to
+	public static final int MAX_INFLATED_BYTES = 16 * 1024 * 1024;
+
+	//Compressed frame with no body, sent to offer compression, see the class comment
+	protected static final byte[] OFFER = { 1, AbstractMessage.TYPE_COMPRESSED_MESSAGE };
+
+	//Every sync flush ends with an empty stored block
+	protected static final byte[] SYNC_TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+	//Text that chat frames often share, most common last since deflate finds
+	//the closest match first
+	protected static final byte[] DICTIONARY = (
+		"http://https://www..com/.org/.net/.html.png.jpg" +
+		"thanks thank you sorry please welcome morning evening tonight tomorrow " +
+		"yesterday today weekend meeting lunch coffee later again already " +
+		"because really actually probably maybe think know want need going " +
+		"doing working problem question answer people something anything " +
+		"nothing everyone someone there their they're what when where which " +
+		"would could should about after before right good great nice cool sure " +
+		"okay yeah yes no lol haha :) :( :D ;) " +
+		"I'm I'll I've don't can't won't didn't doesn't isn't it's that's " +
+		"how are you? what's up? see you later bye hello hi hey " +
+		"the and for with this that have from you your not but all was are is "
+		).getBytes(CompactCodec.UTF8);
+
+	protected final Deflater deflater = new Deflater(LEVEL, true);
+
+	protected final Inflater inflater = new Inflater(true);
+
+	//Deflate output, grown as needed and reused for every frame
+	protected byte[] deflated = new byte[1024];
+
+	//Frame inflated from the last compressed frame read
+	protected ByteBuffer inflated = ByteBuffer.allocate(4 * 1024);
+
+	//Counters, each only written by the writer or the reader
+	protected volatile long framesCompressed = 0;
+
+	protected volatile long bytesIn = 0;
+
+	protected volatile long bytesOut = 0;
+
+	protected volatile long deflateNanos = 0;
+
+	protected volatile long framesInflated = 0;
+
+	protected volatile long inflateNanos = 0;
+
+	//Set by end(), under the lock of the deflater or inflater it has released
+	protected boolean deflaterEnded = false;
+
+	protected boolean inflaterEnded = false;
+
+	public FrameCompressor(){
+		this.deflater.setDictionary(DICTIONARY);
+		this.inflater.setDictionary(DICTIONARY);
+	}
+
+	/*
+	 * Offers compression to the remote client, so it compresses what it sends.
+	 *
+	 * @param out
+	 * 		the socket's stream, right after the session message
+	 */
+
+	public static void writeOffer(final OutputStream out) throws IOException{
+		out.write(OFFER);
+		out.flush();
+	}
+
+	/*
+	 * @param size
+	 * 		the size of a compressed frame including its length prefix
+	 * @return true if the frame is an offer rather than a frame to inflate
+	 */
+
+	public static boolean isOffer(final int size){
+		return size == OFFER.length;
+	}
+
+	/*
+	 * Compresses a frame that is about to be written, if it is large enough.
+	 *
+	 * @param frame
+	 * 		a protocol version 2 frame
+	 * @return the compressed frame, or the frame itself if it is too small
+	 */
+
+	public EncodedFrame compress(final EncodedFrame frame) throws IOException{
+		if(frame.getLength() < MIN_BYTES || frame.getProtocolVersion() < AbstractMessage.PROTOCOL_V2){
+			return frame;
+		}
+		long start = System.nanoTime();
+		byte[] bytes;
+		synchronized(this.deflater){
+			if(this.deflaterEnded){
+				throw new IOException("Compressor has been released.");
+			}
+			this.deflater.setInput(frame.bytes);
+			int length = 0;
+			while(true){
+				length += this.deflater.deflate(this.deflated, length,
+						this.deflated.length - length, Deflater.SYNC_FLUSH);
+				if(length < this.deflated.length){
+					break;
+				}
+				byte[] larger = new byte[this.deflated.length * 2];
+				System.arraycopy(this.deflated, 0, larger, 0, length);
+				this.deflated = larger;
+			}
+			int bodyLength = length - SYNC_TAIL.length;
+
+			bytes = new byte[CompactCodec.varintSize(1 + bodyLength) + 1 + bodyLength];
+			int index = 0;
+			long value = 1 + bodyLength;
+			while((value & ~0x7FL) != 0){
+				bytes[index++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[index++] = (byte) value;
+			bytes[index++] = AbstractMessage.TYPE_COMPRESSED_MESSAGE;
+			System.arraycopy(this.deflated, 0, bytes, index, bodyLength);
+		}
+
+		this.deflateNanos += System.nanoTime() - start;
+		this.bytesIn += frame.getLength();
+		this.bytesOut += bytes.length;
+		++this.framesCompressed;
+		return new EncodedFrame(frame.getType(), frame.getProtocolVersion(), bytes);
+	}
+
+	/*
+	 * Inflates a compressed frame.
+	 *
+	 * @param buffer
+	 * 		an array-backed buffer holding the whole compressed frame
+	 * @param start
+	 * 		the index of the frame's length prefix
+	 * @param size
+	 * 		the size of the frame including its length prefix
+	 * @return a buffer, reused by the next call, positioned at the start of the
+	 * 		inflated frame and limited to its end
+	 * @throws IOException if the body doesn't inflate to exactly one frame
+	 */
+
+	public ByteBuffer inflate(final ByteBuffer buffer, final int start, final int size) throws IOException{
+		long began = System.nanoTime();
+		int body = start + CompactCodec.varintSize(CompactCodec.getVarint(buffer, start)) + 1;
+		this.inflated.clear();
+		synchronized(this.inflater){
+			if(this.inflaterEnded){
+				throw new IOException("Compressor has been released.");
+			}
+			try{
+				this.inflater.setInput(buffer.array(), buffer.arrayOffset() + body, start + size - body);
+				this.inflateInput();
+				this.inflater.setInput(SYNC_TAIL);
+				this.inflateInput();
+			}
+			catch(DataFormatException dfe){
+				throw new IOException("Malformed compressed frame: " + dfe.getMessage());
+			}
+		}
+		this.inflated.flip();
+
+		int frameSize = CompactCodec.peekFrameSize(this.inflated);
+		if(frameSize != this.inflated.remaining()){
+			throw new IOException("Compressed frame did not hold exactly one frame.");
+		}
+		this.inflateNanos += System.nanoTime() - began;
+		++this.framesInflated;
+		return this.inflated;
+	}
+
+	/*Inflates all of the current input into the inflated buffer, growing it as needed*/
+
+	protected void inflateInput() throws IOException, DataFormatException{
+		while(true){
+			ByteBuffer out = this.inflated;
+			int count = this.inflater.inflate(out.array(), out.arrayOffset() + out.position(),
+					out.remaining());
+			out.position(out.position() + count);
+			//Stopping with room to spare means the input is used up
+			if(out.hasRemaining()){
+				return;
+			}
+			if(out.capacity() >= MAX_INFLATED_BYTES){
+				throw new IOException("Compressed frame inflates to over " +
+						MAX_INFLATED_BYTES + " bytes.");
+			}
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_INFLATED_BYTES, out.capacity() * 2));
+			out.flip();
+			larger.put(out);
+			this.inflated = larger;
+		}
+	}
+
+	/*
+	 * Frees the native memory of both streams, waiting for a compress or
+	 * inflate in progress to finish.  Does nothing if already called.
+	 */
+
+	public void end(){
+		synchronized(this.deflater){
+			if(!this.deflaterEnded){
+				this.deflaterEnded = true;
+				this.deflater.end();
+			}
+		}
+		synchronized(this.inflater){
+			if(!this.inflaterEnded){
+				this.inflaterEnded = true;
+				this.inflater.end();
+			}
+		}
+	}
+
+	/*
+	 * @return the number of frames compressed
+	 */
+
+	public long getFramesCompressed(){
+		return this.framesCompressed;
+	}
+
+	/*
+	 * @return the compressed size of the frames compressed so far as a fraction
+	 * 		of their original size, or 1 if none have been
+	 */
+
+	public double getRatio(){
+		long in = this.bytesIn;
+		return in == 0 ? 1 : (double) this.bytesOut / in;
+	}
+
+	/*
+	 * @return the average time spent compressing a frame, in nanoseconds
+	 */
+
+	public long getDeflateNanosPerFrame(){
+		long frames = this.framesCompressed;
+		return frames == 0 ? 0 : this.deflateNanos / frames;
+	}
+
+	/*
+	 * @return the average time spent inflating a frame, in nanoseconds
+	 */
+
+	public long getInflateNanosPerFrame(){
+		long frames = this.framesInflated;
+		return frames == 0 ? 0 : this.inflateNanos / frames;
+	}
+
+	@Override
+	public String toString(){
+		return "compressed=" + this.framesCompressed + ", ratio=" +
+			String.format("%.3f", this.getRatio()) + ", deflate=" +
+			this.getDeflateNanosPerFrame() + "ns/frame, inflated=" + this.framesInflated +
+			", inflate=" + this.getInflateNanosPerFrame() + "ns/frame";
+	}
+}
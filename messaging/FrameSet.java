@@ -0,0 +1,38 @@
+package com.kd.chat.messaging;
+
+import java.io.IOException;
+
+/*
+ * One message, encoded on demand in each wire format.  A broadcast to clients
+ * that speak different protocol versions encodes the message at most once per
+ * version, and every client of the same version is sent the same frame.
+ *
+ * Not thread-safe; meant to be used by the thread doing the broadcast.
+ */
+
+public final class FrameSet{
+	protected final AbstractMessage message;
+
+	protected final EncodedFrame[] frames = new EncodedFrame[AbstractMessage.PROTOCOL_V2 + 1];
+
+	public FrameSet(final AbstractMessage message){
+		this.message = message;
+	}
+
+	/*
+	 * @param protocolVersion
+	 * 		PROTOCOL_V1 or PROTOCOL_V2
+	 * @return the message encoded in that version, encoding it on first use
+	 */
+
+	public EncodedFrame get(final int protocolVersion) throws IOException{
+		if(this.frames[protocolVersion] == null){
+			this.frames[protocolVersion] = EncodedFrame.encode(this.message, protocolVersion);
+		}
+		return this.frames[protocolVersion];
+	}
+
+	public AbstractMessage getMessage(){
+		return this.message;
+	}
+}
@@ -0,0 +1,41 @@
+package com.kd.chat.messaging;
+
+/*
+ * A list of gossip message IDs, see MessageIds#idOf.  Sent as an IHave to
+ * announce messages the sender has without pushing them, and as an IWant to
+ * ask for messages that were announced but never arrived.
+ *
+ * Only sent in protocol version 2, see CompactCodec.
+ */
+
+public class GossipIdsMessage extends AbstractMessage{
+	protected final long[] ids;
+
+	/*
+	 * @param type
+	 * 		TYPE_IHAVE_MESSAGE or TYPE_IWANT_MESSAGE
+	 * @param ids
+	 * 		the message IDs, not copied
+	 */
+
+	public GossipIdsMessage(final byte type, final long[] ids){
+		super(1 + 5 + 8 * ids.length, type);
+		if(type != AbstractMessage.TYPE_IHAVE_MESSAGE && type != AbstractMessage.TYPE_IWANT_MESSAGE){
+			throw new IllegalArgumentException("Not a gossip ID list type: " + type);
+		}
+		this.ids = ids;
+	}
+
+	/*
+	 * @return the IDs, not copied, so must not be modified
+	 */
+
+	public long[] getIds(){
+		return this.ids;
+	}
+
+	@Override
+	public String toString(){
+		return super.toString() + ' ' + this.ids.length + " ids";
+	}
+}
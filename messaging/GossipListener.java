@@ -0,0 +1,17 @@
+package com.kd.chat.messaging;
+import com.kd.chat.Client;
+
+
+
+
+/*
+ * A MessageListener that also takes part in the gossip overlay.  Listeners that
+ * only implement MessageListener never see gossip traffic.
+ */
+
+public interface GossipListener extends MessageListener{
+	public void gossipArrived(final Client client, final GossipMessage message);
+
+	//Called for both IHave and IWant lists, see GossipIdsMessage#getType()
+	public void gossipIdsArrived(final Client client, final GossipIdsMessage message);
+}
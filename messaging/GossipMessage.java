@@ -0,0 +1,114 @@
+package com.kd.chat.messaging;
+
+import java.io.UnsupportedEncodingException;
+
+/*
+ * A chat message relayed through the overlay, see GossipOverlay.  Identified by
+ * the originating client's origin and sequence number (see MessageIds), so every
+ * relay can tell whether it has already seen the message.  Timestamps
+ * are absolute since the message may cross many links, each with its own epoch.
+ *
+ * Only sent in protocol version 2, see CompactCodec.
+ */
+
+public class GossipMessage extends AbstractMessage{
+	protected final long origin;
+
+	protected final long sequence;
+
+	protected final int hops;
+
+	protected final long timestamp;
+
+	protected final String username;
+
+	protected final String message;
+
+	/*
+	 * @param origin
+	 * 		the originating client's origin ID
+	 * @param sequence
+	 * 		the number the originating client gave this message
+	 * @param hops
+	 * 		the number of times the message has been relayed
+	 * @param timestamp
+	 * 		when the message was written, in milliseconds since 1970
+	 * @param username
+	 * 		the username of the originating client
+	 * @param message
+	 * 		the chat text
+	 */
+
+	public GossipMessage(final long origin, final long sequence, final int hops,
+			final long timestamp, final String username, final String message){
+		super(1 + 8 + 10 + 5 + 10 + 5 + 3 * (username.length() + message.length()),
+				AbstractMessage.TYPE_GOSSIP_MESSAGE);
+		this.origin = origin;
+		this.sequence = sequence;
+		this.hops = hops;
+		this.timestamp = timestamp;
+		this.username = username;
+		this.message = message;
+	}
+
+	/*
+	 * @return the message's ID, see MessageIds#idOf
+	 */
+
+	public long getId(){
+		return MessageIds.idOf(this.origin, this.sequence);
+	}
+
+	public long getOrigin(){
+		return this.origin;
+	}
+
+	public long getSequence(){
+		return this.sequence;
+	}
+
+	public int getHops(){
+		return this.hops;
+	}
+
+	public long getTimestamp(){
+		return this.timestamp;
+	}
+
+	public String getUsername(){
+		return this.username;
+	}
+
+	public String getMessage(){
+		return this.message;
+	}
+
+	/*
+	 * @return this message as it is passed on by the next relay
+	 */
+
+	public GossipMessage nextHop(){
+		return new GossipMessage(this.origin, this.sequence, this.hops + 1,
+				this.timestamp, this.username, this.message);
+	}
+
+	/*
+	 * @return a plain chat message with the same timestamp, username and text
+	 */
+
+	public ChatMessage toChatMessage(){
+		try{
+			return new ChatMessage(this.origin, this.sequence, this.timestamp, this.username, this.message);
+		}
+		catch(UnsupportedEncodingException uee){
+			//UTF-16BE is always supported
+			throw new IllegalStateException(uee);
+		}
+	}
+
+	@Override
+	public String toString(){
+		return super.toString() + ' ' + Long.toHexString(this.origin) + '#' + this.sequence
+			+ " hops " + this.hops + ' ' + this.username + ": " + this.message;
+	}
+}
@@ -7,21 +7,43 @@ public class HandshakeMessage extends AbstractMessage{
 
 	public static final String PROTOCOL_STRING = "Super Chat Master";
 
+	//Sent in place of PROTOCOL_STRING by clients that can speak protocol version 2.
+	//Same encoded length, so version 1 clients still decode the handshake
+	public static final String PROTOCOL_STRING_V2 = "Super Chat Mstr 2";
+
 	protected final String username;
 
 	protected final int listenPort;
 
+	//Highest protocol version the sender supports
+	protected final int protocolVersion;
+
 	public int getListenPort(){
 		return this.listenPort;
 	}
 
 	public HandshakeMessage(final String username, final int listenPort)
 	throws UnsupportedEncodingException {
+		this(username, listenPort, AbstractMessage.PROTOCOL_V1);
+	}
+
+	public HandshakeMessage(final String username, final int listenPort,
+			final int protocolVersion) throws UnsupportedEncodingException {
 		super(3+HandshakeMessage.PROTOCOL_STRING.getBytes("UTF-16BE").
 				length + username.getBytes("UTF-16BE").length,
 				AbstractMessage.TYPE_HANDSHAKE_MESSAGE);
 		this.username = username;
 		this.listenPort = listenPort;
+		this.protocolVersion = protocolVersion;
+	}
+
+	public int getProtocolVersion(){
+		return this.protocolVersion;
+	}
+
+	public String getProtocolString(){
+		return this.protocolVersion >= AbstractMessage.PROTOCOL_V2 ?
+			PROTOCOL_STRING_V2 : PROTOCOL_STRING;
 	}
 
 	public String getUsername(){
@@ -33,7 +55,7 @@ public class HandshakeMessage extends AbstractMessage{
 		StringBuffer sb = new StringBuffer();
 
 		sb.append(super.toString()).append(',').
-			append(PROTOCOL_STRING).append(',').
+			append(this.getProtocolString()).append(',').
 			append(this.username).append(',').
 			append(this.listenPort);
 
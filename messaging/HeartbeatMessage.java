@@ -0,0 +1,37 @@
+package com.kd.chat.messaging;
+
+/*
+ * A ping sent on an otherwise idle link, or the pong answering it.  The pong
+ * echoes the ping's token, which the sender sets to System.nanoTime() so it
+ * can work out the round trip time without remembering anything.
+ *
+ * Only sent in protocol version 2, see CompactCodec.
+ */
+
+public class HeartbeatMessage extends AbstractMessage{
+	protected final long token;
+
+	/*
+	 * @param type
+	 * 		TYPE_PING_MESSAGE or TYPE_PONG_MESSAGE
+	 * @param token
+	 * 		the value the pong echoes
+	 */
+
+	public HeartbeatMessage(final byte type, final long token){
+		super(9, type);
+		if(type != AbstractMessage.TYPE_PING_MESSAGE && type != AbstractMessage.TYPE_PONG_MESSAGE){
+			throw new IllegalArgumentException("Not a heartbeat type: " + type);
+		}
+		this.token = token;
+	}
+
+	public long getToken(){
+		return this.token;
+	}
+
+	@Override
+	public String toString(){
+		return super.toString() + ' ' + this.token;
+	}
+}
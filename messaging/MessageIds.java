@@ -0,0 +1,89 @@
+package com.kd.chat.messaging;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Sender-scoped message IDs.  A message is identified by the random origin of
+ * the process that wrote it and a sequence number that process assigns, so a
+ * message relayed or resent along several paths can be recognised as the same
+ * message.  Origin NO_ORIGIN marks a message without an ID, e.g. one read in
+ * protocol version 1 or a private message, which must never travel further.
+ */
+
+public final class MessageIds{
+	//Origin of messages that don't carry an ID
+	public static final long NO_ORIGIN = 0;
+
+	//Random origin of every message written by this process
+	public static final long LOCAL_ORIGIN = newOrigin();
+
+	//Sequence number of the last message written by this process
+	protected static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private MessageIds(){
+	}
+
+	protected static long newOrigin(){
+		long origin;
+		do{
+			origin = ThreadLocalRandom.current().nextLong();
+		}
+		while(origin == NO_ORIGIN);
+		return origin;
+	}
+
+	/*
+	 * @return the next sequence number for a message written by this process
+	 */
+
+	public static long nextSequence(){
+		return SEQUENCE.incrementAndGet();
+	}
+
+	/*
+	 * Origin of the messages of a protocol version 1 client, which can't give its
+	 * messages IDs.  Derived from its username, so every client it sends a
+	 * message to gives the message the same ID.
+	 *
+	 * @param username
+	 * 		the username of the client
+	 */
+
+	public static long leafOrigin(final String username){
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < username.length(); ++i){
+			hash = (hash ^ username.charAt(i)) * 0x100000001b3L;
+		}
+		long origin = idOf(hash, 0);
+		return origin == NO_ORIGIN ? 1 : origin;
+	}
+
+	/*
+	 * Sequence number of a message from a protocol version 1 client, see
+	 * leafOrigin.  It rises with the timestamp, so a client's high-water mark
+	 * still covers everything it has seen from the leaf, and the low 16 bits,
+	 * from the text, tell apart messages written in the same millisecond.
+	 *
+	 * @param timestamp
+	 * 		when the message was written
+	 * @param text
+	 * 		the message text
+	 */
+
+	public static long leafSequence(final long timestamp, final String text){
+		return (timestamp << 16) | (text.hashCode() & 0xFFFF);
+	}
+
+	/*
+	 * Combines an origin and sequence number into the 64-bit ID used to look the
+	 * message up, e.g. in a DedupeCache or an IHave list.
+	 */
+
+	public static long idOf(final long origin, final long sequence){
+		long id = origin ^ (sequence * 0x9e3779b97f4a7c15L);
+		id = (id ^ (id >>> 30)) * 0xbf58476d1ce4e5b9L;
+		id = (id ^ (id >>> 27)) * 0x94d049bb133111ebL;
+		return id ^ (id >>> 31);
+	}
+}
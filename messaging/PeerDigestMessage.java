@@ -0,0 +1,56 @@
+package com.kd.chat.messaging;
+
+/*
+ * Summary of the clients the sender knows, sent right after a protocol version 2
+ * client is admitted.  Holds the sender's registry version, the digest of its
+ * clients and the hash of each one (see PeerRegistry#hashOf), leaving out the
+ * client it is sent to.  The receiver replies with a PeerListMessage of the
+ * clients whose hashes are missing, or not at all if the digests match.
+ *
+ * Only sent in protocol version 2, see CompactCodec.
+ */
+
+public class PeerDigestMessage extends AbstractMessage{
+	protected final long version;
+
+	protected final long digest;
+
+	protected final long[] hashes;
+
+	/*
+	 * @param version
+	 * 		the sender's registry version
+	 * @param digest
+	 * 		the XOR of the hashes
+	 * @param hashes
+	 * 		the hash of each known client, not copied
+	 */
+
+	public PeerDigestMessage(final long version, final long digest, final long[] hashes){
+		super(1 + 10 + 8 + 5 + 8 * hashes.length, AbstractMessage.TYPE_PEER_DIGEST_MESSAGE);
+		this.version = version;
+		this.digest = digest;
+		this.hashes = hashes;
+	}
+
+	public long getVersion(){
+		return this.version;
+	}
+
+	public long getDigest(){
+		return this.digest;
+	}
+
+	/*
+	 * @return the hashes, not copied, so must not be modified
+	 */
+
+	public long[] getHashes(){
+		return this.hashes;
+	}
+
+	@Override
+	public String toString(){
+		return super.toString() + ' ' + this.hashes.length + " hashes v" + this.version;
+	}
+}
@@ -0,0 +1,15 @@
+package com.kd.chat.messaging;
+import com.kd.chat.Client;
+
+
+
+
+/*
+ * A MessageListener that also takes part in exchanging peer lists.  Listeners
+ * that only implement MessageListener never see peer digests or lists.
+ */
+
+public interface PeerListListener extends MessageListener{
+	public void peerDigestArrived(final Client client, final PeerDigestMessage message);
+	public void peerListArrived(final Client client, final PeerListMessage message);
+}
@@ -0,0 +1,65 @@
+package com.kd.chat.messaging;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Many client entries in a single frame, sent instead of one ClientExchangeMessage
+ * per client.  Sent in reply to a PeerDigestMessage with the entries the other
+ * side is missing.  Entries may be IPv4 or IPv6 addresses.
+ *
+ * Carries the sender's registry version and digest at the time it was sent.
+ * Only sent in protocol version 2, see CompactCodec.
+ */
+
+public class PeerListMessage extends AbstractMessage{
+	protected final long version;
+
+	protected final long digest;
+
+	protected final List<ClientExchangeMessage> peers;
+
+	/*
+	 * @param version
+	 * 		the sender's registry version
+	 * @param digest
+	 * 		the sender's registry digest
+	 * @param peers
+	 * 		the client entries
+	 */
+
+	public PeerListMessage(final long version, final long digest,
+			final List<ClientExchangeMessage> peers){
+		super(estimateLength(peers), AbstractMessage.TYPE_PEER_LIST_MESSAGE);
+		this.version = version;
+		this.digest = digest;
+		this.peers = Collections.unmodifiableList(peers);
+	}
+
+	/*Upper bound of the encoded size, used to size the encoding buffer*/
+
+	protected static int estimateLength(final List<ClientExchangeMessage> peers){
+		int length = 1 + 10 + 8 + 5;
+		for(ClientExchangeMessage peer : peers){
+			length += 1 + 16 + 3 + 5 + peer.getUsername().length() * 3;
+		}
+		return length;
+	}
+
+	public long getVersion(){
+		return this.version;
+	}
+
+	public long getDigest(){
+		return this.digest;
+	}
+
+	public List<ClientExchangeMessage> getPeers(){
+		return this.peers;
+	}
+
+	@Override
+	public String toString(){
+		return super.toString() + ' ' + this.peers.size() + " peers v" + this.version;
+	}
+}
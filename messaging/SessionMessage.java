@@ -0,0 +1,24 @@
+package com.kd.chat.messaging;
+
+/*
+ * Sent by each side right after a handshake that agreed on protocol version 2.
+ * Carries the epoch that the sender's chat timestamps are relative to.
+ */
+
+public class SessionMessage extends AbstractMessage{
+	protected final long epoch;
+
+	public SessionMessage(final long epoch){
+		super(9, AbstractMessage.TYPE_SESSION_MESSAGE);
+		this.epoch = epoch;
+	}
+
+	public long getEpoch(){
+		return this.epoch;
+	}
+
+	@Override
+	public String toString(){
+		return super.toString() + ' ' + this.epoch;
+	}
+}
@@ -0,0 +1,36 @@
+package com.kd.chat.messaging;
+
+/*
+ * Sent back for every SyncBatchMessage once its messages have been passed to
+ * the listeners.  The sender of the history keeps only a few batches
+ * unacknowledged, so the stream goes no faster than the receiver handles it.
+ *
+ * Only sent in protocol version 2, see CompactCodec.
+ */
+
+public class SyncAckMessage extends AbstractMessage{
+	protected final int count;
+
+	/*
+	 * @param count
+	 * 		the number of messages in the batch acknowledged
+	 */
+
+	public SyncAckMessage(final int count){
+		super(1 + 5, AbstractMessage.TYPE_SYNC_ACK_MESSAGE);
+		this.count = count;
+	}
+
+	/*
+	 * @return the number of messages in the batch acknowledged
+	 */
+
+	public int getCount(){
+		return this.count;
+	}
+
+	@Override
+	public String toString(){
+		return super.toString() + ' ' + this.count + " messages";
+	}
+}
@@ -0,0 +1,90 @@
+package com.kd.chat.messaging;
+
+import java.util.List;
+
+/*
+ * A batch of chat messages from the sender's history, sent in answer to a
+ * SyncRequestMessage.  Each message keeps its original ID and timestamp, so
+ * the receiver can drop any it already has.
+ *
+ * A batch to send may instead be built from records already encoded with
+ * CompactCodec.writeSyncRecord, so messages read from the Scrollback go out
+ * without becoming ChatMessages.  Received batches always hold ChatMessages.
+ *
+ * Only sent in protocol version 2, see CompactCodec.
+ */
+
+public class SyncBatchMessage extends AbstractMessage{
+	protected final List<ChatMessage> messages;
+
+	//Encoded records and how many there are, or null with messages instead
+	protected final byte[] records;
+
+	protected final int recordsLength;
+
+	protected final int count;
+
+	/*
+	 * @param messages
+	 * 		the messages, oldest first, not copied
+	 */
+
+	public SyncBatchMessage(final List<ChatMessage> messages){
+		super(estimateLength(messages), AbstractMessage.TYPE_SYNC_BATCH_MESSAGE);
+		this.messages = messages;
+		this.records = null;
+		this.recordsLength = 0;
+		this.count = messages.size();
+	}
+
+	/*
+	 * @param count
+	 * 		the number of records
+	 * @param records
+	 * 		the records, oldest first, each written by CompactCodec.writeSyncRecord,
+	 * 		not copied
+	 * @param length
+	 * 		the number of bytes of records used
+	 */
+
+	public SyncBatchMessage(final int count, final byte[] records, final int length){
+		super(1 + 5 + length, AbstractMessage.TYPE_SYNC_BATCH_MESSAGE);
+		this.messages = null;
+		this.records = records;
+		this.recordsLength = length;
+		this.count = count;
+	}
+
+	/*Upper bound of the encoded size, used to size the encoding buffer*/
+
+	protected static int estimateLength(final List<ChatMessage> messages){
+		int length = 1 + 5;
+		for(ChatMessage message : messages){
+			length += 8 + 10 + 10 + 5 + 5 + (message.getUsername().length()
+					+ message.getMessage().length()) * 3;
+		}
+		return length;
+	}
+
+	/*
+	 * @return the number of messages in the batch
+	 */
+
+	public int getCount(){
+		return this.count;
+	}
+
+	/*
+	 * @return the messages, not copied, so must not be modified, or null if the
+	 * 		batch was built from encoded records
+	 */
+
+	public List<ChatMessage> getMessages(){
+		return this.messages;
+	}
+
+	@Override
+	public String toString(){
+		return super.toString() + ' ' + this.count + " messages";
+	}
+}
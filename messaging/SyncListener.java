@@ -0,0 +1,17 @@
+package com.kd.chat.messaging;
+import com.kd.chat.Client;
+
+
+
+
+/*
+ * A MessageListener that can answer history sync requests.  Synced messages
+ * themselves arrive as ordinary chat messages, and each batch of them is
+ * acknowledged once dispatched.
+ */
+
+public interface SyncListener extends MessageListener{
+	public void syncRequestArrived(final Client client, final SyncRequestMessage message);
+
+	public void syncAckArrived(final Client client, final SyncAckMessage message);
+}
@@ -0,0 +1,55 @@
+package com.kd.chat.messaging;
+
+/*
+ * Sent after the handshake to ask for the chat messages the sender missed.
+ * Carries the sender's high-water mark for each origin: the highest sequence
+ * number it has seen from that origin.  The receiver answers with every
+ * message in its history from an origin not listed, or after the listed
+ * sequence, as SyncBatchMessages.
+ *
+ * Only sent in protocol version 2, see CompactCodec.
+ */
+
+public class SyncRequestMessage extends AbstractMessage{
+	protected final long[] origins;
+
+	protected final long[] sequences;
+
+	/*
+	 * @param origins
+	 * 		the origins seen, not copied
+	 * @param sequences
+	 * 		the highest sequence seen from each origin, not copied
+	 */
+
+	public SyncRequestMessage(final long[] origins, final long[] sequences){
+		super(1 + 5 + 13 * origins.length, AbstractMessage.TYPE_SYNC_REQUEST_MESSAGE);
+		if(origins.length != sequences.length){
+			throw new IllegalArgumentException("Every origin needs a sequence.");
+		}
+		this.origins = origins;
+		this.sequences = sequences;
+	}
+
+	/*
+	 * @return the origins, not copied, so must not be modified
+	 */
+
+	public long[] getOrigins(){
+		return this.origins;
+	}
+
+	/*
+	 * @return the high-water marks, in the same order as the origins, not
+	 * 		copied, so must not be modified
+	 */
+
+	public long[] getSequences(){
+		return this.sequences;
+	}
+
+	@Override
+	public String toString(){
+		return super.toString() + ' ' + this.origins.length + " origins";
+	}
+}
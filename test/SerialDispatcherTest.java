@@ -0,0 +1,217 @@
+package com.kd.chat.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.kd.chat.LatencyHistogram;
+import com.kd.chat.SerialDispatcher;
+
+
+
+
+/*
+ * Checks that the SerialDispatcher runs each key's tasks one at a time in the
+ * order they were queued, also when a key is released while tasks for it are
+ * still queued or arrive afterwards, and that released keys are forgotten.
+ * Keys stand for clients: 100 of them are sent tasks as fast as possible, then
+ * at a steady 10k tasks/s in total, where the p99 time from queueing a task to
+ * running it must stay under a bound.  A plain main method, since the tree has
+ * no test harness; exits with status 1 if any check fails.
+ *
+ * Run with: java com.kd.chat.test.SerialDispatcherTest
+ */
+
+public class SerialDispatcherTest{
+	protected static final int KEYS = 100;
+
+	protected static final int SENDERS = 8;
+
+	//Tasks per key when sending as fast as possible
+	protected static final int TASKS_PER_KEY = 5000;
+
+	//Tasks per second across every key when paced, and how many each key gets,
+	//i.e. 5 seconds' worth
+	protected static final int PACED_RATE = 10000;
+
+	protected static final int PACED_TASKS_PER_KEY = 5 * PACED_RATE / KEYS;
+
+	//Largest p99 queueing latency allowed at the paced rate
+	protected static final long P99_BOUND_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+	protected static int failures = 0;
+
+	public static void main(String[] args) throws InterruptedException{
+		ordering(false, 0, TASKS_PER_KEY);
+		ordering(true, 0, TASKS_PER_KEY);
+		ordering(false, PACED_RATE, PACED_TASKS_PER_KEY);
+		backlog();
+		System.out.println(failures == 0 ? "OK" : failures + " FAILED");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/*
+	 * Has several threads queue numbered tasks for their own keys and checks
+	 * every key sees its numbers in order, with no two of its tasks running at
+	 * once.  When paced, every key is sent one task per round and the rounds
+	 * are spread evenly at the given rate, each against a fixed schedule so a
+	 * late sender catches up instead of lowering the rate.
+	 *
+	 * @param release
+	 * 		whether to release keys now and then while their tasks are queued
+	 * @param rate
+	 * 		tasks per second across every key, 0 to send as fast as possible
+	 * @param tasksPerKey
+	 * 		tasks sent for each key
+	 */
+
+	protected static void ordering(final boolean release, final int rate, final int tasksPerKey)
+			throws InterruptedException{
+		final String description = (release ? " with releases" : "")
+			+ (rate > 0 ? " at " + rate + " tasks/s" : "");
+		final Dispatcher dispatcher = new Dispatcher(4, tasksPerKey);
+		final AtomicIntegerArray next = new AtomicIntegerArray(KEYS);
+		final AtomicIntegerArray running = new AtomicIntegerArray(KEYS);
+		final AtomicInteger errors = new AtomicInteger();
+		final LatencyHistogram latencies = new LatencyHistogram();
+		final long roundNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(KEYS) / rate : 0;
+		final long start = System.nanoTime();
+		final CountDownLatch sent = new CountDownLatch(SENDERS);
+		for(int s = 0; s < SENDERS; ++s){
+			final int sender = s;
+			new Thread(new Runnable(){
+				@Override
+				public void run(){
+					for(int n = 0; n < tasksPerKey; ++n){
+						if(roundNanos > 0){
+							long wait;
+							while((wait = start + n * roundNanos - System.nanoTime()) > 0){
+								LockSupport.parkNanos(wait);
+							}
+						}
+						for(int k = sender; k < KEYS; k += SENDERS){
+							final Integer key = Integer.valueOf(k);
+							final int expected = n;
+							final long queuedNanos = System.nanoTime();
+							boolean queued = dispatcher.execute(key, new Runnable(){
+								@Override
+								public void run(){
+									latencies.record(System.nanoTime() - queuedNanos);
+									int k = key.intValue();
+									if(running.incrementAndGet(k) != 1){
+										errors.incrementAndGet();
+									}
+									if(ThreadLocalRandom.current().nextInt(64) == 0){
+										Thread.yield();
+									}
+									if(!next.compareAndSet(k, expected, expected + 1)){
+										errors.incrementAndGet();
+									}
+									running.decrementAndGet(k);
+								}
+							});
+							if(!queued){
+								errors.incrementAndGet();
+							}
+							if(release && ThreadLocalRandom.current().nextInt(100) == 0){
+								dispatcher.release(key);
+							}
+						}
+					}
+					sent.countDown();
+				}
+			}, "sender-" + s).start();
+		}
+		sent.await();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while(!done(next, tasksPerKey) && System.nanoTime() < deadline){
+			Thread.sleep(10);
+		}
+		check(done(next, tasksPerKey), "every task ran" + description);
+		check(errors.get() == 0, errors.get() + " tasks out of order, overlapping or refused"
+				+ description);
+		if(rate > 0){
+			System.out.println("Queueing latency" + description + ": " + latencies);
+			check(latencies.getPercentile(99) <= P99_BOUND_NANOS, "p99 latency of "
+					+ TimeUnit.NANOSECONDS.toMicros(latencies.getPercentile(99)) + "us is within "
+					+ TimeUnit.NANOSECONDS.toMillis(P99_BOUND_NANOS) + "ms" + description);
+		}
+
+		for(int k = 0; k < KEYS; ++k){
+			dispatcher.release(Integer.valueOf(k));
+		}
+		while(dispatcher.keys() > 0 && System.nanoTime() < deadline){
+			Thread.sleep(10);
+		}
+		check(dispatcher.keys() == 0, dispatcher.keys() + " keys left after release");
+		dispatcher.shutdown();
+	}
+
+	/*Checks tasks beyond a key's backlog are refused while other keys still run*/
+
+	protected static void backlog() throws InterruptedException{
+		final Dispatcher dispatcher = new Dispatcher(2, 10);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch other = new CountDownLatch(1);
+		Runnable block = new Runnable(){
+			@Override
+			public void run(){
+				try{
+					blocked.await();
+				}
+				catch(InterruptedException ie){
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		int queued = 0;
+		for(int i = 0; i < 11; ++i){
+			if(dispatcher.execute("busy", block)){
+				++queued;
+			}
+		}
+		check(queued == 10 && dispatcher.getRefused() == 1,
+				queued + " queued and " + dispatcher.getRefused() + " refused of 11 with a backlog of 10");
+		dispatcher.execute("idle", new Runnable(){
+			@Override
+			public void run(){
+				other.countDown();
+			}
+		});
+		check(other.await(5, TimeUnit.SECONDS), "another key ran while one was full");
+		blocked.countDown();
+		dispatcher.shutdown();
+	}
+
+	protected static boolean done(final AtomicIntegerArray next, final int tasksPerKey){
+		for(int k = 0; k < next.length(); ++k){
+			if(next.get(k) != tasksPerKey){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected static void check(final boolean condition, final String description){
+		if(!condition){
+			++failures;
+			System.err.println("FAILED: " + description);
+		}
+	}
+
+	/*Exposes how many keys the dispatcher still holds*/
+
+	protected static class Dispatcher extends SerialDispatcher{
+		public Dispatcher(final int threads, final int maxBacklog){
+			super(threads, maxBacklog);
+		}
+
+		public int keys(){
+			return this.serials.size();
+		}
+	}
+}
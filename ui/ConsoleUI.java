@@ -22,33 +22,99 @@ package com.kd.chat.ui;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
 import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.kd.chat.Client;
+import com.kd.chat.PeerRegistry;
+import com.kd.chat.Scrollback;
+import com.kd.chat.SearchIndex;
+import com.kd.chat.messaging.ChatFrame;
+import com.kd.chat.messaging.ChatMessage;
 
 /**
  * A simple user interface for the chat client. General chat messages are sent
  * by typing and pressing &lt;Enter&gt;. Private chat messages are specified by
  * providing the username preceded by the at sign (@) followed by a space and
  * the message. The user can terminate the chat client by typing entering
- * "quit".
+ * "quit". When the chat client keeps a scrollback, "/recent" shows the most
+ * recent messages, and when it indexes them, "/search" finds past ones.
  * 
  * @author Robert Moore
  * 
  */
 public class ConsoleUI extends Thread implements UIAdapter {
 
+	/**
+	 * Ends each line printed by chatMessagesRecieved.
+	 */
+	protected static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
 	/**
 	 * Collection of listeners for user input/quit requests.
 	 */
 	protected final Collection<UserInputListener> listeners = new ConcurrentLinkedQueue<UserInputListener>();
 
 	/**
-	 * List of currently-connected clients. Used to validate private message
+	 * Currently-connected clients. Used to validate private message
 	 * destinations before passing to any UserInterfaceListener interfaces.
 	 */
-	protected final Collection<Client> knownClients = new ConcurrentLinkedQueue<Client>();
+	protected final PeerRegistry knownClients;
+
+	/**
+	 * True if this object maintains knownClients itself, false if it is shared
+	 * with, and maintained by, the chat client.
+	 */
+	protected final boolean ownsKnownClients;
+
+	/**
+	 * Creates a user interface that tracks connected clients itself.
+	 */
+	public ConsoleUI() {
+		this.knownClients = new PeerRegistry();
+		this.ownsKnownClients = true;
+	}
+
+	/**
+	 * Creates a user interface that looks up clients in a registry maintained
+	 * by the chat client.
+	 * 
+	 * @param knownClients
+	 *            the registry of currently-connected clients
+	 */
+	public ConsoleUI(PeerRegistry knownClients) {
+		this.knownClients = knownClients;
+		this.ownsKnownClients = false;
+	}
+
+	/**
+	 * Number of messages "/recent" shows when not given a number.
+	 */
+	protected static final int DEFAULT_RECENT = 20;
+
+	/**
+	 * Recent messages shown by "/recent", or null if there are none.
+	 */
+	protected volatile Scrollback scrollback;
+
+	/**
+	 * Most messages "/search" shows.
+	 */
+	protected static final int MAX_SEARCH_RESULTS = 20;
+
+	/**
+	 * Index searched by "/search", or null if messages aren't indexed.
+	 */
+	protected volatile SearchIndex searchIndex;
+
+	/**
+	 * Formats the time of each message "/search" shows.
+	 */
+	protected final SimpleDateFormat searchTimeFormat = new SimpleDateFormat(
+			"yyyy-MM-dd HH:mm:ss");
 
 	/**
 	 * Flag to keep awaiting user input.
@@ -75,6 +141,26 @@ public class ConsoleUI extends Thread implements UIAdapter {
 		this.listeners.remove(listener);
 	}
 
+	/**
+	 * Sets where "/recent" reads recent messages from.
+	 * 
+	 * @param scrollback
+	 *            the chat client's scrollback, or null if it keeps none
+	 */
+	public void setScrollback(Scrollback scrollback) {
+		this.scrollback = scrollback;
+	}
+
+	/**
+	 * Sets the index "/search" searches.
+	 * 
+	 * @param searchIndex
+	 *            the chat client's index, or null if it keeps none
+	 */
+	public void setSearchIndex(SearchIndex searchIndex) {
+		this.searchIndex = searchIndex;
+	}
+
 	/**
 	 * Prints out the chat message to the system out as "username: message"
 	 */
@@ -99,6 +185,14 @@ public class ConsoleUI extends Thread implements UIAdapter {
 				.println("Send broadcast messages by typing and hitting <Enter>.");
 		System.out
 				.println("Send private messages like this: @username message to send.");
+		if (this.scrollback != null) {
+			System.out
+					.println("Type \"/recent [count]\" to see the most recent messages.");
+		}
+		if (this.searchIndex != null) {
+			System.out
+					.println("Type \"/search [words] [@username] [after:2h] [before:2024-05-01]\" to find messages.");
+		}
 		System.out.println("Type \"quit\" to exit.");
 
 		// Keep awiting user input until the user wants to quit.
@@ -115,20 +209,23 @@ public class ConsoleUI extends Thread implements UIAdapter {
 				if(line == null){
 					continue;
 				}
+				// Only the commands themselves, not chat that starts with the same letters
+				if (line.equals("/search") || line.startsWith("/search ")) {
+					this.printSearch(line.substring("/search".length()).trim());
+					continue;
+				}
+				if (line.equals("/recent") || line.startsWith("/recent ")) {
+					this.printRecent(line.substring("/recent".length()).trim());
+					continue;
+				}
 				// Check for private message
 				if (line.startsWith("@")) {
 					int usernameBreak = line.indexOf(' ');
 					String username = line.substring(1, usernameBreak);
 					String message = line.substring(usernameBreak + 1, line
 							.length());
-					Client theClient = null;
 					// Find the client based on the username
-					for (Client client : this.knownClients) {
-						if (client.getUsername().equals(username)) {
-							theClient = client;
-							break;
-						}
-					}
+					Client theClient = this.knownClients.getByUsername(username);
 					// If the client wasn't found, print an error message and
 					// await next input
 					if (theClient == null) {
@@ -160,6 +257,87 @@ public class ConsoleUI extends Thread implements UIAdapter {
 
 	}
 
+	/**
+	 * Prints the most recent messages from the scrollback as "username: message"
+	 * with a single write. The text is decoded straight from the scrollback's
+	 * direct memory into one buffer, so no message is copied onto the heap.
+	 * 
+	 * @param count
+	 *            how many messages to show, or empty for the default
+	 */
+	protected void printRecent(String count) {
+		Scrollback scrollback = this.scrollback;
+		if (scrollback == null) {
+			System.out.println("No recent messages are kept.");
+			return;
+		}
+		int messages = DEFAULT_RECENT;
+		if (count.length() > 0) {
+			try {
+				messages = Integer.parseInt(count);
+			} catch (NumberFormatException nfe) {
+				System.out.println("Usage: /recent [count]");
+				return;
+			}
+		}
+		Scrollback.Cursor cursor = scrollback.newest(messages);
+		StringBuilder lines = new StringBuilder();
+		for (int shown = 0; shown < messages && cursor.next(); ++shown) {
+			int start = lines.length();
+			ChatFrame frame = cursor.getFrame();
+			lines.append(frame.getUsername()).append(": ");
+			frame.appendMessageTo(lines);
+			// Overwritten while being read, so whatever was decoded is garbage
+			if (!cursor.isValid()) {
+				lines.setLength(start);
+				continue;
+			}
+			lines.append(LINE_SEPARATOR);
+		}
+		System.out.print(lines);
+		System.out.flush();
+	}
+
+	/**
+	 * Prints the newest messages matching a query as "[time] username: message",
+	 * newest first, followed by how many matched and how long it took.
+	 * 
+	 * @param query
+	 *            the query, see SearchIndex
+	 */
+	protected void printSearch(String query) {
+		SearchIndex index = this.searchIndex;
+		if (index == null) {
+			System.out.println("Messages aren't indexed; start with -Dchat.search=true.");
+			return;
+		}
+		if (query.length() == 0) {
+			System.out
+					.println("Usage: /search [words] [@username] [after:<when>] [before:<when>]");
+			return;
+		}
+		SearchIndex.Results results;
+		try {
+			results = index.search(query, MAX_SEARCH_RESULTS);
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			return;
+		}
+		StringBuilder lines = new StringBuilder();
+		for (ChatMessage message : results.getMessages()) {
+			lines.append('[')
+					.append(this.searchTimeFormat.format(new Date(message
+							.getTimestamp()))).append("] ");
+			lines.append(message.getUsername()).append(": ")
+					.append(message.getMessage()).append(LINE_SEPARATOR);
+		}
+		lines.append(results.getMatches()).append(" matching, searched in ")
+				.append(results.getNanos() / 1000 / 1000.0).append(" ms")
+				.append(LINE_SEPARATOR);
+		System.out.print(lines);
+		System.out.flush();
+	}
+
 	/**
 	 * Does nothing, as the console already echoes the user's input.
 	 */
@@ -170,20 +348,26 @@ public class ConsoleUI extends Thread implements UIAdapter {
 	}
 
 	/**
-	 * Adds the client to the collection of known clients.
+	 * Adds the client to the collection of known clients, unless the collection
+	 * is maintained by the chat client.
 	 */
 	@Override
 	public void clientConnected(Client connectedClient) {
 		System.out.println("Connected to " + connectedClient);
-		this.knownClients.add(connectedClient);
+		if (this.ownsKnownClients) {
+			this.knownClients.registerIfAbsent(connectedClient);
+		}
 	}
 
 	/**
-	 * Removes the client from the collection of known clients. Prints a
+	 * Removes the client from the collection of known clients, unless the
+	 * collection is maintained by the chat client. Prints a
 	 */
 	@Override
 	public void clientDisconnected(Client disconnectedClient, String reason) {
-		this.knownClients.remove(disconnectedClient);
+		if (this.ownsKnownClients) {
+			this.knownClients.remove(disconnectedClient);
+		}
 		System.out.println(disconnectedClient + " disconnected"
 				+ (reason == null ? "." : (" because: " + reason)));
 	}
@@ -199,11 +383,30 @@ public class ConsoleUI extends Thread implements UIAdapter {
 				+ (reason == null ? "\n" : "\n\nReason: " + reason));
 	}
 
+	/**
+	 * Prints out the chat message, see chatMessageReceived.
+	 */
 	@Override
 	public void chatMessageRecieved(Client fromClient, long timestamp,
 			String message) {
-		// TODO Auto-generated method stub
-		
+		this.chatMessageReceived(fromClient, timestamp, message);
+	}
+
+	/**
+	 * Prints out every message as "username: message" with a single write, so
+	 * a burst of messages costs one trip to the console and isn't interleaved
+	 * with other output.
+	 */
+	@Override
+	public void chatMessagesRecieved(Client fromClient, List<ChatMessage> messages) {
+		StringBuilder lines = new StringBuilder();
+		for (ChatMessage message : messages) {
+			lines.append(message.getUsername() == null ? fromClient.getUsername()
+					: message.getUsername());
+			lines.append(": ").append(message.getMessage()).append(LINE_SEPARATOR);
+		}
+		System.out.print(lines);
+		System.out.flush();
 	}
 
 }
@@ -1,10 +1,24 @@
 package com.kd.chat.ui;
+import java.util.List;
+
 import com.kd.chat.Client;
+import com.kd.chat.messaging.ChatMessage;
 
 
 public interface UIAdapter{
 	public void chatMessageRecieved(Client fromClient, long timestamp, String message);
 
+	/*
+	 * Shows several chat messages that arrived together, in order.  Each message
+	 * is shown as coming from its own username.
+	 *
+	 * @param fromClient
+	 * 		the client the messages were read from
+	 * @param messages
+	 * 		the messages, which may be kept
+	 */
+	public void chatMessagesRecieved(Client fromClient, List<ChatMessage> messages);
+
 	public void chatMessageSent(long timestamp, String message);
 
 	public void messageNotSent(Client client, String message, String reason);